@@ -131,7 +131,7 @@ public class BankIDClientImpl implements BankIDClient {
       throw new RuntimeException(e);
     }
     try {
-      return this.webClient.post()
+      return BankIdCallEvent.record("auth", this.identifier, null, this.webClient.post()
           .uri(AUTH_PATH)
           .contentType(MediaType.APPLICATION_JSON)
           .bodyValue(authnRequest)
@@ -143,7 +143,7 @@ public class BankIDClientImpl implements BankIDClient {
             log.debug("{}: authenticate. response: [{}]", this.identifier, m.toString());
             return m;
           })
-          .doOnError(e -> log.info("Error in request to bankid: " + request.toString(), e));
+          .doOnError(e -> log.info("Error in request to bankid: " + request.toString(), e)));
     }
     catch (final WebClientResponseException e) {
       log.info("{}: authenticate. Error during auth-call - {} - {} - {}",
@@ -169,7 +169,7 @@ public class BankIDClientImpl implements BankIDClient {
         new SignRequest(request.getEndUserIp(), request.getRequirement(), request.getDataToSign());
     log.debug("{}: sign. request: [{}] [path: {}]", this.identifier, signRequest, SIGN_PATH);
 
-    return this.webClient.post()
+    return BankIdCallEvent.record("sign", this.identifier, null, this.webClient.post()
         .uri(SIGN_PATH)
         .bodyValue(signRequest)
         .retrieve()
@@ -189,7 +189,7 @@ public class BankIDClientImpl implements BankIDClient {
             log.error("{}: Sign. Error during sign-call - {}", this.identifier, e.getMessage(), e);
             throw new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during sign", e);
           }
-        });
+        }));
   }
 
   /**
@@ -202,7 +202,7 @@ public class BankIDClientImpl implements BankIDClient {
 
     final OrderRefRequest request = new OrderRefRequest(orderReference);
 
-    return this.webClient.post()
+    return BankIdCallEvent.record("cancel", this.identifier, orderReference, this.webClient.post()
         .uri(CANCEL_PATH)
         .bodyValue(request)
         .retrieve()
@@ -220,7 +220,7 @@ public class BankIDClientImpl implements BankIDClient {
             log.error("{}: cancel. Error during cancel-call - {}", this.identifier, e.getMessage(), e);
             throw new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during collect", e);
           }
-        });
+        }));
 
   }
 
@@ -244,7 +244,7 @@ public class BankIDClientImpl implements BankIDClient {
         .uri(COLLECT_PATH)
         .bodyValue(request)
         .retrieve();
-    return retrieve
+    return BankIdCallEvent.record("collect", this.identifier, orderReference, retrieve
         .onRawStatus(StatusCodePredicates.userError(), BankIdErrorBodyExtractors.userErrorBodyExtractor())
         .onRawStatus(StatusCodePredicates.serverError(), BankIdErrorBodyExtractors.serverErrorBodyExtractor())
         .bodyToMono(CollectResponse.class)
@@ -261,7 +261,7 @@ public class BankIDClientImpl implements BankIDClient {
             log.error("{}: collect. Error during collect-call - {}", this.identifier, e.getMessage(), e);
             throw new BankIDException(ErrorCode.UNKNOWN_ERROR, "Unknown error during collect", e);
           }
-        });
+        }));
   }
 
   /**
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.rpapi.service.impl;
+
+import java.util.Optional;
+
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import se.swedenconnect.bankid.rpapi.support.OrderReferences;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.bankid.rpapi.types.OrderResponse;
+
+/**
+ * JFR event for a call to the BankID server. The duration of the event is the time from the subscription to the call
+ * until it terminates.
+ *
+ * @author Martin Lindström
+ */
+@Name("se.swedenconnect.bankid.BankIdCall")
+@Label("BankID Call")
+@Description("A call to the BankID server")
+@Category({ "BankID", "BankID Server" })
+@StackTrace(false)
+public class BankIdCallEvent extends Event {
+
+  /** The call. */
+  @Label("Call")
+  @Description("The BankID API method (auth, sign, collect or cancel)")
+  public String call;
+
+  /** The RP. */
+  @Label("Relying Party")
+  public String rp;
+
+  /** The hash of the order reference. */
+  @Label("Order Reference Hash")
+  @Description("A hash of the order reference (for correlation)")
+  public String orderRefHash;
+
+  /** The result status. */
+  @Label("Status")
+  @Description("The collect status and hint code, \"ok\", or the error")
+  public String status;
+
+  /** The HTTP status. */
+  @Label("HTTP Status")
+  @Description("The HTTP status of an error response (0 if not available)")
+  public int httpStatus;
+
+  /**
+   * Records a {@link BankIdCallEvent} for a call to the BankID server.
+   *
+   * @param <T> the response type
+   * @param call the call
+   * @param rp the RP identifier
+   * @param orderReference the order reference (may be {@code null})
+   * @param mono the call
+   * @return a mono that records the event
+   */
+  static <T> Mono<T> record(final String call, final String rp, final String orderReference, final Mono<T> mono) {
+    return Mono.defer(() -> {
+      final BankIdCallEvent event = new BankIdCallEvent();
+      if (!event.isEnabled()) {
+        return mono;
+      }
+      event.call = call;
+      event.rp = rp;
+      event.orderRefHash = OrderReferences.hash(orderReference);
+      event.begin();
+      return mono
+          .doOnSuccess(event::onResult)
+          .doOnError(event::onError)
+          .doFinally(signal -> {
+            if (signal == SignalType.CANCEL) {
+              event.status = "cancelled";
+            }
+            event.commit();
+          });
+    });
+  }
+
+  private void onResult(final Object result) {
+    if (result instanceof final OrderResponse orderResponse) {
+      this.orderRefHash = OrderReferences.hash(orderResponse.getOrderReference());
+      this.status = "ok";
+    }
+    else if (result instanceof final CollectResponse collectResponse) {
+      this.status = Optional.ofNullable(collectResponse.getHintCode())
+          .map(h -> "%s/%s".formatted(collectResponse.getStatus().getValue(), h))
+          .orElseGet(() -> collectResponse.getStatus().getValue());
+    }
+    else {
+      this.status = "ok";
+    }
+  }
+
+  private void onError(final Throwable error) {
+    this.status = error.getClass().getSimpleName();
+    Throwable e = error;
+    while (e != null) {
+      if (e instanceof final WebClientResponseException responseException) {
+        this.httpStatus = responseException.getStatusCode().value();
+        break;
+      }
+      e = e.getCause();
+    }
+  }
+
+}
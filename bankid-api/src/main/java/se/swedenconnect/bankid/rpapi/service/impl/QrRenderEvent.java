@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.rpapi.service.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for the rendering of a QR code image.
+ *
+ * @author Martin Lindström
+ */
+@Name("se.swedenconnect.bankid.QrRender")
+@Label("QR Code Rendering")
+@Description("The generation of a QR code image")
+@Category({ "BankID", "QR Code" })
+@StackTrace(false)
+public class QrRenderEvent extends Event {
+
+  /** The image format. */
+  @Label("Format")
+  public String format;
+
+  /** The size. */
+  @Label("Size")
+  @Description("The width and height of the image (in pixels)")
+  public int size;
+
+  /** The size of the image. */
+  @Label("Bytes")
+  @Description("The size of the generated image")
+  @DataAmount
+  public long bytes;
+
+}
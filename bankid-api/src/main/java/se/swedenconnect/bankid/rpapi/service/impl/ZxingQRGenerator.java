@@ -68,17 +68,28 @@ public class ZxingQRGenerator extends AbstractQRGenerator {
     if (ImageFormat.SVG.equals(format)) {
       throw new IOException("Image format SVG is not supported by " + this.getClass().getSimpleName());
     }
+    final QrRenderEvent event = new QrRenderEvent();
+    event.begin();
     try {
       log.debug("Generating QR code in {} format based on {}", format, input);
       final QRCodeWriter writer = new QRCodeWriter();
       final BitMatrix bytes = writer.encode(input, BarcodeFormat.QR_CODE, size, size);
       final ByteArrayOutputStream stream = new ByteArrayOutputStream();
       MatrixToImageWriter.writeToStream(bytes, format.getImageFormatName(), stream);
-      return stream.toByteArray();
+      final byte[] image = stream.toByteArray();
+      event.bytes = image.length;
+      return image;
     }
     catch (WriterException e) {
       throw new IOException("Failed to generate QR code: " + e.getMessage(), e);
     }
+    finally {
+      if (event.shouldCommit()) {
+        event.format = format.getImageFormatName();
+        event.size = size;
+        event.commit();
+      }
+    }
   }
 
   /** {@inheritDoc} */
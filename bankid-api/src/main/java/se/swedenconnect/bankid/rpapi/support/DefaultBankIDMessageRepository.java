@@ -16,7 +16,9 @@
 package se.swedenconnect.bankid.rpapi.support;
 
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import se.swedenconnect.bankid.rpapi.support.BankIDMessage.ShortName;
 
@@ -62,10 +64,20 @@ public class DefaultBankIDMessageRepository implements BankIDMessageRepository {
       new BankIDMessageImpl(ShortName.EXT1, "bankid.msg.ext1"),
       new BankIDMessageImpl(ShortName.EXT2, "bankid.msg.ext2"));
 
+  /** The mappings indexed by short name. */
+  private final Map<ShortName, BankIDMessage> index = new EnumMap<>(ShortName.class);
+
+  /**
+   * Constructor.
+   */
+  public DefaultBankIDMessageRepository() {
+    this.repository.forEach(m -> this.index.putIfAbsent(m.getShortName(), m));
+  }
+
   /** {@inheritDoc} */
   @Override
   public BankIDMessage getBankIDMessage(final ShortName id) {
-    return this.repository.stream().filter(b -> b.getShortName().equals(id)).findFirst().orElse(null);
+    return id != null ? this.index.get(id) : null;
   }
 
 }
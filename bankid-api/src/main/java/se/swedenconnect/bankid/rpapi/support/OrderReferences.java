@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.rpapi.support;
+
+import java.util.Optional;
+
+/**
+ * Utility methods for order references.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public final class OrderReferences {
+
+  /**
+   * Hashes an order reference so that events and logs can be correlated without the order reference being recorded.
+   *
+   * @param orderReference the order reference (may be {@code null})
+   * @return the hash (or {@code null})
+   */
+  public static String hash(final String orderReference) {
+    return Optional.ofNullable(orderReference)
+        .map(o -> "%08x".formatted(o.hashCode()))
+        .orElse(null);
+  }
+
+  // Hidden constructor
+  private OrderReferences() {
+  }
+
+}
@@ -16,13 +16,12 @@
 package se.swedenconnect.bankid.idp.audit;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 import org.springframework.beans.factory.DisposableBean;
@@ -30,10 +29,16 @@ import org.springframework.boot.actuate.audit.AuditEvent;
 import org.springframework.boot.actuate.audit.AuditEventRepository;
 import org.springframework.util.StringUtils;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import se.swedenconnect.spring.saml.idp.audit.Saml2AuditEvents;
 
 /**
  * The base {@link AuditEventRepository} for the BankID IdP.
+ * <p>
+ * By default, events are written to the log file and the repository on the calling thread. If
+ * {@link #startPipeline(int, int, AuditOverflowPolicy, Path, MeterRegistry)} has been called, events are instead
+ * queued and written in batches by an {@link AuditEventPipeline}.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
@@ -59,15 +64,18 @@ public abstract class AbstractBankIdAuditEventRepository implements AuditEventRe
   /** The supported events. */
   private final List<String> supportedEvents;
 
-  /** The underlying JUL handler. */
-  private final DateRollingFileHandler handler;
-
-  /** The JUL logger. */
-  private final Logger auditLogger;
+  /** The journal for file logging (may be {@code null}). */
+  private final AuditJournal journal;
 
   /** The mapper that writes JSON. */
   private final AuditEventMapper mapper;
 
+  /** The pipeline for asynchronous writes (may be {@code null}). */
+  private volatile AuditEventPipeline pipeline;
+
+  /** The maximum number of events returned by {@link #find(String, java.time.Instant, String)}. */
+  private int maxFindResults = PageableAuditEventRepository.DEFAULT_MAX_FIND_RESULTS;
+
   /**
    * Constructor.
    *
@@ -82,20 +90,60 @@ public abstract class AbstractBankIdAuditEventRepository implements AuditEventRe
     this.supportedEvents = Optional.ofNullable(supportedEvents).orElseGet(() -> DEFAULT_SUPPORTED_EVENTS);
     this.mapper = Objects.requireNonNull(mapper, "mapper must not be null");
 
-    this.handler = StringUtils.hasText(logFile) ? new DateRollingFileHandler(logFile) : null;
-    if (this.handler != null) {
-      // Build the logger name based on the log file name ...
-      final String loggerName = Path.of(logFile).toAbsolutePath().toString();
+    this.journal = StringUtils.hasText(logFile) ? new AuditJournal(logFile) : null;
+  }
 
-      this.auditLogger = Logger.getLogger(loggerName);
-      this.auditLogger.setLevel(Level.INFO);
-      this.auditLogger.addHandler(this.handler);
-      this.auditLogger.setUseParentHandlers(false);
+  /**
+   * Tells whether each write to the log file should be forced to the storage device. The default is {@code false}.
+   *
+   * @param syncLogFile whether writes to the log file should be forced
+   */
+  public void setSyncLogFile(final boolean syncLogFile) {
+    if (this.journal != null) {
+      this.journal.setForce(syncLogFile);
     }
-    else {
-      this.auditLogger = null;
+  }
+
+  /**
+   * Assigns the maximum number of events returned by {@link #find(String, java.time.Instant, String)}. Repositories
+   * that hold more matching events return the newest ones. The default is
+   * {@link PageableAuditEventRepository#DEFAULT_MAX_FIND_RESULTS}.
+   *
+   * @param maxFindResults the maximum number of events
+   */
+  public void setMaxFindResults(final int maxFindResults) {
+    if (maxFindResults < 1) {
+      throw new IllegalArgumentException("maxFindResults must be greater than 0");
     }
+    this.maxFindResults = maxFindResults;
+  }
 
+  /**
+   * Gets the maximum number of events returned by {@link #find(String, java.time.Instant, String)}.
+   *
+   * @return the maximum number of events
+   */
+  protected int getMaxFindResults() {
+    return this.maxFindResults;
+  }
+
+  /**
+   * Starts an {@link AuditEventPipeline} so that events are written by a dedicated writer thread instead of the thread
+   * that produces the event.
+   *
+   * @param capacity the capacity of the event queue
+   * @param batchSize the maximum number of events written in one batch
+   * @param overflowPolicy the policy for a full queue
+   * @param spillFile the spill file (required for {@link AuditOverflowPolicy#SPILL})
+   * @param meterRegistry the meter registry (if {@code null}, the global registry is used)
+   */
+  public synchronized void startPipeline(final int capacity, final int batchSize,
+      final AuditOverflowPolicy overflowPolicy, final Path spillFile, final MeterRegistry meterRegistry) {
+    if (this.pipeline != null) {
+      throw new IllegalStateException("Pipeline has already been started");
+    }
+    this.pipeline = new AuditEventPipeline(capacity, batchSize, overflowPolicy, spillFile, this.mapper,
+        this::writeEvents, meterRegistry);
   }
 
   /** {@inheritDoc} */
@@ -108,18 +156,55 @@ public abstract class AbstractBankIdAuditEventRepository implements AuditEventRe
     if (this.supportedEvents.contains(event.getType())) {
       log.info("Audit logging event '{}' for principal '{}' ...", event.getType(), event.getPrincipal());
 
-      if (this.auditLogger != null) {
-        try {
-          this.auditLogger.log(Level.INFO, this.mapper.write(event));
-        }
-        catch (final Throwable e) {
-          log.error("Failed to audit log to file - {}", e.getMessage(), e);
+      if (this.pipeline != null) {
+        this.pipeline.add(event);
+      }
+      else {
+        this.writeEvents(List.of(event));
+      }
+    }
+  }
+
+  /**
+   * Writes events to the log file (if configured) and to the repository.
+   *
+   * @param events the events to write
+   */
+  private void writeEvents(final List<AuditEvent> events) {
+    final AuditWriteEvent writeEvent = new AuditWriteEvent();
+    writeEvent.begin();
+    if (this.journal != null) {
+      try {
+        final List<String> lines = events.stream().map(this.mapper::write).toList();
+        this.journal.appendAll(lines);
+        if (writeEvent.isEnabled()) {
+          writeEvent.journalBytes = lines.stream()
+              .mapToLong(line -> line.getBytes(StandardCharsets.UTF_8).length + System.lineSeparator().length())
+              .sum();
         }
       }
-      this.addEvent(event);
+      catch (final Throwable e) {
+        log.error("Failed to audit log to file - {}", e.getMessage(), e);
+      }
+    }
+    this.addEvents(events);
+    if (writeEvent.shouldCommit()) {
+      writeEvent.repository = this.getClass().getSimpleName();
+      writeEvent.events = events.size();
+      writeEvent.commit();
     }
   }
 
+  /**
+   * Logs a batch of events. The default implementation invokes {@link #addEvent(AuditEvent)} for each event.
+   * Implementations that can write several events in one operation should override this method.
+   *
+   * @param events the audit events to log
+   */
+  protected void addEvents(final List<AuditEvent> events) {
+    events.forEach(this::addEvent);
+  }
+
   /**
    * Logs an event.
    *
@@ -130,9 +215,11 @@ public abstract class AbstractBankIdAuditEventRepository implements AuditEventRe
   /** {@inheritDoc} */
   @Override
   public void destroy() throws Exception {
-    if (this.handler != null) {
-      this.handler.flush();
-      this.handler.close();
+    if (this.pipeline != null) {
+      this.pipeline.close();
+    }
+    if (this.journal != null) {
+      this.journal.close();
     }
   }
 
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.redisson.api.RBatch;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.bankid.idp.audit.RedisAuditEventIndex.IndexedEvent;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+
+/**
+ * Base class for the Redis audit event repositories.
+ * <p>
+ * Events are distributed over the shards given by the {@link RedisKeyLayout} in a round-robin fashion. Each event is
+ * stored and indexed by the {@link RedisAuditEventIndex}, which is used for all queries. The structures used by the
+ * subclasses in earlier versions are only read, and only if legacy keys should be read.
+ * </p>
+ * <p>
+ * If retention has been started (see {@link #startRetention(Duration, long, Path, Duration)}), a background job
+ * removes events that are older than the maximum age, or that exceed the maximum number of events, from Redis. If an
+ * archive directory is given, the events are first written to the {@link AuditArchive}, and queries span both the
+ * archive and Redis.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public abstract class AbstractRedisAuditEventRepository extends AbstractBankIdAuditEventRepository
+    implements PageableAuditEventRepository {
+
+  /** The maximum number of events that are removed in one step of the retention job. */
+  private static final int RETENTION_BATCH_SIZE = 1000;
+
+  /** The key used to make sure that only one node at a time runs the retention job. */
+  private static final String RETENTION_LOCK_NAME = "audit:retention:lock";
+
+  /** The Redis client. */
+  private final RedissonClient client;
+
+  /** The Redis key layout. */
+  private final RedisKeyLayout keyLayout;
+
+  /** Counter for distributing events over the shards. */
+  private final AtomicInteger shardCounter = new AtomicInteger();
+
+  /** The event index. */
+  private final RedisAuditEventIndex index;
+
+  /** The ID of this node (used for the retention lock). */
+  private final String nodeId = UUID.randomUUID().toString();
+
+  /** The archive (may be {@code null}). */
+  private volatile AuditArchive archive;
+
+  /** The maximum age of events kept in Redis (may be {@code null}). */
+  private Duration maxAge;
+
+  /** The maximum number of events kept in Redis (0 for no limit). */
+  private long maxEvents;
+
+  /** The interval between retention runs. */
+  private Duration retentionInterval;
+
+  /** The executor running the retention job. */
+  private ScheduledExecutorService retentionExecutor;
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   * @param logFile the log file including its path (if {@code null}, no file logging will be performed)
+   * @param mapper mapper for creating JSON
+   * @param supportedEvents the supported events (if {@code null}, {@link #DEFAULT_SUPPORTED_EVENTS} will be used)
+   * @throws IOException if file logging can not be initialized
+   */
+  public AbstractRedisAuditEventRepository(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final String logFile, final AuditEventMapper mapper, final List<String> supportedEvents)
+      throws IOException {
+    super(logFile, mapper, supportedEvents);
+    this.client = Objects.requireNonNull(client, "client must not be null");
+    this.keyLayout = Optional.ofNullable(keyLayout).orElseGet(RedisKeyLayout::new);
+    this.index = new RedisAuditEventIndex(this.client, this.keyLayout, mapper);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected final void addEvent(final AuditEvent event) {
+    this.addEvents(List.of(event));
+  }
+
+  /**
+   * Stores and indexes all events using one pipelined batch.
+   */
+  @Override
+  protected final void addEvents(final List<AuditEvent> events) {
+    final RBatch batch = this.client.createBatch();
+    for (final AuditEvent event : events) {
+      final int shard = this.shardCounter.getAndIncrement();
+      this.index.index(batch, shard, event, this.getAuditEventMapper().write(event));
+    }
+    batch.execute();
+  }
+
+  /**
+   * Finds the events matching the filter in the legacy (unsharded and unindexed) store. Only invoked if legacy keys
+   * should be read.
+   *
+   * @param filter the filter
+   * @return the matching events
+   */
+  protected abstract Stream<AuditEvent> findLegacy(final AuditEventFilter filter);
+
+  /**
+   * Finds the newest matching events, newest first. At most {@link #getMaxFindResults()} events are returned, and the
+   * events are read one page at a time, so the memory used does not depend on the number of stored events. Use
+   * {@link #find(AuditEventFilter, String, int)} to read all matching events.
+   */
+  @Override
+  public List<AuditEvent> find(final String principal, final Instant after, final String type) {
+    final AuditEventFilter filter = AuditEventFilter.of(principal, after, type);
+    final Stream<AuditEvent> events = this.keyLayout.isReadLegacyKeys()
+        ? Stream.concat(this.stream(filter, DEFAULT_PAGE_SIZE), this.findLegacy(filter))
+        : this.stream(filter, DEFAULT_PAGE_SIZE);
+    return PageableAuditEventRepository.newest(events, this.getMaxFindResults());
+  }
+
+  /**
+   * Finds a page of events. If an archive is used, the archive is read before Redis.
+   */
+  @Override
+  public AuditEventPage find(final AuditEventFilter filter, final String cursor, final int pageSize) {
+    String redisCursor = cursor;
+    final AuditArchive archive = this.archive;
+    if (archive != null) {
+      final String horizon = archive.getHorizon();
+      if (horizon != null && (cursor == null || cursor.compareTo(horizon) < 0)) {
+        final AuditEventPage page = archive.find(filter, cursor, pageSize);
+        if (page.cursor() != null) {
+          return page;
+        }
+        // The archive has been read, continue in Redis after the last archived event ...
+        if (!page.events().isEmpty()) {
+          return new AuditEventPage(page.events(), horizon);
+        }
+        redisCursor = horizon;
+      }
+    }
+    return this.index.find(filter, redisCursor, pageSize);
+  }
+
+  /**
+   * Starts the retention job.
+   *
+   * @param maxAge events older than this are removed from Redis (if {@code null}, there is no age limit)
+   * @param maxEvents the maximum number of events kept in Redis (0 for no limit)
+   * @param archiveDirectory if given, removed events are written to an {@link AuditArchive} in this directory
+   * @param interval the interval between runs of the retention job
+   * @throws IOException if the archive directory can not be created
+   */
+  public synchronized void startRetention(final Duration maxAge, final long maxEvents, final Path archiveDirectory,
+      final Duration interval) throws IOException {
+    if (this.retentionExecutor != null) {
+      throw new IllegalStateException("Retention has already been started");
+    }
+    this.maxAge = maxAge;
+    this.maxEvents = maxEvents;
+    this.retentionInterval = Objects.requireNonNull(interval, "interval must not be null");
+    this.archive = archiveDirectory != null ? new AuditArchive(archiveDirectory, this.getAuditEventMapper()) : null;
+    if (this.maxAge == null && this.maxEvents <= 0) {
+      return;
+    }
+    this.retentionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "audit-retention");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.retentionExecutor.scheduleWithFixedDelay(() -> {
+      try {
+        this.applyRetention();
+      }
+      catch (final RuntimeException e) {
+        log.error("Audit retention failed - {}", e.getMessage(), e);
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Removes the events that should no longer be kept in Redis, after having archived them (if an archive is used).
+   * Only one node at a time runs the job.
+   */
+  public void applyRetention() {
+    if (this.maxAge == null && this.maxEvents <= 0) {
+      return;
+    }
+    if (!this.client.getBucket(RETENTION_LOCK_NAME, StringCodec.INSTANCE)
+        .trySet(this.nodeId, this.retentionInterval.toMillis(), TimeUnit.MILLISECONDS)) {
+      log.debug("Audit retention is run by another node");
+      return;
+    }
+    final String cutoff = this.maxAge != null
+        ? RedisAuditEventIndex.createIdPrefix(Instant.now().minus(this.maxAge))
+        : null;
+    long excess = 0;
+    if (this.maxEvents > 0) {
+      for (int shard = 0; shard < this.keyLayout.getShards(); shard++) {
+        excess += this.index.count(shard);
+      }
+      excess -= this.maxEvents;
+    }
+
+    long removed = 0;
+    while (true) {
+      final Map<Integer, List<IndexedEvent>> expired = this.selectExpired(cutoff, excess);
+      if (expired.isEmpty()) {
+        break;
+      }
+      // The events are archived before they are removed from Redis. If archiving fails, nothing is removed ...
+      //
+      if (this.archive != null) {
+        try {
+          this.archive.write(expired.values().stream().flatMap(List::stream).toList());
+        }
+        catch (final IOException e) {
+          log.error("Failed to archive audit events, no events removed - {}", e.getMessage(), e);
+          return;
+        }
+      }
+      final RBatch batch = this.client.createBatch();
+      expired.forEach((shard, events) -> this.index.remove(batch, shard, events));
+      batch.execute();
+      final int count = expired.values().stream().mapToInt(List::size).sum();
+      removed += count;
+      excess -= count;
+      if (count < RETENTION_BATCH_SIZE) {
+        break;
+      }
+    }
+    if (removed > 0) {
+      log.info("Audit retention removed {} event(s) from Redis", removed);
+    }
+  }
+
+  /**
+   * Selects the oldest events over all shards that are older than the cutoff or exceed the maximum number of events.
+   * The cutoff is global, so all events with a lower ID than a selected event are also selected. This means that no
+   * event below the archive horizon remains in Redis, which {@link #find(AuditEventFilter, String, int)} relies on.
+   *
+   * @param cutoff the ID prefix for the maximum age (may be {@code null})
+   * @param excess the number of events exceeding the maximum number of events
+   * @return the events to remove per shard (at most {@value #RETENTION_BATCH_SIZE} in total)
+   */
+  private Map<Integer, List<IndexedEvent>> selectExpired(final String cutoff, final long excess) {
+    // The globally oldest events are among the oldest events of each shard ...
+    //
+    final List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+    for (int shard = 0; shard < this.keyLayout.getShards(); shard++) {
+      for (final String id : this.index.findOldestIds(shard, RETENTION_BATCH_SIZE)) {
+        candidates.add(Map.entry(id, shard));
+      }
+    }
+    candidates.sort(Map.Entry.comparingByKey());
+
+    final Map<Integer, List<String>> ids = new TreeMap<>();
+    int selected = 0;
+    for (final Map.Entry<String, Integer> candidate : candidates) {
+      if (selected == RETENTION_BATCH_SIZE
+          || (selected >= excess && (cutoff == null || candidate.getKey().compareTo(cutoff) >= 0))) {
+        break;
+      }
+      ids.computeIfAbsent(candidate.getValue(), s -> new ArrayList<>()).add(candidate.getKey());
+      selected++;
+    }
+    final Map<Integer, List<IndexedEvent>> expired = new LinkedHashMap<>();
+    ids.forEach((shard, shardIds) -> expired.put(shard, this.index.get(shard, shardIds)));
+    return expired;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void destroy() throws Exception {
+    synchronized (this) {
+      if (this.retentionExecutor != null) {
+        this.retentionExecutor.shutdownNow();
+      }
+    }
+    super.destroy();
+  }
+
+  /**
+   * Gets the Redis client.
+   *
+   * @return the Redis client
+   */
+  protected RedissonClient getClient() {
+    return this.client;
+  }
+
+  /**
+   * Gets the Redis key layout.
+   *
+   * @return the key layout
+   */
+  protected RedisKeyLayout getKeyLayout() {
+    return this.keyLayout;
+  }
+
+}
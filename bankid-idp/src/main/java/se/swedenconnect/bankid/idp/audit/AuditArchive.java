@@ -0,0 +1,407 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.bankid.idp.audit.RedisAuditEventIndex.IndexedEvent;
+
+/**
+ * An archive of audit events stored in compressed, immutable segment files.
+ * <p>
+ * Each segment holds events ordered by ID, one per line ({@code <id> TAB <json>}). The lines are compressed in blocks
+ * of {@value #BLOCK_SIZE} events, where each block is a separate GZIP member. A sparse index file next to the segment
+ * holds the first ID and the file offset of each block, so that a query can start reading at the block where its
+ * cursor is. The index file is written last and marks the segment as complete.
+ * </p>
+ * <p>
+ * Queries are made with the same cursors as for the {@link RedisAuditEventIndex}, which means that a query may start
+ * in the archive and continue in Redis. The archive directory may be shared by several nodes.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public class AuditArchive {
+
+  /** The number of events per compressed block. */
+  static final int BLOCK_SIZE = 256;
+
+  /** The file name suffix for segments. */
+  private static final String SEGMENT_SUFFIX = ".ndjson.gz";
+
+  /** The file name suffix for segment indexes. */
+  private static final String INDEX_SUFFIX = ".idx";
+
+  /** The archive directory. */
+  private final Path directory;
+
+  /** The mapper for reading events. */
+  private final AuditEventMapper mapper;
+
+  /** The known segments, by index file. */
+  private final Map<Path, Segment> segments = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param directory the archive directory (created if it does not exist)
+   * @param mapper the mapper for reading events
+   * @throws IOException if the directory can not be created
+   */
+  public AuditArchive(final Path directory, final AuditEventMapper mapper) throws IOException {
+    this.directory = Objects.requireNonNull(directory, "directory must not be null");
+    this.mapper = Objects.requireNonNull(mapper, "mapper must not be null");
+    Files.createDirectories(this.directory);
+  }
+
+  /**
+   * Writes events to a new segment.
+   *
+   * @param events the events to archive
+   * @throws IOException for write errors
+   */
+  public void write(final List<IndexedEvent> events) throws IOException {
+    final List<IndexedEvent> sorted = events.stream()
+        .filter(e -> e.json() != null)
+        .sorted(Comparator.comparing(IndexedEvent::id))
+        .toList();
+    if (sorted.isEmpty()) {
+      return;
+    }
+    final String name = "audit-%s-%s".formatted(
+        sorted.get(0).id().substring(0, RedisAuditEventIndex.ID_PREFIX_LENGTH), UUID.randomUUID());
+    final Path segmentFile = this.directory.resolve(name + SEGMENT_SUFFIX);
+    final Path indexFile = this.directory.resolve(name + INDEX_SUFFIX);
+    final Path tmpSegment = this.directory.resolve(name + SEGMENT_SUFFIX + ".tmp");
+    final Path tmpIndex = this.directory.resolve(name + INDEX_SUFFIX + ".tmp");
+
+    final List<String> indexLines = new ArrayList<>();
+    indexLines.add("%d %s %s".formatted(
+        sorted.size(), sorted.get(0).id(), sorted.get(sorted.size() - 1).id()));
+    try (final FileChannel channel = FileChannel.open(tmpSegment, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      for (int i = 0; i < sorted.size(); i += BLOCK_SIZE) {
+        indexLines.add("%s %d".formatted(sorted.get(i).id(), channel.position()));
+        // Each block is a complete GZIP member. Closing the writer must not close the channel ...
+        final OutputStream out = new FilterOutputStream(Channels.newOutputStream(channel)) {
+          @Override
+          public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.out.write(b, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            this.flush();
+          }
+        };
+        try (final Writer writer = new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8)) {
+          for (final IndexedEvent event : sorted.subList(i, Math.min(i + BLOCK_SIZE, sorted.size()))) {
+            writer.write(event.id());
+            writer.write('\t');
+            writer.write(event.json());
+            writer.write('\n');
+          }
+        }
+      }
+      channel.force(true);
+    }
+    Files.write(tmpIndex, indexLines, StandardCharsets.UTF_8);
+    Files.move(tmpSegment, segmentFile, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(tmpIndex, indexFile, StandardCopyOption.ATOMIC_MOVE);
+    segmentFile.toFile().setReadOnly();
+    indexFile.toFile().setReadOnly();
+    this.segments.put(indexFile, Segment.load(indexFile));
+    log.info("Archived {} audit event(s) to {}", sorted.size(), segmentFile);
+  }
+
+  /**
+   * Gets the highest archived event ID.
+   *
+   * @return the highest ID or {@code null} if the archive is empty
+   */
+  public String getHorizon() {
+    this.refresh();
+    return this.segments.values().stream()
+        .map(Segment::maxId)
+        .max(Comparator.naturalOrder())
+        .orElse(null);
+  }
+
+  /**
+   * Finds a page of archived events.
+   *
+   * @param filter the filter
+   * @param cursor the cursor from the previous page (may be {@code null})
+   * @param pageSize the page size
+   * @return a page where the cursor is {@code null} if the archive holds no more matching events
+   */
+  public AuditEventPage find(final AuditEventFilter filter, final String cursor, final int pageSize) {
+    this.refresh();
+    final String afterPrefix = filter.after() != null ? RedisAuditEventIndex.createIdPrefix(filter.after()) : null;
+
+    // The segments are merged in ID order. A segment is opened when the merge reaches its lowest ID, so normally
+    // only one segment at a time is open ...
+    //
+    final List<Segment> candidates = this.segments.values().stream()
+        .filter(s -> cursor == null || s.maxId().compareTo(cursor) > 0)
+        .filter(s -> afterPrefix == null || s.maxId().compareTo(afterPrefix) >= 0)
+        .sorted(Comparator.comparing(Segment::minId))
+        .toList();
+    final PriorityQueue<SegmentReader> open = new PriorityQueue<>(Comparator.comparing(SegmentReader::currentId));
+    final List<AuditEvent> events = new ArrayList<>();
+    String last = null;
+    int next = 0;
+    try {
+      while (events.size() < pageSize) {
+        while (next < candidates.size()
+            && (open.isEmpty() || candidates.get(next).minId().compareTo(open.peek().currentId()) <= 0)) {
+          final SegmentReader reader = new SegmentReader(candidates.get(next++), cursor, afterPrefix);
+          if (reader.currentId() != null) {
+            open.add(reader);
+          }
+          else {
+            reader.close();
+          }
+        }
+        final SegmentReader reader = open.poll();
+        if (reader == null) {
+          break;
+        }
+        last = reader.currentId();
+        final AuditEvent event = this.mapper.read(reader.currentJson());
+        if (filter.matches(event)) {
+          events.add(event);
+        }
+        if (reader.advance()) {
+          open.add(reader);
+        }
+        else {
+          reader.close();
+        }
+      }
+      final boolean exhausted = open.isEmpty() && next >= candidates.size();
+      return new AuditEventPage(events, exhausted ? null : last);
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    finally {
+      open.forEach(SegmentReader::closeQuietly);
+    }
+  }
+
+  /**
+   * Updates the segment list with segments written by other nodes (and removes segments that have been deleted).
+   */
+  private void refresh() {
+    final Set<Path> found = new HashSet<>();
+    try (final Stream<Path> files = Files.list(this.directory)) {
+      files.filter(f -> f.getFileName().toString().endsWith(INDEX_SUFFIX)).forEach(found::add);
+    }
+    catch (final IOException e) {
+      log.error("Failed to list audit archive {} - {}", this.directory, e.getMessage(), e);
+      return;
+    }
+    this.segments.keySet().retainAll(found);
+    for (final Path indexFile : found) {
+      if (!this.segments.containsKey(indexFile)) {
+        try {
+          this.segments.put(indexFile, Segment.load(indexFile));
+        }
+        catch (final IOException | RuntimeException e) {
+          log.error("Failed to read audit archive index {} - {}", indexFile, e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * A segment and its sparse index.
+   *
+   * @param segmentFile the segment file
+   * @param minId the lowest ID
+   * @param maxId the highest ID
+   * @param blockIds the first ID of each block
+   * @param blockOffsets the file offset of each block
+   */
+  private record Segment(Path segmentFile, String minId, String maxId, List<String> blockIds,
+      List<Long> blockOffsets) {
+
+    /**
+     * Loads a segment index.
+     *
+     * @param indexFile the index file
+     * @return the segment
+     * @throws IOException for read errors
+     */
+    static Segment load(final Path indexFile) throws IOException {
+      final List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+      final String[] header = lines.get(0).split(" ");
+      final List<String> blockIds = new ArrayList<>();
+      final List<Long> blockOffsets = new ArrayList<>();
+      for (final String line : lines.subList(1, lines.size())) {
+        final String[] parts = line.split(" ");
+        blockIds.add(parts[0]);
+        blockOffsets.add(Long.parseLong(parts[1]));
+      }
+      final String name = indexFile.getFileName().toString();
+      final Path segmentFile = indexFile.resolveSibling(
+          name.substring(0, name.length() - INDEX_SUFFIX.length()) + SEGMENT_SUFFIX);
+      return new Segment(segmentFile, header[1], header[2], blockIds, blockOffsets);
+    }
+
+    /**
+     * Gets the offset of the block where reading should start in order to find the first ID after the given key.
+     *
+     * @param key the key (may be {@code null})
+     * @return a file offset
+     */
+    long getStartOffset(final String key) {
+      if (key == null) {
+        return 0;
+      }
+      long offset = 0;
+      for (int i = 0; i < this.blockIds.size() && this.blockIds.get(i).compareTo(key) <= 0; i++) {
+        offset = this.blockOffsets.get(i);
+      }
+      return offset;
+    }
+  }
+
+  /**
+   * Reads the events of a segment, starting after a cursor.
+   */
+  private static class SegmentReader implements Closeable {
+
+    /** The reader. */
+    private final BufferedReader reader;
+
+    /** The cursor (exclusive lower bound). */
+    private final String cursor;
+
+    /** The "after" prefix (inclusive lower bound). */
+    private final String afterPrefix;
+
+    /** The ID of the current line. */
+    private String currentId;
+
+    /** The JSON of the current line. */
+    private String currentJson;
+
+    /**
+     * Constructor that opens the segment and positions the reader at the first event after the cursor.
+     *
+     * @param segment the segment
+     * @param cursor the cursor (may be {@code null})
+     * @param afterPrefix the "after" prefix (may be {@code null})
+     * @throws IOException for read errors
+     */
+    SegmentReader(final Segment segment, final String cursor, final String afterPrefix) throws IOException {
+      this.cursor = cursor;
+      this.afterPrefix = afterPrefix;
+      final String key = cursor == null ? afterPrefix
+          : afterPrefix == null || cursor.compareTo(afterPrefix) >= 0 ? cursor : afterPrefix;
+      final FileChannel channel = FileChannel.open(segment.segmentFile(), StandardOpenOption.READ);
+      channel.position(segment.getStartOffset(key));
+      this.reader = new BufferedReader(
+          new InputStreamReader(new GZIPInputStream(Channels.newInputStream(channel)), StandardCharsets.UTF_8));
+      this.advance();
+    }
+
+    String currentId() {
+      return this.currentId;
+    }
+
+    String currentJson() {
+      return this.currentJson;
+    }
+
+    /**
+     * Moves to the next event after the cursor.
+     *
+     * @return {@code true} if there is a current event and {@code false} if the segment has been read
+     * @throws IOException for read errors
+     */
+    boolean advance() throws IOException {
+      String line;
+      while ((line = this.reader.readLine()) != null) {
+        final int tab = line.indexOf('\t');
+        if (tab < 0) {
+          continue;
+        }
+        final String id = line.substring(0, tab);
+        if ((this.cursor == null || id.compareTo(this.cursor) > 0)
+            && (this.afterPrefix == null || id.compareTo(this.afterPrefix) >= 0)) {
+          this.currentId = id;
+          this.currentJson = line.substring(tab + 1);
+          return true;
+        }
+      }
+      this.currentId = null;
+      this.currentJson = null;
+      return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+      this.reader.close();
+    }
+
+    void closeQuietly() {
+      try {
+        this.close();
+      }
+      catch (final IOException e) {
+        log.debug("Failed to close audit archive segment - {}", e.getMessage());
+      }
+    }
+  }
+
+}
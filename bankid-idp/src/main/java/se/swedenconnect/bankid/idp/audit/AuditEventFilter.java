@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+/**
+ * Criteria for audit event queries. All criteria are optional, and an event matches if it matches all given criteria.
+ *
+ * @param principal the principal (if {@code null}, all principals match)
+ * @param type the event type (if {@code null}, all types match)
+ * @param rp the ID of the Relying Party, i.e., the "rp" data field (if {@code null}, all Relying Parties match)
+ * @param after only events with a timestamp at or after this instant match (if {@code null}, there is no lower bound)
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public record AuditEventFilter(String principal, String type, String rp, Instant after) {
+
+  /** The name of the data field holding the Relying Party ID. */
+  public static final String RP_FIELD = "rp";
+
+  /**
+   * Creates a filter from the arguments of {@link org.springframework.boot.actuate.audit.AuditEventRepository#find}.
+   *
+   * @param principal the principal (may be {@code null})
+   * @param after the lower time bound (may be {@code null})
+   * @param type the event type (may be {@code null})
+   * @return a filter
+   */
+  public static AuditEventFilter of(final String principal, final Instant after, final String type) {
+    return new AuditEventFilter(principal, type, null, after);
+  }
+
+  /**
+   * Tells whether the supplied event matches the filter.
+   *
+   * @param event the event
+   * @return {@code true} if the event matches and {@code false} otherwise
+   */
+  public boolean matches(final AuditEvent event) {
+    if (this.principal != null && !this.principal.equals(event.getPrincipal())) {
+      return false;
+    }
+    if (this.type != null && !this.type.equals(event.getType())) {
+      return false;
+    }
+    if (this.rp != null && !this.rp.equals(getRp(event))) {
+      return false;
+    }
+    return this.after == null || !event.getTimestamp().isBefore(this.after);
+  }
+
+  /**
+   * Gets the Relying Party ID of an event.
+   *
+   * @param event the event
+   * @return the Relying Party ID or {@code null}
+   */
+  public static String getRp(final AuditEvent event) {
+    final Map<String, Object> data = event.getData();
+    return data != null ? Objects.toString(data.get(RP_FIELD), null) : null;
+  }
+
+}
@@ -17,6 +17,7 @@ package se.swedenconnect.bankid.idp.audit;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -92,14 +93,17 @@ public class AuditEventMapper {
     /**
      * Adds a JsonCreator for Jackson to be able to serialize AuditEvnets
      *
+     * @param timestamp to deserialize (if not present, the current time is used)
      * @param principal to deserialize
      * @param type to deserialize
      * @param data to deserialize
      */
     @JsonCreator
-    public BankidAuditEvent(@JsonProperty("principal") final String principal, @JsonProperty("type") final String type,
+    public BankidAuditEvent(@JsonProperty("timestamp") final Instant timestamp,
+        @JsonProperty("principal") final String principal, @JsonProperty("type") final String type,
         @JsonProperty("data") final Map<String, Object> data) {
-      super(principal, type, Optional.ofNullable(data).orElse(Map.of()));
+      super(Optional.ofNullable(timestamp).orElseGet(Instant::now), principal, type,
+          Optional.ofNullable(data).orElse(Map.of()));
     }
   }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.util.List;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+/**
+ * A page of audit events returned by a {@link PageableAuditEventRepository}.
+ *
+ * @param events the events of the page, ordered by timestamp
+ * @param cursor the cursor for the next page, or {@code null} if there are no more events
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public record AuditEventPage(List<AuditEvent> events, String cursor) {
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.time.OffsetDateTime;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.audit.AuditEventRepository;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint delivering audit events one page at a time, for repositories that implement
+ * {@link PageableAuditEventRepository}. The cursor of a page is passed to get the next page. For other repositories,
+ * or if there is no audit event repository, the endpoint responds with 404.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Component
+@Endpoint(id = "bankidauditevents")
+public class AuditEventPageEndpoint {
+
+  /** The maximum page size. */
+  public static final int MAX_PAGE_SIZE = PageableAuditEventRepository.DEFAULT_PAGE_SIZE;
+
+  /** The default page size. */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  /** The audit event repository (may be {@code null}). */
+  private final AuditEventRepository repository;
+
+  /**
+   * Constructor.
+   *
+   * @param repository provider for the audit event repository
+   */
+  public AuditEventPageEndpoint(final ObjectProvider<AuditEventRepository> repository) {
+    this.repository = Objects.requireNonNull(repository, "repository must not be null").getIfAvailable();
+  }
+
+  /**
+   * Gets a page of audit events, ordered by timestamp.
+   *
+   * @param principal the principal (optional)
+   * @param type the event type (optional)
+   * @param rp the Relying Party ID (optional)
+   * @param after only events at or after this time are returned (optional)
+   * @param cursor the cursor of the previous page (optional)
+   * @param pageSize the page size (optional, at most {@value #MAX_PAGE_SIZE})
+   * @return a page of events, or {@code null} if the repository does not support pagination
+   */
+  @ReadOperation
+  public AuditEventPage events(@Nullable final String principal, @Nullable final String type,
+      @Nullable final String rp, @Nullable final OffsetDateTime after, @Nullable final String cursor,
+      @Nullable final Integer pageSize) {
+    if (!(this.repository instanceof final PageableAuditEventRepository pageable)) {
+      return null;
+    }
+    final AuditEventFilter filter = new AuditEventFilter(principal, type, rp,
+        Optional.ofNullable(after).map(OffsetDateTime::toInstant).orElse(null));
+    return pageable.find(filter, cursor,
+        Math.max(1, Math.min(MAX_PAGE_SIZE, Optional.ofNullable(pageSize).orElse(DEFAULT_PAGE_SIZE))));
+  }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A bounded queue of audit events that are written in batches by a dedicated writer thread. This moves the audit I/O
+ * (file and repository writes) off the threads that produce the events.
+ * <p>
+ * What happens when the queue is full is decided by the {@link AuditOverflowPolicy}. Spilled events are written to the
+ * spill file, and are read back and written when the queue has been emptied. A spill file that is left from a previous
+ * run is processed in the same way.
+ * </p>
+ * <p>
+ * The following metrics are reported: the gauge {@value #QUEUE_GAUGE_NAME} and the counters
+ * {@value #DROPPED_COUNTER_NAME}, {@value #SPILLED_COUNTER_NAME} and {@value #FAILED_COUNTER_NAME}.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public class AuditEventPipeline implements AutoCloseable {
+
+  /** The name of the gauge for the number of queued events. */
+  public static final String QUEUE_GAUGE_NAME = "bankid.audit.queue.size";
+
+  /** The name of the counter for dropped events. */
+  public static final String DROPPED_COUNTER_NAME = "bankid.audit.dropped";
+
+  /** The name of the counter for spilled events. */
+  public static final String SPILLED_COUNTER_NAME = "bankid.audit.spilled";
+
+  /** The name of the counter for events that could not be written. */
+  public static final String FAILED_COUNTER_NAME = "bankid.audit.failed";
+
+  /** The default time to wait for the queue to be emptied at shutdown. */
+  public static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+  /** How long the writer waits for an event before it looks at the spill file. */
+  private static final long POLL_INTERVAL_MILLIS = 500;
+
+  /** The queue. */
+  private final BlockingQueue<AuditEvent> queue;
+
+  /** The maximum number of events written in one batch. */
+  private final int batchSize;
+
+  /** The overflow policy. */
+  private final AuditOverflowPolicy overflowPolicy;
+
+  /** The spill file (only used for {@link AuditOverflowPolicy#SPILL}). */
+  private final Path spillFile;
+
+  /** The mapper used for the spill file. */
+  private final AuditEventMapper mapper;
+
+  /** Writes a batch of events. */
+  private final Consumer<List<AuditEvent>> writer;
+
+  /** Counter for dropped events. */
+  private final Counter droppedCounter;
+
+  /** Counter for spilled events. */
+  private final Counter spilledCounter;
+
+  /** Counter for events that could not be written. */
+  private final Counter failedCounter;
+
+  /** Guards the spill file. */
+  private final Object spillLock = new Object();
+
+  /** Whether the spill file holds events. */
+  private boolean spilled;
+
+  /** The writer thread. */
+  private final Thread thread;
+
+  /** Whether the pipeline accepts new events. */
+  private volatile boolean running = true;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the capacity of the queue
+   * @param batchSize the maximum number of events written in one batch
+   * @param overflowPolicy the policy for a full queue
+   * @param spillFile the spill file (required for {@link AuditOverflowPolicy#SPILL})
+   * @param mapper the mapper used for the spill file
+   * @param writer writes a batch of events
+   * @param meterRegistry the meter registry (if {@code null}, the global registry is used)
+   */
+  public AuditEventPipeline(final int capacity, final int batchSize, final AuditOverflowPolicy overflowPolicy,
+      final Path spillFile, final AuditEventMapper mapper, final Consumer<List<AuditEvent>> writer,
+      final MeterRegistry meterRegistry) {
+    if (capacity < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("capacity and batchSize must be greater than 0");
+    }
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.batchSize = batchSize;
+    this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "overflowPolicy must not be null");
+    this.spillFile = spillFile;
+    if (this.overflowPolicy == AuditOverflowPolicy.SPILL && this.spillFile == null) {
+      throw new IllegalArgumentException("spillFile must be set for the SPILL policy");
+    }
+    this.mapper = Objects.requireNonNull(mapper, "mapper must not be null");
+    this.writer = Objects.requireNonNull(writer, "writer must not be null");
+
+    final MeterRegistry registry = Optional.ofNullable(meterRegistry).orElse(Metrics.globalRegistry);
+    Gauge.builder(QUEUE_GAUGE_NAME, this.queue, BlockingQueue::size)
+        .description("Number of audit events waiting to be written")
+        .register(registry);
+    this.droppedCounter = Counter.builder(DROPPED_COUNTER_NAME)
+        .description("Number of audit events dropped since the queue was full")
+        .register(registry);
+    this.spilledCounter = Counter.builder(SPILLED_COUNTER_NAME)
+        .description("Number of audit events written to the spill file since the queue was full")
+        .register(registry);
+    this.failedCounter = Counter.builder(FAILED_COUNTER_NAME)
+        .description("Number of audit events that could not be written")
+        .register(registry);
+
+    this.spilled = this.spillFile != null && Files.exists(this.spillFile);
+    this.thread = new Thread(this::run, "audit-writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Adds an event to the pipeline. If the pipeline has been closed, the event is written directly.
+   *
+   * @param event the event
+   */
+  public void add(final AuditEvent event) {
+    if (!this.running) {
+      this.write(List.of(event));
+      return;
+    }
+    switch (this.overflowPolicy) {
+    case BLOCK -> {
+      try {
+        this.queue.put(event);
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.write(List.of(event));
+      }
+    }
+    case DROP -> {
+      if (!this.queue.offer(event)) {
+        this.droppedCounter.increment();
+        log.warn("Audit queue is full, dropped event '{}' for principal '{}'", event.getType(), event.getPrincipal());
+      }
+    }
+    case SPILL -> {
+      if (!this.queue.offer(event)) {
+        this.spill(List.of(event));
+      }
+    }
+    }
+  }
+
+  /**
+   * Stops the pipeline and waits for the queued events to be written. Events that have not been written when the
+   * timeout expires are spilled (for the SPILL policy) or lost.
+   *
+   * @param timeout the maximum time to wait
+   */
+  public void close(final Duration timeout) {
+    this.running = false;
+    try {
+      this.thread.join(timeout.toMillis());
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (this.thread.isAlive()) {
+      this.thread.interrupt();
+    }
+    final List<AuditEvent> remaining = new ArrayList<>();
+    this.queue.drainTo(remaining);
+    if (!remaining.isEmpty()) {
+      if (this.overflowPolicy == AuditOverflowPolicy.SPILL) {
+        this.spill(remaining);
+      }
+      else {
+        this.failedCounter.increment(remaining.size());
+        log.error("{} audit event(s) were not written before shutdown", remaining.size());
+      }
+    }
+  }
+
+  /**
+   * Stops the pipeline using {@link #DEFAULT_SHUTDOWN_TIMEOUT}.
+   */
+  @Override
+  public void close() {
+    this.close(DEFAULT_SHUTDOWN_TIMEOUT);
+  }
+
+  /**
+   * The writer loop.
+   */
+  private void run() {
+    final List<AuditEvent> batch = new ArrayList<>(this.batchSize);
+    while (this.running || !this.queue.isEmpty()) {
+      try {
+        final AuditEvent first = this.queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          this.writeSpilled();
+          continue;
+        }
+        batch.add(first);
+        this.queue.drainTo(batch, this.batchSize - 1);
+        this.write(batch);
+      }
+      catch (final InterruptedException e) {
+        return;
+      }
+      finally {
+        batch.clear();
+      }
+    }
+    this.writeSpilled();
+  }
+
+  /**
+   * Writes a batch of events.
+   *
+   * @param events the events
+   */
+  private void write(final List<AuditEvent> events) {
+    try {
+      this.writer.accept(events);
+    }
+    catch (final Throwable e) {
+      this.failedCounter.increment(events.size());
+      log.error("Failed to write {} audit event(s) - {}", events.size(), e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Appends events to the spill file.
+   *
+   * @param events the events
+   */
+  private void spill(final List<AuditEvent> events) {
+    synchronized (this.spillLock) {
+      try {
+        Files.write(this.spillFile, events.stream().map(this.mapper::write).toList(), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+        this.spilled = true;
+        this.spilledCounter.increment(events.size());
+      }
+      catch (final IOException e) {
+        this.failedCounter.increment(events.size());
+        log.error("Failed to write {} audit event(s) to spill file {} - {}",
+            events.size(), this.spillFile, e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Reads the events from the spill file, if any, removes the file and writes the events.
+   */
+  private void writeSpilled() {
+    final List<String> lines;
+    synchronized (this.spillLock) {
+      if (!this.spilled) {
+        return;
+      }
+      try {
+        lines = Files.readAllLines(this.spillFile, StandardCharsets.UTF_8);
+        Files.delete(this.spillFile);
+        this.spilled = false;
+      }
+      catch (final IOException e) {
+        log.error("Failed to read audit spill file {} - {}", this.spillFile, e.getMessage(), e);
+        return;
+      }
+    }
+    log.info("Writing {} audit event(s) from spill file {}", lines.size(), this.spillFile);
+    final List<AuditEvent> events = new ArrayList<>(lines.size());
+    for (final String line : lines) {
+      if (line.isBlank()) {
+        continue;
+      }
+      try {
+        events.add(this.mapper.read(line));
+      }
+      catch (final RuntimeException e) {
+        this.failedCounter.increment();
+        log.error("Invalid audit event in spill file {} - {}", this.spillFile, e.getMessage(), e);
+      }
+    }
+    for (int i = 0; i < events.size(); i += this.batchSize) {
+      this.write(events.subList(i, Math.min(i + this.batchSize, events.size())));
+    }
+  }
+
+}
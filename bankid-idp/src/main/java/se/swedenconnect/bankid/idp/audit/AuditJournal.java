@@ -0,0 +1,411 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.util.StringUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An append-only audit journal that rolls over to a new file each day.
+ * <p>
+ * Writers hand over their lines to a single appender thread and wait until the lines have been written. The appender
+ * thread writes everything that has been queued since its last write using one (gathering) write to the file channel,
+ * followed by one {@link FileChannel#force(boolean)} if {@link #setForce(boolean)} has been set. Concurrent writers
+ * therefore share writes (group commit).
+ * </p>
+ * <p>
+ * When the first write of a new day (UTC) is made, the current file is moved to {@code <log-file-name>-<date>.<ext>}
+ * and then compressed to {@code <log-file-name>-<date>.<ext>.gz} in the background. Files that were moved but not
+ * compressed when the application stopped are compressed at the next startup.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+class AuditJournal implements Closeable {
+
+  /** The maximum time to wait for pending compressions when the journal is closed. */
+  private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+  /** Formatter for backup file names. */
+  private static final DateTimeFormatter dateFormatter =
+      DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneId.of("UTC"));
+
+  /** The line separator. */
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+  /** Queue entry telling the appender thread to stop. */
+  private static final Entry CLOSE = new Entry(new byte[0][], null);
+
+  /** The log file. */
+  private final Path logFile;
+
+  /** The queue of entries to write. */
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+
+  /** The appender thread. */
+  private final Thread appender;
+
+  /** Executor for compressing rolled files. */
+  private final ExecutorService compressor;
+
+  /** The file channel (only accessed by the appender thread after construction). */
+  private FileChannel channel;
+
+  /** Holds the last-modified time of the log file (only accessed by the appender thread after construction). */
+  private Instant lastModified;
+
+  /** Whether each write should be forced to the storage device. */
+  private volatile boolean force;
+
+  /** Whether the journal has been closed. */
+  private volatile boolean closed;
+
+  /**
+   * Constructor setting up the journal.
+   *
+   * @param logFile the log file (including the path)
+   * @throws IOException for file errors
+   */
+  public AuditJournal(final String logFile) throws IOException {
+    this.logFile = Path.of(Objects.requireNonNull(logFile, "logFile must not be null"));
+    if (Files.exists(this.logFile)) {
+      if (Files.isDirectory(this.logFile)) {
+        throw new IOException("Given logFile points to a directory and not a file");
+      }
+      if (!Files.isWritable(this.logFile)) {
+        throw new IOException("Given logFile is not writable");
+      }
+      this.lastModified = Files.getLastModifiedTime(this.logFile).toInstant();
+    }
+    else {
+      final Path parent = this.logFile.getParent();
+      if (parent != null && !Files.exists(parent)) {
+        Files.createDirectories(parent);
+      }
+    }
+    this.channel = this.openChannel();
+
+    this.compressor = Executors.newSingleThreadExecutor(r -> {
+      final Thread thread = new Thread(r, "audit-journal-compressor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.compressLeftovers();
+
+    this.appender = new Thread(this::run, "audit-journal");
+    this.appender.setDaemon(true);
+    this.appender.start();
+  }
+
+  /**
+   * Tells whether each write should be forced to the storage device (using {@link FileChannel#force(boolean)}). The
+   * default is {@code false}.
+   *
+   * @param force whether writes should be forced
+   */
+  public void setForce(final boolean force) {
+    this.force = force;
+  }
+
+  /**
+   * Appends a line to the journal.
+   *
+   * @param line the line
+   * @throws IOException if the line can not be written
+   */
+  public void append(final String line) throws IOException {
+    this.appendAll(List.of(line));
+  }
+
+  /**
+   * Appends lines to the journal. The method returns when the lines have been written.
+   *
+   * @param lines the lines
+   * @throws IOException if the lines can not be written
+   */
+  public void appendAll(final List<String> lines) throws IOException {
+    if (lines.isEmpty()) {
+      return;
+    }
+    if (this.closed) {
+      throw new IOException("Audit journal has been closed");
+    }
+    final byte[][] data = lines.stream()
+        .map(line -> line.getBytes(StandardCharsets.UTF_8))
+        .toArray(byte[][]::new);
+    final Entry entry = new Entry(data, new CompletableFuture<>());
+    this.queue.add(entry);
+    try {
+      while (true) {
+        try {
+          entry.written().get(1, TimeUnit.SECONDS);
+          return;
+        }
+        catch (final TimeoutException e) {
+          if (!this.appender.isAlive()) {
+            throw new IOException("Audit journal has been closed");
+          }
+        }
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for audit journal write");
+    }
+    catch (final ExecutionException e) {
+      throw e.getCause() instanceof final IOException ioe ? ioe : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Writes all queued lines, waits for pending compressions and closes the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    this.queue.add(CLOSE);
+    try {
+      this.appender.join();
+      this.compressor.shutdown();
+      if (!this.compressor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        log.warn("Audit journal compression did not finish within {} seconds", CLOSE_TIMEOUT_SECONDS);
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The appender loop. Takes all queued entries and writes them using one write.
+   */
+  private void run() {
+    final List<Entry> batch = new ArrayList<>();
+    boolean running = true;
+    while (running) {
+      try {
+        batch.add(this.queue.take());
+        this.queue.drainTo(batch);
+      }
+      catch (final InterruptedException e) {
+        break;
+      }
+      if (batch.remove(CLOSE)) {
+        running = false;
+        this.queue.drainTo(batch);
+      }
+      if (!batch.isEmpty()) {
+        try {
+          this.write(batch);
+          batch.forEach(e -> e.written().complete(null));
+        }
+        catch (final IOException | RuntimeException e) {
+          batch.forEach(entry -> entry.written().completeExceptionally(e));
+        }
+      }
+      batch.clear();
+    }
+    try {
+      this.channel.close();
+    }
+    catch (final IOException e) {
+      log.debug("Failed to close audit journal - {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Writes a batch of entries, after rolling over the file if the day has changed.
+   *
+   * @param batch the entries
+   * @throws IOException for write errors
+   */
+  private void write(final List<Entry> batch) throws IOException {
+    final Instant now = Instant.now();
+    if (this.lastModified != null
+        && now.truncatedTo(ChronoUnit.DAYS).isAfter(this.lastModified.truncatedTo(ChronoUnit.DAYS))) {
+      this.rollover();
+    }
+
+    final List<ByteBuffer> buffers = new ArrayList<>();
+    for (final Entry entry : batch) {
+      for (final byte[] line : entry.lines()) {
+        buffers.add(ByteBuffer.wrap(line));
+        buffers.add(ByteBuffer.wrap(LINE_SEPARATOR));
+      }
+    }
+    final ByteBuffer[] data = buffers.toArray(ByteBuffer[]::new);
+    int offset = 0;
+    while (offset < data.length) {
+      this.channel.write(data, offset, data.length - offset);
+      while (offset < data.length && !data[offset].hasRemaining()) {
+        offset++;
+      }
+    }
+    if (this.force) {
+      this.channel.force(false);
+    }
+    this.lastModified = now;
+  }
+
+  /**
+   * Moves the current file to {@code <log-file-name>-<date>.<ext>}, opens a new file and schedules compression of the
+   * moved file. If the file can not be moved, writes continue to the current file.
+   *
+   * @throws IOException if the file can not be opened
+   */
+  private void rollover() throws IOException {
+    this.channel.close();
+    try {
+      final String dateString = dateFormatter.format(this.lastModified);
+      Path backup = this.getBackupPath(dateString);
+      for (int n = 1; Files.exists(backup) || Files.exists(getCompressedPath(backup)); n++) {
+        backup = this.getBackupPath(dateString + "-" + n);
+      }
+      Files.move(this.logFile, backup);
+      this.lastModified = null;
+      this.scheduleCompression(backup);
+    }
+    catch (final IOException e) {
+      log.error("Failed to roll over audit log {} - {}", this.logFile, e.getMessage(), e);
+    }
+    finally {
+      this.channel = this.openChannel();
+    }
+  }
+
+  /**
+   * Schedules compression of backup files that were not compressed before the application stopped.
+   *
+   * @throws IOException for errors listing the directory
+   */
+  private void compressLeftovers() throws IOException {
+    final Path directory = this.logFile.toAbsolutePath().getParent();
+    final Pattern pattern = this.getBackupPattern();
+    try (final Stream<Path> files = Files.list(directory)) {
+      files.filter(f -> pattern.matcher(f.getFileName().toString()).matches())
+          .sorted()
+          .forEach(this::scheduleCompression);
+    }
+  }
+
+  /**
+   * Schedules compression of a backup file.
+   *
+   * @param backup the backup file
+   */
+  private void scheduleCompression(final Path backup) {
+    this.compressor.execute(() -> {
+      final Path compressed = getCompressedPath(backup);
+      final Path tmp = Path.of(compressed + ".tmp");
+      try {
+        try (final InputStream in = Files.newInputStream(backup);
+            final OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+          in.transferTo(out);
+        }
+        Files.move(tmp, compressed, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(backup);
+      }
+      catch (final IOException e) {
+        log.error("Failed to compress audit log {} - {}", backup, e.getMessage(), e);
+      }
+    });
+  }
+
+  /**
+   * Gets the path of a backup file.
+   *
+   * @param suffix the suffix (date)
+   * @return the path {@code <log-file-name>-<suffix>.<ext>}
+   */
+  private Path getBackupPath(final String suffix) {
+    final String path = this.logFile.toString();
+    final String extension = FilenameUtils.getExtension(path);
+    return Path.of(StringUtils.hasText(extension)
+        ? String.format("%s-%s.%s", path.substring(0, path.length() - extension.length() - 1), suffix, extension)
+        : String.format("%s-%s", path, suffix));
+  }
+
+  /**
+   * Gets the pattern matching the names of uncompressed backup files.
+   *
+   * @return a pattern
+   */
+  private Pattern getBackupPattern() {
+    final String name = this.logFile.getFileName().toString();
+    final String extension = FilenameUtils.getExtension(name);
+    return StringUtils.hasText(extension)
+        ? Pattern.compile(Pattern.quote(name.substring(0, name.length() - extension.length() - 1))
+            + "-\\d{8}(-\\d+)?\\." + Pattern.quote(extension))
+        : Pattern.compile(Pattern.quote(name) + "-\\d{8}(-\\d+)?");
+  }
+
+  private static Path getCompressedPath(final Path backup) {
+    return Path.of(backup + ".gz");
+  }
+
+  private FileChannel openChannel() throws IOException {
+    return FileChannel.open(this.logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+  }
+
+  /**
+   * A queue entry.
+   *
+   * @param lines the encoded lines
+   * @param written completed when the lines have been written
+   */
+  private record Entry(byte[][] lines, CompletableFuture<Void> written) {
+  }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+/**
+ * Tells what happens with an audit event when the queue of the {@link AuditEventPipeline} is full.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public enum AuditOverflowPolicy {
+
+  /** The calling thread waits until there is room in the queue. */
+  BLOCK,
+
+  /** The event is dropped and counted. */
+  DROP,
+
+  /** The event is written to a spill file and is written to the repository when the queue has been emptied. */
+  SPILL
+}
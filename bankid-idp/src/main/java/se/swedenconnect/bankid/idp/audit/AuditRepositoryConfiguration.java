@@ -16,7 +16,9 @@
 package se.swedenconnect.bankid.idp.audit;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Objects;
+import java.util.Optional;
 
 import org.redisson.api.RedissonClient;
 import org.springframework.boot.actuate.audit.AuditEventRepository;
@@ -27,7 +29,9 @@ import org.springframework.context.annotation.Configuration;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
 
 /**
  * Configuration for setting up the audit event repositories.
@@ -55,24 +59,75 @@ public class AuditRepositoryConfiguration {
 
   @Bean
   @ConditionalOnProperty(value = "bankid.audit.repository", havingValue = "memory", matchIfMissing = true)
-  AuditEventRepository inMemoryAuditRepository(final AuditEventMapper mapper) throws IOException {
-    return new MemoryBasedAuditEventRepository(this.config.getLogFile(), mapper, this.config.getSupportedEvents());
+  AuditEventRepository inMemoryAuditRepository(final AuditEventMapper mapper, final MeterRegistry meterRegistry)
+      throws IOException {
+    return this.startPipeline(
+        new MemoryBasedAuditEventRepository(this.config.getLogFile(), mapper, this.config.getSupportedEvents()),
+        meterRegistry);
   }
 
   @Bean
   @ConditionalOnProperty(value = "bankid.audit.repository", havingValue = "redislist", matchIfMissing = false)
-  AuditEventRepository redisListAuditRepository(final RedissonClient client, final AuditEventMapper mapper)
-      throws IOException {
-    return new RedisListAuditEventRepository(client, this.config.getLogFile(), mapper,
-        this.config.getSupportedEvents());
+  AuditEventRepository redisListAuditRepository(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final AuditEventMapper mapper, final MeterRegistry meterRegistry) throws IOException {
+    return this.startPipeline(this.startRetention(new RedisListAuditEventRepository(client, keyLayout,
+        this.config.getLogFile(), mapper, this.config.getSupportedEvents())), meterRegistry);
   }
 
   @Bean
   @ConditionalOnProperty(value = "bankid.audit.repository", havingValue = "redistimeseries", matchIfMissing = false)
-  AuditEventRepository redisTimeSeriesAuditStrategy(final RedissonClient client, final AuditEventMapper mapper)
+  AuditEventRepository redisTimeSeriesAuditStrategy(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final AuditEventMapper mapper, final MeterRegistry meterRegistry) throws IOException {
+    return this.startPipeline(this.startRetention(new RedisTimeSeriesAuditEventRepository(client, keyLayout,
+        this.config.getLogFile(), mapper, this.config.getSupportedEvents())), meterRegistry);
+  }
+
+  @Bean
+  @ConditionalOnProperty(value = "bankid.audit.repository", havingValue = "redisstream", matchIfMissing = false)
+  AuditEventRepository redisStreamAuditRepository(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final AuditEventMapper mapper, final MeterRegistry meterRegistry) throws IOException {
+    return this.startPipeline(new RedisStreamAuditEventRepository(client, keyLayout,
+        this.config.getStream().getMaxLength(), this.config.getStream().getConsumerGroups(),
+        this.config.getLogFile(), mapper, this.config.getSupportedEvents()), meterRegistry);
+  }
+
+  /**
+   * Applies the log file settings, and starts the asynchronous pipeline of the repository if configured.
+   *
+   * @param repository the repository
+   * @param meterRegistry the meter registry
+   * @return the repository
+   */
+  private AuditEventRepository startPipeline(final AbstractBankIdAuditEventRepository repository,
+      final MeterRegistry meterRegistry) {
+    repository.setSyncLogFile(this.config.isSyncLogFile());
+    repository.setMaxFindResults(this.config.getMaxFindResults());
+    final BankIdConfigurationProperties.AuditConfiguration.AuditPipelineConfiguration pipeline =
+        this.config.getPipeline();
+    if (pipeline.isEnabled()) {
+      repository.startPipeline(pipeline.getQueueSize(), pipeline.getBatchSize(), pipeline.getOverflowPolicy(),
+          Optional.ofNullable(pipeline.getSpillFile()).map(Path::of).orElse(null), meterRegistry);
+    }
+    return repository;
+  }
+
+  /**
+   * Starts the retention job of a Redis repository if configured. If only an archive directory is given, the archive
+   * is queried but no events are moved to it.
+   *
+   * @param repository the repository
+   * @return the repository
+   * @throws IOException if the archive directory can not be created
+   */
+  private AbstractRedisAuditEventRepository startRetention(final AbstractRedisAuditEventRepository repository)
       throws IOException {
-    return new RedisTimeSeriesAuditEventRepository(client, this.config.getLogFile(), mapper,
-        this.config.getSupportedEvents());
+    final BankIdConfigurationProperties.AuditConfiguration.AuditRetentionConfiguration retention =
+        this.config.getRetention();
+    if (retention.isActive() || retention.getArchiveDirectory() != null) {
+      repository.startRetention(retention.getMaxAge(), retention.getMaxEvents(),
+          Optional.ofNullable(retention.getArchiveDirectory()).map(Path::of).orElse(null), retention.getInterval());
+    }
+    return repository;
   }
 
   @Bean
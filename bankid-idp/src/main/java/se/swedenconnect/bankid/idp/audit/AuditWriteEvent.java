@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for the writing of a batch of audit events.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Name("se.swedenconnect.bankid.AuditWrite")
+@Label("Audit Write")
+@Description("The writing of a batch of audit events to the log file and the repository")
+@Category({ "BankID", "Audit" })
+@StackTrace(false)
+public class AuditWriteEvent extends Event {
+
+  /** The repository. */
+  @Label("Repository")
+  public String repository;
+
+  /** The number of events. */
+  @Label("Events")
+  public int events;
+
+  /** The number of bytes written to the log file. */
+  @Label("Journal Bytes")
+  @Description("The number of bytes written to the audit log file (0 if no file logging)")
+  @DataAmount
+  public long journalBytes;
+
+}
@@ -26,24 +26,32 @@ import org.springframework.context.event.EventListener;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.observation.ObservationRegistry;
 import lombok.extern.slf4j.Slf4j;
-import se.swedenconnect.bankid.idp.authn.BankIdAuthenticationProvider;
 import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.idp.authn.error.TraceIds;
 import se.swedenconnect.bankid.idp.authn.events.AbstractBankIdEvent;
 import se.swedenconnect.bankid.idp.authn.events.BankIdErrorEvent;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
 import se.swedenconnect.bankid.idp.authn.events.OrderCancellationEvent;
 import se.swedenconnect.bankid.idp.authn.events.OrderCompletionEvent;
 import se.swedenconnect.bankid.idp.authn.events.OrderResponseEvent;
 import se.swedenconnect.bankid.idp.authn.events.RecievedRequestEvent;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
-import se.swedenconnect.bankid.idp.authn.session.BankIdSessionReader;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
-import se.swedenconnect.bankid.rpapi.types.CollectResponse;
 import se.swedenconnect.bankid.rpapi.types.CompletionData;
-import se.swedenconnect.spring.saml.idp.authentication.Saml2UserAuthenticationInputToken;
 
 /**
  * Bean responsible of creating BankID audit events by listening to BankID events.
+ * <p>
+ * All information is taken from the events and their {@link BankIdEventSnapshot}, so the listeners never read the
+ * session or the authentication token.
+ * </p>
+ * <p>
+ * If tracing is active, the audit events get the trace ID of the observation that invokes the listeners (see
+ * {@link se.swedenconnect.bankid.idp.observation.BankIdObservations#EVENT}). The observation is current on the thread
+ * that invokes the listeners, even if it is not the thread that processes the request.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
@@ -52,21 +60,16 @@ import se.swedenconnect.spring.saml.idp.authentication.Saml2UserAuthenticationIn
 @Slf4j
 public class BankIdAuditEventModule {
 
-  /** The BankID authentication provider. */
-  private final BankIdAuthenticationProvider provider;
-
-  /** The session handler. */
-  private final BankIdSessionReader sessions;
+  /** The observation registry, for finding the trace ID of the event. */
+  private final ObservationRegistry observationRegistry;
 
   /**
    * Constructor.
    *
-   * @param provider the BankID authentication provider
-   * @param sessions the session handler
+   * @param observationRegistry the observation registry
    */
-  public BankIdAuditEventModule(final BankIdAuthenticationProvider provider, final BankIdSessionReader sessions) {
-    this.provider = Objects.requireNonNull(provider, "provider must not be null");
-    this.sessions = Objects.requireNonNull(sessions, "sessions must not be null");
+  public BankIdAuditEventModule(final ObservationRegistry observationRegistry) {
+    this.observationRegistry = Objects.requireNonNull(observationRegistry, "observationRegistry must not be null");
   }
 
   /**
@@ -79,16 +82,12 @@ public class BankIdAuditEventModule {
   @Order(Integer.MIN_VALUE)
   public AuditApplicationEvent handleReceivedRequestEvent(final RecievedRequestEvent event) {
 
-    final Saml2UserAuthenticationInputToken token =
-        this.provider.getTokenRepository().getExternalAuthenticationToken(event.getRequest()).getAuthnInputToken();
-
-    final String principal = token.getAuthnRequestToken().getAuthnRequest().getIssuer().getValue();
-
-    final Map<String, Object> auditIdentifier = createAuditIdentifier(
+    final BankIdEventSnapshot snapshot = event.getSnapshot();
+    final Map<String, Object> auditIdentifier = this.createAuditIdentifier(
         event.getPollRequest().getRelyingPartyData(), event.getPollRequest().getContext().getOperation(),
-        null, token);
+        null, snapshot);
 
-    final AuditEvent auditEvent = new AuditEvent(principal,
+    final AuditEvent auditEvent = new AuditEvent(snapshot.getSpEntityId(),
         BankIdAuditEventTypes.BANKID_RECEIVED_REQUEST.getTypeName(), auditIdentifier);
 
     log.info("Publishing audit event: {} - {}", auditEvent.getType(), auditEvent.getPrincipal());
@@ -105,8 +104,9 @@ public class BankIdAuditEventModule {
   @Order(Integer.MIN_VALUE)
   public AuditApplicationEvent handleOrderResponse(final OrderResponseEvent event) {
 
-    final AuditEvent auditEvent = this.createAuditEvent(event, BankIdAuditEventTypes.INIT,
-        BankIdSessionData.of(event.getPollRequest(), event.getResponse()));
+    final BankIdSessionData sessionData = BankIdSessionData.of(event.getPollRequest(), event.getResponse());
+    final AuditEvent auditEvent = this.createAuditEvent(event, BankIdAuditEventTypes.INIT, sessionData.getOperation(),
+        sessionData.getOrderReference());
 
     log.info("Publishing audit event: {} - {}", auditEvent.getType(), auditEvent.getPrincipal());
     return new AuditApplicationEvent(auditEvent);
@@ -123,22 +123,16 @@ public class BankIdAuditEventModule {
   @Order(Integer.MIN_VALUE)
   public AuditApplicationEvent handleCompletion(final OrderCompletionEvent event) {
 
-    final Saml2UserAuthenticationInputToken token =
-        this.provider.getTokenRepository().getExternalAuthenticationToken(event.getRequest()).getAuthnInputToken();
-    final String principal = token.getAuthnRequestToken().getAuthnRequest().getIssuer().getValue();
-
-    final BankIdSessionData bankIdSessionData =
-        this.sessions.loadSessionData(event.getRequest()).getBankIdSessionData();
+    final BankIdEventSnapshot snapshot = event.getSnapshot();
 
-    final BankIdAuditEventTypes type = bankIdSessionData.getOperation() == BankIdOperation.SIGN
+    final BankIdAuditEventTypes type = snapshot.getOperation() == BankIdOperation.SIGN
         ? BankIdAuditEventTypes.SIGN_COMPLETE
         : BankIdAuditEventTypes.AUTH_COMPLETE;
 
-    final Map<String, Object> auditIdentifier = createAuditIdentifier(event.getData(),
-        bankIdSessionData.getOperation(), bankIdSessionData.getOrderReference(), token);
+    final Map<String, Object> auditIdentifier = this.createAuditIdentifier(event.getData(),
+        snapshot.getOperation(), snapshot.getOrderReference(), snapshot);
 
-    final CollectResponse collectResponse = this.sessions.loadCompletionData(event.getRequest());
-    final CompletionData completionData = collectResponse.getCompletionData();
+    final CompletionData completionData = snapshot.getCompletionData().getCompletionData();
 
     final Map<String, Object> user = new HashMap<>();
     user.put("personal-number", completionData.getUser().getPersonalNumber());
@@ -157,7 +151,7 @@ public class BankIdAuditEventModule {
 
     auditIdentifier.put("user", user);
 
-    final AuditEvent auditEvent = new AuditEvent(principal, type.getTypeName(), auditIdentifier);
+    final AuditEvent auditEvent = new AuditEvent(snapshot.getSpEntityId(), type.getTypeName(), auditIdentifier);
 
     log.info("Publishing audit event: {} - {}", auditEvent.getType(), auditEvent.getPrincipal());
     return new AuditApplicationEvent(auditEvent);
@@ -174,7 +168,7 @@ public class BankIdAuditEventModule {
   public AuditApplicationEvent handleCancel(final OrderCancellationEvent event) {
 
     final AuditEvent auditEvent = this.createAuditEvent(event, BankIdAuditEventTypes.BANKID_CANCEL,
-        this.sessions.loadSessionData(event.getRequest()).getBankIdSessionData());
+        event.getSnapshot().getOperation(), event.getSnapshot().getOrderReference());
 
     log.info("Publishing audit event: {} - {}", auditEvent.getType(), auditEvent.getPrincipal());
     return new AuditApplicationEvent(auditEvent);
@@ -190,48 +184,44 @@ public class BankIdAuditEventModule {
   @Order(Integer.MIN_VALUE)
   public AuditApplicationEvent handleError(final BankIdErrorEvent event) {
 
-    final Saml2UserAuthenticationInputToken token =
-        this.provider.getTokenRepository().getExternalAuthenticationToken(event.getRequest()).getAuthnInputToken();
-    final String principal = token.getAuthnRequestToken().getAuthnRequest().getIssuer().getValue();
-
-    final BankIdSessionData bankIdSessionData =
-        this.sessions.loadSessionData(event.getRequest()).getBankIdSessionData();
-
-    final Map<String, Object> auditIdentifier = createAuditIdentifier(event.getData(),
-        bankIdSessionData.getOperation(), bankIdSessionData.getOrderReference(), token);
+    final BankIdEventSnapshot snapshot = event.getSnapshot();
+    final Map<String, Object> auditIdentifier = this.createAuditIdentifier(event.getData(),
+        snapshot.getOperation(), snapshot.getOrderReference(), snapshot);
     auditIdentifier.put("error-code", event.getErrorCode());
     if (event.getErrorDescription() != null) {
       auditIdentifier.put("error-description", event.getErrorDescription());
     }
-    final AuditEvent auditEvent = new AuditEvent(principal, BankIdAuditEventTypes.BANKID_ERROR.getTypeName(), auditIdentifier);
+    final AuditEvent auditEvent =
+        new AuditEvent(snapshot.getSpEntityId(), BankIdAuditEventTypes.BANKID_ERROR.getTypeName(), auditIdentifier);
 
     log.info("Publishing audit event: {} - {}", auditEvent.getType(), auditEvent.getPrincipal());
     return new AuditApplicationEvent(auditEvent);
   }
 
-  private AuditEvent createAuditEvent(
-      final AbstractBankIdEvent event, final BankIdAuditEventTypes type, final BankIdSessionData sessionData) {
+  private AuditEvent createAuditEvent(final AbstractBankIdEvent event, final BankIdAuditEventTypes type,
+      final BankIdOperation operation, final String orderRef) {
 
-    final Saml2UserAuthenticationInputToken token =
-        this.provider.getTokenRepository().getExternalAuthenticationToken(event.getRequest()).getAuthnInputToken();
-
-    final String principal = token.getAuthnRequestToken().getAuthnRequest().getIssuer().getValue();
-    final Map<String, Object> auditIdentifier = createAuditIdentifier(event.getData(), sessionData.getOperation(),
-        sessionData.getOrderReference(), token);
-    return new AuditEvent(principal, type.getTypeName(), auditIdentifier);
+    final BankIdEventSnapshot snapshot = event.getSnapshot();
+    final Map<String, Object> auditIdentifier =
+        this.createAuditIdentifier(event.getData(), operation, orderRef, snapshot);
+    return new AuditEvent(snapshot.getSpEntityId(), type.getTypeName(), auditIdentifier);
   }
 
-  private static Map<String, Object> createAuditIdentifier(final RelyingPartyData data,
-      final BankIdOperation operation, final String orderRef, final Saml2UserAuthenticationInputToken token) {
+  private Map<String, Object> createAuditIdentifier(final RelyingPartyData data,
+      final BankIdOperation operation, final String orderRef, final BankIdEventSnapshot snapshot) {
 
     final Map<String, Object> map = new HashMap<>();
     map.put("rp", Optional.ofNullable(data.getId()).orElseGet(() -> "unknown"));
-    map.put("sp-entity-id", token.getAuthnRequestToken().getAuthnRequest().getIssuer().getValue());
-    map.put("authn-request-id", token.getAuthnRequestToken().getAuthnRequest().getID());
+    map.put("sp-entity-id", snapshot.getSpEntityId());
+    map.put("authn-request-id", snapshot.getAuthnRequestId());
     if (orderRef != null) {
       map.put("order-ref", orderRef);
     }
     map.put("operation", operation);
+    final String traceId = TraceIds.getTraceId(this.observationRegistry.getCurrentObservation());
+    if (traceId != null) {
+      map.put("trace-id", traceId);
+    }
     return map;
   }
 
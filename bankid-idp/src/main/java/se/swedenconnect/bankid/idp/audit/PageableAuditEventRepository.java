@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+import org.springframework.boot.actuate.audit.AuditEventRepository;
+
+/**
+ * An {@link AuditEventRepository} that supports filtered queries with cursor based pagination.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public interface PageableAuditEventRepository extends AuditEventRepository {
+
+  /** The page size used when all matching events are fetched. */
+  int DEFAULT_PAGE_SIZE = 500;
+
+  /** The default maximum number of events returned by {@link #find(String, java.time.Instant, String)}. */
+  int DEFAULT_MAX_FIND_RESULTS = 1000;
+
+  /**
+   * Finds a page of events matching the filter, ordered by timestamp.
+   *
+   * @param filter the filter
+   * @param cursor the cursor from the previous page (if {@code null}, the first page is returned)
+   * @param pageSize the maximum number of events of the page
+   * @return a page of events
+   */
+  AuditEventPage find(final AuditEventFilter filter, final String cursor, final int pageSize);
+
+  /**
+   * Streams all events matching the filter, ordered by timestamp. The events are fetched one page at a time as the
+   * stream is consumed.
+   *
+   * @param filter the filter
+   * @param pageSize the number of events fetched at a time
+   * @return a stream of events
+   */
+  default Stream<AuditEvent> stream(final AuditEventFilter filter, final int pageSize) {
+    return Stream.iterate(this.find(filter, null, pageSize), Objects::nonNull,
+        page -> page.cursor() != null ? this.find(filter, page.cursor(), pageSize) : null)
+        .flatMap(page -> page.events().stream());
+  }
+
+  /**
+   * Selects the newest events of a stream. At most {@code maxResults} events are held at a time, so the memory used
+   * does not depend on the number of events in the stream.
+   *
+   * @param events the events
+   * @param maxResults the maximum number of events to return
+   * @return the newest events, newest first
+   */
+  static List<AuditEvent> newest(final Stream<AuditEvent> events, final int maxResults) {
+    final Comparator<AuditEvent> order = Comparator.comparing(AuditEvent::getTimestamp);
+    final PriorityQueue<AuditEvent> newest = new PriorityQueue<>(order);
+    events.forEach(event -> {
+      newest.add(event);
+      if (newest.size() > maxResults) {
+        newest.poll();
+      }
+    });
+    final List<AuditEvent> result = new ArrayList<>(newest);
+    result.sort(order.reversed());
+    return result;
+  }
+
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import org.redisson.api.RBatch;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+
+/**
+ * Secondary indexes for audit events stored in Redis.
+ * <p>
+ * Each event is given an ID that starts with its timestamp (zero padded milliseconds), so that IDs sort by time. The
+ * event JSON is stored in a hash per shard, and the ID is added to sorted sets (with score 0, i.e., sorted by ID) for
+ * all events, per principal, per type and per Relying Party. All keys of a shard share the hash tag of the shard.
+ * </p>
+ * <p>
+ * A query uses the most selective index given by the filter and evaluates the other criteria in Redis using a Lua
+ * script. The shards are queried in parallel and the results are merged. The cursor is the ID of the last returned
+ * event, so the memory used by a query depends on the page size and the number of shards, but not on the number of
+ * stored events.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class RedisAuditEventIndex {
+
+  /** The name of the event hashes. */
+  private static final String EVENTS_NAME = "audit:events";
+
+  /** The name prefix of the index sets. */
+  private static final String INDEX_NAME = "audit:idx";
+
+  /** The name of the index holding all events. */
+  private static final String ALL_INDEX = "all";
+
+  /** The minimum number of index entries that are examined by one script call. */
+  private static final int MIN_SCAN = 1000;
+
+  /** The length of the time prefix of an event ID. */
+  static final int ID_PREFIX_LENGTH = 13;
+
+  /**
+   * Script that finds events in one shard. KEYS[1] is the index and KEYS[2] the event hash. ARGV[1] is the lexical
+   * start of the range, ARGV[2] the maximum number of events to return, ARGV[3] the maximum number of index entries to
+   * examine and ARGV[4], ARGV[5] and ARGV[6] the wanted principal, type and Relying Party ("" for any).
+   * <p>
+   * Returns a list where the first element is the ID of the last examined entry (or "" if the index has been
+   * exhausted), followed by ID and JSON pairs of the matching events.
+   * </p>
+   */
+  private static final String FIND_SCRIPT = """
+      local from = ARGV[1];
+      local limit = tonumber(ARGV[2]);
+      local maxScan = tonumber(ARGV[3]);
+      local filtered = ARGV[4] ~= '' or ARGV[5] ~= '' or ARGV[6] ~= '';
+      local result = { '' };
+      local found = 0;
+      local scanned = 0;
+      while found < limit and scanned < maxScan do
+        local chunk = math.min(limit * 2, maxScan - scanned);
+        local ids = redis.call('zrangebylex', KEYS[1], from, '+', 'LIMIT', 0, chunk);
+        for _, id in ipairs(ids) do
+          scanned = scanned + 1;
+          from = '(' .. id;
+          result[1] = id;
+          local json = redis.call('hget', KEYS[2], id);
+          if json then
+            local match = true;
+            if filtered then
+              local event = cjson.decode(json);
+              local data = event['data'];
+              local rp = type(data) == 'table' and data['rp'] or nil;
+              match = (ARGV[4] == '' or event['principal'] == ARGV[4])
+                and (ARGV[5] == '' or event['type'] == ARGV[5])
+                and (ARGV[6] == '' or rp == ARGV[6]);
+            end;
+            if match then
+              table.insert(result, id);
+              table.insert(result, json);
+              found = found + 1;
+              if found == limit then
+                return result;
+              end;
+            end;
+          end;
+        end;
+        if #ids < chunk then
+          result[1] = '';
+          return result;
+        end;
+      end;
+      return result;
+      """;
+
+  /** The Redis client. */
+  private final RedissonClient client;
+
+  /** The Redis key layout. */
+  private final RedisKeyLayout keyLayout;
+
+  /** The mapper for reading events. */
+  private final AuditEventMapper mapper;
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout
+   * @param mapper the audit event mapper
+   */
+  public RedisAuditEventIndex(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final AuditEventMapper mapper) {
+    this.client = Objects.requireNonNull(client, "client must not be null");
+    this.keyLayout = Objects.requireNonNull(keyLayout, "keyLayout must not be null");
+    this.mapper = Objects.requireNonNull(mapper, "mapper must not be null");
+  }
+
+  /**
+   * Adds the commands for storing and indexing an event to a batch.
+   *
+   * @param batch the batch
+   * @param shard the shard
+   * @param event the event
+   * @param json the event JSON
+   */
+  public void index(final RBatch batch, final int shard, final AuditEvent event, final String json) {
+    final String id = createId(event.getTimestamp());
+    batch.getMap(this.keyLayout.getShardKey(EVENTS_NAME, shard), StringCodec.INSTANCE).fastPutAsync(id, json);
+    for (final String index : getIndexes(event)) {
+      batch.getLexSortedSet(this.getIndexKey(index, shard)).addAsync(id);
+    }
+  }
+
+  /**
+   * Finds a page of events.
+   *
+   * @param filter the filter
+   * @param cursor the cursor from the previous page (may be {@code null})
+   * @param pageSize the page size
+   * @return a page of events
+   */
+  public AuditEventPage find(final AuditEventFilter filter, final String cursor, final int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be greater than 0");
+    }
+    final String afterPrefix = filter.after() != null ? createIdPrefix(filter.after()) : null;
+    final String from = cursor != null && (afterPrefix == null || cursor.compareTo(afterPrefix) >= 0)
+        ? "(" + cursor
+        : afterPrefix != null ? "[" + afterPrefix : "-";
+    final String index = getIndex(filter);
+    final RScript script = this.client.getScript(StringCodec.INSTANCE);
+
+    final List<CompletableFuture<List<Object>>> futures = IntStream.range(0, this.keyLayout.getShards())
+        .mapToObj(shard -> script.<List<Object>> evalAsync(RScript.Mode.READ_ONLY, FIND_SCRIPT,
+            RScript.ReturnType.MULTI,
+            List.of(this.getIndexKey(index, shard), this.keyLayout.getShardKey(EVENTS_NAME, shard)),
+            from, Integer.toString(pageSize), Integer.toString(Math.max(MIN_SCAN, pageSize * 4)),
+            nullToEmpty(filter.principal()), nullToEmpty(filter.type()), nullToEmpty(filter.rp()))
+            .toCompletableFuture())
+        .toList();
+
+    // A shard that has not been exhausted has only been examined up to its last examined entry. Events after the
+    // lowest such position may be missing from the merged result, so the page must end there ...
+    //
+    String bound = null;
+    final List<String[]> candidates = new ArrayList<>();
+    for (final CompletableFuture<List<Object>> future : futures) {
+      final List<Object> result = future.join();
+      final String position = (String) result.get(0);
+      if (!position.isEmpty() && (bound == null || position.compareTo(bound) < 0)) {
+        bound = position;
+      }
+      for (int i = 1; i + 1 < result.size(); i += 2) {
+        candidates.add(new String[] { (String) result.get(i), (String) result.get(i + 1) });
+      }
+    }
+    final String limit = bound;
+    final List<String[]> page = candidates.stream()
+        .filter(c -> limit == null || c[0].compareTo(limit) <= 0)
+        .sorted(Comparator.comparing(c -> c[0]))
+        .limit(pageSize)
+        .toList();
+
+    final String next = page.size() == pageSize ? page.get(page.size() - 1)[0] : bound;
+    return new AuditEventPage(page.stream().map(c -> this.mapper.read(c[1])).toList(), next);
+  }
+
+  /**
+   * Gets the number of indexed events in a shard.
+   *
+   * @param shard the shard
+   * @return the number of events
+   */
+  public int count(final int shard) {
+    return this.client.getScoredSortedSet(this.getIndexKey(ALL_INDEX, shard), StringCodec.INSTANCE).size();
+  }
+
+  /**
+   * Gets the IDs of the oldest events of a shard.
+   *
+   * @param shard the shard
+   * @param count the maximum number of IDs to return
+   * @return the IDs, in order
+   */
+  public List<String> findOldestIds(final int shard, final int count) {
+    return List.copyOf(this.client.<String> getScoredSortedSet(this.getIndexKey(ALL_INDEX, shard),
+        StringCodec.INSTANCE).valueRange(0, count - 1));
+  }
+
+  /**
+   * Gets events of a shard.
+   *
+   * @param shard the shard
+   * @param ids the event IDs
+   * @return the events, in the order of the supplied IDs
+   */
+  public List<IndexedEvent> get(final int shard, final List<String> ids) {
+    if (ids.isEmpty()) {
+      return List.of();
+    }
+    final Map<String, String> events = this.client.<String, String> getMap(
+        this.keyLayout.getShardKey(EVENTS_NAME, shard), StringCodec.INSTANCE).getAll(new HashSet<>(ids));
+    return ids.stream()
+        .map(id -> new IndexedEvent(id, events.get(id)))
+        .toList();
+  }
+
+  /**
+   * Adds the commands for removing events from the event hash and all indexes to a batch.
+   *
+   * @param batch the batch
+   * @param shard the shard
+   * @param events the events to remove
+   */
+  public void remove(final RBatch batch, final int shard, final List<IndexedEvent> events) {
+    final Map<String, List<String>> idsPerIndex = new HashMap<>();
+    for (final IndexedEvent event : events) {
+      final List<String> indexes = event.json() != null
+          ? getIndexes(this.mapper.read(event.json()))
+          : List.of(ALL_INDEX);
+      for (final String index : indexes) {
+        idsPerIndex.computeIfAbsent(index, i -> new ArrayList<>()).add(event.id());
+      }
+    }
+    batch.getMap(this.keyLayout.getShardKey(EVENTS_NAME, shard), StringCodec.INSTANCE)
+        .fastRemoveAsync(events.stream().map(IndexedEvent::id).toArray());
+    idsPerIndex.forEach((index, ids) -> batch.getLexSortedSet(this.getIndexKey(index, shard)).removeAllAsync(ids));
+  }
+
+  /**
+   * Gets the index names for an event.
+   *
+   * @param event the event
+   * @return the index names
+   */
+  private static List<String> getIndexes(final AuditEvent event) {
+    final List<String> indexes = new ArrayList<>();
+    indexes.add(ALL_INDEX);
+    indexes.add("principal:" + event.getPrincipal());
+    indexes.add("type:" + event.getType());
+    final String rp = AuditEventFilter.getRp(event);
+    if (rp != null) {
+      indexes.add("rp:" + rp);
+    }
+    return indexes;
+  }
+
+  /**
+   * Gets the most selective index for a filter.
+   *
+   * @param filter the filter
+   * @return the index name
+   */
+  private static String getIndex(final AuditEventFilter filter) {
+    if (filter.principal() != null) {
+      return "principal:" + filter.principal();
+    }
+    if (filter.rp() != null) {
+      return "rp:" + filter.rp();
+    }
+    if (filter.type() != null) {
+      return "type:" + filter.type();
+    }
+    return ALL_INDEX;
+  }
+
+  /**
+   * Gets the key of an index set for a shard. The shard hash tag is placed first, so that it is the tag that Redis
+   * uses even if the indexed value contains braces.
+   *
+   * @param index the index name
+   * @param shard the shard
+   * @return the key
+   */
+  private String getIndexKey(final String index, final int shard) {
+    return "%s:%s".formatted(this.keyLayout.getShardKey(INDEX_NAME, shard), index);
+  }
+
+  /**
+   * Creates an event ID.
+   *
+   * @param timestamp the event timestamp
+   * @return the ID
+   */
+  private static String createId(final Instant timestamp) {
+    return "%s-%s".formatted(createIdPrefix(timestamp), UUID.randomUUID());
+  }
+
+  /**
+   * Creates the time prefix of an event ID.
+   *
+   * @param timestamp the timestamp
+   * @return the ID prefix
+   */
+  static String createIdPrefix(final Instant timestamp) {
+    return "%013d".formatted(Math.max(0, timestamp.toEpochMilli()));
+  }
+
+  /**
+   * Gets the timestamp (in milliseconds since epoch) from an event ID.
+   *
+   * @param id the event ID
+   * @return the timestamp
+   */
+  static long getTimestamp(final String id) {
+    return Long.parseLong(id.substring(0, ID_PREFIX_LENGTH));
+  }
+
+  private static String nullToEmpty(final String value) {
+    return value != null ? value : "";
+  }
+
+  /**
+   * An event with its ID.
+   *
+   * @param id the event ID
+   * @param json the event JSON (may be {@code null} if the event data is missing)
+   */
+  public record IndexedEvent(String id, String json) {
+  }
+
+}
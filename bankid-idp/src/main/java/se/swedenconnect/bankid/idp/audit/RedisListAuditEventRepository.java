@@ -16,24 +16,30 @@
 package se.swedenconnect.bankid.idp.audit;
 
 import java.io.IOException;
-import java.time.Instant;
 import java.util.List;
-import java.util.Objects;
+import java.util.stream.Stream;
 
 import org.redisson.api.RedissonClient;
 import org.springframework.boot.actuate.audit.AuditEvent;
 import org.springframework.boot.actuate.audit.AuditEventRepository;
 
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+
 /**
- * An implementation of the {@link AuditEventRepository} that uses Redis lists to store the events.
+ * An implementation of the {@link AuditEventRepository} for installations that used to store events in a Redis list.
+ * <p>
+ * The events are distributed over the shards given by the {@link RedisKeyLayout} in a round-robin fashion, and are
+ * stored and queried using the {@link RedisAuditEventIndex}. The legacy list ({@value #LIST_NAME}) is no longer
+ * written, but is read if legacy keys should be read.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
-public class RedisListAuditEventRepository extends AbstractBankIdAuditEventRepository {
+public class RedisListAuditEventRepository extends AbstractRedisAuditEventRepository {
 
-  /** The Redis client. */
-  private final RedissonClient client;
+  /** The name of the legacy audit list. */
+  private static final String LIST_NAME = "audit:list";
 
   /**
    * Constructor.
@@ -47,22 +53,47 @@ public class RedisListAuditEventRepository extends AbstractBankIdAuditEventRepos
   public RedisListAuditEventRepository(final RedissonClient client, final String logFile,
       final AuditEventMapper mapper, final List<String> supportedEvents)
       throws IOException {
-    super(logFile, mapper, supportedEvents);
-    this.client = Objects.requireNonNull(client, "client must not be null");
+    this(client, null, logFile, mapper, supportedEvents);
   }
 
-  /** {@inheritDoc} */
-  @Override
-  protected void addEvent(final AuditEvent event) {
-    this.client.getList("audit:list").add(event);
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   * @param logFile the log file including its path (if {@code null}, no file logging will be performed)
+   * @param mapper mapper for creating JSON
+   * @param supportedEvents the supported events (if {@code null}, {@link #DEFAULT_SUPPORTED_EVENTS} will be used)
+   * @throws IOException if file logging can not be initialized
+   */
+  public RedisListAuditEventRepository(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final String logFile, final AuditEventMapper mapper, final List<String> supportedEvents)
+      throws IOException {
+    super(client, keyLayout, logFile, mapper, supportedEvents);
   }
 
   /** {@inheritDoc} */
   @Override
-  public List<AuditEvent> find(final String principal, final Instant after, final String type) {
-    return this.client.getList("audit:list").stream()
-        .map(String.class::cast)
-        .map(e -> this.getAuditEventMapper().read(e))
-        .toList();
+  protected Stream<AuditEvent> findLegacy(final AuditEventFilter filter) {
+    return this.getClient().getList(LIST_NAME).stream()
+        .flatMap(this::toAuditEvent)
+        .filter(filter::matches);
+  }
+
+  /**
+   * Maps a list element into an {@link AuditEvent}. Events are stored as JSON, but the legacy list may contain
+   * serialized {@link AuditEvent} objects.
+   *
+   * @param element the list element
+   * @return a stream holding the event
+   */
+  private Stream<AuditEvent> toAuditEvent(final Object element) {
+    if (element instanceof final AuditEvent auditEvent) {
+      return Stream.of(auditEvent);
+    }
+    if (element instanceof final String json) {
+      return Stream.of(this.getAuditEventMapper().read(json));
+    }
+    return Stream.empty();
   }
 }
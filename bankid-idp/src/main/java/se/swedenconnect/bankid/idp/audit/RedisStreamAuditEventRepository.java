@@ -0,0 +1,375 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.redisson.api.RBatch;
+import org.redisson.api.RStream;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.StreamMessageId;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.api.stream.StreamCreateGroupArgs;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.boot.actuate.audit.AuditEvent;
+import org.springframework.boot.actuate.audit.AuditEventRepository;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+
+/**
+ * An {@link AuditEventRepository} implementation that uses Redis streams to store events.
+ * <p>
+ * The events are distributed over the shards given by the {@link RedisKeyLayout} in a round-robin fashion. Each event
+ * is appended using {@code XADD} with approximate {@code MAXLEN} trimming, so the streams never grow beyond (roughly)
+ * the maximum length. The event JSON is stored in the field {@value #EVENT_FIELD}.
+ * </p>
+ * <p>
+ * Consumer groups may be created for each stream, so that downstream consumers (such as SIEM shippers) can read the
+ * events using {@code XREADGROUP} and acknowledge them using {@code XACK}. Note that events that have not been
+ * consumed before they are trimmed are lost for the consumer, so the maximum length should be large enough for the
+ * consumers to keep up.
+ * </p>
+ * <p>
+ * Queries are made using {@code XRANGE}, and the stream IDs are used as cursors. Since stream IDs are assigned by Redis
+ * when the event is added, a query for events after a given time starts a bit earlier in the stream (see
+ * {@link #CLOCK_SKEW}) and the event timestamps are then compared.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public class RedisStreamAuditEventRepository extends AbstractBankIdAuditEventRepository
+    implements PageableAuditEventRepository {
+
+  /** The default maximum number of events kept in the streams. */
+  public static final int DEFAULT_MAX_LENGTH = 100_000;
+
+  /** The name of the audit stream. */
+  public static final String STREAM_NAME = "audit:stream";
+
+  /** The name of the stream entry field holding the event JSON. */
+  public static final String EVENT_FIELD = "event";
+
+  /** The allowed difference between the clocks of the nodes and Redis. */
+  private static final Duration CLOCK_SKEW = Duration.ofMinutes(1);
+
+  /** The minimum number of entries read from a stream at a time. */
+  private static final int MIN_CHUNK = 100;
+
+  /** The Redis client. */
+  private final RedissonClient client;
+
+  /** The Redis key layout. */
+  private final RedisKeyLayout keyLayout;
+
+  /** The maximum number of events kept in each stream. */
+  private final int maxLengthPerShard;
+
+  /** Counter for distributing events over the shards. */
+  private final AtomicInteger shardCounter = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   * @param maxLength the maximum number of events kept in Redis (approximately)
+   * @param consumerGroups the consumer groups to create for each stream (may be {@code null})
+   * @param logFile the log file including its path (if {@code null}, no file logging will be performed)
+   * @param mapper mapper for creating JSON
+   * @param supportedEvents the supported events (if {@code null}, {@link #DEFAULT_SUPPORTED_EVENTS} will be used)
+   * @throws IOException if file logging can not be initialized
+   */
+  public RedisStreamAuditEventRepository(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final int maxLength, final List<String> consumerGroups, final String logFile, final AuditEventMapper mapper,
+      final List<String> supportedEvents) throws IOException {
+    super(logFile, mapper, supportedEvents);
+    this.client = Objects.requireNonNull(client, "client must not be null");
+    this.keyLayout = Optional.ofNullable(keyLayout).orElseGet(RedisKeyLayout::new);
+    if (maxLength < 1) {
+      throw new IllegalArgumentException("maxLength must be greater than 0");
+    }
+    this.maxLengthPerShard = Math.max(1, maxLength / this.keyLayout.getShards());
+    Optional.ofNullable(consumerGroups).ifPresent(groups -> groups.forEach(this::createConsumerGroup));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void addEvent(final AuditEvent event) {
+    this.addEvents(List.of(event));
+  }
+
+  /**
+   * Appends all events using one pipelined batch.
+   */
+  @Override
+  protected void addEvents(final List<AuditEvent> events) {
+    final RBatch batch = this.client.createBatch();
+    for (final AuditEvent event : events) {
+      final String key = this.keyLayout.getShardKey(STREAM_NAME, this.shardCounter.getAndIncrement());
+      batch.<String, String> getStream(key, StringCodec.INSTANCE)
+          .addAsync(StreamAddArgs.entry(EVENT_FIELD, this.getAuditEventMapper().write(event))
+              .trimNonStrict()
+              .maxLen(this.maxLengthPerShard)
+              .noLimit());
+    }
+    batch.execute();
+  }
+
+  /**
+   * Finds the newest matching events, newest first. At most {@link #getMaxFindResults()} events are returned, and the
+   * events are read one page at a time, so the memory used does not depend on the length of the streams.
+   */
+  @Override
+  public List<AuditEvent> find(final String principal, final Instant after, final String type) {
+    return PageableAuditEventRepository.newest(
+        this.stream(AuditEventFilter.of(principal, after, type), DEFAULT_PAGE_SIZE), this.getMaxFindResults());
+  }
+
+  /**
+   * Finds a page of events by reading the streams of all shards using {@code XRANGE}, and merging them in stream ID
+   * order. The cursor is the stream ID and shard of the last examined entry.
+   */
+  @Override
+  public AuditEventPage find(final AuditEventFilter filter, final String cursor, final int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be greater than 0");
+    }
+    final StreamPosition position = cursor != null ? StreamPosition.parse(cursor) : null;
+    final StreamMessageId afterId = filter.after() != null
+        ? new StreamMessageId(Math.max(0, filter.after().minus(CLOCK_SKEW).toEpochMilli()), 0)
+        : new StreamMessageId(0, 0);
+    final int chunk = Math.max(pageSize, MIN_CHUNK);
+
+    final List<ShardReader> readers = IntStream.range(0, this.keyLayout.getShards())
+        .mapToObj(shard -> {
+          // The streams are merged in (stream ID, shard) order, so the entry with the cursor ID is included for the
+          // shards after the cursor shard ...
+          //
+          StreamMessageId start = position == null ? afterId
+              : shard <= position.shard() ? successor(position.id()) : position.id();
+          if (compare(start, afterId) < 0) {
+            start = afterId;
+          }
+          return new ShardReader(shard, start, chunk);
+        })
+        .toList();
+
+    final List<AuditEvent> events = new ArrayList<>();
+    StreamPosition last = null;
+    while (events.size() < pageSize) {
+      ShardReader next = null;
+      for (final ShardReader reader : readers) {
+        final StreamEntry entry = reader.peek();
+        if (entry != null && (next == null || compare(entry.id(), next.peek().id()) < 0)) {
+          next = reader;
+        }
+      }
+      if (next == null) {
+        return new AuditEventPage(events, null);
+      }
+      final StreamEntry entry = next.poll();
+      last = new StreamPosition(entry.id(), next.shard);
+      final String json = entry.fields().get(EVENT_FIELD);
+      if (json != null) {
+        final AuditEvent event = this.getAuditEventMapper().read(json);
+        if (filter.matches(event)) {
+          events.add(event);
+        }
+      }
+    }
+    return new AuditEventPage(events, last.toString());
+  }
+
+  /**
+   * Creates a consumer group for each stream, reading from the start of the stream. The streams are created if they
+   * do not exist, and groups that already exist are left as they are.
+   *
+   * @param group the group name
+   */
+  private void createConsumerGroup(final String group) {
+    for (final String key : this.keyLayout.getShardKeys(STREAM_NAME)) {
+      final RStream<String, String> stream = this.client.getStream(key, StringCodec.INSTANCE);
+      try {
+        stream.createGroup(StreamCreateGroupArgs.name(group).id(StreamMessageId.ALL).makeStream());
+        log.info("Created consumer group '{}' for audit stream {}", group, key);
+      }
+      catch (final RedisException e) {
+        if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the stream ID following the given ID.
+   *
+   * @param id the stream ID
+   * @return the next stream ID
+   */
+  private static StreamMessageId successor(final StreamMessageId id) {
+    return id.getId1() == -1L
+        ? new StreamMessageId(id.getId0() + 1, 0)
+        : new StreamMessageId(id.getId0(), id.getId1() + 1);
+  }
+
+  /**
+   * Compares two stream IDs (the parts of a stream ID are unsigned).
+   *
+   * @param a the first ID
+   * @param b the second ID
+   * @return a negative value, zero or a positive value if a is less than, equal to or greater than b
+   */
+  private static int compare(final StreamMessageId a, final StreamMessageId b) {
+    final int c = Long.compareUnsigned(a.getId0(), b.getId0());
+    return c != 0 ? c : Long.compareUnsigned(a.getId1(), b.getId1());
+  }
+
+  /**
+   * A stream entry.
+   *
+   * @param id the stream ID
+   * @param fields the entry fields
+   */
+  private record StreamEntry(StreamMessageId id, Map<String, String> fields) {
+  }
+
+  /**
+   * A position in the merged streams, used as cursor.
+   *
+   * @param id the stream ID
+   * @param shard the shard
+   */
+  private record StreamPosition(StreamMessageId id, int shard) {
+
+    /**
+     * Parses a cursor.
+     *
+     * @param cursor the cursor
+     * @return the position
+     */
+    static StreamPosition parse(final String cursor) {
+      try {
+        final int slash = cursor.lastIndexOf('/');
+        final String[] parts = cursor.substring(0, slash).split("-");
+        return new StreamPosition(
+            new StreamMessageId(Long.parseUnsignedLong(parts[0]), Long.parseUnsignedLong(parts[1])),
+            Integer.parseInt(cursor.substring(slash + 1)));
+      }
+      catch (final RuntimeException e) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+      }
+    }
+
+    /**
+     * Returns the cursor, for example "1700000000000-0/2".
+     */
+    @Override
+    public String toString() {
+      return "%s-%s/%d".formatted(Long.toUnsignedString(this.id.getId0()), Long.toUnsignedString(this.id.getId1()),
+          this.shard);
+    }
+  }
+
+  /**
+   * Reads the stream of one shard in chunks. The first chunk is requested when the reader is created, so that the
+   * streams of all shards are read in parallel.
+   */
+  private class ShardReader {
+
+    /** The shard. */
+    private final int shard;
+
+    /** The number of entries to read at a time. */
+    private final int chunk;
+
+    /** The stream. */
+    private final RStream<String, String> stream;
+
+    /** The entries that have been read but not consumed. */
+    private final Deque<StreamEntry> buffer = new ArrayDeque<>();
+
+    /** The pending read (may be {@code null}). */
+    private CompletableFuture<Map<StreamMessageId, Map<String, String>>> pending;
+
+    /** Whether the end of the stream has been reached. */
+    private boolean exhausted;
+
+    /**
+     * Constructor.
+     *
+     * @param shard the shard
+     * @param start the first stream ID to read
+     * @param chunk the number of entries to read at a time
+     */
+    ShardReader(final int shard, final StreamMessageId start, final int chunk) {
+      this.shard = shard;
+      this.chunk = chunk;
+      this.stream = RedisStreamAuditEventRepository.this.client.getStream(
+          RedisStreamAuditEventRepository.this.keyLayout.getShardKey(STREAM_NAME, shard), StringCodec.INSTANCE);
+      this.read(start);
+    }
+
+    /**
+     * Gets the next entry without consuming it.
+     *
+     * @return the next entry, or {@code null} if the stream has been exhausted
+     */
+    StreamEntry peek() {
+      while (this.buffer.isEmpty() && !this.exhausted) {
+        final Map<StreamMessageId, Map<String, String>> entries = this.pending.join();
+        entries.forEach((id, fields) -> this.buffer.add(new StreamEntry(id, fields)));
+        if (entries.size() < this.chunk) {
+          this.exhausted = true;
+        }
+        else {
+          this.read(successor(this.buffer.getLast().id()));
+        }
+      }
+      return this.buffer.peek();
+    }
+
+    /**
+     * Consumes the next entry.
+     *
+     * @return the next entry, or {@code null} if the stream has been exhausted
+     */
+    StreamEntry poll() {
+      return this.peek() != null ? this.buffer.poll() : null;
+    }
+
+    private void read(final StreamMessageId start) {
+      this.pending = this.stream.rangeAsync(this.chunk, start, StreamMessageId.MAX).toCompletableFuture();
+    }
+  }
+
+}
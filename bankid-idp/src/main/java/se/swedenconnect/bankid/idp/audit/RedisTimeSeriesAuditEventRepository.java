@@ -18,27 +18,31 @@ package se.swedenconnect.bankid.idp.audit;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Stream;
 
 import org.redisson.api.RedissonClient;
-import org.redisson.api.TimeSeriesEntry;
 import org.springframework.boot.actuate.audit.AuditEvent;
 import org.springframework.boot.actuate.audit.AuditEventRepository;
 
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+
 /**
- * An {@link AuditEventRepository} implementation that uses Redis time series to store events.
+ * An {@link AuditEventRepository} implementation for installations that used to store events in a Redis time series.
+ * <p>
+ * The events are distributed over the shards given by the {@link RedisKeyLayout} in a round-robin fashion, and are
+ * stored and queried using the {@link RedisAuditEventIndex}. The legacy time series ({@value #TIME_SERIES_NAME}) is no
+ * longer written, but is read if legacy keys should be read.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
-public class RedisTimeSeriesAuditEventRepository extends AbstractBankIdAuditEventRepository {
+public class RedisTimeSeriesAuditEventRepository extends AbstractRedisAuditEventRepository {
 
-  /** The Redis client. */
-  private final RedissonClient client;
+  /** The name of the legacy time series. */
+  private static final String TIME_SERIES_NAME = "audit:ts";
 
   /**
    * Constructor.
@@ -52,33 +56,35 @@ public class RedisTimeSeriesAuditEventRepository extends AbstractBankIdAuditEven
   public RedisTimeSeriesAuditEventRepository(final RedissonClient client, final String logFile,
       final AuditEventMapper mapper, final List<String> supportedEvents)
       throws IOException {
-    super(logFile, mapper, supportedEvents);
-    this.client = Objects.requireNonNull(client, "client must not be null");
+    this(client, null, logFile, mapper, supportedEvents);
   }
 
-  /** {@inheritDoc} */
-  @Override
-  protected void addEvent(final AuditEvent event) {
-    this.client.getTimeSeries("audit:ts")
-        .add(event.getTimestamp().toEpochMilli(), this.getAuditEventMapper().write(event));
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   * @param logFile the log file including its path (if {@code null}, no file logging will be performed)
+   * @param mapper mapper for creating JSON
+   * @param supportedEvents the supported events (if {@code null}, {@link #DEFAULT_SUPPORTED_EVENTS} will be used)
+   * @throws IOException if file logging can not be initialized
+   */
+  public RedisTimeSeriesAuditEventRepository(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final String logFile, final AuditEventMapper mapper, final List<String> supportedEvents)
+      throws IOException {
+    super(client, keyLayout, logFile, mapper, supportedEvents);
   }
 
   /** {@inheritDoc} */
   @Override
-  public List<AuditEvent> find(final String principal, final Instant after, final String type) {
-    final Collection<TimeSeriesEntry<Object, Object>> timeSeries =
-        this.client.getTimeSeries("audit:ts").entryRange(
-            Optional.ofNullable(after)
-                .orElseGet(() -> Instant.EPOCH)
-                .toEpochMilli(),
-            Instant.now().plus(1, ChronoUnit.MINUTES).toEpochMilli());
-
-    final Stream<AuditEvent> auditEventStream = timeSeries.stream()
-        .map(e -> this.getAuditEventMapper().read((String) e.getValue()));
-    if (Objects.nonNull(principal)) {
-      return auditEventStream.filter(event -> principal.equals(event.getPrincipal())).toList();
-    }
-    return auditEventStream.toList();
+  protected Stream<AuditEvent> findLegacy(final AuditEventFilter filter) {
+    final long from = Optional.ofNullable(filter.after())
+        .orElseGet(() -> Instant.EPOCH)
+        .toEpochMilli();
+    final long to = Instant.now().plus(1, ChronoUnit.MINUTES).toEpochMilli();
+    return this.getClient().getTimeSeries(TIME_SERIES_NAME).entryRange(from, to).stream()
+        .map(e -> this.getAuditEventMapper().read((String) e.getValue()))
+        .filter(filter::matches);
   }
 
 }
@@ -26,7 +26,9 @@ import lombok.AllArgsConstructor;
 import se.swedenconnect.bankid.idp.authn.annotations.ViewController;
 import se.swedenconnect.bankid.idp.authn.error.NoSuchRelyingPartyException;
 import se.swedenconnect.bankid.idp.authn.events.BankIdEventPublisher;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionReader;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyRepository;
 import se.swedenconnect.bankid.rpapi.types.CollectResponse;
@@ -71,11 +73,13 @@ public class BankIdAuthenticationController extends AbstractAuthenticationContro
   @GetMapping("/view/complete")
   public ModelAndView complete(final HttpServletRequest request) {
     final CollectResponse data = this.sessionReader.loadCompletionData(request);
+    final BankIdSessionState state = this.sessionReader.loadSessionData(request);
     final Saml2UserAuthenticationInputToken authnInputToken = this.getInputToken(request).getAuthnInputToken();
     final String entityId = authnInputToken.getAuthnRequestToken().getEntityId();
     final RelyingPartyData relyingParty = Optional.ofNullable(this.rpRepository.getRelyingParty(entityId))
         .orElseThrow(() -> new NoSuchRelyingPartyException(entityId));
-    this.eventPublisher.orderCompletion(request, relyingParty).publish();
+    this.eventPublisher.orderCompletion(request, relyingParty, BankIdEventSnapshot.of(authnInputToken, state, data))
+        .publish();
     return this.complete(request, new BankIdAuthenticationToken(data));
   }
 
@@ -29,7 +29,9 @@ import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 
+import io.micrometer.tracing.Tracer;
 import se.swedenconnect.bankid.idp.authn.error.BankIdValidationException;
+import se.swedenconnect.bankid.idp.authn.error.TraceIds;
 import se.swedenconnect.bankid.rpapi.types.CollectResponse;
 import se.swedenconnect.bankid.rpapi.types.CompletionData;
 import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
@@ -56,6 +58,11 @@ public class BankIdAuthenticationProvider extends AbstractUserRedirectAuthentica
    */
   private String name = "BankID";
 
+  /**
+   * The tracer for creating the trace IDs of validation errors (may be {@code null}).
+   */
+  private Tracer tracer;
+
   /**
    * The supported LoA:s.
    */
@@ -99,7 +106,8 @@ public class BankIdAuthenticationProvider extends AbstractUserRedirectAuthentica
     final BankIdAuthenticationToken bankIdToken = BankIdAuthenticationToken.class.cast(token.getAuthnToken());
     final CollectResponse authnData = (CollectResponse) bankIdToken.getDetails();
     if (authnData.getCompletionData() == null) {
-      throw new BankIdValidationException(authnData.getOrderReference(), "Missing BankID CompletionData");
+      throw new BankIdValidationException(authnData.getOrderReference(), "Missing BankID CompletionData", null,
+          TraceIds.create(this.tracer));
     }
 
     final List<UserAttribute> userAttributes = mapUserAttributes(authnData);
@@ -113,10 +121,12 @@ public class BankIdAuthenticationProvider extends AbstractUserRedirectAuthentica
       saml2UserAuthentication.getSaml2UserDetails().setSignMessageDisplayed(true);
       final String signature = authnData.getCompletionData().getSignature();
       if (signature == null) {
-        throw new BankIdValidationException(authnData.getOrderReference(), "Missing BankID signature");
+        throw new BankIdValidationException(authnData.getOrderReference(), "Missing BankID signature", null,
+            TraceIds.create(this.tracer));
       }
       if (Strings.isBlank(signature)) {
-        throw new BankIdValidationException(authnData.getOrderReference(), "Missing BankID signature - empty");
+        throw new BankIdValidationException(authnData.getOrderReference(), "Missing BankID signature - empty", null,
+            TraceIds.create(this.tracer));
       }
     }
     return saml2UserAuthentication;
@@ -203,6 +213,16 @@ public class BankIdAuthenticationProvider extends AbstractUserRedirectAuthentica
     }
   }
 
+  /**
+   * Assigns the tracer that is used to create the trace IDs of validation errors. If not assigned, random trace IDs are
+   * used.
+   *
+   * @param tracer the tracer
+   */
+  public void setTracer(final Tracer tracer) {
+    this.tracer = tracer;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -40,16 +40,20 @@ import se.swedenconnect.bankid.idp.authn.context.BankIdContext;
 import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
 import se.swedenconnect.bankid.idp.authn.context.PreviousDeviceSelection;
 import se.swedenconnect.bankid.idp.authn.error.NoSuchRelyingPartyException;
+import se.swedenconnect.bankid.idp.authn.error.ResourceBusyException;
 import se.swedenconnect.bankid.idp.authn.events.BankIdEventPublisher;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
 import se.swedenconnect.bankid.idp.authn.service.BankIdService;
 import se.swedenconnect.bankid.idp.authn.service.PollRequest;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionReader;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
+import se.swedenconnect.bankid.idp.concurrency.LockingFilter;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyRepository;
 import se.swedenconnect.bankid.rpapi.service.BankIDClient;
 import se.swedenconnect.bankid.rpapi.service.UserVisibleData;
 import se.swedenconnect.bankid.rpapi.service.impl.BankIdServerException;
+import se.swedenconnect.bankid.rpapi.support.OrderReferences;
 import se.swedenconnect.bankid.rpapi.types.BankIDException;
 import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
 import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
@@ -95,6 +99,9 @@ public class BankIdApiController {
   /** Provides UI information to the frontend. */
   private final UiInformationProvider uiInformation;
 
+  /** Coalesces concurrent poll requests for the same session. */
+  private final PollCoalescer pollCoalescer;
+
   /**
    * Gets information about the selected device.
    *
@@ -115,6 +122,9 @@ public class BankIdApiController {
 
   /**
    * API method for making a BankID polling request.
+   * <p>
+   * A {@link PollHandledEvent} is recorded for each request.
+   * </p>
    *
    * @param request the HTTP servlet request
    * @param qr whether to display the QR code
@@ -124,12 +134,33 @@ public class BankIdApiController {
   public Mono<ApiResponse> poll(final HttpServletRequest request,
       @RequestParam(value = "qr", defaultValue = "false") final Boolean qr) {
 
+    final PollHandledEvent event = new PollHandledEvent();
+    event.begin();
+    event.qr = Boolean.TRUE.equals(qr);
+
+    final String pollKey = "%s:%s".formatted(request.getSession().getId(), qr);
+    if (Boolean.TRUE.equals(request.getAttribute(LockingFilter.COALESCE_ATTRIBUTE))) {
+      // Another poll for the same session is in progress, use its result ...
+      // If no result is obtained, the client is told to retry, just as if the request had been rejected.
+      event.mode = "coalesced";
+      return event.record(this.pollCoalescer.attach(pollKey)
+          .map(response -> this.addQrCode(request, response, qr))
+          .switchIfEmpty(Mono.error(ResourceBusyException::new)));
+    }
+
     final BankIdSessionState state = this.sessionReader.loadSessionData(request);
     final BankIdContext bankIdContext = this.getContext(request);
     final RelyingPartyData relyingParty = this.getRelyingParty(bankIdContext.getClientId());
     final BankIDClient client = relyingParty.getClient();
+    event.rp = relyingParty.getId();
+    event.operation = bankIdContext.getOperation().getValue();
+    event.orderRefHash = state != null
+        ? OrderReferences.hash(state.getBankIdSessionData().getOrderReference())
+        : null;
     if (state != null && state.getBankIdSessionData().getStatus() == ProgressStatus.COMPLETE) {
-      return Mono.just(ApiResponseFactory.create(state.getBankIdSessionData(), client.getQRGenerator(), qr));
+      event.mode = "completed";
+      return event.record(
+          Mono.just(ApiResponseFactory.create(state.getBankIdSessionData(), client.getQRGenerator(), qr)));
     }
     else {
       final PollRequest pollRequest = PollRequest.builder()
@@ -140,12 +171,36 @@ public class BankIdApiController {
           .data(this.getMessage(request, bankIdContext, relyingParty))
           .state(state)
           .build();
-      return this.service.poll(pollRequest)
+      event.mode = "polled";
+      return event.record(this.pollCoalescer.execute(pollKey, () -> this.service.poll(pollRequest)
           .onErrorResume(e -> e instanceof BankIdServerException,
               e -> Mono.just(ApiResponseFactory.createErrorResponseBankIdServerException()))
           .onErrorResume(e -> e instanceof BankIDException,
-              e -> Mono.just(ApiResponseFactory.createErrorResponseTimeExpired()));
+              e -> Mono.just(ApiResponseFactory.createErrorResponseTimeExpired()))));
+    }
+  }
+
+  /**
+   * The result of a poll on another node is shared without the QR code image (see {@link RedisPollCoalescer}). If a
+   * QR code should be displayed, it is generated from the session data.
+   *
+   * @param request the HTTP servlet request
+   * @param response the poll result
+   * @param qr whether to display the QR code
+   * @return the poll result, with a QR code if needed
+   */
+  private ApiResponse addQrCode(final HttpServletRequest request, final ApiResponse response, final Boolean qr) {
+    if (response.getQrCode() != null || !Boolean.TRUE.equals(qr)) {
+      return response;
+    }
+    final BankIdSessionState state = this.sessionReader.loadSessionData(request);
+    if (state == null) {
+      return response;
     }
+    final BankIDClient client = this.getRelyingParty(this.getContext(request).getClientId()).getClient();
+    final ApiResponse withQr = ApiResponseFactory.create(state.getBankIdSessionData(), client.getQRGenerator(), true);
+    return new ApiResponse(response.getStatus(), withQr.getQrCode(), response.getAutoStartToken(),
+        response.getMessageCode());
   }
 
   /**
@@ -202,7 +257,7 @@ public class BankIdApiController {
     if (Objects.nonNull(state) && Objects.nonNull(state.getBankIdSessionData())) {
       final Saml2UserAuthenticationInputToken authnInputToken = this.getInputToken(request);
       final RelyingPartyData relyingParty = this.getRelyingParty(authnInputToken.getAuthnRequestToken().getEntityId());
-      return this.service.cancel(request, state, relyingParty);
+      return this.service.cancel(request, BankIdEventSnapshot.of(authnInputToken, state, null), relyingParty);
     }
     else {
       return Mono.empty();
@@ -270,6 +325,7 @@ public class BankIdApiController {
     final BankIdContext context = new BankIdContext();
     context.setId(token.getAuthnRequestToken().getAuthnRequest().getID());
     context.setClientId(token.getAuthnRequestToken().getEntityId());
+    context.setAuthnRequestTime(token.getAuthnRequestToken().getAuthnRequest().getIssueInstant());
 
     // Authentication or signature?
     //
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A {@link PollCoalescer} that shares the in-flight poll between requests on the same node.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class LocalPollCoalescer implements PollCoalescer {
+
+  /** The polls in progress. */
+  private final Map<String, Mono<ApiResponse>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Executes a poll. The poll is removed from the polls in progress when it has completed, or if the request that
+   * started it is cancelled (the cached poll itself is not cancelled, so requests that already have attached to it
+   * still get its result).
+   */
+  @Override
+  public Mono<ApiResponse> execute(final String key, final Supplier<Mono<ApiResponse>> poll) {
+    final AtomicReference<Mono<ApiResponse>> created = new AtomicReference<>();
+    final Mono<ApiResponse> inProgress = this.inFlight.computeIfAbsent(key, k -> {
+      final Mono<ApiResponse> result = poll.get()
+          .doOnNext(response -> this.onResult(k, response))
+          .doFinally(s -> this.inFlight.remove(k, created.get()))
+          .cache();
+      created.set(result);
+      return result;
+    });
+    if (inProgress != created.get()) {
+      return inProgress;
+    }
+    return inProgress.doOnCancel(() -> this.inFlight.remove(key, inProgress));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Mono<ApiResponse> attach(final String key) {
+    final Mono<ApiResponse> poll = this.inFlight.get(key);
+    return poll != null ? poll : this.attachRemote(key);
+  }
+
+  /**
+   * Invoked when a poll executed on this node has produced a result. The default implementation does nothing.
+   *
+   * @param key the poll key
+   * @param response the result
+   */
+  protected void onResult(final String key, final ApiResponse response) {
+  }
+
+  /**
+   * Attaches to a poll that is not in progress on this node. The default implementation returns an empty
+   * {@link Mono}.
+   *
+   * @param key the poll key
+   * @return the result of the poll in progress, or an empty {@link Mono} if no result could be obtained
+   */
+  protected Mono<ApiResponse> attachRemote(final String key) {
+    return Mono.empty();
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Coalesces concurrent poll requests for the same session so that they share the result of one call to the BankID
+ * server.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public interface PollCoalescer {
+
+  /**
+   * Executes a poll. If a poll for the same key is already in progress (on this node), the result of that poll is
+   * returned instead.
+   *
+   * @param key the poll key (identifying the session)
+   * @param poll supplies the poll to execute
+   * @return the result of the poll
+   */
+  Mono<ApiResponse> execute(final String key, final Supplier<Mono<ApiResponse>> poll);
+
+  /**
+   * Attaches to a poll that is in progress for the given key, possibly on another node.
+   *
+   * @param key the poll key (identifying the session)
+   * @return the result of the poll in progress, or an empty {@link Mono} if no result could be obtained
+   */
+  Mono<ApiResponse> attach(final String key);
+
+  /**
+   * Gets a {@link PollCoalescer} that does not coalesce any requests.
+   *
+   * @return a {@link PollCoalescer}
+   */
+  static PollCoalescer none() {
+    return new PollCoalescer() {
+
+      @Override
+      public Mono<ApiResponse> execute(final String key, final Supplier<Mono<ApiResponse>> poll) {
+        return poll.get();
+      }
+
+      @Override
+      public Mono<ApiResponse> attach(final String key) {
+        return Mono.empty();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * JFR event for a handled poll request. The duration of the event is the time from when the request was received by
+ * the controller until the response was produced.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Name("se.swedenconnect.bankid.PollHandled")
+@Label("Poll Handled")
+@Description("A poll request handled by the BankID API controller")
+@Category({ "BankID", "Poll" })
+@StackTrace(false)
+public class PollHandledEvent extends Event {
+
+  /** The RP. */
+  @Label("Relying Party")
+  public String rp;
+
+  /** The operation. */
+  @Label("Operation")
+  public String operation;
+
+  /** The hash of the order reference. */
+  @Label("Order Reference Hash")
+  @Description("A hash of the order reference of the current order (for correlation)")
+  public String orderRefHash;
+
+  /** Whether a QR code was requested. */
+  @Label("QR")
+  public boolean qr;
+
+  /** How the poll was handled. */
+  @Label("Mode")
+  @Description("How the poll was handled (polled, coalesced or completed)")
+  public String mode;
+
+  /** The status of the response. */
+  @Label("Status")
+  @Description("The status of the response, or the error")
+  public String status;
+
+  /** The message code of the response. */
+  @Label("Message Code")
+  public String messageCode;
+
+  /**
+   * Returns a mono that records the status of the supplied response in this event, and commits the event when the
+   * response has been produced. The event must have been begun.
+   *
+   * @param response the response
+   * @return a mono that records the event
+   */
+  Mono<ApiResponse> record(final Mono<ApiResponse> response) {
+    if (!this.isEnabled()) {
+      return response;
+    }
+    return response
+        .doOnSuccess(r -> {
+          if (r != null) {
+            this.status = String.valueOf(r.getStatus());
+            this.messageCode = r.getMessageCode();
+          }
+        })
+        .doOnError(e -> this.status = e.getClass().getSimpleName())
+        .doFinally(signal -> {
+          if (signal == SignalType.CANCEL) {
+            this.status = "cancelled";
+          }
+          this.commit();
+        });
+  }
+
+}
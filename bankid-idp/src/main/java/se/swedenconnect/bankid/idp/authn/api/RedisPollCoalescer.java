@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A {@link PollCoalescer} that, in addition to sharing in-flight polls on the same node, lets requests handled by other
+ * nodes attach to a poll using Redis pub/sub.
+ * <p>
+ * A request that attaches to a poll on another node subscribes to the channel for the poll key, and then announces
+ * that it is waiting on the topic {@value #WAITERS_TOPIC_NAME}. Each node keeps track of the announced keys, and the
+ * result of a poll is published only if a request is waiting for it, so polls that nobody waits for cost no extra
+ * Redis traffic. The result is published without the QR code image, which the waiting node generates from the session
+ * data.
+ * </p>
+ * <p>
+ * A request that attaches to a poll on another node waits at most the given timeout for the result. If the result
+ * was published before the request was announced, the request will not get a result.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class RedisPollCoalescer extends LocalPollCoalescer {
+
+  /** The name of the topic where requests waiting for a poll on another node are announced. */
+  public static final String WAITERS_TOPIC_NAME = "poll:waiters";
+
+  /** The Redis client. */
+  private final RedissonClient client;
+
+  /** The maximum time to wait for the result of a poll on another node. */
+  private final Duration timeout;
+
+  /** The topic where waiting requests are announced. */
+  private final RTopic waitersTopic;
+
+  /** The poll keys that requests on other nodes are waiting for, and when they stop waiting (millis). */
+  private final Map<String, Long> waiters = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param timeout the maximum time to wait for the result of a poll on another node
+   */
+  public RedisPollCoalescer(final RedissonClient client, final Duration timeout) {
+    this.client = Objects.requireNonNull(client, "client must not be null");
+    this.timeout = Objects.requireNonNull(timeout, "timeout must not be null");
+    this.waitersTopic = this.client.getTopic(WAITERS_TOPIC_NAME, StringCodec.INSTANCE);
+    this.waitersTopic.addListener(String.class, (channel, key) -> {
+      final long now = System.currentTimeMillis();
+      this.waiters.values().removeIf(expires -> expires < now);
+      this.waiters.put(key, now + this.timeout.toMillis());
+    });
+  }
+
+  /**
+   * Publishes the result, without the QR code image, on the channel for the poll key if a request on another node is
+   * waiting for it.
+   */
+  @Override
+  protected void onResult(final String key, final ApiResponse response) {
+    final Long expires = this.waiters.remove(key);
+    if (expires != null && expires >= System.currentTimeMillis()) {
+      this.getTopic(key).publishAsync(
+          new ApiResponse(response.getStatus(), null, response.getAutoStartToken(), response.getMessageCode()));
+    }
+  }
+
+  /**
+   * Waits for a result to be published on the channel for the poll key.
+   */
+  @Override
+  protected Mono<ApiResponse> attachRemote(final String key) {
+    final RTopic topic = this.getTopic(key);
+    return Mono.<ApiResponse> create(sink -> {
+      final int listenerId = topic.addListener(ApiResponse.class, (channel, message) -> sink.success(message));
+      sink.onDispose(() -> topic.removeListenerAsync(listenerId));
+      // Announce only when subscribed, so that a result published after the announcement is received
+      this.waitersTopic.publishAsync(key);
+    })
+        .timeout(this.timeout, Mono.empty());
+  }
+
+  /**
+   * Gets the topic for a poll key.
+   *
+   * @param key the poll key
+   * @return the topic
+   */
+  private RTopic getTopic(final String key) {
+    return this.client.getTopic("poll:" + key);
+  }
+
+}
@@ -18,64 +18,173 @@ package se.swedenconnect.bankid.idp.authn.api;
 import static se.swedenconnect.bankid.rpapi.types.CollectResponse.Status.FAILED;
 import static se.swedenconnect.bankid.rpapi.types.CollectResponse.Status.PENDING;
 
-import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.function.Predicate;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import se.swedenconnect.bankid.idp.ApplicationVersion;
 import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
 import se.swedenconnect.bankid.rpapi.types.CollectResponse;
 import se.swedenconnect.bankid.rpapi.types.ErrorCode;
 import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
 
+/**
+ * Resolves the message code to display for a collect response.
+ * <p>
+ * The resolution rules are evaluated once, at class load, over every combination of status, hint code, QR display and
+ * operation. The result is a flat table indexed by enum ordinals, so resolving a message on a poll is a single array
+ * lookup.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
 public class StatusCodeFactory {
 
-  private static final List<StatusResolver> RESOLVES = new ArrayList<>() {
-    private static final long serialVersionUID = ApplicationVersion.SERIAL_VERSION_UID;
-
-    {
-      add(new StatusResolver("rfa1", c -> PENDING.equals(c.getCollectResponse().getStatus()) && ProgressStatus.NO_CLIENT.equals(c.getCollectResponse().getProgressStatus()) && !c.getShowQr()));
-      add(new StatusResolver("rfa3", c -> FAILED.equals(c.getCollectResponse().getStatus()) && ErrorCode.CANCELLED.equals(c.getCollectResponse().getErrorCode())));
-      add(new StatusResolver("rfa4", c -> FAILED.equals(c.getCollectResponse().getStatus()) && ErrorCode.ALREADY_IN_PROGRESS.equals(c.getCollectResponse().getErrorCode())));
-      add(new StatusResolver("rfa5", c -> FAILED.equals(c.getCollectResponse().getStatus()) && Objects.nonNull(c.getCollectResponse().getErrorCode()) && List.of(ErrorCode.REQUEST_TIMEOUT, ErrorCode.MAINTENANCE, ErrorCode.INTERNAL_ERROR).contains(c.getCollectResponse().getErrorCode())));
-      add(new StatusResolver("rfa6", c -> FAILED.equals(c.getCollectResponse().getStatus()) && ErrorCode.USER_CANCEL.equals(c.getCollectResponse().getErrorCode())));
-      add(new StatusResolver("rfa8", c -> FAILED.equals(c.getCollectResponse().getStatus()) && ErrorCode.EXPIRED_TRANSACTION.equals(c.getCollectResponse().getErrorCode())));
-      add(new StatusResolver("rfa9-auth", c -> PENDING.equals(c.getCollectResponse().getStatus()) && ProgressStatus.USER_SIGN.equals(c.getCollectResponse().getProgressStatus()) && BankIdOperation.AUTH.equals(c.getOperation())));
-      add(new StatusResolver("rfa9-sign", c -> PENDING.equals(c.getCollectResponse().getStatus()) && ProgressStatus.USER_SIGN.equals(c.getCollectResponse().getProgressStatus()) && BankIdOperation.SIGN.equals(c.getOperation())));
-      add(new StatusResolver("rfa13", c -> PENDING.equals(c.getCollectResponse().getStatus()) && ProgressStatus.OUTSTANDING_TRANSACTION.equals(c.getCollectResponse().getProgressStatus()) && !c.getShowQr()));
-      add(new StatusResolver("rfa21-auth", c -> PENDING.equals(c.getCollectResponse().getStatus()) && Objects.equals(c.getOperation(), BankIdOperation.AUTH) && Objects.isNull(c.getCollectResponse().getHintCode())));
-      add(new StatusResolver("rfa21-sign", c -> PENDING.equals(c.getCollectResponse().getStatus()) && Objects.equals(c.getOperation(), BankIdOperation.SIGN) && Objects.isNull(c.getCollectResponse().getHintCode())));
-      add(new StatusResolver("rfa22", c -> FAILED.equals(c.getCollectResponse().getStatus())));
-      add(new StatusResolver("rfa23", c -> PENDING.equals(c.getCollectResponse().getStatus()) && ProgressStatus.USER_MRTD.equals(c.getCollectResponse().getProgressStatus())));
-      add(new StatusResolver("ext2", c -> PENDING.equals(c.getCollectResponse().getStatus()) && ProgressStatus.OUTSTANDING_TRANSACTION.equals(c.getCollectResponse().getProgressStatus()) && c.getShowQr()));
-    }
-  };
+  /** The prefix for all message codes. */
+  private static final String PREFIX = "bankid.msg.";
+
+  /** The rules, in priority order. The first matching rule gives the message code. */
+  private static final List<StatusResolver> RESOLVES = List.of(
+      new StatusResolver("rfa1", k -> k.status() == PENDING && k.progressStatus() == ProgressStatus.NO_CLIENT && !k.showQr()),
+      new StatusResolver("rfa3", k -> k.status() == FAILED && k.errorCode() == ErrorCode.CANCELLED),
+      new StatusResolver("rfa4", k -> k.status() == FAILED && k.errorCode() == ErrorCode.ALREADY_IN_PROGRESS),
+      new StatusResolver("rfa5", k -> k.status() == FAILED && k.errorCode() != null
+          && EnumSet.of(ErrorCode.REQUEST_TIMEOUT, ErrorCode.MAINTENANCE, ErrorCode.INTERNAL_ERROR).contains(k.errorCode())),
+      new StatusResolver("rfa6", k -> k.status() == FAILED && k.errorCode() == ErrorCode.USER_CANCEL),
+      new StatusResolver("rfa8", k -> k.status() == FAILED && k.errorCode() == ErrorCode.EXPIRED_TRANSACTION),
+      new StatusResolver("rfa9-auth", k -> k.status() == PENDING && k.progressStatus() == ProgressStatus.USER_SIGN
+          && k.operation() == BankIdOperation.AUTH),
+      new StatusResolver("rfa9-sign", k -> k.status() == PENDING && k.progressStatus() == ProgressStatus.USER_SIGN
+          && k.operation() == BankIdOperation.SIGN),
+      new StatusResolver("rfa13", k -> k.status() == PENDING
+          && k.progressStatus() == ProgressStatus.OUTSTANDING_TRANSACTION && !k.showQr()),
+      new StatusResolver("rfa21-auth", k -> k.status() == PENDING && k.operation() == BankIdOperation.AUTH
+          && !k.hintCodePresent()),
+      new StatusResolver("rfa21-sign", k -> k.status() == PENDING && k.operation() == BankIdOperation.SIGN
+          && !k.hintCodePresent()),
+      new StatusResolver("rfa22", k -> k.status() == FAILED),
+      new StatusResolver("rfa23", k -> k.status() == PENDING && k.progressStatus() == ProgressStatus.USER_MRTD),
+      new StatusResolver("ext2", k -> k.status() == PENDING
+          && k.progressStatus() == ProgressStatus.OUTSTANDING_TRANSACTION && k.showQr()));
+
+  /** Number of status slots (the enum values plus {@code null}). */
+  private static final int STATUSES = CollectResponse.Status.values().length + 1;
+
+  /**
+   * Number of hint slots. For a pending order the slot is the progress status ordinal, for a failed order the error
+   * code ordinal. The last slot represents a missing hint code.
+   */
+  private static final int HINTS = Math.max(ProgressStatus.values().length, ErrorCode.values().length) + 1;
+
+  /** The slot used for a missing hint code. */
+  private static final int NO_HINT = HINTS - 1;
+
+  /** Number of operation slots (the enum values plus {@code null}). */
+  private static final int OPERATIONS = BankIdOperation.values().length + 1;
 
+  /** The precomputed message codes. */
+  private static final String[] TABLE = buildTable();
+
+  /**
+   * Resolves the message code for the supplied collect response.
+   *
+   * @param json the collect response
+   * @param showQr whether a QR code is displayed ({@code null} is treated as {@code false})
+   * @param operation the operation
+   * @return the message code
+   */
   public static String statusCode(final CollectResponse json, final Boolean showQr, final BankIdOperation operation) {
-    StatusData statusData = new StatusData(json, showQr, operation);
-    Optional<String> message = RESOLVES.stream()
-        .filter(r -> r.getPredicate().test(statusData))
-        .map(StatusResolver::getResult)
-        .findFirst();
-    return "bankid.msg." + message.orElseGet(() -> "blank");
+    final CollectResponse.Status status = json.getStatus();
+    final int hint;
+    if (status == PENDING) {
+      hint = json.getHintCode() == null ? NO_HINT : json.getProgressStatus().ordinal();
+    }
+    else if (status == FAILED) {
+      hint = json.getErrorCode().ordinal();
+    }
+    else {
+      hint = NO_HINT;
+    }
+    return TABLE[index(slot(status), hint, Boolean.TRUE.equals(showQr), slot(operation))];
   }
 
-  @AllArgsConstructor
-  @Data
-  private static class StatusData {
-    CollectResponse collectResponse;
-    Boolean showQr;
-    BankIdOperation operation;
+  /**
+   * Evaluates the rules for every possible input and stores the results.
+   *
+   * @return the table
+   */
+  private static String[] buildTable() {
+    final String[] table = new String[STATUSES * HINTS * 2 * OPERATIONS];
+    for (int s = 0; s < STATUSES; s++) {
+      final CollectResponse.Status status = s == 0 ? null : CollectResponse.Status.values()[s - 1];
+      for (int h = 0; h < HINTS; h++) {
+        final ProgressStatus progressStatus = progressStatus(status, h);
+        final ErrorCode errorCode = status == FAILED && h < ErrorCode.values().length ? ErrorCode.values()[h] : null;
+        for (int q = 0; q < 2; q++) {
+          for (int o = 0; o < OPERATIONS; o++) {
+            final BankIdOperation operation = o == 0 ? null : BankIdOperation.values()[o - 1];
+            final StatusKey key = new StatusKey(status, progressStatus, errorCode, h != NO_HINT, q == 1, operation);
+            table[index(s, h, q == 1, o)] = PREFIX + RESOLVES.stream()
+                .filter(r -> r.predicate().test(key))
+                .map(StatusResolver::result)
+                .findFirst()
+                .orElse("blank");
+          }
+        }
+      }
+    }
+    return table;
   }
 
-  @AllArgsConstructor
-  @Data
-  private static class StatusResolver {
-    String result;
-    Predicate<StatusData> predicate;
+  /**
+   * Gives the progress status for a status and hint slot, mirroring {@link CollectResponse#getProgressStatus()}.
+   *
+   * @param status the status
+   * @param hint the hint slot
+   * @return the progress status, or {@code null}
+   */
+  private static ProgressStatus progressStatus(final CollectResponse.Status status, final int hint) {
+    if (status == CollectResponse.Status.COMPLETE) {
+      return ProgressStatus.COMPLETE;
+    }
+    if (status != PENDING) {
+      return null;
+    }
+    if (hint == NO_HINT) {
+      return ProgressStatus.UNKNOWN_HINTCODE;
+    }
+    return hint < ProgressStatus.values().length ? ProgressStatus.values()[hint] : null;
+  }
+
+  private static int index(final int status, final int hint, final boolean showQr, final int operation) {
+    return ((status * HINTS + hint) * 2 + (showQr ? 1 : 0)) * OPERATIONS + operation;
+  }
+
+  private static int slot(final Enum<?> value) {
+    return value == null ? 0 : value.ordinal() + 1;
+  }
+
+  /**
+   * The input that the rules are evaluated against.
+   */
+  private record StatusKey(CollectResponse.Status status, ProgressStatus progressStatus, ErrorCode errorCode,
+      boolean hintCodePresent, boolean showQr, BankIdOperation operation) {
   }
+
+  /**
+   * A rule giving a message code.
+   */
+  private record StatusResolver(String result, Predicate<StatusKey> predicate) {
+
+    StatusResolver {
+      Objects.requireNonNull(result, "result must not be null");
+      Objects.requireNonNull(predicate, "predicate must not be null");
+    }
+  }
+
+  // Hidden constructor
+  private StatusCodeFactory() {
+  }
+
 }
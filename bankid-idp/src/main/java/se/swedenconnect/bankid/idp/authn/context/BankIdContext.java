@@ -16,6 +16,7 @@
 package se.swedenconnect.bankid.idp.authn.context;
 
 import java.io.Serializable;
+import java.time.Instant;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -85,4 +86,12 @@ public class BankIdContext implements Serializable {
   @JsonProperty(value = "sign-message", required = false)
   private SignatureMessageExtension signMessage;
 
+  /**
+   * The issue instant of the SAML authentication request (as given by the SP).
+   */
+  @Setter
+  @Getter
+  @JsonProperty(value = "authn-request-time", required = false)
+  private Instant authnRequestTime;
+
 }
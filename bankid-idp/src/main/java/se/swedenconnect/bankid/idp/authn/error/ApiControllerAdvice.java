@@ -26,6 +26,7 @@ import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.bankid.idp.authn.annotations.ApiController;
+import se.swedenconnect.bankid.idp.concurrency.LockingFilter;
 
 /**
  * Controller advice for api error handling.
@@ -60,6 +61,21 @@ public class ApiControllerAdvice {
         .body(ERROR_TECHNICAL_DIFFICULTIES_BUSY);
   }
 
+  /**
+   * Handles {@link ResourceBusyException}. The response is the same as when the poll lock could not be acquired (see
+   * {@link LockingFilter}).
+   *
+   * @return an error response telling the frontend to retry
+   */
+  @ExceptionHandler(value = { ResourceBusyException.class })
+  public ResponseEntity<String> handleResourceBusy() {
+    return ResponseEntity
+        .status(429)
+        .header("retry-after", Integer.toString(LockingFilter.BUSY_RETRY_AFTER))
+        .header("content-type", MediaType.APPLICATION_JSON_VALUE)
+        .body(LockingFilter.ERROR_RESOURCE_BUSY);
+  }
+
   /**
    * Handles uncaught exceptions for /api routes.
    *
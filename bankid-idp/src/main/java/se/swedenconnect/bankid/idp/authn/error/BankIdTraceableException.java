@@ -15,14 +15,16 @@
  */
 package se.swedenconnect.bankid.idp.authn.error;
 
-import java.util.UUID;
-
 import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.bankid.rpapi.types.BankIDException;
 import se.swedenconnect.bankid.rpapi.types.ErrorCode;
 
 /**
  * Exception class errors during BankID operations that we assign a trace ID to. This is useful for display purposes.
+ * <p>
+ * The trace ID is normally created using {@link TraceIds#create(io.micrometer.tracing.Tracer)}, so that it is made up
+ * of the trace and span IDs of the current span if tracing is active. If no trace ID is given, a random UUID is used.
+ * </p>
  * 
  * @author Martin Lindström
  * @author Felix Hellman
@@ -54,9 +56,22 @@ public class BankIdTraceableException extends BankIDException {
    * @param cause the cause of the error
    */
   public BankIdTraceableException(final String orderRef, final String msg, final Throwable cause) {
+    this(orderRef, msg, cause, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param orderRef the order reference
+   * @param msg the error message
+   * @param cause the cause of the error (may be {@code null})
+   * @param traceId the trace ID (if {@code null}, a random UUID is used)
+   */
+  public BankIdTraceableException(final String orderRef, final String msg, final Throwable cause,
+      final String traceId) {
     super(ErrorCode.UNKNOWN_ERROR, msg, cause);
     this.orderRef = orderRef;
-    this.traceId = UUID.randomUUID().toString();
+    this.traceId = traceId != null ? traceId : TraceIds.create(null);
 
     log.error("{} created for orderReference: '{}' with identifier: '{}' - {}",
         this.getClass().getSimpleName(), this.orderRef, this.traceId, msg);
@@ -48,4 +48,17 @@ public class BankIdValidationException extends BankIdTraceableException {
     super(orderRef, msg, cause);
   }
 
+  /**
+   * Constructor.
+   * 
+   * @param orderRef the order reference
+   * @param msg the error message
+   * @param cause the cause of the error (may be {@code null})
+   * @param traceId the trace ID (if {@code null}, a random UUID is used)
+   */  
+  public BankIdValidationException(final String orderRef, final String msg, final Throwable cause,
+      final String traceId) {
+    super(orderRef, msg, cause, traceId);
+  }
+
 }
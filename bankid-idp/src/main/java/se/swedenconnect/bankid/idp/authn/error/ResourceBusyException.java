@@ -0,0 +1,38 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.error;
+
+import se.swedenconnect.bankid.idp.ApplicationVersion;
+
+/**
+ * Exception for API requests that could not be served since another request for the same user is in progress. The
+ * client is expected to retry the request.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class ResourceBusyException extends RuntimeException {
+
+  private static final long serialVersionUID = ApplicationVersion.SERIAL_VERSION_UID;
+
+  /**
+   * Constructor.
+   */
+  public ResourceBusyException() {
+    super("The resource is busy for current user, try again soon");
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.error;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.TraceContext;
+import io.micrometer.tracing.Tracer;
+import io.micrometer.tracing.handler.TracingObservationHandler;
+
+/**
+ * Creates the trace IDs that are assigned to errors and audit events. If tracing is active, the trace ID is taken from
+ * the current span of the {@link Tracer}, or from the span of an {@link Observation}, so that the error that is
+ * displayed for the user can be found among the traces and the logs. The IDs are never read from the logging context,
+ * since it is not populated on the threads that run the reactive parts of a request.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public final class TraceIds {
+
+  /**
+   * Creates a trace ID for an error. If the tracer has a current span, the ID is made up of its trace and span IDs.
+   * Otherwise, a random UUID is used.
+   *
+   * @param tracer the tracer (may be {@code null})
+   * @return a trace ID
+   */
+  public static String create(final Tracer tracer) {
+    return Optional.ofNullable(tracer)
+        .map(Tracer::currentSpan)
+        .map(Span::context)
+        .filter(c -> c.traceId() != null && !c.traceId().isBlank())
+        .map(TraceIds::toTraceId)
+        .orElseGet(() -> UUID.randomUUID().toString());
+  }
+
+  /**
+   * Gets the trace ID of the span of an observation.
+   *
+   * @param observation the observation (may be {@code null})
+   * @return the trace ID, or {@code null} if the observation is not traced
+   */
+  public static String getTraceId(final Observation observation) {
+    return Optional.ofNullable(observation)
+        .map(o -> o.getContextView().<TracingObservationHandler.TracingContext> get(
+            TracingObservationHandler.TracingContext.class))
+        .map(TracingObservationHandler.TracingContext::getSpan)
+        .map(span -> span.context().traceId())
+        .filter(traceId -> !traceId.isBlank())
+        .orElse(null);
+  }
+
+  private static String toTraceId(final TraceContext context) {
+    final String spanId = context.spanId();
+    return spanId == null || spanId.isBlank() ? context.traceId() : "%s-%s".formatted(context.traceId(), spanId);
+  }
+
+  // Hidden constructor
+  private TraceIds() {
+  }
+
+}
@@ -15,10 +15,11 @@
  */
 package se.swedenconnect.bankid.idp.authn.error;
 
-import java.util.UUID;
-
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.tracing.Tracer;
 import jakarta.servlet.http.HttpServletRequest;
 import se.swedenconnect.bankid.idp.config.UiProperties;
 import se.swedenconnect.spring.saml.idp.error.UnrecoverableSaml2IdpException;
@@ -35,6 +36,9 @@ public class UserErrorFactory {
   /** The properties that determines what to display in the error UI view. */
   private final UiProperties.UserErrorProperties properties;
 
+  /** The tracer for creating trace IDs (may be {@code null}). */
+  private final Tracer tracer;
+
   /**
    * Error message enum.
    */
@@ -63,7 +67,19 @@ public class UserErrorFactory {
    * @param properties the properties that determines what to display in the error UI view
    */
   public UserErrorFactory(final UiProperties.UserErrorProperties properties) {
+    this(properties, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param properties the properties that determines what to display in the error UI view
+   * @param tracer the tracer for creating trace IDs (if {@code null}, random trace IDs are used)
+   */
+  @Autowired
+  public UserErrorFactory(final UiProperties.UserErrorProperties properties, @Nullable final Tracer tracer) {
     this.properties = properties;
+    this.tracer = tracer;
   }
 
   public String getRedirectView(final Exception e) {
@@ -88,7 +104,7 @@ public class UserErrorFactory {
     if (e instanceof final BankIdTraceableException traceableException) {
       return traceableException.getTraceId();
     }
-    return UUID.randomUUID().toString();
+    return TraceIds.create(this.tracer);
   }
 
   private String build(final String message, final String traceId) {
@@ -35,15 +35,22 @@ public abstract class AbstractBankIdEvent {
   @Getter
   private final RelyingPartyData data;
 
+  /** The snapshot of the operation state when the event was published. */
+  @Getter
+  private final BankIdEventSnapshot snapshot;
+
   /**
    * Constructor.
    *
    * @param request the servlet request
    * @param data the relying party data
+   * @param snapshot the snapshot of the operation state
    */
-  public AbstractBankIdEvent(final HttpServletRequest request, final RelyingPartyData data) {
+  public AbstractBankIdEvent(final HttpServletRequest request, final RelyingPartyData data,
+      final BankIdEventSnapshot snapshot) {
     this.request = request;
     this.data = data;
+    this.snapshot = snapshot;
   }
 
 }
@@ -42,10 +42,11 @@ public class BankIdErrorEvent extends AbstractBankIdEvent {
    * @param data the relying party data
    * @param errorCode the error code
    * @param errorDescription the error description
+   * @param snapshot the snapshot of the operation state
    */
   public BankIdErrorEvent(final HttpServletRequest request, final RelyingPartyData data,
-      final String errorCode, final String errorDescription) {
-    super(request, data);
+      final String errorCode, final String errorDescription, final BankIdEventSnapshot snapshot) {
+    super(request, data, snapshot);
     this.errorCode = errorCode;
     this.errorDescription = errorDescription;
   }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.events;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs event dispatches on a bounded pool of threads, where the dispatches for the same key (the session ID) are run
+ * one at a time and in the order that they were submitted. Dispatches for different keys are run in parallel.
+ * <p>
+ * Each key with pending dispatches has a lane. The lane is scheduled on the pool when its first dispatch is submitted,
+ * and it is run until it is empty, after which it is removed. The queue of the pool therefore holds at most one entry
+ * per session. If the queue is full, or the dispatcher has been closed, the lane is run by the submitting thread. This
+ * keeps the order, but means that the submitting thread is blocked during overload.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public class BankIdEventDispatcher {
+
+  /** The default number of threads. */
+  public static final int DEFAULT_THREADS = 8;
+
+  /** The default capacity of the queue of the pool. */
+  public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+  /** The pool that runs the lanes. */
+  private final ThreadPoolExecutor executor;
+
+  /** The lanes having pending dispatches. */
+  private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param threads the maximum number of threads
+   * @param queueCapacity the capacity of the queue of the pool (i.e., the maximum number of sessions waiting for a
+   *          thread)
+   */
+  public BankIdEventDispatcher(final int threads, final int queueCapacity) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be greater than 0");
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queueCapacity must be greater than 0");
+    }
+    final AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), r -> {
+          final Thread thread = new Thread(r, "bankid-events-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Submits a dispatch. The dispatch is run after all dispatches previously submitted for the same key.
+   *
+   * @param key the key (the session ID)
+   * @param dispatch the dispatch to run
+   * @return a future that is completed when the dispatch has been run (exceptionally if the dispatch failed)
+   */
+  public CompletableFuture<Void> dispatch(final String key, final Runnable dispatch) {
+    Objects.requireNonNull(key, "key must not be null");
+    Objects.requireNonNull(dispatch, "dispatch must not be null");
+
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    final Runnable task = () -> {
+      try {
+        dispatch.run();
+        result.complete(null);
+      }
+      catch (final Throwable e) {
+        result.completeExceptionally(e);
+      }
+    };
+    final Lane[] scheduled = new Lane[1];
+    this.lanes.compute(key, (k, lane) -> {
+      final Lane current = lane != null ? lane : new Lane(k);
+      current.tasks.add(task);
+      if (lane == null) {
+        scheduled[0] = current;
+      }
+      return current;
+    });
+    if (scheduled[0] != null) {
+      try {
+        this.executor.execute(scheduled[0]);
+      }
+      catch (final RejectedExecutionException e) {
+        log.debug("Event dispatcher is saturated or closed, dispatching events for {} on the calling thread", key);
+        scheduled[0].run();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Closes the dispatcher and waits for the submitted dispatches to be run. Dispatches submitted after this call are
+   * run by the submitting thread.
+   *
+   * @param timeout the maximum time to wait
+   */
+  public void close(final Duration timeout) {
+    this.executor.shutdown();
+    try {
+      if (!this.executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+        log.warn("Event dispatcher did not finish within {}, {} sessions have pending events", timeout,
+            this.lanes.size());
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Closes the dispatcher, waiting at most 10 seconds for the submitted dispatches to be run.
+   */
+  public void close() {
+    this.close(Duration.ofSeconds(10));
+  }
+
+  /**
+   * Gets the next dispatch of a lane. If the lane is empty, it is removed.
+   *
+   * @param lane the lane
+   * @return the next dispatch, or {@code null} if the lane is empty
+   */
+  private Runnable next(final Lane lane) {
+    final Runnable[] next = new Runnable[1];
+    this.lanes.computeIfPresent(lane.key, (k, l) -> {
+      next[0] = l.tasks.poll();
+      return next[0] != null ? l : null;
+    });
+    return next[0];
+  }
+
+  /**
+   * The pending dispatches for one key. The queue is only accessed while holding the map entry of the lane.
+   */
+  private class Lane implements Runnable {
+
+    /** The key. */
+    private final String key;
+
+    /** The pending dispatches. */
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    Lane(final String key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      Runnable task;
+      while ((task = BankIdEventDispatcher.this.next(this)) != null) {
+        task.run();
+      }
+    }
+  }
+
+}
@@ -15,14 +15,17 @@
  */
 package se.swedenconnect.bankid.idp.authn.events;
 
+import java.util.Objects;
 import java.util.Optional;
 
 import org.springframework.context.ApplicationEventPublisher;
-import org.springframework.stereotype.Service;
 
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.servlet.http.HttpServletRequest;
-import lombok.AllArgsConstructor;
+import reactor.core.publisher.Mono;
 import se.swedenconnect.bankid.idp.authn.service.PollRequest;
+import se.swedenconnect.bankid.idp.observation.BankIdObservations;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
 import se.swedenconnect.bankid.rpapi.service.UserVisibleData;
 import se.swedenconnect.bankid.rpapi.types.CollectResponse;
@@ -31,22 +34,64 @@ import se.swedenconnect.bankid.rpapi.types.OrderResponse;
 
 /**
  * The BankID event publisher.
+ * <p>
+ * An event is published either synchronously, using {@link EventBuilder#publish()}, or using
+ * {@link EventBuilder#publishAsync()}. The latter is intended for events published inside reactive chains. If a
+ * {@link BankIdEventDispatcher} has been given, the listeners are then invoked on the threads of the dispatcher, in the
+ * order that the events for the session were published, so that their blocking work does not run on the event loop.
+ * </p>
+ * <p>
+ * The invocation of the listeners for an event is observed ({@value BankIdObservations#EVENT}) as a child of the
+ * observation that was current when the event was published.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
-@Service
 public class BankIdEventPublisher {
 
   private final ApplicationEventPublisher publisher;
 
+  /** The dispatcher for asynchronous publishing (may be {@code null}). */
+  private final BankIdEventDispatcher dispatcher;
+
+  /** The registry for observations of the listener invocations. */
+  private final ObservationRegistry observationRegistry;
+
   /**
    * Constructor.
    *
    * @param publisher the event publisher
    */
   public BankIdEventPublisher(final ApplicationEventPublisher publisher) {
+    this(publisher, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param publisher the event publisher
+   * @param dispatcher the dispatcher for asynchronous publishing (if {@code null}, events published using
+   *          {@link EventBuilder#publishAsync()} are published on the subscribing thread)
+   */
+  public BankIdEventPublisher(final ApplicationEventPublisher publisher, final BankIdEventDispatcher dispatcher) {
+    this(publisher, dispatcher, ObservationRegistry.NOOP);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param publisher the event publisher
+   * @param dispatcher the dispatcher for asynchronous publishing (if {@code null}, events published using
+   *          {@link EventBuilder#publishAsync()} are published on the subscribing thread)
+   * @param observationRegistry the registry for observations of the listener invocations
+   */
+  public BankIdEventPublisher(final ApplicationEventPublisher publisher, final BankIdEventDispatcher dispatcher,
+      final ObservationRegistry observationRegistry) {
     this.publisher = publisher;
+    this.dispatcher = dispatcher;
+    this.observationRegistry =
+        Objects.requireNonNull(observationRegistry, "observationRegistry must not be null");
   }
 
   /**
@@ -57,8 +102,9 @@ public class BankIdEventPublisher {
    * @return an event to be published
    */
   public EventBuilder orderResponse(final PollRequest request, final OrderResponse response) {
-    return new EventBuilder(
-        new OrderResponseEvent(request.getRequest(), request.getRelyingPartyData(), request, response), this.publisher);
+    return this.builder(
+        new OrderResponseEvent(request.getRequest(), request.getRelyingPartyData(), request, response),
+        request.getRequest());
   }
 
   /**
@@ -69,7 +115,7 @@ public class BankIdEventPublisher {
    * @return an event to be published
    */
   public EventBuilder collectResponse(final PollRequest request, final CollectResponse collectResponse) {
-    return new EventBuilder(new CollectResponseEvent(request, collectResponse), this.publisher);
+    return this.builder(new CollectResponseEvent(request, collectResponse), request.getRequest());
   }
 
   /**
@@ -77,10 +123,23 @@ public class BankIdEventPublisher {
    *
    * @param request the HTTP servlet request
    * @param data the RP data
+   * @param snapshot the snapshot of the operation state
    * @return an event to be published
    */
-  public EventBuilder orderCancellation(final HttpServletRequest request, final RelyingPartyData data) {
-    return new EventBuilder(new OrderCancellationEvent(request, data), this.publisher);
+  public EventBuilder orderCancellation(final HttpServletRequest request, final RelyingPartyData data,
+      final BankIdEventSnapshot snapshot) {
+    return this.builder(new OrderCancellationEvent(request, data, snapshot), request);
+  }
+
+  /**
+   * Builds an event after order cancellation during polling.
+   *
+   * @param request the polling request
+   * @return an event to be published
+   */
+  public EventBuilder orderCancellation(final PollRequest request) {
+    return this.orderCancellation(request.getRequest(), request.getRelyingPartyData(),
+        BankIdEventSnapshot.of(request));
   }
 
   /**
@@ -88,10 +147,12 @@ public class BankIdEventPublisher {
    *
    * @param request the HTTP servlet request
    * @param data the RP data
+   * @param snapshot the snapshot of the operation state, including the completion data
    * @return an event to be published
    */
-  public EventBuilder orderCompletion(final HttpServletRequest request, final RelyingPartyData data) {
-    return new EventBuilder(new OrderCompletionEvent(request, data), this.publisher);
+  public EventBuilder orderCompletion(final HttpServletRequest request, final RelyingPartyData data,
+      final BankIdEventSnapshot snapshot) {
+    return this.builder(new OrderCompletionEvent(request, data, snapshot), request);
   }
 
   /**
@@ -102,7 +163,7 @@ public class BankIdEventPublisher {
    * @return an event to be published
    */
   public EventBuilder userVisibleData(final HttpServletRequest request, final UserVisibleData data) {
-    return new EventBuilder(new UserVisibleDataEvent(request, data), this.publisher);
+    return this.builder(new UserVisibleDataEvent(request, data), request);
   }
 
   /**
@@ -112,17 +173,16 @@ public class BankIdEventPublisher {
    * @return an event to be published
    */
   public EventBuilder abortAuthEvent(final HttpServletRequest request) {
-    return new EventBuilder(new AbortAuthEvent(request), this.publisher);
+    return this.builder(new AbortAuthEvent(request), request);
   }
 
   /**
    * Builds an event to inform about bankid error
    */
-  public EventBuilder bankIdErrorEvent(final HttpServletRequest request, final RelyingPartyData data,
-      final ErrorCode error, final String errorMessage) {
-    return new EventBuilder(new BankIdErrorEvent(request, data,
+  public EventBuilder bankIdErrorEvent(final PollRequest request, final ErrorCode error, final String errorMessage) {
+    return this.builder(new BankIdErrorEvent(request.getRequest(), request.getRelyingPartyData(),
         Optional.ofNullable(error).map(ErrorCode::getValue).orElseGet(() -> ErrorCode.UNKNOWN_ERROR.getValue()),
-        errorMessage), this.publisher);
+        errorMessage, BankIdEventSnapshot.of(request)), request.getRequest());
   }
 
   /**
@@ -130,7 +190,11 @@ public class BankIdEventPublisher {
    */
   public EventBuilder receivedRequest(final HttpServletRequest request, final RelyingPartyData relyingPartyData,
       final PollRequest pollRequest) {
-    return new EventBuilder(new RecievedRequestEvent(request, relyingPartyData, pollRequest), this.publisher);
+    return this.builder(new RecievedRequestEvent(request, relyingPartyData, pollRequest), request);
+  }
+
+  private EventBuilder builder(final Object event, final HttpServletRequest request) {
+    return new EventBuilder(event, request, this.publisher, this.dispatcher, this.observationRegistry);
   }
 
   /**
@@ -139,13 +203,53 @@ public class BankIdEventPublisher {
    * @author Martin Lindström
    * @author Felix Hellman
    */
-  @AllArgsConstructor
   public static class EventBuilder {
     private final Object event;
+    private final HttpServletRequest request;
     private final ApplicationEventPublisher publisher;
+    private final BankIdEventDispatcher dispatcher;
+    private final ObservationRegistry observationRegistry;
+
+    EventBuilder(final Object event, final HttpServletRequest request, final ApplicationEventPublisher publisher,
+        final BankIdEventDispatcher dispatcher, final ObservationRegistry observationRegistry) {
+      this.event = event;
+      this.request = request;
+      this.publisher = publisher;
+      this.dispatcher = dispatcher;
+      this.observationRegistry = observationRegistry;
+    }
 
+    /**
+     * Publishes the event on the calling thread.
+     */
     public void publish() {
-      this.publisher.publishEvent(this.event);
+      this.publish(this.observationRegistry.getCurrentObservation());
+    }
+
+    private void publish(final Observation parent) {
+      Observation.createNotStarted(BankIdObservations.EVENT, this.observationRegistry)
+          .parentObservation(parent)
+          .lowCardinalityKeyValue("event", this.event.getClass().getSimpleName())
+          .observe(() -> this.publisher.publishEvent(this.event));
+    }
+
+    /**
+     * Returns a {@link Mono} that publishes the event when subscribed to, and completes when all listeners have been
+     * invoked. If a dispatcher is installed, the listeners are invoked on a dispatcher thread after the events
+     * previously published for the same session.
+     *
+     * @return a {@link Mono}
+     */
+    public Mono<Void> publishAsync() {
+      final Observation current = this.observationRegistry.getCurrentObservation();
+      return Mono.deferContextual(context -> {
+        final Observation parent = BankIdObservations.getParent(context, current);
+        if (this.dispatcher == null) {
+          return Mono.fromRunnable(() -> this.publish(parent));
+        }
+        return Mono.fromFuture(
+            () -> this.dispatcher.dispatch(this.request.getSession().getId(), () -> this.publish(parent)));
+      });
     }
   }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.events;
+
+import java.util.Optional;
+
+import lombok.Getter;
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.idp.authn.service.PollRequest;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.spring.saml.idp.authentication.Saml2UserAuthenticationInputToken;
+
+/**
+ * A snapshot of the state of a BankID operation, taken by the publisher of an event. Listeners use the snapshot
+ * instead of reading the session, or the authentication token, again.
+ * <p>
+ * The snapshot holds the session data and completion data objects that the publisher had loaded. These are not shared
+ * with the session, and listeners must not modify them.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class BankIdEventSnapshot {
+
+  /** The entity ID of the SAML SP that sent the authentication request. */
+  @Getter
+  private final String spEntityId;
+
+  /** The ID of the SAML authentication request. */
+  @Getter
+  private final String authnRequestId;
+
+  /** The operation, if not given by the session data. */
+  private final BankIdOperation operation;
+
+  /** The BankID session data (may be {@code null}). */
+  @Getter
+  private final BankIdSessionData sessionData;
+
+  /** The completion data (may be {@code null}). */
+  @Getter
+  private final CollectResponse completionData;
+
+  /**
+   * Constructor.
+   *
+   * @param spEntityId the entity ID of the SAML SP
+   * @param authnRequestId the ID of the SAML authentication request
+   * @param operation the operation (used if the session data does not give the operation)
+   * @param sessionData the BankID session data (may be {@code null})
+   * @param completionData the completion data (may be {@code null})
+   */
+  public BankIdEventSnapshot(final String spEntityId, final String authnRequestId, final BankIdOperation operation,
+      final BankIdSessionData sessionData, final CollectResponse completionData) {
+    this.spEntityId = spEntityId;
+    this.authnRequestId = authnRequestId;
+    this.operation = operation;
+    this.sessionData = sessionData;
+    this.completionData = completionData;
+  }
+
+  /**
+   * Creates a snapshot from a {@link PollRequest}. If an order was initiated while processing the request, the session
+   * data of that order is used, otherwise the session data of the request.
+   *
+   * @param request the poll request
+   * @return a {@link BankIdEventSnapshot}
+   */
+  public static BankIdEventSnapshot of(final PollRequest request) {
+    final BankIdSessionData sessionData = Optional.ofNullable(request.getInitiatedOrder())
+        .orElseGet(() -> Optional.ofNullable(request.getState())
+            .map(BankIdSessionState::getBankIdSessionData)
+            .orElse(null));
+    return new BankIdEventSnapshot(request.getContext().getClientId(), request.getContext().getId(),
+        request.getContext().getOperation(), sessionData, null);
+  }
+
+  /**
+   * Creates a snapshot from the authentication input token and the session.
+   *
+   * @param token the authentication input token
+   * @param state the BankID session state (may be {@code null})
+   * @param completionData the completion data (may be {@code null})
+   * @return a {@link BankIdEventSnapshot}
+   */
+  public static BankIdEventSnapshot of(final Saml2UserAuthenticationInputToken token, final BankIdSessionState state,
+      final CollectResponse completionData) {
+    return new BankIdEventSnapshot(token.getAuthnRequestToken().getAuthnRequest().getIssuer().getValue(),
+        token.getAuthnRequestToken().getAuthnRequest().getID(), null,
+        Optional.ofNullable(state).map(BankIdSessionState::getBankIdSessionData).orElse(null), completionData);
+  }
+
+  /**
+   * Gets the operation.
+   *
+   * @return the operation (may be {@code null} if not known)
+   */
+  public BankIdOperation getOperation() {
+    return Optional.ofNullable(this.sessionData)
+        .map(BankIdSessionData::getOperation)
+        .orElse(this.operation);
+  }
+
+  /**
+   * Gets the order reference.
+   *
+   * @return the order reference, or {@code null} if no order has been initiated
+   */
+  public String getOrderReference() {
+    return Optional.ofNullable(this.sessionData)
+        .map(BankIdSessionData::getOrderReference)
+        .orElse(null);
+  }
+
+}
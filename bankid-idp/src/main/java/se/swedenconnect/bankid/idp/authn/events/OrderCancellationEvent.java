@@ -31,9 +31,11 @@ public class OrderCancellationEvent extends AbstractBankIdEvent {
    *
    * @param request the servlet request
    * @param data the RP data
+   * @param snapshot the snapshot of the operation state
    */
-  public OrderCancellationEvent(final HttpServletRequest request, final RelyingPartyData data) {
-    super(request, data);
+  public OrderCancellationEvent(final HttpServletRequest request, final RelyingPartyData data,
+      final BankIdEventSnapshot snapshot) {
+    super(request, data, snapshot);
   }
 
 }
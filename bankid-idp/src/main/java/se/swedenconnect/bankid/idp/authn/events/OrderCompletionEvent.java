@@ -16,24 +16,26 @@
 package se.swedenconnect.bankid.idp.authn.events;
 
 import jakarta.servlet.http.HttpServletRequest;
-import lombok.AllArgsConstructor;
-import lombok.Data;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
 
 /**
- * An event for a completed order.
+ * An event for a completed order. The snapshot holds the session data and the completion data.
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
-@AllArgsConstructor
-@Data
-public class OrderCompletionEvent {
+public class OrderCompletionEvent extends AbstractBankIdEvent {
 
-  /** The servlet request. */
-  private final HttpServletRequest request;
-
-  /** The relying party. */
-  private final RelyingPartyData data;
+  /**
+   * Constructor.
+   *
+   * @param request the servlet request
+   * @param data the relying party
+   * @param snapshot the snapshot of the operation state
+   */
+  public OrderCompletionEvent(final HttpServletRequest request, final RelyingPartyData data,
+      final BankIdEventSnapshot snapshot) {
+    super(request, data, snapshot);
+  }
 
 }
@@ -30,7 +30,7 @@ public class RecievedRequestEvent extends AbstractBankIdEvent {
   private final PollRequest pollRequest;
 
   public RecievedRequestEvent(final HttpServletRequest request, final RelyingPartyData data, final PollRequest pollRequest) {
-    super(request, data);
+    super(request, data, BankIdEventSnapshot.of(pollRequest));
     this.pollRequest = pollRequest;
   }
 
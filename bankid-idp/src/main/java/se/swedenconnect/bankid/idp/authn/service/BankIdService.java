@@ -22,6 +22,8 @@ import java.util.Optional;
 
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
+import io.micrometer.common.KeyValues;
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.servlet.http.HttpServletRequest;
 import reactor.core.publisher.Mono;
 import se.swedenconnect.bankid.idp.authn.api.ApiResponse;
@@ -30,8 +32,10 @@ import se.swedenconnect.bankid.idp.authn.api.ServiceInformation;
 import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
 import se.swedenconnect.bankid.idp.authn.error.BankIdSessionExpiredException;
 import se.swedenconnect.bankid.idp.authn.events.BankIdEventPublisher;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
+import se.swedenconnect.bankid.idp.observation.BankIdObservations;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
 import se.swedenconnect.bankid.rpapi.types.BankIDException;
 import se.swedenconnect.bankid.rpapi.types.CollectResponse;
@@ -40,6 +44,11 @@ import se.swedenconnect.bankid.rpapi.types.OrderResponse;
 
 /**
  * The BankID service. This component is responsible of communicating with the BankID server using the RP API.
+ * <p>
+ * The processing of a poll request is observed ({@value BankIdObservations#POLL}), and so are each call to the BankID
+ * server ({@value BankIdObservations#BANKID_CALL}), the resolving of the order status
+ * ({@value BankIdObservations#STATUS}) and the rendering of the response ({@value BankIdObservations#RENDER}).
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
@@ -58,6 +67,9 @@ public class BankIdService {
   /** Duration to allow retry session start */
   private final Duration bankIdStartRetryDuration;
 
+  /** The observation registry. */
+  private final ObservationRegistry observationRegistry;
+
   /**
    * Constructor.
    *
@@ -68,10 +80,27 @@ public class BankIdService {
    */
   public BankIdService(final BankIdEventPublisher eventPublisher, final CircuitBreaker circuitBreaker,
       final BankIdRequestFactory requestFactory, Duration bankIdStartRetryDuration) {
+    this(eventPublisher, circuitBreaker, requestFactory, bankIdStartRetryDuration, ObservationRegistry.NOOP);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param eventPublisher the BankID event publisher
+   * @param circuitBreaker the circuit breaker (for resilliance)
+   * @param requestFactory for generating requests to the BankID server
+   * @param bankIdStartRetryDuration duration to allow retry session start
+   * @param observationRegistry the observation registry
+   */
+  public BankIdService(final BankIdEventPublisher eventPublisher, final CircuitBreaker circuitBreaker,
+      final BankIdRequestFactory requestFactory, final Duration bankIdStartRetryDuration,
+      final ObservationRegistry observationRegistry) {
     this.eventPublisher = Objects.requireNonNull(eventPublisher, "eventPublisher must not be null");
     this.circuitBreaker = Objects.requireNonNull(circuitBreaker, "circuitBreaker must not be null");
     this.requestFactory = Optional.ofNullable(requestFactory).orElseGet(BankIdRequestFactory::new);
     this.bankIdStartRetryDuration = Objects.requireNonNull(bankIdStartRetryDuration);
+    this.observationRegistry =
+        Objects.requireNonNull(observationRegistry, "observationRegistry must not be null");
   }
 
   /**
@@ -81,32 +110,35 @@ public class BankIdService {
    * @return an {@link ApiResponse}
    */
   public Mono<ApiResponse> poll(final PollRequest request) {
-    return Optional.ofNullable(request.getState())
+    final Mono<ApiResponse> response = Optional.ofNullable(request.getState())
         .map(BankIdSessionState::getBankIdSessionData)
         .map(sessionData -> this.collect(request)
-            .map(c -> BankIdSessionData.of(sessionData, c, request.getQr()))
+            .flatMap(c -> this.toSessionData(request, sessionData, c))
             .flatMap(b -> this.reInitIfExpired(request, b))
-            .map(b -> ApiResponseFactory.create(b, request.getRelyingPartyData().getClient().getQRGenerator(),
-                request.getQr()))
+            .flatMap(b -> this.render(request, b))
             .onErrorResume(e -> this.handleError(e, request)))
         .orElseGet(() -> this.onNoSession(request));
+
+    return BankIdObservations.observe(response, BankIdObservations.POLL,
+        KeyValues.of("rp", rpId(request.getRelyingPartyData()),
+            "operation", request.getContext().getOperation().getValue(),
+            "session", request.getState() != null ? "existing" : "new"),
+        this.observationRegistry);
   }
 
   /**
    * Handles a cancelled operation.
    *
    * @param request the HTTP servlet request
-   * @param state the BankID session state
+   * @param snapshot the snapshot of the operation, holding the BankID session data
    * @param data the RP
    * @return nothing
    */
   public Mono<Void> cancel(
-      final HttpServletRequest request, final BankIdSessionState state, final RelyingPartyData data) {
+      final HttpServletRequest request, final BankIdEventSnapshot snapshot, final RelyingPartyData data) {
 
-    this.eventPublisher.orderCancellation(request, data).publish();
-    return data.getClient()
-        .cancel(state.getBankIdSessionData().getOrderReference())
-        .transformDeferred(CircuitBreakerOperator.of(this.circuitBreaker));
+    this.eventPublisher.orderCancellation(request, data, snapshot).publish();
+    return this.bankIdCall("cancel", data, true, data.getClient().cancel(snapshot.getOrderReference()));
   }
 
   /**
@@ -116,26 +148,34 @@ public class BankIdService {
    * @return an {@link OrderResponse}
    */
   private Mono<OrderResponse> init(final PollRequest request) {
+    final RelyingPartyData data = request.getRelyingPartyData();
     if (request.getContext().getOperation().equals(BankIdOperation.SIGN)) {
-      return request.getRelyingPartyData().getClient()
-          .sign(this.requestFactory.createSignRequest(request))
-          .transformDeferred(CircuitBreakerOperator.of(this.circuitBreaker))
-          .map(o -> {
-            this.eventPublisher.orderResponse(request, o).publish();
-            return o;
-          });
+      return this.bankIdCall("sign", data, true,
+          data.getClient().sign(this.requestFactory.createSignRequest(request)))
+          .flatMap(o -> this.onOrderResponse(request, o));
     }
     else {
-      return request.getRelyingPartyData().getClient()
-          .authenticate(this.requestFactory.createAuthenticateRequest(request))
-          .transformDeferred(CircuitBreakerOperator.of(this.circuitBreaker))
-          .map(o -> {
-            this.eventPublisher.orderResponse(request, o).publish();
-            return o;
-          });
+      return this.bankIdCall("auth", data, true,
+          data.getClient().authenticate(this.requestFactory.createAuthenticateRequest(request)))
+          .flatMap(o -> this.onOrderResponse(request, o));
     }
   }
 
+  /**
+   * Publishes the event for a received order response, and records the initiated order in the poll request.
+   *
+   * @param request the {@link PollRequest}
+   * @param response the order response
+   * @return the order response (when the event has been published)
+   */
+  private Mono<OrderResponse> onOrderResponse(final PollRequest request, final OrderResponse response) {
+    return this.eventPublisher.orderResponse(request, response).publishAsync()
+        .then(Mono.fromCallable(() -> {
+          request.setInitiatedOrder(BankIdSessionData.of(request, response));
+          return response;
+        }));
+  }
+
   /**
    * Is invoked if we don't have a BankID session. Will initiate an operation.
    *
@@ -147,12 +187,13 @@ public class BankIdService {
         .publish();
     return this.init(pollRequest)
         .map(orderResponse -> BankIdSessionData.of(pollRequest, orderResponse))
-        .flatMap(sessionData -> pollRequest.getRelyingPartyData().getClient().collect(sessionData.getOrderReference())
-            .map(collectResponse -> {
-              eventPublisher.collectResponse(pollRequest, collectResponse).publish();
-              return ApiResponseFactory.create(BankIdSessionData.of(sessionData, collectResponse, pollRequest.getQr()),
-                  pollRequest.getRelyingPartyData().getClient().getQRGenerator(), pollRequest.getQr());
-            }));
+        .flatMap(sessionData -> this.bankIdCall("collect", pollRequest.getRelyingPartyData(), false,
+            pollRequest.getRelyingPartyData().getClient().collect(sessionData.getOrderReference()))
+            .flatMap(collectResponse -> this.eventPublisher.collectResponse(pollRequest, collectResponse)
+                .publishAsync()
+                .thenReturn(collectResponse))
+            .flatMap(collectResponse -> this.toSessionData(pollRequest, sessionData, collectResponse))
+            .flatMap(b -> this.render(pollRequest, b)));
   }
 
   /**
@@ -164,31 +205,31 @@ public class BankIdService {
    */
   private Mono<ApiResponse> handleError(final Throwable e, final PollRequest request) {
     if (e instanceof final BankIdSessionExpiredException bankIdSessionExpiredException) {
-      this.eventPublisher.bankIdErrorEvent(request.getRequest(), request.getRelyingPartyData(),
-          ErrorCode.EXPIRED_TRANSACTION, bankIdSessionExpiredException.getMessage())
-          .publish();
-      return this.sessionExpired(bankIdSessionExpiredException.getRequest().getRequest(), request);
+      return this.eventPublisher.bankIdErrorEvent(request, ErrorCode.EXPIRED_TRANSACTION,
+          bankIdSessionExpiredException.getMessage())
+          .publishAsync()
+          .then(this.sessionExpired(bankIdSessionExpiredException.getRequest().getRequest(), request));
     }
     if (e.getCause() instanceof final BankIDException bankIdException) {
       if (ErrorCode.USER_CANCEL == bankIdException.getErrorCode()) {
-        this.eventPublisher.orderCancellation(request.getRequest(), request.getRelyingPartyData()).publish();
-        return Mono.just(ApiResponseFactory.createUserCancelResponse());
+        return this.eventPublisher.orderCancellation(request).publishAsync()
+            .then(Mono.fromCallable(ApiResponseFactory::createUserCancelResponse));
       }
       else if (ErrorCode.EXPIRED_TRANSACTION == bankIdException.getErrorCode()) {
-        this.eventPublisher.bankIdErrorEvent(request.getRequest(), request.getRelyingPartyData(),
-            ErrorCode.EXPIRED_TRANSACTION, "BankID response timeout").publish();
-        return Mono.just(ApiResponseFactory.createErrorResponseTimeExpired());
+        return this.eventPublisher.bankIdErrorEvent(request, ErrorCode.EXPIRED_TRANSACTION, "BankID response timeout")
+            .publishAsync()
+            .then(Mono.fromCallable(ApiResponseFactory::createErrorResponseTimeExpired));
       }
       else {
-        this.eventPublisher.bankIdErrorEvent(request.getRequest(), request.getRelyingPartyData(),
-            bankIdException.getErrorCode(), bankIdException.getDetails()).publish();
-        return Mono.error(e);
+        return this.eventPublisher.bankIdErrorEvent(request, bankIdException.getErrorCode(),
+            bankIdException.getDetails())
+            .publishAsync()
+            .then(Mono.error(e));
       }
     }
 
-    this.eventPublisher.bankIdErrorEvent(request.getRequest(), request.getRelyingPartyData(),
-        ErrorCode.UNKNOWN_ERROR, e.getMessage()).publish();
-    return Mono.error(e);
+    return this.eventPublisher.bankIdErrorEvent(request, ErrorCode.UNKNOWN_ERROR, e.getMessage()).publishAsync()
+        .then(Mono.error(e));
   }
 
   /**
@@ -206,11 +247,11 @@ public class BankIdService {
       }
       return this.init(request)
           .map(orderResponse -> BankIdSessionData.of(request, orderResponse))
-          .flatMap(updatedSessionData -> request.getRelyingPartyData().getClient().collect(updatedSessionData.getOrderReference())
-              .map(collectResponse -> {
-                eventPublisher.collectResponse(request, collectResponse).publish();
-                return BankIdSessionData.of(updatedSessionData, collectResponse, request.getQr());
-              }));
+          .flatMap(updatedSessionData -> this.bankIdCall("collect", request.getRelyingPartyData(), false,
+              request.getRelyingPartyData().getClient().collect(updatedSessionData.getOrderReference()))
+              .flatMap(collectResponse -> this.eventPublisher.collectResponse(request, collectResponse)
+                  .publishAsync()
+                  .then(this.toSessionData(request, updatedSessionData, collectResponse))));
     }
     else {
       return Mono.just(bankIdSessionData);
@@ -224,13 +265,65 @@ public class BankIdService {
    * @return a {@link CollectResponse}
    */
   private Mono<CollectResponse> collect(final PollRequest request) {
-    return request.getRelyingPartyData().getClient()
-        .collect(request.getState().getBankIdSessionData().getOrderReference())
-        .transformDeferred(CircuitBreakerOperator.of(this.circuitBreaker))
-        .map(c -> {
-          this.eventPublisher.collectResponse(request, c).publish();
-          return c;
-        });
+    return this.bankIdCall("collect", request.getRelyingPartyData(), true, request.getRelyingPartyData().getClient()
+        .collect(request.getState().getBankIdSessionData().getOrderReference()))
+        .flatMap(c -> this.eventPublisher.collectResponse(request, c).publishAsync().thenReturn(c));
+  }
+
+  /**
+   * Observes a call to the BankID server. If {@code useCircuitBreaker} is set, the call is made through the circuit
+   * breaker, and the observation includes the time spent in the circuit breaker (and a rejection by it).
+   *
+   * @param <T> the response type
+   * @param call the name of the call
+   * @param data the RP
+   * @param useCircuitBreaker whether the circuit breaker should be used
+   * @param mono the call
+   * @return the observed call
+   */
+  private <T> Mono<T> bankIdCall(
+      final String call, final RelyingPartyData data, final boolean useCircuitBreaker, final Mono<T> mono) {
+    return BankIdObservations.observe(
+        useCircuitBreaker ? mono.transformDeferred(CircuitBreakerOperator.of(this.circuitBreaker)) : mono,
+        BankIdObservations.BANKID_CALL,
+        KeyValues.of("call", call, "rp", rpId(data),
+            "circuit-breaker", useCircuitBreaker ? String.valueOf(this.circuitBreaker.getState()) : "none"),
+        this.observationRegistry);
+  }
+
+  private static String rpId(final RelyingPartyData data) {
+    return Optional.ofNullable(data.getId()).orElse("unknown");
+  }
+
+  /**
+   * Creates the session data given a collect response (and thereby resolves the status of the order).
+   *
+   * @param request the {@link PollRequest}
+   * @param previous the previous session data
+   * @param response the collect response
+   * @return a {@link BankIdSessionData}
+   */
+  private Mono<BankIdSessionData> toSessionData(
+      final PollRequest request, final BankIdSessionData previous, final CollectResponse response) {
+    return BankIdObservations.observe(
+        Mono.fromCallable(() -> BankIdSessionData.of(previous, response, request.getQr())),
+        BankIdObservations.STATUS, KeyValues.of("status", String.valueOf(response.getStatus())),
+        this.observationRegistry);
+  }
+
+  /**
+   * Renders the response to the poll request, including the QR code (if QR codes are to be displayed).
+   *
+   * @param request the {@link PollRequest}
+   * @param sessionData the session data
+   * @return an {@link ApiResponse}
+   */
+  private Mono<ApiResponse> render(final PollRequest request, final BankIdSessionData sessionData) {
+    return BankIdObservations.observe(
+        Mono.fromCallable(() -> ApiResponseFactory.create(sessionData,
+            request.getRelyingPartyData().getClient().getQRGenerator(), request.getQr())),
+        BankIdObservations.RENDER, KeyValues.of("qr", String.valueOf(request.getQr())),
+        this.observationRegistry);
   }
 
   /**
@@ -241,8 +334,9 @@ public class BankIdService {
    * @return an {@link ApiResponse}
    */
   private Mono<ApiResponse> sessionExpired(final HttpServletRequest request, final PollRequest pollRequest) {
-    this.eventPublisher.orderCancellation(request, pollRequest.getRelyingPartyData()).publish();
-    return Mono.just(ApiResponseFactory.createErrorResponseTimeExpired());
+    return this.eventPublisher.orderCancellation(request, pollRequest.getRelyingPartyData(),
+        BankIdEventSnapshot.of(pollRequest)).publishAsync()
+        .then(Mono.fromCallable(ApiResponseFactory::createErrorResponseTimeExpired));
   }
 
   /**
@@ -15,11 +15,14 @@
  */
 package se.swedenconnect.bankid.idp.authn.service;
 
+import java.time.Instant;
+
 import jakarta.servlet.http.HttpServletRequest;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import se.swedenconnect.bankid.idp.authn.context.BankIdContext;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
 import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
 import se.swedenconnect.bankid.rpapi.service.UserVisibleData;
@@ -52,4 +55,11 @@ public class PollRequest {
 
   /** The BankID context. */
   private final BankIdContext context;
+
+  /** The time when the poll request was received. */
+  @Builder.Default
+  private final Instant receivedTime = Instant.now();
+
+  /** The session data of an order that was initiated while processing this request (may be {@code null}). */
+  private BankIdSessionData initiatedOrder;
 }
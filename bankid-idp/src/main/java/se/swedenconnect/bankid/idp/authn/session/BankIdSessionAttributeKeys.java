@@ -36,7 +36,9 @@ public class BankIdSessionAttributeKeys {
   public static final String PREVIOUS_DEVICE_SESSION_ATTRIBUTE = "DEVICE-SELECTION";
 
   /**
-   * The session attribute where we store completion data for a bankid session
+   * The session attribute where we store completion data for a bankid session. This attribute is stored detached from
+   * the other session attributes (see {@link SessionDao#writeDetached(String, Object, java.time.Duration,
+   * jakarta.servlet.http.HttpServletRequest)})
    */
   public static final String BANKID_COMPLETION_DATA_ATTRIBUTE = "BANKID-COMPLETION-DATA";
 
@@ -45,16 +47,22 @@ public class BankIdSessionAttributeKeys {
    */
   public static final String BANKID_STATE_ATTRIBUTE = "BANKID-STATE";
 
+  /**
+   * The session attribute where we store the order reference of the current (head) entry of the bankid session state
+   */
+  public static final String BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE = "BANKID-STATE-ORDER-REF";
+
   /**
    * The session attribute where we store display message
    */
   public static final String BANKID_USER_VISIBLE_DATA_ATTRIBUTE = "BANKID-DISPLAY-MESSAGE";
 
   /**
-   * Attributes which should not be persisted upon cancelation or completion of an order
+   * Attributes which should not be persisted upon cancelation or completion of an order (along with the detached
+   * {@link #BANKID_COMPLETION_DATA_ATTRIBUTE})
    */
   public static final List<String> BANKID_VOLATILE_ATTRIBUTES =
-      List.of(BANKID_USER_VISIBLE_DATA_ATTRIBUTE, BANKID_STATE_ATTRIBUTE, BANKID_COMPLETION_DATA_ATTRIBUTE);
+      List.of(BANKID_USER_VISIBLE_DATA_ATTRIBUTE, BANKID_STATE_ATTRIBUTE, BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE);
   
   // Hidden constructor
   private BankIdSessionAttributeKeys() {    
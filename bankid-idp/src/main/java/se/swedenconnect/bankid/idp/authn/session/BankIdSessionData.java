@@ -16,7 +16,10 @@
 package se.swedenconnect.bankid.idp.authn.session;
 
 import java.io.Serializable;
+import java.time.Clock;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Objects;
 import java.util.Optional;
 
 import lombok.AllArgsConstructor;
@@ -106,6 +109,57 @@ public class BankIdSessionData implements Serializable {
    */
   private BankIdOperation operation;
 
+  /**
+   * The issue instant of the SAML authentication request.
+   */
+  private Instant authnRequestTime;
+
+  /**
+   * The time when the first poll request of the operation was received.
+   */
+  private Instant firstPollTime;
+
+  /**
+   * The time when a QR code was first delivered to the user.
+   */
+  private Instant firstQrTime;
+
+  /**
+   * The time when the user started to sign (the hint code "userSign" was received).
+   */
+  private Instant userSignTime;
+
+  /**
+   * The time when the order was completed.
+   */
+  private Instant completeTime;
+
+  /**
+   * The number of times that the order has been re-initiated since the first order of the operation.
+   */
+  private int reInitCount;
+
+  /**
+   * The number of poll requests that have been served by collecting the order status during the operation.
+   */
+  private int pollCount;
+
+  /**
+   * The number of poll requests that changed the state (progress status or message code) of the operation.
+   */
+  private int stateChangeCount;
+
+  /**
+   * The number of poll requests that rendered the same QR code frame as the previous poll request.
+   */
+  private int identicalQrCount;
+
+  /**
+   * The QR code frame (the number of seconds since the order was started) that was last rendered, or {@code null} if
+   * no QR code has been rendered for the order.
+   */
+  private Long lastQrFrame;
+
   /**
    * Creates a {@link BankIdSessionData} given a {@link PollRequest} and an {@link OrderResponse}.
    *
@@ -114,6 +168,9 @@ public class BankIdSessionData implements Serializable {
    * @return a {@link BankIdSessionData}
    */
   public static BankIdSessionData of(final PollRequest request, final OrderResponse response) {
+    final BankIdSessionData previous = Optional.ofNullable(request.getState())
+        .map(BankIdSessionState::getBankIdSessionData)
+        .orElse(null);
     return BankIdSessionData.builder()
         .autoStartToken(response.getAutoStartToken())
         .qrStartToken(response.getQrStartToken())
@@ -128,6 +185,13 @@ public class BankIdSessionData implements Serializable {
           : "bankid.msg.rfa21-sign")
         .showQr(request.getQr())
         .operation(request.getContext().getOperation())
+        .authnRequestTime(request.getContext().getAuthnRequestTime())
+        .firstPollTime(previous != null ? previous.getFirstPollTime() : request.getReceivedTime())
+        .firstQrTime(previous != null ? previous.getFirstQrTime() : null)
+        .reInitCount(previous != null ? previous.getReInitCount() + 1 : 0)
+        .pollCount(previous != null ? previous.getPollCount() : 0)
+        .stateChangeCount(previous != null ? previous.getStateChangeCount() : 0)
+        .identicalQrCount(previous != null ? previous.getIdenticalQrCount() : 0)
         .build();
   }
 
@@ -139,19 +203,58 @@ public class BankIdSessionData implements Serializable {
    * @return a {@link BankIdSessionData}
    */
   public static BankIdSessionData of(final BankIdSessionData previous, final CollectResponse response, boolean showQr) {
+    return of(previous, response, showQr, Clock.systemUTC());
+  }
+
+  /**
+   * Creates a {@link BankIdSessionData} given a previous {@link BankIdSessionData} and an {@link CollectResponse}
+   * using the supplied clock for the recorded times and the QR frame.
+   *
+   * @param previous the previous {@link BankIdSessionData}
+   * @param response the {@link CollectResponse}
+   * @param showQr whether the QR code is displayed
+   * @param clock the clock
+   * @return a {@link BankIdSessionData}
+   */
+  static BankIdSessionData of(final BankIdSessionData previous, final CollectResponse response, final boolean showQr,
+      final Clock clock) {
+    final Instant now = clock.instant();
+    final ProgressStatus status = Optional.ofNullable(response.getProgressStatus()).orElse(previous.getStatus());
+    final String messageCode = StatusCodeFactory.statusCode(response, showQr, previous.getOperation());
+    final boolean stateChanged =
+        status != previous.getStatus() || !Objects.equals(messageCode, previous.getMessageCode());
+
+    // The QR code is rendered for outstanding transactions, and its frame changes once per second ...
+    final Long qrFrame = showQr && status == ProgressStatus.OUTSTANDING_TRANSACTION && previous.getStartTime() != null
+        ? previous.getStartTime().until(now, ChronoUnit.SECONDS)
+        : null;
+    final boolean identicalQr = qrFrame != null && qrFrame.equals(previous.getLastQrFrame());
+
     return BankIdSessionData.builder()
         .autoStartToken(previous.getAutoStartToken())
         .qrStartToken(previous.getQrStartToken())
         .qrStartSecret(previous.getQrStartSecret())
         .startTime(previous.getStartTime())
         .orderReference(previous.getOrderReference())
-        .status(Optional.ofNullable(response.getProgressStatus()).orElse(previous.getStatus()))
+        .status(status)
         .startFailed(response.getErrorCode() == ErrorCode.START_FAILED)
         .sessionExpired(response.getErrorCode() == ErrorCode.EXPIRED_TRANSACTION)
-        .messageCode(StatusCodeFactory.statusCode(response, showQr, previous.getOperation()))
+        .messageCode(messageCode)
         .showQr(showQr)
         .errorCode(response.getErrorCode())
         .operation(previous.getOperation())
+        .authnRequestTime(previous.getAuthnRequestTime())
+        .firstPollTime(previous.getFirstPollTime())
+        .firstQrTime(Optional.ofNullable(previous.getFirstQrTime()).orElseGet(() -> showQr ? now : null))
+        .userSignTime(Optional.ofNullable(previous.getUserSignTime())
+            .orElseGet(() -> response.getProgressStatus() == ProgressStatus.USER_SIGN ? now : null))
+        .completeTime(Optional.ofNullable(previous.getCompleteTime())
+            .orElseGet(() -> response.getStatus() == CollectResponse.Status.COMPLETE ? now : null))
+        .reInitCount(previous.getReInitCount())
+        .pollCount(previous.getPollCount() + 1)
+        .stateChangeCount(previous.getStateChangeCount() + (stateChanged ? 1 : 0))
+        .identicalQrCount(previous.getIdenticalQrCount() + (identicalQr ? 1 : 0))
+        .lastQrFrame(qrFrame != null ? qrFrame : previous.getLastQrFrame())
         .build();
   }
 }
@@ -30,7 +30,6 @@ import se.swedenconnect.bankid.idp.authn.events.OrderCancellationEvent;
 import se.swedenconnect.bankid.idp.authn.events.OrderCompletionEvent;
 import se.swedenconnect.bankid.idp.authn.events.OrderResponseEvent;
 import se.swedenconnect.bankid.idp.authn.events.UserVisibleDataEvent;
-import se.swedenconnect.bankid.rpapi.types.CollectResponse;
 
 /**
  * A listener for BankID session events.
@@ -48,18 +47,13 @@ public class BankIdSessionDataListener {
   /** The session writer. */
   private final BankIdSessionWriter writer;
 
-  /** The session reader. */
-  private final BankIdSessionReader reader;
-
   /**
    * Constructor.
    *
    * @param writer session writer
-   * @param reader session reader
    */
-  public BankIdSessionDataListener(final BankIdSessionWriter writer, final BankIdSessionReader reader) {
+  public BankIdSessionDataListener(final BankIdSessionWriter writer) {
     this.writer = writer;
-    this.reader = reader;
   }
 
   /**
@@ -100,17 +94,14 @@ public class BankIdSessionDataListener {
 
     log.debug("Collect response event was published {} for session {}", event.getCollectResponse(), session.getId());
 
-    final BankIdSessionData previous =
-        this.reader.loadSessionData(event.getRequest().getRequest()).getBankIdSessionData();
-    this.writer.save(event.getRequest().getRequest(), BankIdSessionData.of(previous, event.getCollectResponse(), event.getRequest().getQr()));
-
-    if (event.getCollectResponse().getStatus().equals(CollectResponse.Status.COMPLETE)) {
-      this.writer.save(event.getRequest().getRequest(), event.getCollectResponse());
-    }
+    // The state and, for a completed order, the completion data is written in one atomic operation ...
+    this.writer.save(event.getRequest().getRequest(), event.getRequest().getState(), event.getCollectResponse(),
+        event.getRequest().getQr());
   }
 
   /**
-   * Writes a published {@link OrderCompletionEvent} to the user's session.
+   * Writes a published {@link OrderCompletionEvent} to the user's session. The device selection is taken from the
+   * session data snapshot of the event.
    *
    * @param event event to be processed
    * @see OrderCompletionEvent
@@ -118,8 +109,7 @@ public class BankIdSessionDataListener {
   @EventListener
   @Order(Integer.MAX_VALUE)
   public void handleCompletion(final OrderCompletionEvent event) {
-    final BankIdSessionState sessionState = this.reader.loadSessionData(event.getRequest());
-    final Boolean otherDevice = sessionState.getBankIdSessionData().getShowQr();
+    final Boolean otherDevice = event.getSnapshot().getSessionData().getShowQr();
     final PreviousDeviceSelection previousDeviceSelection = PREVIOUS_DEVICE_SELECTION_MAP.get(otherDevice);
     this.writer.save(event.getRequest(), previousDeviceSelection);
     this.writer.delete(event.getRequest());
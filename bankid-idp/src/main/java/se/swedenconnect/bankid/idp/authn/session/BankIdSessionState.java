@@ -15,10 +15,13 @@
  */
 package se.swedenconnect.bankid.idp.authn.session;
 
+import java.io.Serializable;
 import java.time.Instant;
 import java.util.ArrayDeque;
 import java.util.Deque;
 
+import se.swedenconnect.bankid.idp.ApplicationVersion;
+
 /**
  * Container for multiple BankID session states.
  * <p>
@@ -29,7 +32,9 @@ import java.util.Deque;
  * @author Martin Lindström
  * @author Felix Hellman
  */
-public class BankIdSessionState {
+public class BankIdSessionState implements Serializable {
+
+  private static final long serialVersionUID = ApplicationVersion.SERIAL_VERSION_UID;
 
   private final Deque<BankIdSessionData> bankIdSessionDataStack;
 
@@ -40,6 +45,15 @@ public class BankIdSessionState {
     this.bankIdSessionDataStack = new ArrayDeque<>();
   }
 
+  /**
+   * Copy constructor.
+   *
+   * @param state the state to copy
+   */
+  public BankIdSessionState(final BankIdSessionState state) {
+    this.bankIdSessionDataStack = new ArrayDeque<>(state.bankIdSessionDataStack);
+  }
+
   /**
    * Operation to insert a new session data.
    *
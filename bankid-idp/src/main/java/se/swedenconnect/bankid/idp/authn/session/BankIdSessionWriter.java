@@ -36,6 +36,19 @@ public interface BankIdSessionWriter {
    */
   void save(final HttpServletRequest request, final BankIdSessionData data);
 
+  /**
+   * Applies a {@link CollectResponse} to the session. The current entry of the BankID session state is replaced (or a
+   * new entry is added if the response concerns a new order) in one atomic operation against the session storage. If
+   * the response is complete, the completion data is saved before the state is updated.
+   *
+   * @param request to determine session key
+   * @param previous the session state that the response was collected for (may be {@code null})
+   * @param response the collect response
+   * @param showQr whether the QR code is displayed
+   */
+  void save(final HttpServletRequest request, final BankIdSessionState previous, final CollectResponse response,
+      final boolean showQr);
+
   /**
    * Saves the final {@link CollectResponse} that contains CompletionData.
    *
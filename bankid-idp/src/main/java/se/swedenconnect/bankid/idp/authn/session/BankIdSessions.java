@@ -15,13 +15,20 @@
  */
 package se.swedenconnect.bankid.idp.authn.session;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Function;
 
 import org.springframework.stereotype.Service;
 
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.bankid.idp.authn.context.BankIdContext;
 import se.swedenconnect.bankid.idp.authn.context.PreviousDeviceSelection;
+import se.swedenconnect.bankid.idp.concurrency.LockingFilter;
 import se.swedenconnect.bankid.rpapi.service.UserVisibleData;
 import se.swedenconnect.bankid.rpapi.types.CollectResponse;
 
@@ -32,8 +39,18 @@ import se.swedenconnect.bankid.rpapi.types.CollectResponse;
  * @author Felix Hellman
  */
 @Service
+@Slf4j
 public class BankIdSessions implements BankIdSessionWriter, BankIdSessionReader {
 
+  /** The maximum number of attempts made when updating the BankID session state. */
+  private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+  /**
+   * The maximum time that the completion data is stored. The completion data is read directly after the order has
+   * been completed, and is then deleted.
+   */
+  private static final Duration COMPLETION_DATA_TTL = Duration.ofMinutes(5);
+
   /** The underlying data access object for storing BankID sessions. */
   private final SessionDao sessionDao;
 
@@ -41,36 +58,92 @@ public class BankIdSessions implements BankIdSessionWriter, BankIdSessionReader
    * Constructor.
    *
    * @param sessionDao the underlying data access object for storing BankID sessions
+   * @param observationRegistry the registry for observations of the calls to the data access object
    */
-  public BankIdSessions(final SessionDao sessionDao) {
-    this.sessionDao = Objects.requireNonNull(sessionDao, "sessionDao must not be null");
+  public BankIdSessions(final SessionDao sessionDao, final ObservationRegistry observationRegistry) {
+    this.sessionDao = new ObservedSessionDao(
+        Objects.requireNonNull(sessionDao, "sessionDao must not be null"), observationRegistry);
   }
 
   /** {@inheritDoc} */
   @Override
   public void save(final HttpServletRequest request, final BankIdSessionData data) {
-    BankIdSessionState state =
-        this.sessionDao.read(BankIdSessionAttributeKeys.BANKID_STATE_ATTRIBUTE, BankIdSessionState.class, request);
-    if (state == null) {
-      state = new BankIdSessionState();
+    this.updateState(request, null, current -> data);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void save(final HttpServletRequest request, final BankIdSessionState previous,
+      final CollectResponse response, final boolean showQr) {
+    if (CollectResponse.Status.COMPLETE.equals(response.getStatus())) {
+      // The completion data is saved before the state so that it is available as soon as the state says COMPLETE ...
+      this.save(request, response);
     }
-    else if (state.getBankIdSessionData().getOrderReference().equals(data.getOrderReference())) {
-      state.pop();
+    this.updateState(request, previous, current -> BankIdSessionData.of(current, response, showQr));
+  }
+
+  /**
+   * Updates the BankID session state. The new session data replaces the current entry of the state if it concerns the
+   * same order, otherwise it is added on top of the state. The update is made using
+   * {@link SessionDao#compareAndWrite(String, Object, Map, Long, HttpServletRequest)} where the order reference of the
+   * current entry acts as guard. If the state has been modified by someone else, the state is re-read and the update
+   * is retried. A session that was written before the guard was introduced (or by a node that does not write it) holds
+   * a state but no guard. For such a session, the update is retried expecting the guard to be absent, and the guard is
+   * written along with the state. The fencing token of the poll lock (if any) is passed along so that a writer whose
+   * lock has expired cannot overwrite the state written by the current lock holder.
+   *
+   * @param request to determine session key
+   * @param known the session state known by the caller (if {@code null}, the state is read from the session)
+   * @param updater function that given the current session data (may be {@code null}) returns the new session data
+   */
+  private void updateState(final HttpServletRequest request, final BankIdSessionState known,
+      final Function<BankIdSessionData, BankIdSessionData> updater) {
+
+    final Long fencingToken = request.getAttribute(LockingFilter.FENCING_TOKEN_ATTRIBUTE) instanceof final Long token
+        ? token
+        : null;
+    BankIdSessionState state = known;
+    boolean guarded = true;
+    for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+      if (state == null || attempt > 0) {
+        state = this.loadSessionData(request);
+      }
+      final BankIdSessionData current = state != null ? state.getBankIdSessionData() : null;
+      final BankIdSessionData data = updater.apply(current);
+
+      final BankIdSessionState updated = state != null ? new BankIdSessionState(state) : new BankIdSessionState();
+      if (current != null && current.getOrderReference().equals(data.getOrderReference())) {
+        updated.pop();
+      }
+      updated.push(data);
+
+      final Map<String, Object> values = new HashMap<>();
+      values.put(BankIdSessionAttributeKeys.BANKID_STATE_ATTRIBUTE, updated);
+      values.put(BankIdSessionAttributeKeys.BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE, data.getOrderReference());
+      if (this.sessionDao.compareAndWrite(BankIdSessionAttributeKeys.BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE,
+          current != null && guarded ? current.getOrderReference() : null, values, fencingToken, request)) {
+        return;
+      }
+      guarded = current == null || this.sessionDao.read(
+          BankIdSessionAttributeKeys.BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE, String.class, request) != null;
+      log.debug("BankID session state for session {} was concurrently modified, retrying update",
+          request.getSession().getId());
     }
-    state.push(data);
-    this.sessionDao.write(BankIdSessionAttributeKeys.BANKID_STATE_ATTRIBUTE, state, request);
+    throw new IllegalStateException("Failed to update BankID session state - concurrently modified");
   }
 
   /** {@inheritDoc} */
   @Override
   public void save(final HttpServletRequest request, final CollectResponse data) {
-    this.sessionDao.write(BankIdSessionAttributeKeys.BANKID_COMPLETION_DATA_ATTRIBUTE, data, request);
+    this.sessionDao.writeDetached(BankIdSessionAttributeKeys.BANKID_COMPLETION_DATA_ATTRIBUTE, data,
+        COMPLETION_DATA_TTL, request);
   }
 
   /** {@inheritDoc} */
   @Override
   public void delete(final HttpServletRequest request) {
     BankIdSessionAttributeKeys.BANKID_VOLATILE_ATTRIBUTES.forEach(key -> this.sessionDao.remove(key, request));
+    this.sessionDao.removeDetached(BankIdSessionAttributeKeys.BANKID_COMPLETION_DATA_ATTRIBUTE, request);
   }
 
   /** {@inheritDoc} */
@@ -89,15 +162,16 @@ public class BankIdSessions implements BankIdSessionWriter, BankIdSessionReader
   /** {@inheritDoc} */
   @Override
   public CollectResponse loadCompletionData(final HttpServletRequest request) {
-    return this.sessionDao.read(BankIdSessionAttributeKeys.BANKID_COMPLETION_DATA_ATTRIBUTE, CollectResponse.class,
-        request);
+    return this.sessionDao.readDetached(BankIdSessionAttributeKeys.BANKID_COMPLETION_DATA_ATTRIBUTE,
+        CollectResponse.class, request);
   }
 
   /** {@inheritDoc} */
   @Override
   public PreviousDeviceSelection loadPreviousSelectedDevice(final HttpServletRequest request) {
     final String attribute =
-        this.sessionDao.read(BankIdSessionAttributeKeys.PREVIOUS_DEVICE_SESSION_ATTRIBUTE, String.class, request);
+        this.sessionDao.readStaleTolerant(BankIdSessionAttributeKeys.PREVIOUS_DEVICE_SESSION_ATTRIBUTE, String.class,
+            request);
     if (attribute == null) {
       return null;
     }
@@ -109,8 +183,8 @@ public class BankIdSessions implements BankIdSessionWriter, BankIdSessionReader
   /** {@inheritDoc} */
   @Override
   public UserVisibleData loadUserVisibleData(final HttpServletRequest request) {
-    return this.sessionDao.read(BankIdSessionAttributeKeys.BANKID_USER_VISIBLE_DATA_ATTRIBUTE, UserVisibleData.class,
-        request);
+    return this.sessionDao.readStaleTolerant(BankIdSessionAttributeKeys.BANKID_USER_VISIBLE_DATA_ATTRIBUTE,
+        UserVisibleData.class, request);
   }
 
   /** {@inheritDoc} */
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import se.swedenconnect.bankid.idp.observation.BankIdObservations;
+
+/**
+ * A {@link SessionDao} that makes an observation ({@value BankIdObservations#SESSION}) of each call to the underlying
+ * data access object.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class ObservedSessionDao implements SessionDao {
+
+  /** The underlying data access object. */
+  private final SessionDao dao;
+
+  /** The observation registry. */
+  private final ObservationRegistry registry;
+
+  /**
+   * Constructor.
+   *
+   * @param dao the underlying data access object
+   * @param registry the observation registry
+   */
+  public ObservedSessionDao(final SessionDao dao, final ObservationRegistry registry) {
+    this.dao = Objects.requireNonNull(dao, "dao must not be null");
+    this.registry = Objects.requireNonNull(registry, "registry must not be null");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(final String key, final Object value, final HttpServletRequest request) {
+    this.observation("write", key).observe(() -> this.dao.write(key, value, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T> T read(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    return this.observe("read", key, () -> this.dao.read(key, tClass, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T> T readStaleTolerant(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    return this.observe("read-stale-tolerant", key, () -> this.dao.readStaleTolerant(key, tClass, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove(final String key, final HttpServletRequest request) {
+    this.observation("remove", key).observe(() -> this.dao.remove(key, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeDetached(final String key, final Object value, final Duration ttl,
+      final HttpServletRequest request) {
+    this.observation("write-detached", key).observe(() -> this.dao.writeDetached(key, value, ttl, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T> T readDetached(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    return this.observe("read-detached", key, () -> this.dao.readDetached(key, tClass, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void removeDetached(final String key, final HttpServletRequest request) {
+    this.observation("remove-detached", key).observe(() -> this.dao.removeDetached(key, request));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean compareAndWrite(final String guardKey, final Object expected, final Map<String, Object> values,
+      final Long fencingToken, final HttpServletRequest request) {
+    final Observation observation = this.observation("compare-and-write", guardKey);
+    return observation.observe(() -> {
+      final boolean written = this.dao.compareAndWrite(guardKey, expected, values, fencingToken, request);
+      observation.lowCardinalityKeyValue("written", Boolean.toString(written));
+      return written;
+    });
+  }
+
+  private <T> T observe(final String operation, final String key, final Supplier<T> supplier) {
+    return this.observation(operation, key).observe(supplier);
+  }
+
+  private Observation observation(final String operation, final String key) {
+    return Observation.createNotStarted(BankIdObservations.SESSION, this.registry)
+        .lowCardinalityKeyValue("operation", operation)
+        .highCardinalityKeyValue("key", key);
+  }
+
+}
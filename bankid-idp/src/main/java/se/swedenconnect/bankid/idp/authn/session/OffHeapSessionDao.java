@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSessionEvent;
+import jakarta.servlet.http.HttpSessionListener;
+
+/**
+ * A {@link SessionDao} that keeps the session objects serialized in an {@link OffHeapSessionStore}. This DAO is
+ * intended for single node deployments where a large number of concurrent sessions should not put pressure on the
+ * garbage collector.
+ * <p>
+ * The DAO is also a {@link HttpSessionListener} so that the stored objects are removed as soon as the servlet session
+ * is destroyed.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class OffHeapSessionDao implements SessionDao, HttpSessionListener {
+
+  /** The store. */
+  private final OffHeapSessionStore store;
+
+  /**
+   * Constructor.
+   *
+   * @param store the off-heap store
+   */
+  public OffHeapSessionDao(final OffHeapSessionStore store) {
+    this.store = Objects.requireNonNull(store, "store must not be null");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(final String key, final Object value, final HttpServletRequest request) {
+    if (value == null) {
+      this.remove(key, request);
+      return;
+    }
+    this.store.put(request.getSession().getId(), key, serialize(value),
+        Duration.ofSeconds(request.getSession().getMaxInactiveInterval()));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T> T read(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    final byte[] value = this.store.get(request.getSession().getId(), key);
+    return value != null ? tClass.cast(deserialize(value)) : null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove(final String key, final HttpServletRequest request) {
+    this.store.remove(request.getSession().getId(), key);
+  }
+
+  /**
+   * Performs the compare and the writes while holding the lock for the session.
+   */
+  @Override
+  public boolean compareAndWrite(final String guardKey, final Object expected, final Map<String, Object> values,
+      final Long fencingToken, final HttpServletRequest request) {
+    synchronized (this.store.getLock(request.getSession().getId())) {
+      return SessionDao.super.compareAndWrite(guardKey, expected, values, fencingToken, request);
+    }
+  }
+
+  /**
+   * Removes all objects stored for the destroyed session.
+   */
+  @Override
+  public void sessionDestroyed(final HttpSessionEvent se) {
+    this.store.removeSession(se.getSession().getId());
+  }
+
+  /**
+   * Serializes an object.
+   *
+   * @param value the object
+   * @return the serialized object
+   */
+  private static byte[] serialize(final Object value) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException("Failed to serialize session object", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes an object.
+   *
+   * @param value the serialized object
+   * @return the object
+   */
+  private static Object deserialize(final byte[] value) {
+    try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value))) {
+      return in.readObject();
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException("Failed to deserialize session object", e);
+    }
+    catch (final ClassNotFoundException e) {
+      throw new IllegalStateException("Failed to deserialize session object", e);
+    }
+  }
+
+}
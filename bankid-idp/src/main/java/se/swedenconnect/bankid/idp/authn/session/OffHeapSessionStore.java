@@ -0,0 +1,587 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A store that keeps serialized session attributes outside of the Java heap.
+ * <p>
+ * The memory is divided into fixed size pages that are allocated from direct {@link ByteBuffer} slabs. Slabs are
+ * allocated lazily, and the total number of pages is bounded by the configured maximum memory. A stored value is
+ * written to one or more pages, so the store does not suffer from fragmentation. Only the page indexes and the expiry
+ * time of each session are kept on the heap.
+ * </p>
+ * <p>
+ * Sessions are expired by a timing wheel that is advanced by a background thread once every tick. If a snapshot file
+ * is given, the contents of the store is written to this file when the store is closed (and optionally periodically)
+ * and read back when the store is created.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public class OffHeapSessionStore implements AutoCloseable {
+
+  /** Magic number identifying a snapshot file. */
+  private static final int SNAPSHOT_MAGIC = 0x42494453;
+
+  /** The snapshot file format version. */
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /** The number of lock stripes. */
+  private static final int LOCK_STRIPES = 64;
+
+  /** The duration of one tick of the timing wheel. */
+  private static final Duration TICK = Duration.ofSeconds(1);
+
+  /** The number of buckets in the timing wheel. */
+  private static final int WHEEL_SIZE = 512;
+
+  /** The page size in bytes. */
+  private final int pageSize;
+
+  /** The number of pages in each slab. */
+  private final int pagesPerSlab;
+
+  /** The total number of pages. */
+  private final int totalPages;
+
+  /** The slabs (lazily allocated). */
+  private final ByteBuffer[] slabs;
+
+  /** Stack of freed page indexes. */
+  private final int[] freePages;
+
+  /** The number of elements in {@link #freePages}. */
+  private int freeCount;
+
+  /** The index of the first page that has never been allocated. */
+  private int nextUnusedPage;
+
+  /** The sessions, keyed by session ID. */
+  private final Map<String, SessionEntry> sessions = new ConcurrentHashMap<>();
+
+  /** The timing wheel buckets holding session ID:s. */
+  private final Set<String>[] wheel;
+
+  /** The last tick that has been processed by the timing wheel. */
+  private long lastTick;
+
+  /** Lock objects for the sessions. */
+  private final Object[] locks;
+
+  /** The clock. */
+  private final Clock clock;
+
+  /** The snapshot file (may be {@code null}). */
+  private final Path snapshotFile;
+
+  /** Executor for expiry and snapshotting. */
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Constructor.
+   *
+   * @param maxMemory the maximum number of bytes that may be allocated
+   * @param pageSize the page size in bytes
+   * @param slabSize the slab size in bytes (must be a multiple of {@code pageSize})
+   * @param snapshotFile the snapshot file (may be {@code null})
+   * @param snapshotInterval the interval for writing snapshots (if {@code null}, the snapshot is only written when the
+   *          store is closed)
+   */
+  public OffHeapSessionStore(final long maxMemory, final int pageSize, final int slabSize, final Path snapshotFile,
+      final Duration snapshotInterval) {
+    this(maxMemory, pageSize, slabSize, snapshotFile, snapshotInterval, Clock.systemUTC(), true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxMemory the maximum number of bytes that may be allocated
+   * @param pageSize the page size in bytes
+   * @param slabSize the slab size in bytes (must be a multiple of {@code pageSize})
+   * @param snapshotFile the snapshot file (may be {@code null})
+   * @param snapshotInterval the interval for writing snapshots (if {@code null}, the snapshot is only written when the
+   *          store is closed)
+   * @param clock the clock
+   * @param startExpiry whether a background thread for expiry should be started
+   */
+  @SuppressWarnings("unchecked")
+  OffHeapSessionStore(final long maxMemory, final int pageSize, final int slabSize, final Path snapshotFile,
+      final Duration snapshotInterval, final Clock clock, final boolean startExpiry) {
+    if (pageSize < 16) {
+      throw new IllegalArgumentException("pageSize must be at least 16 bytes");
+    }
+    if (slabSize < pageSize || slabSize % pageSize != 0) {
+      throw new IllegalArgumentException("slabSize must be a multiple of pageSize");
+    }
+    if (maxMemory < slabSize || maxMemory / pageSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("maxMemory must be at least slabSize and at most %d pages"
+          .formatted(Integer.MAX_VALUE));
+    }
+    this.pageSize = pageSize;
+    this.pagesPerSlab = slabSize / pageSize;
+    this.totalPages = (int) (maxMemory / slabSize) * this.pagesPerSlab;
+    this.slabs = new ByteBuffer[this.totalPages / this.pagesPerSlab];
+    this.freePages = new int[this.totalPages];
+    this.wheel = new Set[WHEEL_SIZE];
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      this.wheel[i] = ConcurrentHashMap.newKeySet();
+    }
+    this.locks = new Object[LOCK_STRIPES];
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      this.locks[i] = new Object();
+    }
+    this.clock = Objects.requireNonNull(clock, "clock must not be null");
+    this.lastTick = this.currentTick();
+    this.snapshotFile = snapshotFile;
+
+    if (this.snapshotFile != null && Files.exists(this.snapshotFile)) {
+      this.restore();
+    }
+
+    if (startExpiry) {
+      this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "offheap-session-expiry");
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.executor.scheduleWithFixedDelay(this::expire, TICK.toMillis(), TICK.toMillis(), TimeUnit.MILLISECONDS);
+      if (this.snapshotFile != null && snapshotInterval != null && !snapshotInterval.isZero()) {
+        this.executor.scheduleWithFixedDelay(this::snapshot,
+            snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+      }
+    }
+    else {
+      this.executor = null;
+    }
+  }
+
+  /**
+   * Gets the lock object for a session. Holding this lock makes a sequence of operations on the session atomic.
+   *
+   * @param sessionId the session ID
+   * @return the lock object
+   */
+  public Object getLock(final String sessionId) {
+    return this.locks[Math.floorMod(sessionId.hashCode(), LOCK_STRIPES)];
+  }
+
+  /**
+   * Gets a stored value.
+   *
+   * @param sessionId the session ID
+   * @param key the attribute key
+   * @return the value, or {@code null} if no value is stored
+   */
+  public byte[] get(final String sessionId, final String key) {
+    synchronized (this.getLock(sessionId)) {
+      final SessionEntry entry = this.sessions.get(sessionId);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expiresAt <= this.clock.millis()) {
+        this.evict(sessionId);
+        return null;
+      }
+      final Blob blob = entry.attributes.get(key);
+      return blob != null ? this.readBlob(blob) : null;
+    }
+  }
+
+  /**
+   * Stores a value and refreshes the expiry time of the session.
+   *
+   * @param sessionId the session ID
+   * @param key the attribute key
+   * @param value the value
+   * @param ttl the time to live for the session
+   * @throws IllegalStateException if the store is full
+   */
+  public void put(final String sessionId, final String key, final byte[] value, final Duration ttl)
+      throws IllegalStateException {
+    synchronized (this.getLock(sessionId)) {
+      final Blob blob = this.writeBlob(value);
+      final SessionEntry entry = this.sessions.computeIfAbsent(sessionId, id -> new SessionEntry());
+      final Blob previous = entry.attributes.put(key, blob);
+      if (previous != null) {
+        this.release(previous);
+      }
+      this.touch(sessionId, entry, this.clock.millis() + ttl.toMillis());
+    }
+  }
+
+  /**
+   * Removes a stored value.
+   *
+   * @param sessionId the session ID
+   * @param key the attribute key
+   */
+  public void remove(final String sessionId, final String key) {
+    synchronized (this.getLock(sessionId)) {
+      final SessionEntry entry = this.sessions.get(sessionId);
+      if (entry != null) {
+        final Blob blob = entry.attributes.remove(key);
+        if (blob != null) {
+          this.release(blob);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes all values stored for a session.
+   *
+   * @param sessionId the session ID
+   */
+  public void removeSession(final String sessionId) {
+    synchronized (this.getLock(sessionId)) {
+      this.evict(sessionId);
+    }
+  }
+
+  /**
+   * Gets the number of bytes currently occupied by stored values (in whole pages).
+   *
+   * @return the number of used bytes
+   */
+  public synchronized long getUsedBytes() {
+    return (long) (this.nextUnusedPage - this.freeCount) * this.pageSize;
+  }
+
+  /**
+   * Gets the maximum number of bytes that may be used for stored values.
+   *
+   * @return the capacity in bytes
+   */
+  public long getCapacity() {
+    return (long) this.totalPages * this.pageSize;
+  }
+
+  /**
+   * Gets the number of sessions in the store.
+   *
+   * @return the number of sessions
+   */
+  public int getSessionCount() {
+    return this.sessions.size();
+  }
+
+  /**
+   * Advances the timing wheel up to the current time and evicts all expired sessions.
+   */
+  public void expire() {
+    final long now = this.clock.millis();
+    final long nowTick = this.currentTick();
+    final long fromTick;
+    synchronized (this.wheel) {
+      if (nowTick <= this.lastTick) {
+        return;
+      }
+      fromTick = Math.max(this.lastTick + 1, nowTick - WHEEL_SIZE + 1);
+      this.lastTick = nowTick;
+    }
+    for (long tick = fromTick; tick <= nowTick; tick++) {
+      final int bucket = (int) Math.floorMod(tick, (long) WHEEL_SIZE);
+      for (final String sessionId : this.wheel[bucket]) {
+        synchronized (this.getLock(sessionId)) {
+          final SessionEntry entry = this.sessions.get(sessionId);
+          if (entry == null || entry.bucket != bucket) {
+            // Removed, or re-scheduled into another bucket
+            this.wheel[bucket].remove(sessionId);
+          }
+          else if (entry.expiresAt <= now) {
+            this.evict(sessionId);
+          }
+          // Otherwise the session expires in a later round of the wheel
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes all sessions to the snapshot file. The file is first written to a temporary file that is then moved into
+   * place.
+   */
+  public void snapshot() {
+    if (this.snapshotFile == null) {
+      return;
+    }
+    final Path tmp = this.snapshotFile.resolveSibling(this.snapshotFile.getFileName() + ".tmp");
+    try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      for (final String sessionId : this.sessions.keySet()) {
+        synchronized (this.getLock(sessionId)) {
+          final SessionEntry entry = this.sessions.get(sessionId);
+          if (entry == null || entry.attributes.isEmpty()) {
+            continue;
+          }
+          out.writeBoolean(true);
+          out.writeUTF(sessionId);
+          out.writeLong(entry.expiresAt);
+          out.writeInt(entry.attributes.size());
+          for (final Map.Entry<String, Blob> attribute : entry.attributes.entrySet()) {
+            out.writeUTF(attribute.getKey());
+            final byte[] value = this.readBlob(attribute.getValue());
+            out.writeInt(value.length);
+            out.write(value);
+          }
+        }
+      }
+      out.writeBoolean(false);
+    }
+    catch (final IOException e) {
+      log.error("Failed to write session snapshot to {}", tmp, e);
+      return;
+    }
+    try {
+      Files.move(tmp, this.snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      log.debug("Wrote {} sessions to snapshot {}", this.sessions.size(), this.snapshotFile);
+    }
+    catch (final IOException e) {
+      log.error("Failed to move session snapshot to {}", this.snapshotFile, e);
+    }
+  }
+
+  /**
+   * Stops the background thread and writes a final snapshot (if a snapshot file is configured).
+   */
+  @Override
+  public void close() {
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+    this.snapshot();
+  }
+
+  /**
+   * Reads the sessions from the snapshot file. Expired sessions are skipped. A snapshot that can not be read is
+   * ignored.
+   */
+  private void restore() {
+    final long now = this.clock.millis();
+    int restored = 0;
+    try (final DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(this.snapshotFile)))) {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        log.warn("Ignoring session snapshot {} - unknown format", this.snapshotFile);
+        return;
+      }
+      while (in.readBoolean()) {
+        final String sessionId = in.readUTF();
+        final long expiresAt = in.readLong();
+        final int count = in.readInt();
+        final Map<String, byte[]> attributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+          final String key = in.readUTF();
+          final byte[] value = new byte[in.readInt()];
+          in.readFully(value);
+          attributes.put(key, value);
+        }
+        if (expiresAt > now) {
+          final SessionEntry entry = new SessionEntry();
+          for (final Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+            entry.attributes.put(attribute.getKey(), this.writeBlob(attribute.getValue()));
+          }
+          this.sessions.put(sessionId, entry);
+          this.touch(sessionId, entry, expiresAt);
+          restored++;
+        }
+      }
+      log.info("Restored {} sessions from snapshot {}", restored, this.snapshotFile);
+    }
+    catch (final IOException | IllegalStateException e) {
+      log.warn("Failed to restore sessions from snapshot {} - {}", this.snapshotFile, e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Sets the expiry time of a session and schedules it in the timing wheel. Must be called while holding the session
+   * lock.
+   *
+   * @param sessionId the session ID
+   * @param entry the session entry
+   * @param expiresAt the expiry time in millis since epoch
+   */
+  private void touch(final String sessionId, final SessionEntry entry, final long expiresAt) {
+    entry.expiresAt = expiresAt;
+    final int bucket = (int) Math.floorMod(Math.floorDiv(expiresAt, TICK.toMillis()), (long) WHEEL_SIZE);
+    if (bucket != entry.bucket) {
+      entry.bucket = bucket;
+      this.wheel[bucket].add(sessionId);
+    }
+  }
+
+  /**
+   * Removes a session and releases its pages. Must be called while holding the session lock.
+   *
+   * @param sessionId the session ID
+   */
+  private void evict(final String sessionId) {
+    final SessionEntry entry = this.sessions.remove(sessionId);
+    if (entry != null) {
+      entry.attributes.values().forEach(this::release);
+      if (entry.bucket >= 0) {
+        this.wheel[entry.bucket].remove(sessionId);
+      }
+    }
+  }
+
+  /**
+   * Gets the current tick of the timing wheel.
+   *
+   * @return the current tick
+   */
+  private long currentTick() {
+    return Math.floorDiv(this.clock.millis(), TICK.toMillis());
+  }
+
+  /**
+   * Allocates pages and writes the supplied value to them.
+   *
+   * @param value the value
+   * @return the blob
+   * @throws IllegalStateException if the store is full
+   */
+  private Blob writeBlob(final byte[] value) throws IllegalStateException {
+    final int pageCount = Math.max(1, (value.length + this.pageSize - 1) / this.pageSize);
+    final int[] pages = this.allocate(pageCount);
+    for (int i = 0; i < pageCount; i++) {
+      final int offset = i * this.pageSize;
+      this.slab(pages[i]).put(this.offset(pages[i]), value, offset, Math.min(this.pageSize, value.length - offset));
+    }
+    return new Blob(pages, value.length);
+  }
+
+  /**
+   * Reads the value of a blob.
+   *
+   * @param blob the blob
+   * @return the value
+   */
+  private byte[] readBlob(final Blob blob) {
+    final byte[] value = new byte[blob.length()];
+    for (int i = 0; i < blob.pages().length; i++) {
+      final int offset = i * this.pageSize;
+      this.slab(blob.pages()[i])
+          .get(this.offset(blob.pages()[i]), value, offset, Math.min(this.pageSize, value.length - offset));
+    }
+    return value;
+  }
+
+  /**
+   * Allocates the given number of pages.
+   *
+   * @param count the number of pages
+   * @return the page indexes
+   * @throws IllegalStateException if there are not enough free pages
+   */
+  private synchronized int[] allocate(final int count) throws IllegalStateException {
+    if (this.freeCount + (this.totalPages - this.nextUnusedPage) < count) {
+      throw new IllegalStateException("Off-heap session store is full (%d bytes)".formatted(this.getCapacity()));
+    }
+    final int[] pages = new int[count];
+    for (int i = 0; i < count; i++) {
+      if (this.freeCount > 0) {
+        pages[i] = this.freePages[--this.freeCount];
+      }
+      else {
+        final int slab = this.nextUnusedPage / this.pagesPerSlab;
+        if (this.slabs[slab] == null) {
+          this.slabs[slab] = ByteBuffer.allocateDirect(this.pagesPerSlab * this.pageSize);
+        }
+        pages[i] = this.nextUnusedPage++;
+      }
+    }
+    return pages;
+  }
+
+  /**
+   * Releases the pages of a blob.
+   *
+   * @param blob the blob
+   */
+  private synchronized void release(final Blob blob) {
+    for (final int page : blob.pages()) {
+      this.freePages[this.freeCount++] = page;
+    }
+  }
+
+  /**
+   * Gets the slab holding a page.
+   *
+   * @param page the page index
+   * @return the slab
+   */
+  private ByteBuffer slab(final int page) {
+    return this.slabs[page / this.pagesPerSlab];
+  }
+
+  /**
+   * Gets the offset of a page within its slab.
+   *
+   * @param page the page index
+   * @return the offset
+   */
+  private int offset(final int page) {
+    return (page % this.pagesPerSlab) * this.pageSize;
+  }
+
+  /**
+   * A stored value, i.e., the pages holding the value and its length.
+   */
+  private record Blob(int[] pages, int length) {
+  }
+
+  /**
+   * The heap part of a session, i.e., the blobs for each attribute and the expiry time.
+   */
+  private static class SessionEntry {
+
+    /** The attributes. */
+    private final Map<String, Blob> attributes = new HashMap<>();
+
+    /** The expiry time in millis since epoch. */
+    private long expiresAt;
+
+    /** The timing wheel bucket that the session is scheduled in. */
+    private int bucket = -1;
+  }
+
+}
@@ -15,58 +15,364 @@
  */
 package se.swedenconnect.bankid.idp.authn.session;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.redisson.api.RBucket;
 import org.redisson.api.RMap;
+import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.handler.State;
+import org.redisson.client.protocol.Encoder;
+import org.springframework.beans.factory.DisposableBean;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import jakarta.servlet.http.HttpServletRequest;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
 
 /**
  * Redis implementation of the {@link SessionDao} interface.
+ * <p>
+ * The DAO may be configured with a separate client for lookups that tolerate stale data (see
+ * {@link #readStaleTolerant(String, Class, HttpServletRequest)}). This client is typically configured to read from
+ * replicas.
+ * </p>
+ * <p>
+ * Objects written using {@link #writeDetached(String, Object, Duration, HttpServletRequest)} are stored compressed
+ * under their own key (in the same slot as the session hash) with the given TTL.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
-public class RedisSessionDao implements SessionDao {
+public class RedisSessionDao implements SessionDao, DisposableBean {
+
+  /**
+   * The hash field holding the highest fencing token that has been used to write to the session hash. The field name
+   * and value are stored as plain strings, and the field is only read and written by
+   * {@link #COMPARE_AND_WRITE_SCRIPT}.
+   */
+  private static final String FENCING_TOKEN_FIELD = "fencing-token";
+
+  /**
+   * Script that writes a number of hash fields given that the guard field holds the expected value, and refreshes the
+   * TTL of the hash. KEYS[1] is the hash, ARGV[1] is the guard field, ARGV[2] the expected value of the guard field
+   * (empty if the field should be absent), ARGV[3] the TTL in milliseconds, ARGV[4] the fencing token field and
+   * ARGV[5] the fencing token of the writer (empty if none) followed by the field and value pairs to write. Returns 1
+   * if the fields were written, 0 if the compare failed and -1 if the fencing token is lower than a token that has
+   * already been used.
+   */
+  private static final String COMPARE_AND_WRITE_SCRIPT = """
+      if ARGV[5] ~= '' then
+        local fence = redis.call('hget', KEYS[1], ARGV[4]);
+        if fence and tonumber(fence) > tonumber(ARGV[5]) then
+          return -1;
+        end;
+      end;
+      local current = redis.call('hget', KEYS[1], ARGV[1]);
+      if ARGV[2] == '' then
+        if current ~= false then
+          return 0;
+        end;
+      elseif current ~= ARGV[2] then
+        return 0;
+      end;
+      for i = 6, #ARGV, 2 do
+        redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]);
+      end;
+      if ARGV[5] ~= '' then
+        redis.call('hset', KEYS[1], ARGV[4], ARGV[5]);
+      end;
+      redis.call('pexpire', KEYS[1], ARGV[3]);
+      return 1;
+      """;
 
   private final RedissonClient client;
 
+  /** The client used for lookups that tolerate stale data. */
+  private final RedissonClient staleTolerantClient;
+
+  /** The Redis key layout. */
+  private final RedisKeyLayout keyLayout;
+
   /**
    * Constructor.
    *
    * @param client the Redis client
    */
   public RedisSessionDao(final RedissonClient client) {
+    this(client, null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param staleTolerantClient the client to use for lookups that tolerate stale data (if {@code null}, {@code client}
+   *          is used)
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   */
+  public RedisSessionDao(final RedissonClient client, final RedissonClient staleTolerantClient,
+      final RedisKeyLayout keyLayout) {
     this.client = Objects.requireNonNull(client, "client must not be null");
+    this.staleTolerantClient = staleTolerantClient != null ? staleTolerantClient : client;
+    this.keyLayout = keyLayout != null ? keyLayout : new RedisKeyLayout();
   }
 
   /** {@inheritDoc} */
   @Override
   public void write(final String key, final Object value, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
     final RMap<Object, Object> map = this.getRedisHashForUser(request);
     map.fastPut(key, value);
     map.expire(Instant.now().plusSeconds(request.getSession().getMaxInactiveInterval()));
+    commit(event, "write", key, 0, true);
   }
 
   /** {@inheritDoc} */
   @Override
   public <T> T read(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
     final RMap<Object, Object> map = this.getRedisHashForUser(request);
-    return tClass.cast(map.get(key));
+    final T value = tClass.cast(map.get(key));
+    commit(event, "read", key, 0, value != null);
+    return value;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T> T readStaleTolerant(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
+    final RMap<Object, Object> map = this.staleTolerantClient.getMap(this.getRedisHashName(request));
+    final T value = tClass.cast(map.get(key));
+    commit(event, "read-stale-tolerant", key, 0, value != null);
+    return value;
   }
 
   /** {@inheritDoc} */
   @Override
   public void remove(final String key, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
     final RMap<Object, Object> map = this.getRedisHashForUser(request);
     map.remove(key);
+    commit(event, "remove", key, 0, true);
+  }
+
+  /**
+   * Performs the compare and the writes, along with a refresh of the session TTL, in one atomic operation (one round
+   * trip) using a Lua script. If a fencing token is given, it is stored in the session hash, and a write with a lower
+   * token than the stored one is rejected.
+   */
+  @Override
+  public boolean compareAndWrite(final String guardKey, final Object expected, final Map<String, Object> values,
+      final Long fencingToken, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
+    final RMap<Object, Object> map = this.getRedisHashForUser(request);
+
+    // The script is invoked using a byte array codec, so we encode fields and values using the codec of the hash
+    // in order for the result to be readable using the map ...
+    //
+    final Codec codec = map.getCodec();
+    final List<Object> args = new ArrayList<>(5 + 2 * values.size());
+    args.add(encode(codec.getMapKeyEncoder(), guardKey));
+    args.add(expected != null ? encode(codec.getMapValueEncoder(), expected) : new byte[0]);
+    args.add(Long.toString(Duration.ofSeconds(request.getSession().getMaxInactiveInterval()).toMillis())
+        .getBytes(StandardCharsets.US_ASCII));
+    args.add(FENCING_TOKEN_FIELD.getBytes(StandardCharsets.US_ASCII));
+    args.add(fencingToken != null ? fencingToken.toString().getBytes(StandardCharsets.US_ASCII) : new byte[0]);
+    values.forEach((k, v) -> {
+      args.add(encode(codec.getMapKeyEncoder(), k));
+      args.add(encode(codec.getMapValueEncoder(), v));
+    });
+
+    final Long result = this.client.getScript(ByteArrayCodec.INSTANCE).eval(RScript.Mode.READ_WRITE,
+        COMPARE_AND_WRITE_SCRIPT, RScript.ReturnType.INTEGER, List.of(map.getName()), args.toArray());
+    final boolean written = result != null && result == 1;
+    commit(event, "compare-and-write", guardKey,
+        args.stream().mapToLong(a -> ((byte[]) a).length).sum(), written);
+    if (result != null && result < 0) {
+      throw new IllegalStateException("Fencing token %d for session %s is stale - lock has expired"
+          .formatted(fencingToken, request.getSession().getId()));
+    }
+    return written;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeDetached(final String key, final Object value, final Duration ttl,
+      final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
+    final byte[] encoded = encode(this.client.getConfig().getCodec().getValueEncoder(), value);
+    final byte[] compressed = compress(encoded);
+    this.getDetachedBucket(key, request).set(compressed, ttl.toMillis(), TimeUnit.MILLISECONDS);
+    commit(event, "write-detached", key, compressed.length, true);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T> T readDetached(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
+    final byte[] compressed = this.getDetachedBucket(key, request).get();
+    commit(event, "read-detached", key, compressed != null ? compressed.length : 0, compressed != null);
+    if (compressed == null) {
+      return null;
+    }
+    final ByteBuf buffer = Unpooled.wrappedBuffer(decompress(compressed));
+    try {
+      return tClass.cast(this.client.getConfig().getCodec().getValueDecoder().decode(buffer, new State()));
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    finally {
+      buffer.release();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void removeDetached(final String key, final HttpServletRequest request) {
+    final SessionIoEvent event = begin();
+    this.getDetachedBucket(key, request).delete();
+    commit(event, "remove-detached", key, 0, true);
+  }
+
+  /**
+   * Gets the bucket holding a detached object.
+   *
+   * @param key the object key
+   * @param request the HTTP servlet request
+   * @return the bucket
+   */
+  private RBucket<byte[]> getDetachedBucket(final String key, final HttpServletRequest request) {
+    return this.client.getBucket(this.keyLayout.getSessionObjectKey(request.getSession().getId(), key),
+        ByteArrayCodec.INSTANCE);
+  }
+
+  /**
+   * Creates and begins a {@link SessionIoEvent}.
+   *
+   * @return the event
+   */
+  private static SessionIoEvent begin() {
+    final SessionIoEvent event = new SessionIoEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Commits a {@link SessionIoEvent} (if it should be committed).
+   *
+   * @param event the event
+   * @param operation the operation
+   * @param key the object key
+   * @param bytes the number of bytes written or read (0 if not known)
+   * @param success whether an object was found (for reads) or written (for conditional writes)
+   */
+  private static void commit(final SessionIoEvent event, final String operation, final String key,
+      final long bytes, final boolean success) {
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.key = key;
+      event.bytes = bytes;
+      event.success = success;
+      event.commit();
+    }
+  }
+
+  /**
+   * GZIP compresses the supplied bytes.
+   *
+   * @param bytes the bytes to compress
+   * @return the compressed bytes
+   */
+  private static byte[] compress(final byte[] bytes) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+    try (final GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decompresses GZIP compressed bytes.
+   *
+   * @param bytes the compressed bytes
+   * @return the decompressed bytes
+   */
+  private static byte[] decompress(final byte[] bytes) {
+    try (final GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      return gzip.readAllBytes();
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Encodes the supplied object into its byte representation.
+   *
+   * @param encoder the encoder
+   * @param value the value to encode
+   * @return the encoding
+   */
+  private static byte[] encode(final Encoder encoder, final Object value) {
+    try {
+      final ByteBuf buffer = encoder.encode(value);
+      try {
+        return ByteBufUtil.getBytes(buffer);
+      }
+      finally {
+        buffer.release();
+      }
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Shuts down the client used for stale tolerant lookups (if it is not the same as the default client).
+   */
+  @Override
+  public void destroy() {
+    if (this.staleTolerantClient != this.client) {
+      this.staleTolerantClient.shutdown();
+    }
   }
 
   /** {@inheritDoc} */
   private RMap<Object, Object> getRedisHashForUser(final HttpServletRequest request) {
-    return this.client.getMap("session:%s".formatted(request.getSession().getId()));
+    return this.client.getMap(this.getRedisHashName(request));
+  }
+
+  /**
+   * Gets the name of the Redis hash for the user session.
+   *
+   * @param request the HTTP servlet request
+   * @return the hash name
+   */
+  private String getRedisHashName(final HttpServletRequest request) {
+    return this.keyLayout.getSessionKey(request.getSession().getId());
   }
 
 }
@@ -15,6 +15,10 @@
  */
 package se.swedenconnect.bankid.idp.authn.session;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+
 import jakarta.servlet.http.HttpServletRequest;
 
 /**
@@ -45,6 +49,23 @@ public interface SessionDao {
    */
   <T> T read(final String key, final Class<T> tClass, final HttpServletRequest request);
 
+  /**
+   * Reads the object identified by {@code key} of type {@code tClass} for a caller that tolerates that the object is
+   * slightly stale. This means that an implementation may read the object from a replica.
+   * <p>
+   * The default implementation invokes {@link #read(String, Class, HttpServletRequest)}.
+   * </p>
+   *
+   * @param <T> the type
+   * @param key the object key
+   * @param tClass the type of the object to read
+   * @param request the HTTP servlet request
+   * @return the object, or {@code null} if none is available
+   */
+  default <T> T readStaleTolerant(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    return this.read(key, tClass, request);
+  }
+
   /**
    * Removes the object identified by {@code key}.
    *
@@ -52,4 +73,85 @@ public interface SessionDao {
    * @param request the HTTP servlet request
    */
   void remove(final String key, final HttpServletRequest request);
+
+  /**
+   * Writes an object that is stored apart from the other session objects, for example a large object that is written
+   * once and read once. The object is stored for at most {@code ttl}.
+   * <p>
+   * The default implementation invokes {@link #write(String, Object, HttpServletRequest)}, i.e., the TTL is the TTL of
+   * the session.
+   * </p>
+   *
+   * @param key the object key
+   * @param value the object
+   * @param ttl the maximum time to live for the object
+   * @param request the HTTP servlet request
+   */
+  default void writeDetached(final String key, final Object value, final Duration ttl,
+      final HttpServletRequest request) {
+    this.write(key, value, request);
+  }
+
+  /**
+   * Reads an object written using {@link #writeDetached(String, Object, Duration, HttpServletRequest)}.
+   * <p>
+   * The default implementation invokes {@link #read(String, Class, HttpServletRequest)}.
+   * </p>
+   *
+   * @param <T> the type
+   * @param key the object key
+   * @param tClass the type of the object to read
+   * @param request the HTTP servlet request
+   * @return the object, or {@code null} if none is available
+   */
+  default <T> T readDetached(final String key, final Class<T> tClass, final HttpServletRequest request) {
+    return this.read(key, tClass, request);
+  }
+
+  /**
+   * Removes an object written using {@link #writeDetached(String, Object, Duration, HttpServletRequest)}.
+   * <p>
+   * The default implementation invokes {@link #remove(String, HttpServletRequest)}.
+   * </p>
+   *
+   * @param key the object key
+   * @param request the HTTP servlet request
+   */
+  default void removeDetached(final String key, final HttpServletRequest request) {
+    this.remove(key, request);
+  }
+
+  /**
+   * Writes all supplied objects, given that the object currently stored under {@code guardKey} equals
+   * {@code expected}. If {@code expected} is {@code null} the write is only performed if no object is stored under
+   * {@code guardKey}.
+   * <p>
+   * If a fencing token is given (see {@link se.swedenconnect.bankid.idp.concurrency.TryLock#getFencingToken()}), an
+   * implementation that supports fencing rejects the write with an {@link IllegalStateException} if a write with a
+   * higher token has already been made for the session. This prevents a writer whose lock has expired from overwriting
+   * the state written by the current lock holder.
+   * </p>
+   * <p>
+   * The default implementation performs a read followed by one write per object, and is therefore not atomic. It does
+   * not support fencing. Implementations that are shared between several nodes should override this method and
+   * perform the compare and the writes in one atomic operation.
+   * </p>
+   *
+   * @param guardKey the key of the object to compare
+   * @param expected the expected value of the object stored under {@code guardKey} (may be {@code null})
+   * @param values the objects to write (key and value)
+   * @param fencingToken the fencing token of the writer (may be {@code null})
+   * @param request the HTTP servlet request
+   * @return {@code true} if the objects were written, and {@code false} if the compare failed
+   * @throws IllegalStateException if the fencing token is stale
+   */
+  default boolean compareAndWrite(final String guardKey, final Object expected, final Map<String, Object> values,
+      final Long fencingToken, final HttpServletRequest request) {
+    final Object current = this.read(guardKey, Object.class, request);
+    if (!Objects.equals(current, expected)) {
+      return false;
+    }
+    values.forEach((k, v) -> this.write(k, v, request));
+    return true;
+  }
 }
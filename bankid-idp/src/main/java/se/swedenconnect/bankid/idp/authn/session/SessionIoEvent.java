@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a call to the Redis session store.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Name("se.swedenconnect.bankid.SessionIo")
+@Label("Session I/O")
+@Description("A read or write of BankID session data in Redis")
+@Category({ "BankID", "Session" })
+@StackTrace(false)
+public class SessionIoEvent extends Event {
+
+  /** The operation. */
+  @Label("Operation")
+  public String operation;
+
+  /** The key of the session object. */
+  @Label("Key")
+  public String key;
+
+  /** The number of bytes transferred. */
+  @Label("Bytes")
+  @Description("The number of bytes written or read (0 if not known)")
+  @DataAmount
+  public long bytes;
+
+  /** The outcome. */
+  @Label("Success")
+  @Description("Whether an object was found (for reads), or written (for conditional writes)")
+  public boolean success;
+
+}
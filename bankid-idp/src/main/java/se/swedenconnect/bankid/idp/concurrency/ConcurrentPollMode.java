@@ -0,0 +1,31 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.concurrency;
+
+/**
+ * Tells how a poll request is handled when another poll request for the same session is already in progress.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public enum ConcurrentPollMode {
+
+  /** The request is rejected with HTTP status 429 (Too Many Requests). */
+  REJECT,
+
+  /** The request is given the same response as the poll request that is in progress. */
+  COALESCE
+}
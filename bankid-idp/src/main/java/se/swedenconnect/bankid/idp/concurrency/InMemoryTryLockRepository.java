@@ -17,13 +17,17 @@ package se.swedenconnect.bankid.idp.concurrency;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * In-memory {@link TryLockRepository}.
  * <p>
- * This class is not intended for production use.
+ * The lock table only holds entries for locks that are currently held. An entry is created when a lock is acquired
+ * and removed when its last hold is released, so the memory used by the repository does not grow with the number of
+ * distinct keys. As for a {@link java.util.concurrent.locks.ReentrantLock}, a lock is owned by the thread that
+ * acquired it and may be re-acquired by the same thread.
+ * </p>
+ * <p>
+ * This class is not intended for production use in a clustered environment.
  * </p>
  *
  * @author Martin Lindström
@@ -31,12 +35,68 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class InMemoryTryLockRepository implements TryLockRepository {
 
-  private final Map<String, Lock> stringLockMap = new ConcurrentHashMap<>();
+  /** The currently held locks. */
+  private final Map<String, Hold> heldLocks = new ConcurrentHashMap<>();
 
   /** {@inheritDoc} */
   @Override
   public TryLock get(final String key) {
-    final Lock lock = this.stringLockMap.computeIfAbsent(key, s -> new ReentrantLock());
-    return TryLock.create(lock::tryLock, lock::unlock);
+    return TryLock.create(() -> this.tryLock(key), () -> this.unlock(key));
+  }
+
+  /**
+   * Gets the number of locks that are currently held.
+   *
+   * @return the number of held locks
+   */
+  int size() {
+    return this.heldLocks.size();
+  }
+
+  /**
+   * Tries to acquire the lock for the given key.
+   *
+   * @param key the lock key
+   * @return {@code true} if the lock was acquired and {@code false} otherwise
+   */
+  private boolean tryLock(final String key) {
+    final Thread current = Thread.currentThread();
+    final Hold hold = this.heldLocks.compute(key, (k, h) -> {
+      if (h == null) {
+        return new Hold(current, 1);
+      }
+      return h.owner() == current ? new Hold(current, h.count() + 1) : h;
+    });
+    return hold.owner() == current;
+  }
+
+  /**
+   * Releases one hold of the lock for the given key. The entry is removed when the last hold is released.
+   *
+   * @param key the lock key
+   * @throws IllegalMonitorStateException if the current thread does not hold the lock
+   */
+  private void unlock(final String key) throws IllegalMonitorStateException {
+    final Thread current = Thread.currentThread();
+    final boolean[] owned = { false };
+    this.heldLocks.computeIfPresent(key, (k, h) -> {
+      if (h.owner() != current) {
+        return h;
+      }
+      owned[0] = true;
+      return h.count() > 1 ? new Hold(current, h.count() - 1) : null;
+    });
+    if (!owned[0]) {
+      throw new IllegalMonitorStateException("Lock %s is not held by the current thread".formatted(key));
+    }
+  }
+
+  /**
+   * A hold of a lock.
+   *
+   * @param owner the thread owning the lock
+   * @param count the number of holds
+   */
+  private record Hold(Thread owner, int count) {
   }
 }
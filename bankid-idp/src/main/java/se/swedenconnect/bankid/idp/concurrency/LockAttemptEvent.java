@@ -0,0 +1,47 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.concurrency;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for an attempt to acquire the polling lock.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Name("se.swedenconnect.bankid.LockAttempt")
+@Label("Poll Lock Attempt")
+@Description("An attempt to acquire the polling lock for a session")
+@Category({ "BankID", "Poll" })
+@StackTrace(false)
+public class LockAttemptEvent extends Event {
+
+  /** Whether the lock was acquired. */
+  @Label("Acquired")
+  public boolean acquired;
+
+  /** How concurrent polls are handled. */
+  @Label("Mode")
+  @Description("How concurrent polls are handled")
+  public String mode;
+
+}
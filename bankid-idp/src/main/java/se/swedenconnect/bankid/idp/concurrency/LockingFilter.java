@@ -18,10 +18,14 @@ package se.swedenconnect.bankid.idp.concurrency;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Objects;
+import java.util.Optional;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
@@ -29,6 +33,10 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+import se.swedenconnect.bankid.idp.observation.BankIdObservations;
+import se.swedenconnect.bankid.idp.statistics.PollEfficiencyMetrics;
 
 /**
  * A {@link Filter} that handles per user locking for the polling critical section.
@@ -43,19 +51,58 @@ public class LockingFilter extends OncePerRequestFilter {
   /** The path to protect. */
   public static final String POLLING_PATH = "/api/poll";
 
+  /**
+   * The request attribute that is set if the poll lock could not be acquired and the request should attach to the
+   * poll in progress (see {@link ConcurrentPollMode#COALESCE}).
+   */
+  public static final String COALESCE_ATTRIBUTE = LockingFilter.class.getName() + ".COALESCE";
+
+  /**
+   * The request attribute where the fencing token of the polling lock is stored (if supported by the lock). The token
+   * is passed on to the writes of the BankID session state, where writes with a stale token are rejected.
+   */
+  public static final String FENCING_TOKEN_ATTRIBUTE = LockingFilter.class.getName() + ".FENCING_TOKEN";
+
+  /** The number of seconds a client should wait before retrying a poll that found the resource busy. */
+  public static final int BUSY_RETRY_AFTER = 1;
+
   public static final String ERROR_RESOURCE_BUSY = """
       {"Error": "The resource is busy for current user, try again soon"}
       """;
 
   private final TryLockRepository locks;
 
+  /** Tells how concurrent poll requests are handled. */
+  private final ConcurrentPollMode mode;
+
+  /** The key layout giving the names of the lock keys. */
+  private final RedisKeyLayout keyLayout;
+
+  /** The registry for observations of the lock acquisition. */
+  private final ObservationRegistry observationRegistry;
+
+  /** For counting rejected and coalesced polls. */
+  private final PollEfficiencyMetrics pollEfficiencyMetrics;
+
   /**
    * Constructor.
    *
    * @param locks the lock repository
+   * @param properties the BankID configuration properties
+   * @param keyLayout the key layout (if not available, a default {@link RedisKeyLayout} is used)
+   * @param observationRegistry the registry for observations of the lock acquisition
+   * @param pollEfficiencyMetrics for counting rejected and coalesced polls
    */
-  public LockingFilter(final TryLockRepository locks) {
+  public LockingFilter(final TryLockRepository locks, final BankIdConfigurationProperties properties,
+      final ObjectProvider<RedisKeyLayout> keyLayout, final ObservationRegistry observationRegistry,
+      final PollEfficiencyMetrics pollEfficiencyMetrics) {
     this.locks = Objects.requireNonNull(locks, "locks must not be null");
+    this.mode = Optional.ofNullable(properties.getConcurrentPollMode()).orElse(ConcurrentPollMode.REJECT);
+    this.keyLayout = keyLayout.getIfAvailable(RedisKeyLayout::new);
+    this.observationRegistry =
+        Objects.requireNonNull(observationRegistry, "observationRegistry must not be null");
+    this.pollEfficiencyMetrics =
+        Objects.requireNonNull(pollEfficiencyMetrics, "pollEfficiencyMetrics must not be null");
   }
 
   /**
@@ -68,20 +115,31 @@ public class LockingFilter extends OncePerRequestFilter {
 
     if (request.getServletPath().contains(POLLING_PATH)) {
       final HttpSession session = request.getSession();
-      // Keyformat is lock:/path/:sessionID
-      final String key = "lock:%s:%s".formatted(POLLING_PATH, session.getId());
+      // The session ID is a hash tag so that the lock is stored in the same Redis Cluster slot as the session data
+      final String key = this.keyLayout.getSessionLockKey(POLLING_PATH, session.getId());
       final TryLock lock = this.locks.get(key);
-      if (lock.tryLock()) {
+      if (this.tryLock(lock)) {
         try {
+          final Long fencingToken = lock.getFencingToken();
+          if (fencingToken != null) {
+            request.setAttribute(FENCING_TOKEN_ATTRIBUTE, fencingToken);
+          }
           filterChain.doFilter(request, response);
         }
         finally {
           lock.unlock();
         }
       }
+      else if (this.mode == ConcurrentPollMode.COALESCE) {
+        // The resource is busy, let the request attach to the poll in progress
+        request.setAttribute(COALESCE_ATTRIBUTE, Boolean.TRUE);
+        this.pollEfficiencyMetrics.coalesced(session.getId());
+        filterChain.doFilter(request, response);
+      }
       else {
         // The resource is busy, send an error to the user
         // Do not continue the filter chain
+        this.pollEfficiencyMetrics.rejected(session.getId());
         handleError(response);
       }
     }
@@ -90,6 +148,30 @@ public class LockingFilter extends OncePerRequestFilter {
     }
   }
 
+  /**
+   * Tries to acquire the lock, and makes an observation ({@value BankIdObservations#POLL_LOCK}) and records a
+   * {@link LockAttemptEvent} of the acquisition.
+   *
+   * @param lock the lock
+   * @return {@code true} if the lock was acquired and {@code false} otherwise
+   */
+  private boolean tryLock(final TryLock lock) {
+    final Observation observation =
+        Observation.createNotStarted(BankIdObservations.POLL_LOCK, this.observationRegistry);
+    return observation.observe(() -> {
+      final LockAttemptEvent event = new LockAttemptEvent();
+      event.begin();
+      final boolean acquired = lock.tryLock();
+      observation.lowCardinalityKeyValue("acquired", Boolean.toString(acquired));
+      if (event.shouldCommit()) {
+        event.acquired = acquired;
+        event.mode = this.mode.name();
+        event.commit();
+      }
+      return acquired;
+    });
+  }
+
   /**
    * Sets header flags and writes error message to be sent to user.
    *
@@ -99,7 +181,7 @@ public class LockingFilter extends OncePerRequestFilter {
   private static void handleError(final HttpServletResponse response) throws IOException {
     log.info("Failed to acquire lock, resource busy");
     response.setStatus(429);
-    response.addHeader("Retry-After", "1");
+    response.addHeader("Retry-After", Integer.toString(BUSY_RETRY_AFTER));
     final PrintWriter writer = response.getWriter();
     writer.write(ERROR_RESOURCE_BUSY);
   }
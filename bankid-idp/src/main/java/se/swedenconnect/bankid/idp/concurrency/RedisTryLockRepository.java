@@ -15,56 +15,202 @@
  */
 package se.swedenconnect.bankid.idp.concurrency;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Supplier;
+import java.util.Optional;
+import java.util.UUID;
 
-import org.redisson.api.RLock;
+import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * A Redis implementation of {@link TryLockRepository}. Provides locks, distributed over Redis.
+ * <p>
+ * A lock is a lease that is acquired using {@code SET key owner NX PX lease} and released by deleting the key given
+ * that it still holds the owner value. Each operation is one round trip. When a lock is acquired, a per-key counter is
+ * incremented and its value is returned as the fencing token for the hold (see {@link TryLock#getFencingToken()}).
+ * The counter expires when no lock for the key has been acquired for the fencing TTL, which must be at least the
+ * maximum inactive interval of the session that the lock protects. The counter can therefore not start over while
+ * the session is alive, and the tokens handed out for a session never decrease.
+ * </p>
+ * <p>
+ * The time it takes to acquire a lock is recorded by the timer {@value #ACQUIRE_TIMER_NAME}, tagged with the result
+ * ("acquired" or "contended").
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
+@Slf4j
 public class RedisTryLockRepository implements TryLockRepository {
 
+  /** The name of the timer recording lock acquisitions. */
+  public static final String ACQUIRE_TIMER_NAME = "bankid.lock.acquire";
+
+  /** The default lease time. */
+  public static final Duration DEFAULT_LEASE_TIME = Duration.ofSeconds(2);
+
+  /** The default TTL of the fencing counter (the default maximum inactive interval of a session). */
+  public static final Duration DEFAULT_FENCE_TTL = Duration.ofMinutes(30);
+
+  /**
+   * Script that acquires the lock. KEYS[1] is the lock key and KEYS[2] the fencing counter key. ARGV[1] is the owner
+   * value, ARGV[2] the lease time and ARGV[3] the TTL of the fencing counter (in milliseconds). Returns the fencing
+   * token, or 0 if the lock is held by someone else.
+   */
+  private static final String ACQUIRE_SCRIPT = """
+      if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then
+        local token = redis.call('incr', KEYS[2]);
+        redis.call('pexpire', KEYS[2], ARGV[3]);
+        return token;
+      end;
+      return 0;
+      """;
+
+  /**
+   * Script that releases the lock given that it is held by the owner. KEYS[1] is the lock key and ARGV[1] the owner
+   * value.
+   */
+  private static final String RELEASE_SCRIPT = """
+      if redis.call('get', KEYS[1]) == ARGV[1] then
+        return redis.call('del', KEYS[1]);
+      end;
+      return 0;
+      """;
+
   /** The Redis client. */
   private final RedissonClient client;
 
+  /** The lease time. */
+  private final Duration leaseTime;
+
+  /**
+   * The TTL of the fencing counters. The counter is kept for a lease time longer, since a session is written (and its
+   * expiry extended) while the lock is held, i.e., after the counter was incremented.
+   */
+  private final Duration fenceTtl;
+
+  /** Timer for successful acquisitions. */
+  private final Timer acquiredTimer;
+
+  /** Timer for contended (failed) acquisitions. */
+  private final Timer contendedTimer;
+
   /**
    * Constructor.
    *
    * @param client the Redis client
    */
   public RedisTryLockRepository(final RedissonClient client) {
+    this(client, null, null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param leaseTime the time after which a lock that has not been released expires (if {@code null},
+   *          {@link #DEFAULT_LEASE_TIME} is used)
+   * @param fenceTtl the time after which the fencing counter of a key that has not been locked expires, at least the
+   *          maximum inactive interval of a session (if {@code null}, {@link #DEFAULT_FENCE_TTL} is used)
+   * @param meterRegistry the meter registry (if {@code null}, the global registry is used)
+   */
+  public RedisTryLockRepository(final RedissonClient client, final Duration leaseTime, final Duration fenceTtl,
+      final MeterRegistry meterRegistry) {
     this.client = Objects.requireNonNull(client, "client must not be null");
+    this.leaseTime = Optional.ofNullable(leaseTime).orElse(DEFAULT_LEASE_TIME);
+    this.fenceTtl = Optional.ofNullable(fenceTtl).orElse(DEFAULT_FENCE_TTL);
+    final MeterRegistry registry = Optional.ofNullable(meterRegistry).orElse(Metrics.globalRegistry);
+    this.acquiredTimer = Timer.builder(ACQUIRE_TIMER_NAME)
+        .description("Time to acquire a distributed lock")
+        .tag("result", "acquired")
+        .register(registry);
+    this.contendedTimer = Timer.builder(ACQUIRE_TIMER_NAME)
+        .description("Time to acquire a distributed lock")
+        .tag("result", "contended")
+        .register(registry);
   }
 
   /** {@inheritDoc} */
   @Override
   public TryLock get(final String key) {
-    final RLock lock = this.client.getLock(key);
-    return TryLock.create(getTryLock(lock), lock::unlock);
+    return new LeaseLock(key);
   }
 
   /**
-   * Creates a redis TryLock that automatically expires after a set time
+   * Gets the key of the fencing counter for a lock. The key contains the lock key so that it has the same hash tag
+   * (and Redis Cluster slot) as the lock key.
    *
-   * @param lock The Lock provided from redis
-   * @return TryLock Supplier for the lock
+   * @param key the lock key
+   * @return the fencing counter key
    */
-  private static Supplier<Boolean> getTryLock(final RLock lock) {
-    return () -> {
-      try {
-        return lock.tryLock(0, 2, TimeUnit.SECONDS);
-      }
-      catch (final InterruptedException e) {
-        Thread.currentThread().interrupt();
-        throw new IllegalStateException("Thread was interrupted whilst waiting for lock");
+  static String getFenceKey(final String key) {
+    return "fence:" + key;
+  }
+
+  /**
+   * A lease based lock for one key.
+   */
+  private class LeaseLock implements TryLock {
+
+    /** The lock key. */
+    private final String key;
+
+    /** The owner value that is written to the lock key. */
+    private final String owner = UUID.randomUUID().toString();
+
+    /** The fencing token of the current hold. */
+    private Long fencingToken;
+
+    /**
+     * Constructor.
+     *
+     * @param key the lock key
+     */
+    LeaseLock(final String key) {
+      this.key = key;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean tryLock() {
+      final long start = System.nanoTime();
+      final RScript script = RedisTryLockRepository.this.client.getScript(StringCodec.INSTANCE);
+      final Long token = script.eval(RScript.Mode.READ_WRITE, ACQUIRE_SCRIPT, RScript.ReturnType.INTEGER,
+          List.of(this.key, getFenceKey(this.key)), this.owner,
+          Long.toString(RedisTryLockRepository.this.leaseTime.toMillis()),
+          Long.toString(RedisTryLockRepository.this.fenceTtl.plus(RedisTryLockRepository.this.leaseTime).toMillis()));
+      final boolean acquired = token != null && token > 0;
+      (acquired ? RedisTryLockRepository.this.acquiredTimer : RedisTryLockRepository.this.contendedTimer)
+          .record(Duration.ofNanos(System.nanoTime() - start));
+      this.fencingToken = acquired ? token : null;
+      return acquired;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void unlock() {
+      final RScript script = RedisTryLockRepository.this.client.getScript(StringCodec.INSTANCE);
+      final Long released = script.eval(RScript.Mode.READ_WRITE, RELEASE_SCRIPT, RScript.ReturnType.INTEGER,
+          List.of(this.key), this.owner);
+      if (released == null || released == 0) {
+        log.info("Lock {} had expired before it was released (fencing token {})", this.key, this.fencingToken);
       }
-    };
+      this.fencingToken = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Long getFencingToken() {
+      return this.fencingToken;
+    }
   }
-  
+
 }
@@ -34,6 +34,17 @@ public interface TryLock {
    */
   void unlock();
 
+  /**
+   * Gets the fencing token for the current hold of the lock. A fencing token is a number that increases for each time
+   * the lock is acquired, and may be used by downstream writers to reject writes made by a holder whose lock has
+   * expired.
+   *
+   * @return the fencing token, or {@code null} if the lock is not held or if fencing tokens are not supported
+   */
+  default Long getFencingToken() {
+    return null;
+  }
+
   static TryLock create(final Supplier<Boolean> tryLock, final Runnable unlock) {
 
     return new TryLock() {
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.concurrency;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@link TryLockRepository} that first takes a local lock, and only escalates to a distributed lock for keys that
+ * are accessed from more than one node.
+ * <p>
+ * For each key, an affinity lease is kept in Redis. As long as one node is the only node that accesses a key, that
+ * node holds the lease and only uses the local lock. The lease is renewed when half of it remains, so in the common
+ * case, where the load balancer uses sticky sessions, most lock operations do not involve Redis at all.
+ * </p>
+ * <p>
+ * If another node accesses the key, the key is marked as shared. From then on all nodes use the distributed lock for
+ * the key. To keep the lock correct during the switch, the distributed lock is not granted until the affinity lease of
+ * the previous owner has expired.
+ * </p>
+ * <p>
+ * When a node acquires the affinity lease, it takes a fencing token from the same counter as the distributed lock
+ * (see {@link RedisTryLockRepository}). The token is kept for as long as the node holds the lease, and is the fencing
+ * token of the locks taken locally. A node that pauses after checking its lease can therefore not overwrite state that
+ * was written by the node that holds the lease (or the distributed lock) after it.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Slf4j
+public class TwoTierTryLockRepository implements TryLockRepository {
+
+  /** The default duration of the affinity lease. */
+  public static final Duration DEFAULT_AFFINITY_LEASE = Duration.ofSeconds(10);
+
+  /** The time that a key stays marked as shared. */
+  private static final Duration SHARED_TTL = Duration.ofHours(1);
+
+  /** The number of operations between purges of the local lease table. */
+  private static final int PURGE_INTERVAL = 1024;
+
+  /** Result from the affinity script telling that the caller must wait for the lease of the previous owner. */
+  private static final long AFFINITY_WAIT = 0;
+
+  /** Result from the affinity script telling that the distributed lock should be used. */
+  private static final long AFFINITY_SHARED = -1;
+
+  /**
+   * Script that checks and renews the affinity lease. KEYS[1] is the affinity key and KEYS[2] the fencing counter key.
+   * ARGV[1] is the node ID, ARGV[2] the duration of the affinity lease, ARGV[3] the time that the key stays marked as
+   * shared and ARGV[4] the TTL of the fencing counter (in milliseconds).
+   * <p>
+   * A held lease holds the node ID and the fencing token of the lease, separated by "|". A shared key holds "*"
+   * followed by the time when the lease of the previous owner expires. Returns the fencing token of the lease if the
+   * node holds the lease, -1 if the distributed lock should be used and 0 if the caller must wait for the lease of the
+   * previous owner to expire.
+   * </p>
+   */
+  private static final String AFFINITY_SCRIPT = """
+      local value = redis.call('get', KEYS[1]);
+      local prefix = ARGV[1] .. '|';
+      local token;
+      if value == false then
+        token = redis.call('incr', KEYS[2]);
+      elseif string.sub(value, 1, string.len(prefix)) == prefix then
+        token = tonumber(string.sub(value, string.len(prefix) + 1));
+      end;
+      if token then
+        redis.call('pexpire', KEYS[2], ARGV[4]);
+        redis.call('set', KEYS[1], prefix .. token, 'PX', ARGV[2]);
+        return token;
+      end;
+      local time = redis.call('time');
+      local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000);
+      if string.sub(value, 1, 1) == '*' then
+        if tonumber(string.sub(value, 2)) > now then
+          return 0;
+        end;
+        return -1;
+      end;
+      local pttl = redis.call('pttl', KEYS[1]);
+      redis.call('set', KEYS[1], '*' .. (now + math.max(pttl, 0)), 'PX', ARGV[3]);
+      return 0;
+      """;
+
+  /** The local lock repository. */
+  private final TryLockRepository local;
+
+  /** The distributed lock repository. */
+  private final TryLockRepository distributed;
+
+  /** The Redis client. */
+  private final RedissonClient client;
+
+  /** The ID of this node. */
+  private final String nodeId = UUID.randomUUID().toString();
+
+  /** The duration of the affinity lease. */
+  private final Duration affinityLease;
+
+  /** The maximum time that a lock may be held. */
+  private final Duration maxHoldTime;
+
+  /** The TTL of the fencing counters. */
+  private final Duration fenceTtl;
+
+  /** The affinity leases held by this node, per key. */
+  private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+  /** Counter for purging the lease table. */
+  private final AtomicInteger operations = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param local the local lock repository
+   * @param distributed the distributed lock repository
+   * @param client the Redis client
+   * @param affinityLease the duration of the affinity lease
+   * @param maxHoldTime the maximum time that a lock may be held (the lease time of the distributed lock)
+   * @param fenceTtl the TTL of the fencing counters (see {@link RedisTryLockRepository})
+   */
+  public TwoTierTryLockRepository(final TryLockRepository local, final TryLockRepository distributed,
+      final RedissonClient client, final Duration affinityLease, final Duration maxHoldTime,
+      final Duration fenceTtl) {
+    this.local = Objects.requireNonNull(local, "local must not be null");
+    this.distributed = Objects.requireNonNull(distributed, "distributed must not be null");
+    this.client = Objects.requireNonNull(client, "client must not be null");
+    this.affinityLease = Objects.requireNonNull(affinityLease, "affinityLease must not be null");
+    this.maxHoldTime = Objects.requireNonNull(maxHoldTime, "maxHoldTime must not be null");
+    this.fenceTtl = Objects.requireNonNull(fenceTtl, "fenceTtl must not be null");
+    if (this.affinityLease.dividedBy(2).compareTo(this.maxHoldTime) <= 0) {
+      throw new IllegalArgumentException("affinityLease must be more than twice the maxHoldTime");
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public TryLock get(final String key) {
+    final TryLock localLock = this.local.get(key);
+    return new TryLock() {
+
+      /** The distributed lock, if held. */
+      private TryLock distributedLock;
+
+      /** The fencing token of the affinity lease, if the lock is held locally. */
+      private Long fencingToken;
+
+      @Override
+      public boolean tryLock() {
+        if (!localLock.tryLock()) {
+          return false;
+        }
+        final long affinity = TwoTierTryLockRepository.this.checkAffinity(key);
+        if (affinity > 0) {
+          this.fencingToken = affinity;
+          return true;
+        }
+        if (affinity == AFFINITY_SHARED) {
+          final TryLock lock = TwoTierTryLockRepository.this.distributed.get(key);
+          if (lock.tryLock()) {
+            this.distributedLock = lock;
+            return true;
+          }
+        }
+        localLock.unlock();
+        return false;
+      }
+
+      @Override
+      public void unlock() {
+        this.fencingToken = null;
+        try {
+          if (this.distributedLock != null) {
+            this.distributedLock.unlock();
+            this.distributedLock = null;
+          }
+        }
+        finally {
+          localLock.unlock();
+        }
+      }
+
+      @Override
+      public Long getFencingToken() {
+        return this.distributedLock != null ? this.distributedLock.getFencingToken() : this.fencingToken;
+      }
+    };
+  }
+
+  /**
+   * Checks whether this node holds the affinity lease for the key. If the lease is held, and more than half of it
+   * remains, Redis is not contacted.
+   *
+   * @param key the lock key
+   * @return the fencing token of the lease if this node holds it, {@link #AFFINITY_SHARED} or {@link #AFFINITY_WAIT}
+   */
+  private long checkAffinity(final String key) {
+    if (this.operations.incrementAndGet() % PURGE_INTERVAL == 0) {
+      final long now = System.nanoTime();
+      this.leases.values().removeIf(lease -> lease.expires() - now <= 0);
+    }
+
+    final long start = System.nanoTime();
+    final Lease lease = this.leases.get(key);
+    if (lease != null && lease.expires() - start > this.affinityLease.dividedBy(2).toNanos()) {
+      return lease.token();
+    }
+    final Long result = this.client.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, AFFINITY_SCRIPT,
+        RScript.ReturnType.INTEGER, List.of(getAffinityKey(key), RedisTryLockRepository.getFenceKey(key)),
+        this.nodeId, Long.toString(this.affinityLease.toMillis()), Long.toString(SHARED_TTL.toMillis()),
+        Long.toString(this.fenceTtl.toMillis()));
+    if (result != null && result > 0) {
+      // The lease is counted from before the request was sent, so our view of it never outlives the lease in Redis.
+      // Since only leases with more than half of the time left are used, a lock hold always ends before the lease
+      // expires ...
+      this.leases.put(key, new Lease(start + this.affinityLease.toNanos(), result));
+      return result;
+    }
+    if (this.leases.remove(key) != null) {
+      log.debug("Lock {} is accessed from several nodes, escalating to distributed lock", key);
+    }
+    return result != null ? result : AFFINITY_WAIT;
+  }
+
+  /**
+   * Gets the affinity key for a lock key. The key contains the lock key so that it has the same hash tag (and Redis
+   * Cluster slot) as the lock key.
+   *
+   * @param key the lock key
+   * @return the affinity key
+   */
+  private static String getAffinityKey(final String key) {
+    return "affinity:" + key;
+  }
+
+  /**
+   * An affinity lease held by this node.
+   *
+   * @param expires the expiry time of the lease (in {@link System#nanoTime()})
+   * @param token the fencing token of the lease
+   */
+  private record Lease(long expires, long token) {
+  }
+
+}
@@ -20,9 +20,13 @@ import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
 
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
@@ -36,13 +40,21 @@ import org.springframework.web.filter.OncePerRequestFilter;
 import org.springframework.web.reactive.function.client.WebClient;
 
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.tracing.Tracer;
 import se.swedenconnect.bankid.idp.authn.BankIdAttributeProducer;
 import se.swedenconnect.bankid.idp.authn.BankIdAuthenticationProvider;
+import se.swedenconnect.bankid.idp.authn.api.LocalPollCoalescer;
+import se.swedenconnect.bankid.idp.authn.api.PollCoalescer;
+import se.swedenconnect.bankid.idp.authn.api.RedisPollCoalescer;
 import se.swedenconnect.bankid.idp.authn.api.UiInformationProvider;
 import se.swedenconnect.bankid.idp.authn.error.ErrorhandlerFilter;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventDispatcher;
 import se.swedenconnect.bankid.idp.authn.events.BankIdEventPublisher;
 import se.swedenconnect.bankid.idp.authn.service.BankIdRequestFactory;
 import se.swedenconnect.bankid.idp.authn.service.BankIdService;
+import se.swedenconnect.bankid.idp.concurrency.ConcurrentPollMode;
+import se.swedenconnect.bankid.idp.concurrency.RedisTryLockRepository;
 import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties.RelyingPartyConfiguration;
 import se.swedenconnect.bankid.idp.rp.DefaultRelyingPartyRepository;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
@@ -138,15 +150,18 @@ public class BankIdConfiguration {
   /**
    * Gets the bankIdWebClientFactory bean
    *
+   * @param observationRegistry the registry for observations of the HTTP requests to the BankID server
    * @return Lambda function to create webclient from RelyingParty
    */
 
   @Bean
-  Function<RelyingPartyConfiguration, WebClient> bankIdWebClientFactory() {
+  Function<RelyingPartyConfiguration, WebClient> bankIdWebClientFactory(
+      final ObservationRegistry observationRegistry) {
     return rp -> {
       try {
         final WebClientFactoryBean webClientFactory = new WebClientFactoryBean(
             this.properties.getServiceUrl(), this.properties.getServerRootCertificate(), rp.createCredential());
+        webClientFactory.setWebClientBuilder(WebClient.builder().observationRegistry(observationRegistry));
         webClientFactory.afterPropertiesSet();
         return webClientFactory.createInstance();
       }
@@ -196,14 +211,16 @@ public class BankIdConfiguration {
    * Creates the {@link SimulatedAuthenticationProvider} which is the {@link AuthenticationProvider} that is responsible
    * of the user authentication.
    *
+   * @param tracer the tracer for creating the trace IDs of errors (if available)
    * @return a {@link SimulatedAuthenticationProvider}
    */
   @Bean
-  BankIdAuthenticationProvider bankIdAuthenticationProvider() {
+  BankIdAuthenticationProvider bankIdAuthenticationProvider(final ObjectProvider<Tracer> tracer) {
     final BankIdAuthenticationProvider provider = new BankIdAuthenticationProvider(
         this.properties.getAuthn().getAuthnPath(), this.properties.getAuthn().getResumePath(),
         this.properties.getAuthn().getSupportedLoas(), this.properties.getAuthn().getEntityCategories());
     provider.setName(this.properties.getAuthn().getProviderName());
+    tracer.ifAvailable(provider::setTracer);
     return provider;
   }
 
@@ -255,8 +272,45 @@ public class BankIdConfiguration {
   }
 
   @Bean
-  BankIdService bankIdService(BankIdEventPublisher publisher, CircuitBreaker circuitBreaker, BankIdRequestFactory factory, BankIdConfigurationProperties properties) {
-    return new BankIdService(publisher, circuitBreaker, factory,  properties.getStartRetryDuration());
+  PollCoalescer pollCoalescer(final ObjectProvider<RedissonClient> redissonClient) {
+    if (this.properties.getConcurrentPollMode() != ConcurrentPollMode.COALESCE) {
+      return PollCoalescer.none();
+    }
+    final RedissonClient client = redissonClient.getIfAvailable();
+    return client != null
+        ? new RedisPollCoalescer(client, RedisTryLockRepository.DEFAULT_LEASE_TIME)
+        : new LocalPollCoalescer();
+  }
+
+  /**
+   * Creates the {@link BankIdEventDispatcher} used for asynchronous dispatching of BankID events.
+   *
+   * @return a {@link BankIdEventDispatcher}
+   */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(value = "bankid.events.async-dispatch", havingValue = "true")
+  BankIdEventDispatcher bankIdEventDispatcher() {
+    return new BankIdEventDispatcher(this.properties.getEvents().getThreads(),
+        this.properties.getEvents().getQueueCapacity());
+  }
+
+  /**
+   * Creates the {@link BankIdEventPublisher}.
+   *
+   * @param publisher the Spring event publisher
+   * @param dispatcher the dispatcher for asynchronous dispatching (if enabled)
+   * @param observationRegistry the observation registry
+   * @return a {@link BankIdEventPublisher}
+   */
+  @Bean
+  BankIdEventPublisher bankIdEventPublisher(final ApplicationEventPublisher publisher,
+      final ObjectProvider<BankIdEventDispatcher> dispatcher, final ObservationRegistry observationRegistry) {
+    return new BankIdEventPublisher(publisher, dispatcher.getIfAvailable(), observationRegistry);
+  }
+
+  @Bean
+  BankIdService bankIdService(BankIdEventPublisher publisher, CircuitBreaker circuitBreaker, BankIdRequestFactory factory, BankIdConfigurationProperties properties, ObservationRegistry observationRegistry) {
+    return new BankIdService(publisher, circuitBreaker, factory,  properties.getStartRetryDuration(), observationRegistry);
   }
 
 }
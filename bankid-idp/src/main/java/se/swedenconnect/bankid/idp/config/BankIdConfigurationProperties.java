@@ -26,12 +26,19 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.bankid.idp.audit.AbstractBankIdAuditEventRepository;
+import se.swedenconnect.bankid.idp.audit.AuditOverflowPolicy;
+import se.swedenconnect.bankid.idp.audit.PageableAuditEventRepository;
+import se.swedenconnect.bankid.idp.audit.RedisStreamAuditEventRepository;
 import se.swedenconnect.bankid.idp.authn.BankIdAuthenticationController;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventDispatcher;
+import se.swedenconnect.bankid.idp.concurrency.ConcurrentPollMode;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
 import se.swedenconnect.bankid.idp.rp.RelyingPartyUiInfo;
 import se.swedenconnect.bankid.rpapi.support.WebClientFactoryBean;
 import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
@@ -95,6 +102,15 @@ public class BankIdConfigurationProperties implements InitializingBean {
   @Setter
   private Duration startRetryDuration = Duration.ofMinutes(3);
 
+  /**
+   * Tells how a poll request is handled when another poll request for the same session is already in progress.
+   * "reject" means that the request is rejected with HTTP status 429 (and the front-end retries after one second), and
+   * "coalesce" means that the request is given the same response as the poll request in progress.
+   */
+  @Getter
+  @Setter
+  private ConcurrentPollMode concurrentPollMode = ConcurrentPollMode.REJECT;
+
   /**
    * IdP Authentication configuration.
    */
@@ -116,6 +132,13 @@ public class BankIdConfigurationProperties implements InitializingBean {
   @Getter
   private final SessionConfiguration session = new SessionConfiguration();
 
+  /**
+   * Configuration for the dispatching of BankID events.
+   */
+  @NestedConfigurationProperty
+  @Getter
+  private final EventsConfiguration events = new EventsConfiguration();
+
   /**
    * Configuration for audit support.
    */
@@ -164,6 +187,7 @@ public class BankIdConfigurationProperties implements InitializingBean {
     this.authn.afterPropertiesSet();
     this.health.afterPropertiesSet();
     this.session.afterPropertiesSet();
+    this.events.afterPropertiesSet();
     this.audit.afterPropertiesSet();
     this.ui.afterPropertiesSet();
 
@@ -376,25 +400,200 @@ public class BankIdConfigurationProperties implements InitializingBean {
 
   }
 
+  /**
+   * Configuration for the dispatching of BankID events.
+   */
+  public static class EventsConfiguration implements InitializingBean {
+
+    /**
+     * If set, the events published when the BankID server has responded (order, collect, cancel and error events) are
+     * dispatched to the listeners on a separate pool of threads instead of on the threads of the HTTP client. The
+     * events for one session are dispatched in order, and the poll response is sent when the listeners have run.
+     */
+    @Getter
+    @Setter
+    private boolean asyncDispatch = false;
+
+    /**
+     * The maximum number of threads used for asynchronous dispatching.
+     */
+    @Getter
+    @Setter
+    private int threads = BankIdEventDispatcher.DEFAULT_THREADS;
+
+    /**
+     * The maximum number of sessions that may wait for a dispatch thread. If exceeded, the events are dispatched on
+     * the thread of the HTTP client.
+     */
+    @Getter
+    @Setter
+    private int queueCapacity = BankIdEventDispatcher.DEFAULT_QUEUE_CAPACITY;
+
+    /** {@inheritDoc} */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+      Assert.isTrue(this.threads > 0, "bankid.events.threads must be greater than 0");
+      Assert.isTrue(this.queueCapacity > 0, "bankid.events.queue-capacity must be greater than 0");
+    }
+
+  }
+
   /**
    * Session handling configuration.
    */
   public static class SessionConfiguration implements InitializingBean {
 
     /**
-     * The session module to use. Supported values are "memory" and "redis". Set to other value if you extend the BankID
-     * IdP with your own session handling.
+     * The session module to use. Supported values are "memory", "offheap" and "redis". Set to other value if you extend
+     * the BankID IdP with your own session handling.
      */
     @Getter
     @Setter
     private String module;
 
+    /**
+     * Configuration of the Redis key layout. Only relevant if the "redis" module is used.
+     */
+    @NestedConfigurationProperty
+    @Getter
+    private final RedisKeysConfiguration redisKeys = new RedisKeysConfiguration();
+
+    /**
+     * Only relevant if the "redis" module is used. If set, the poll lock is taken locally, and the distributed lock is
+     * only used for sessions that are accessed from more than one node. This saves the lock round trips to Redis when
+     * the load balancer uses sticky sessions.
+     */
+    @Getter
+    @Setter
+    private boolean lockAffinity = false;
+
+    /**
+     * Configuration of the off-heap session store. Only relevant if the "offheap" module is used.
+     */
+    @NestedConfigurationProperty
+    @Getter
+    private final OffHeapConfiguration offHeap = new OffHeapConfiguration();
+
+    /**
+     * Configuration of the local filter in front of the message replay cache. Only relevant if the "redis" module is
+     * used.
+     */
+    @NestedConfigurationProperty
+    @Getter
+    private final ReplayFilterConfiguration replayFilter = new ReplayFilterConfiguration();
+
     /** {@inheritDoc} */
     @Override
     public void afterPropertiesSet() throws Exception {
       if (!StringUtils.hasText(this.module)) {
         this.module = "memory";
       }
+      Assert.isTrue(this.redisKeys.getShards() > 0, "bankid.session.redis-keys.shards must be greater than 0");
+      Assert.isTrue(this.offHeap.getSlabSize().toBytes() % this.offHeap.getPageSize().toBytes() == 0,
+          "bankid.session.off-heap.slab-size must be a multiple of bankid.session.off-heap.page-size");
+      Assert.isTrue(this.offHeap.getMaxMemory().compareTo(this.offHeap.getSlabSize()) >= 0,
+          "bankid.session.off-heap.max-memory must not be less than bankid.session.off-heap.slab-size");
+      Assert.isTrue(this.replayFilter.getExpectedIds() > 0,
+          "bankid.session.replay-filter.expected-ids must be greater than 0");
+      Assert.isTrue(this.replayFilter.getFalsePositiveRate() > 0 && this.replayFilter.getFalsePositiveRate() < 1,
+          "bankid.session.replay-filter.false-positive-rate must be between 0 and 1");
+    }
+
+    /**
+     * Configuration of the Redis key layout.
+     */
+    public static class RedisKeysConfiguration {
+
+      /**
+       * The number of slot-distributed keys that global structures (audit events and the message replay cache) are
+       * sharded over.
+       */
+      @Getter
+      @Setter
+      private int shards = RedisKeyLayout.DEFAULT_SHARDS;
+
+      /**
+       * Whether the legacy (unsharded) keys should be read along with the current keys. Should be set during the
+       * migration of an installation that has stored data using the legacy keys.
+       */
+      @Getter
+      @Setter
+      private boolean readLegacyKeys = false;
+
+    }
+
+    /**
+     * Configuration of the off-heap session store.
+     */
+    public static class OffHeapConfiguration {
+
+      /**
+       * The maximum amount of memory that may be used for storing session data. When the limit is reached new session
+       * data is rejected.
+       */
+      @Getter
+      @Setter
+      private DataSize maxMemory = DataSize.ofMegabytes(64);
+
+      /**
+       * The size of the pages that session data is stored in.
+       */
+      @Getter
+      @Setter
+      private DataSize pageSize = DataSize.ofBytes(512);
+
+      /**
+       * The size of each memory slab. Slabs are allocated as needed up to the max-memory limit.
+       */
+      @Getter
+      @Setter
+      private DataSize slabSize = DataSize.ofMegabytes(4);
+
+      /**
+       * If assigned, the session data is written to this file on shutdown and read back at startup. A complete path
+       * must be given.
+       */
+      @Getter
+      @Setter
+      private String snapshotFile;
+
+      /**
+       * If assigned, snapshots are also written with this interval. Only relevant if snapshot-file is assigned.
+       */
+      @Getter
+      @Setter
+      private Duration snapshotInterval;
+
+    }
+
+    /**
+     * Configuration of the local filter in front of the message replay cache.
+     */
+    public static class ReplayFilterConfiguration {
+
+      /**
+       * Whether a local Bloom filter should be kept next to the replay cache. The filter does not decide whether a
+       * message is a replay, Redis is always checked, but its answers are compared with Redis and reported as
+       * metrics.
+       */
+      @Getter
+      @Setter
+      private boolean enabled = false;
+
+      /**
+       * The expected number of message IDs during the replay TTL (saml.idp.replay-ttl). Used to size the filter.
+       */
+      @Getter
+      @Setter
+      private long expectedIds = 100_000;
+
+      /**
+       * The wanted false positive rate of the filter when expected-ids IDs have been added.
+       */
+      @Getter
+      @Setter
+      private double falsePositiveRate = 0.01;
+
     }
 
   }
@@ -406,8 +605,9 @@ public class BankIdConfigurationProperties implements InitializingBean {
 
     /**
      * The type of AuditEventRepository that should be used. Possible values are: "memory" for an in-memory repository,
-     * "redislist" for a Redis list implementation, "redistimeseries" for a Redis time series implementation or another
-     * value if you extend the BankID IdP with your own implementation.
+     * "redislist" for a Redis list implementation, "redistimeseries" for a Redis time series implementation,
+     * "redisstream" for a Redis stream implementation or another value if you extend the BankID IdP with your own
+     * implementation.
      */
     @Getter
     @Setter
@@ -421,6 +621,14 @@ public class BankIdConfigurationProperties implements InitializingBean {
     @Setter
     private String logFile;
 
+    /**
+     * Whether each write to the audit log file should be forced to the storage device (fsync). Concurrent writes are
+     * grouped, so there is one forced write per group.
+     */
+    @Getter
+    @Setter
+    private boolean syncLogFile = false;
+
     /**
      * The supported events that will be logged to the given repository (and possibly the file). The default is
      * {@link AbstractBankIdAuditEventRepository#DEFAULT_SUPPORTED_EVENTS}.
@@ -428,6 +636,36 @@ public class BankIdConfigurationProperties implements InitializingBean {
     @Getter
     private List<String> supportedEvents = new ArrayList<>();
 
+    /**
+     * The maximum number of events returned by a query of the repository, e.g., using the "auditevents" actuator
+     * endpoint. If more events match, the newest are returned. Not used by the in-memory repository, that holds at most
+     * 1000 events.
+     */
+    @Getter
+    @Setter
+    private int maxFindResults = PageableAuditEventRepository.DEFAULT_MAX_FIND_RESULTS;
+
+    /**
+     * Configuration for writing audit events asynchronously.
+     */
+    @NestedConfigurationProperty
+    @Getter
+    private final AuditPipelineConfiguration pipeline = new AuditPipelineConfiguration();
+
+    /**
+     * Configuration for retention and archival of audit events stored in Redis.
+     */
+    @NestedConfigurationProperty
+    @Getter
+    private final AuditRetentionConfiguration retention = new AuditRetentionConfiguration();
+
+    /**
+     * Configuration for the Redis stream repository.
+     */
+    @NestedConfigurationProperty
+    @Getter
+    private final AuditStreamConfiguration stream = new AuditStreamConfiguration();
+
     /** {@inheritDoc} */
     @Override
     public void afterPropertiesSet() throws Exception {
@@ -438,6 +676,130 @@ public class BankIdConfigurationProperties implements InitializingBean {
       if (this.supportedEvents.isEmpty()) {
         this.supportedEvents = AbstractBankIdAuditEventRepository.DEFAULT_SUPPORTED_EVENTS;
       }
+      Assert.isTrue(this.maxFindResults > 0, "bankid.audit.max-find-results must be greater than 0");
+      Assert.isTrue(this.pipeline.getQueueSize() > 0, "bankid.audit.pipeline.queue-size must be greater than 0");
+      Assert.isTrue(this.pipeline.getBatchSize() > 0, "bankid.audit.pipeline.batch-size must be greater than 0");
+      Assert.isTrue(this.pipeline.getOverflowPolicy() != AuditOverflowPolicy.SPILL
+          || StringUtils.hasText(this.pipeline.getSpillFile()),
+          "bankid.audit.pipeline.spill-file must be set when overflow-policy is spill");
+      Assert.isTrue(this.retention.getMaxEvents() >= 0, "bankid.audit.retention.max-events must not be negative");
+      Assert.isTrue(this.retention.getMaxAge() == null || this.retention.getMaxAge().isPositive(),
+          "bankid.audit.retention.max-age must be positive");
+      Assert.isTrue(this.retention.getInterval() != null && this.retention.getInterval().isPositive(),
+          "bankid.audit.retention.interval must be positive");
+      Assert.isTrue(this.stream.getMaxLength() > 0, "bankid.audit.stream.max-length must be greater than 0");
+    }
+
+    /**
+     * Configuration for writing audit events asynchronously.
+     */
+    public static class AuditPipelineConfiguration {
+
+      /**
+       * Whether audit events should be queued and written by a dedicated writer thread instead of by the thread that
+       * produces the event.
+       */
+      @Getter
+      @Setter
+      private boolean enabled = false;
+
+      /**
+       * The maximum number of queued events.
+       */
+      @Getter
+      @Setter
+      private int queueSize = 8192;
+
+      /**
+       * The maximum number of events written in one batch.
+       */
+      @Getter
+      @Setter
+      private int batchSize = 256;
+
+      /**
+       * What happens with an event when the queue is full: "block" (wait for room in the queue), "drop" (the event is
+       * dropped and counted) or "spill" (the event is written to the spill file and written later).
+       */
+      @Getter
+      @Setter
+      private AuditOverflowPolicy overflowPolicy = AuditOverflowPolicy.BLOCK;
+
+      /**
+       * The spill file. Required if overflow-policy is "spill". A complete path must be given.
+       */
+      @Getter
+      @Setter
+      private String spillFile;
+
+    }
+
+    /**
+     * Configuration for retention and archival of audit events stored in Redis.
+     */
+    public static class AuditRetentionConfiguration {
+
+      /**
+       * Events older than this are removed from Redis. If not set, there is no age limit.
+       */
+      @Getter
+      @Setter
+      private Duration maxAge;
+
+      /**
+       * The maximum number of events kept in Redis (0 for no limit). When exceeded, the oldest events are removed.
+       */
+      @Getter
+      @Setter
+      private long maxEvents = 0;
+
+      /**
+       * If set, events removed from Redis are first written to compressed segment files in this directory, and queries
+       * span both the archive and Redis. A complete path must be given. If several nodes are used, the directory should
+       * be shared between them.
+       */
+      @Getter
+      @Setter
+      private String archiveDirectory;
+
+      /**
+       * The interval between runs of the retention job.
+       */
+      @Getter
+      @Setter
+      private Duration interval = Duration.ofHours(1);
+
+      /**
+       * Tells whether retention is configured.
+       *
+       * @return {@code true} if a maximum age or number of events has been set
+       */
+      public boolean isActive() {
+        return this.maxAge != null || this.maxEvents > 0;
+      }
+
+    }
+
+    /**
+     * Configuration for the Redis stream repository.
+     */
+    public static class AuditStreamConfiguration {
+
+      /**
+       * The maximum number of events kept in the streams. The streams are trimmed approximately, so the actual number
+       * may be slightly higher.
+       */
+      @Getter
+      @Setter
+      private int maxLength = RedisStreamAuditEventRepository.DEFAULT_MAX_LENGTH;
+
+      /**
+       * Consumer groups that should be created for the streams (if they do not already exist). Downstream consumers
+       * use these groups to read and acknowledge events.
+       */
+      @Getter
+      private final List<String> consumerGroups = new ArrayList<>();
+
     }
 
   }
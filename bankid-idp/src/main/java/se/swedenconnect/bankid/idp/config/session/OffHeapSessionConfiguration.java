@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.config.session;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Setter;
+import se.swedenconnect.bankid.idp.authn.session.OffHeapSessionDao;
+import se.swedenconnect.bankid.idp.authn.session.OffHeapSessionStore;
+import se.swedenconnect.bankid.idp.concurrency.InMemoryTryLockRepository;
+import se.swedenconnect.bankid.idp.concurrency.TryLockRepository;
+import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties;
+import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties.SessionConfiguration.OffHeapConfiguration;
+import se.swedenconnect.opensaml.saml2.response.replay.InMemoryReplayChecker;
+
+/**
+ * Configuration used if the "offheap" session module is used. This module is intended for single node deployments
+ * that do not use Redis. The BankID session data is kept in an {@link OffHeapSessionStore}.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Configuration
+@ConditionalOnProperty(value = "bankid.session.module", havingValue = "offheap")
+public class OffHeapSessionConfiguration {
+
+  /**
+   * The replay TTL.
+   */
+  @Setter
+  @Value("${saml.idp.replay-ttl:PT5M}")
+  private Duration replayTtl;
+
+  @Bean
+  TryLockRepository offHeapLockRepository() {
+    return new InMemoryTryLockRepository();
+  }
+
+  @Bean
+  OffHeapSessionStore offHeapSessionStore(final BankIdConfigurationProperties properties) {
+    final OffHeapConfiguration config = properties.getSession().getOffHeap();
+    return new OffHeapSessionStore(config.getMaxMemory().toBytes(), (int) config.getPageSize().toBytes(),
+        (int) config.getSlabSize().toBytes(), Optional.ofNullable(config.getSnapshotFile()).map(Path::of).orElse(null),
+        config.getSnapshotInterval());
+  }
+
+  @Bean
+  OffHeapSessionDao offHeapSessionDao(final OffHeapSessionStore store) {
+    return new OffHeapSessionDao(store);
+  }
+
+  @Bean
+  InMemoryReplayChecker offHeapReplayChecker() {
+    final InMemoryReplayChecker checker = new InMemoryReplayChecker();
+    checker.setReplayCacheExpiration(this.replayTtl.toMillis());
+    return checker;
+  }
+
+}
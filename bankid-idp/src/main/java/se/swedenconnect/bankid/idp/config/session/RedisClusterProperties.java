@@ -20,6 +20,7 @@ import java.util.stream.Collectors;
 
 import org.redisson.api.HostPortNatMapper;
 import org.redisson.api.NatMapper;
+import org.redisson.config.ReadMode;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
@@ -27,7 +28,8 @@ import lombok.Getter;
 import lombok.Setter;
 
 /**
- * Class for containing additional redis cluster properties.
+ * Class for containing additional redis cluster properties. The properties apply to both Redis Cluster and Redis
+ * Sentinel setups.
  *
  * @author Martin Lindström
  * @author Felix Hellman
@@ -41,11 +43,23 @@ public class RedisClusterProperties implements InitializingBean {
   @Setter
   private List<NatTranslationEntry> natTranslation;
 
+  /**
+   * The read mode for lookups that tolerate slightly stale data, for example the previous device selection. Possible
+   * values are {@code MASTER}, {@code SLAVE} and {@code MASTER_SLAVE}. All other reads are always made against the
+   * master. The default is {@code MASTER}.
+   */
+  @Getter
+  @Setter
+  private ReadMode readMode = ReadMode.MASTER;
+
   /**
    * Creates a {@link NatMapper} given the configuration.
    * @return a {@link NatMapper}
    */
   public NatMapper createNatMapper() {
+    if (this.natTranslation == null || this.natTranslation.isEmpty()) {
+      return NatMapper.direct();
+    }
     final HostPortNatMapper mapper = new HostPortNatMapper();
     mapper.setHostsPortMap(this.natTranslation.stream()
         .collect(Collectors.toMap(NatTranslationEntry::getFrom, NatTranslationEntry::getTo)));
@@ -61,6 +75,9 @@ public class RedisClusterProperties implements InitializingBean {
         Assert.hasText(entry.getFrom(), "Invalid NAT translation configuration - 'from' is required");
       }
     }
+    if (this.readMode == null) {
+      this.readMode = ReadMode.MASTER;
+    }
   }
 
   /**
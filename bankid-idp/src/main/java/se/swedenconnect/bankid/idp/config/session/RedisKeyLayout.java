@@ -0,0 +1,175 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.config.session;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Defines the names of the keys that the BankID IdP uses when storing data in Redis.
+ * <p>
+ * Keys that belong to a user session are tagged with the session ID using a Redis Cluster hash tag
+ * ({@code {sessionId}}). This means that all keys for a session are stored in the same cluster slot, which makes
+ * multi-key operations on a session possible. Global structures, such as audit events and the message replay cache,
+ * are sharded over a number of keys where each key has its own hash tag, so that the structures are distributed over
+ * several slots.
+ * </p>
+ * <p>
+ * For migration from the previous (untagged and unsharded) key layout, the layout may be configured to also read the
+ * legacy keys. This should be enabled during the upgrade of a running installation and may be turned off once the
+ * data stored under the legacy keys has expired (or is no longer needed).
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class RedisKeyLayout {
+
+  /** The default number of shards for global structures. */
+  public static final int DEFAULT_SHARDS = 16;
+
+  /** The number of shards for global structures. */
+  private final int shards;
+
+  /** Whether legacy keys should be read. */
+  private final boolean readLegacyKeys;
+
+  /**
+   * Constructor creating a layout with {@value #DEFAULT_SHARDS} shards that does not read legacy keys.
+   */
+  public RedisKeyLayout() {
+    this(DEFAULT_SHARDS, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param shards the number of shards for global structures
+   * @param readLegacyKeys whether legacy (unsharded) keys should be read
+   */
+  public RedisKeyLayout(final int shards, final boolean readLegacyKeys) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("shards must be at least 1");
+    }
+    this.shards = shards;
+    this.readLegacyKeys = readLegacyKeys;
+  }
+
+  /**
+   * Gets the key for the hash holding the BankID session data for the given session.
+   *
+   * @param sessionId the session ID
+   * @return the key
+   */
+  public String getSessionKey(final String sessionId) {
+    return "session:%s".formatted(hashTag(sessionId));
+  }
+
+  /**
+   * Gets the key for an object that belongs to a session but is stored outside of the session hash. The key carries
+   * the same hash tag as the session hash and therefore maps to the same slot.
+   *
+   * @param sessionId the session ID
+   * @param name the object name
+   * @return the key
+   */
+  public String getSessionObjectKey(final String sessionId, final String name) {
+    return "%s:%s".formatted(this.getSessionKey(sessionId), name);
+  }
+
+  /**
+   * Gets the key for a lock that guards a resource of a session. The key carries the same hash tag as the session hash
+   * and therefore maps to the same slot.
+   *
+   * @param resource the guarded resource, for example a path
+   * @param sessionId the session ID
+   * @return the key
+   */
+  public String getSessionLockKey(final String resource, final String sessionId) {
+    return "lock:%s:%s".formatted(resource, hashTag(sessionId));
+  }
+
+  /**
+   * Gets the key for a sharded structure given a discriminator. The same discriminator always maps to the same shard.
+   *
+   * @param name the name of the structure
+   * @param discriminator the discriminator, for example an ID
+   * @return the key
+   */
+  public String getShardKey(final String name, final String discriminator) {
+    return this.getShardKey(name, this.getShard(discriminator));
+  }
+
+  /**
+   * Gets the shard number for the given discriminator.
+   *
+   * @param discriminator the discriminator, for example an ID
+   * @return the shard number
+   */
+  public int getShard(final String discriminator) {
+    return Math.floorMod(discriminator.hashCode(), this.shards);
+  }
+
+  /**
+   * Gets the key for the given shard of a sharded structure.
+   *
+   * @param name the name of the structure
+   * @param shard the shard number (modulo the number of shards is applied)
+   * @return the key
+   */
+  public String getShardKey(final String name, final int shard) {
+    return "%s:%s".formatted(name, hashTag(Integer.toString(Math.floorMod(shard, this.shards))));
+  }
+
+  /**
+   * Gets the keys for all shards of a sharded structure.
+   *
+   * @param name the name of the structure
+   * @return a list of keys
+   */
+  public List<String> getShardKeys(final String name) {
+    return IntStream.range(0, this.shards).mapToObj(i -> this.getShardKey(name, i)).toList();
+  }
+
+  /**
+   * Gets the number of shards for global structures.
+   *
+   * @return the number of shards
+   */
+  public int getShards() {
+    return this.shards;
+  }
+
+  /**
+   * Tells whether legacy (unsharded) keys should be read.
+   *
+   * @return {@code true} if legacy keys should be read and {@code false} otherwise
+   */
+  public boolean isReadLegacyKeys() {
+    return this.readLegacyKeys;
+  }
+
+  /**
+   * Creates a Redis Cluster hash tag for the supplied value.
+   *
+   * @param value the value
+   * @return the hash tag
+   */
+  public static String hashTag(final String value) {
+    return "{%s}".formatted(value);
+  }
+
+}
@@ -18,9 +18,12 @@ package se.swedenconnect.bankid.idp.config.session;
 import java.io.IOException;
 import java.time.Duration;
 
+import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.BaseConfig;
+import org.redisson.config.BaseMasterSlaveServersConfig;
 import org.redisson.config.Config;
+import org.redisson.config.ReadMode;
 import org.redisson.spring.starter.RedissonAutoConfiguration;
 import org.redisson.spring.starter.RedissonAutoConfigurationCustomizer;
 import org.springframework.beans.factory.annotation.Value;
@@ -32,13 +35,20 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.Setter;
 import se.swedenconnect.bankid.idp.authn.session.RedisSessionDao;
 import se.swedenconnect.bankid.idp.authn.session.SessionDao;
+import se.swedenconnect.bankid.idp.concurrency.InMemoryTryLockRepository;
 import se.swedenconnect.bankid.idp.concurrency.RedisTryLockRepository;
 import se.swedenconnect.bankid.idp.concurrency.TryLockRepository;
+import se.swedenconnect.bankid.idp.concurrency.TwoTierTryLockRepository;
+import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties;
+import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties.SessionConfiguration.RedisKeysConfiguration;
+import se.swedenconnect.bankid.idp.config.BankIdConfigurationProperties.SessionConfiguration.ReplayFilterConfiguration;
 import se.swedenconnect.bankid.idp.config.RedisTlsProperties;
 import se.swedenconnect.bankid.idp.ext.RedisReplayChecker;
+import se.swedenconnect.bankid.idp.ext.ReplayFilter;
 
 /**
  * Redis session security configuration.
@@ -102,24 +112,70 @@ public class RedisSessionConfiguration {
       return RedissonAddressCustomizers.clusterServerCustomizer.apply(config.useClusterServers(), clusterProperties);
     }
     if (config.isSentinelConfig()) {
-      throw new IllegalArgumentException("Sentinel Configuration is not implementend");
+      return RedissonAddressCustomizers.sentinelServerCustomizer.apply(config.useSentinelServers(), clusterProperties);
     }
     throw new IllegalStateException("Could not determine configuration type");
   }
 
+  private static BaseMasterSlaveServersConfig<?> getMasterSlaveConfiguration(final Config config) {
+    if (config.isClusterConfig()) {
+      return config.useClusterServers();
+    }
+    if (config.isSentinelConfig()) {
+      return config.useSentinelServers();
+    }
+    return null;
+  }
+
   @Bean
-  TryLockRepository repository(final RedissonClient client) {
-    return new RedisTryLockRepository(client);
+  TryLockRepository repository(final RedissonClient client, final MeterRegistry meterRegistry,
+      final BankIdConfigurationProperties properties) {
+    // The sessions use the default maximum inactive interval of @EnableRedisHttpSession (30 minutes), which is also
+    // the default TTL of the fencing counters ...
+    final TryLockRepository distributed = new RedisTryLockRepository(client, RedisTryLockRepository.DEFAULT_LEASE_TIME,
+        RedisTryLockRepository.DEFAULT_FENCE_TTL, meterRegistry);
+    if (!properties.getSession().isLockAffinity()) {
+      return distributed;
+    }
+    return new TwoTierTryLockRepository(new InMemoryTryLockRepository(), distributed, client,
+        TwoTierTryLockRepository.DEFAULT_AFFINITY_LEASE, RedisTryLockRepository.DEFAULT_LEASE_TIME,
+        RedisTryLockRepository.DEFAULT_FENCE_TTL);
+  }
+
+  @Bean
+  RedisKeyLayout redisKeyLayout(final BankIdConfigurationProperties properties) {
+    final RedisKeysConfiguration keys = properties.getSession().getRedisKeys();
+    return new RedisKeyLayout(keys.getShards(), keys.isReadLegacyKeys());
   }
 
   @Bean
-  SessionDao redisSessionDao(final RedissonClient client) {
-    return new RedisSessionDao(client);
+  SessionDao redisSessionDao(final RedissonClient client, final RedisClusterProperties clusterProperties,
+      final RedisKeyLayout keyLayout) {
+    final ReadMode readMode = clusterProperties.getReadMode();
+    if (readMode == null || readMode == ReadMode.MASTER) {
+      return new RedisSessionDao(client, null, keyLayout);
+    }
+    // Lookups that tolerate stale data are made using a separate client that reads according to the configured
+    // read mode. All other reads are made by the default client (against the master) ...
+    //
+    final Config config = new Config(client.getConfig());
+    final BaseMasterSlaveServersConfig<?> masterSlaveConfig = getMasterSlaveConfiguration(config);
+    if (masterSlaveConfig == null) {
+      return new RedisSessionDao(client, null, keyLayout);
+    }
+    masterSlaveConfig.setReadMode(readMode);
+    return new RedisSessionDao(client, Redisson.create(config), keyLayout);
   }
 
   @Bean
-  RedisReplayChecker redisReplayChecker(final RedissonClient client) {
-    final RedisReplayChecker checker = new RedisReplayChecker(client);
+  RedisReplayChecker redisReplayChecker(final RedissonClient client, final RedisKeyLayout keyLayout,
+      final BankIdConfigurationProperties properties, final MeterRegistry meterRegistry) {
+    final ReplayFilterConfiguration filterConfiguration = properties.getSession().getReplayFilter();
+    final ReplayFilter filter = filterConfiguration.isEnabled()
+        ? new ReplayFilter(this.replayTtl, filterConfiguration.getExpectedIds(),
+            filterConfiguration.getFalsePositiveRate())
+        : null;
+    final RedisReplayChecker checker = new RedisReplayChecker(client, keyLayout, filter, meterRegistry);
     checker.setReplayCacheExpiration(this.replayTtl);
     return checker;
   }
@@ -21,6 +21,7 @@ import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.redisson.config.ClusterServersConfig;
+import org.redisson.config.SentinelServersConfig;
 import org.redisson.config.SingleServerConfig;
 
 /**
@@ -46,6 +47,21 @@ public class RedissonAddressCustomizers {
         return config;
       };
 
+  public static BiFunction<SentinelServersConfig, RedisClusterProperties, SentinelServersConfig> sentinelServerCustomizer =
+      (config, clusterProperties) -> {
+        List<String> addresses = new ArrayList<>();
+        config.getSentinelAddresses().forEach(address -> {
+          String addr = address;
+          if (address.contains("redis://")) {
+            addr = address.replace("redis://", "rediss://");
+          }
+          addresses.add(addr);
+        });
+        config.setSentinelAddresses(addresses);
+        config.setNatMapper(clusterProperties.createNatMapper());
+        return config;
+      };
+
   public static Function<SingleServerConfig, SingleServerConfig> singleServerSslCustomizer = (s) -> {
     String redisAddress = s.getAddress();
     if (redisAddress.contains("redis://")) {
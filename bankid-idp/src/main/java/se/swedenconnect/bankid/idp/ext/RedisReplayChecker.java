@@ -15,43 +15,187 @@
  */
 package se.swedenconnect.bankid.idp.ext;
 
-import java.time.Instant;
-import java.util.Collection;
 import java.util.Objects;
-import java.util.SortedSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
-import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RBucket;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
 import se.swedenconnect.spring.saml.idp.authnrequest.validation.AbstractMessageReplayChecker;
 
 /**
- * ReplayChecker using two Redis sorted set. One for replays and one for expiration.
+ * ReplayChecker storing each ID under its own Redis key that expires when the replay cache expiration time has passed.
+ * <p>
+ * The check is made using {@code SET key 1 NX PX ttl}, i.e., the ID is checked and added in one atomic operation (and
+ * one round trip). {@link #addToCache(String)} is therefore a no-op for an ID that was added by the preceding
+ * {@link #existsInCache(String)} call on the same thread.
+ * </p>
+ * <p>
+ * The keys are sharded according to the {@link RedisKeyLayout}, where the ID determines the shard.
+ * </p>
+ * <p>
+ * If a {@link ReplayFilter} is given, IDs are also looked up in the filter. The filter never decides the outcome: a
+ * node's filter is empty after a restart and is only kept in sync with the other nodes over pub/sub (the topic
+ * {@value #FILTER_TOPIC_NAME}), which has no delivery guarantee, and a positive answer may be false. The atomic
+ * {@code SET NX} against Redis is therefore always made, and the filter answer is only compared with it so that the
+ * effectiveness of the filter can be monitored. The filter is not used when legacy keys are read.
+ * </p>
+ * <p>
+ * The filter lookups are counted by {@value #FILTER_LOOKUP_COUNTER_NAME}, tagged with the result ("miss", "hit",
+ * "false-positive" or "stale-miss", where the latter is an ID that the filter had not seen but that Redis had). The
+ * memory used by the filter and its estimated false positive rate are exposed as the gauges
+ * {@value #FILTER_MEMORY_GAUGE_NAME} and {@value #FILTER_FPP_GAUGE_NAME}.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
  */
+@Slf4j
 public class RedisReplayChecker extends AbstractMessageReplayChecker {
 
+  /** The name of the topic where IDs added to the filter are published. */
+  public static final String FILTER_TOPIC_NAME = "replaychecker:filter";
+
+  /** The name of the counter for filter lookups. */
+  public static final String FILTER_LOOKUP_COUNTER_NAME = "bankid.replay.filter.lookups";
+
+  /** The name of the gauge for the memory used by the filter. */
+  public static final String FILTER_MEMORY_GAUGE_NAME = "bankid.replay.filter.memory";
+
+  /** The name of the gauge for the estimated false positive rate of the filter. */
+  public static final String FILTER_FPP_GAUGE_NAME = "bankid.replay.filter.fpp";
+
+  /** The prefix for the ID keys (and the name of the legacy sorted sets). */
+  private static final String REPLAY_SET_NAME = "replaychecker";
+
+  /** The value stored for each ID. */
+  private static final String ENTRY_VALUE = "1";
+
   /** The client for redisson. */
   private final RedissonClient client;
 
+  /** The Redis key layout. */
+  private final RedisKeyLayout keyLayout;
+
+  /** The ID that was added to the cache by the last call to {@link #existsInCache(String)} on this thread. */
+  private final ThreadLocal<String> addedByCheck = new ThreadLocal<>();
+
+  /** The local filter (may be {@code null}). */
+  private final ReplayFilter filter;
+
+  /** The topic where IDs added to the filter are published (may be {@code null}). */
+  private final RTopic filterTopic;
+
+  /** Counter for IDs that were definitely not in the filter. */
+  private final Counter filterMisses;
+
+  /** Counter for IDs that were in the filter and in Redis. */
+  private final Counter filterHits;
+
+  /** Counter for IDs that were in the filter but not in Redis. */
+  private final Counter filterFalsePositives;
+
+  /** Counter for IDs that were not in the filter but in Redis. */
+  private final Counter filterStaleMisses;
+
   /**
    * Constructor.
    *
    * @param client the Redis client
    */
   public RedisReplayChecker(final RedissonClient client) {
+    this(client, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   */
+  public RedisReplayChecker(final RedissonClient client, final RedisKeyLayout keyLayout) {
+    this(client, keyLayout, null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param client the Redis client
+   * @param keyLayout the Redis key layout (if {@code null}, a default {@link RedisKeyLayout} is used)
+   * @param filter the local filter (if {@code null}, no filter is used)
+   * @param meterRegistry the meter registry for the filter metrics (if {@code null}, the global registry is used)
+   */
+  public RedisReplayChecker(final RedissonClient client, final RedisKeyLayout keyLayout, final ReplayFilter filter,
+      final MeterRegistry meterRegistry) {
     this.client = Objects.requireNonNull(client, "client must not be null");
+    this.keyLayout = Optional.ofNullable(keyLayout).orElseGet(RedisKeyLayout::new);
+    this.filter = filter;
+    if (this.filter == null) {
+      this.filterTopic = null;
+      this.filterMisses = null;
+      this.filterHits = null;
+      this.filterFalsePositives = null;
+      this.filterStaleMisses = null;
+      return;
+    }
+    this.filterTopic = this.client.getTopic(FILTER_TOPIC_NAME, StringCodec.INSTANCE);
+    this.filterTopic.addListener(String.class, (channel, id) -> this.filter.put(id));
+
+    final MeterRegistry registry = Optional.ofNullable(meterRegistry).orElse(Metrics.globalRegistry);
+    this.filterMisses = createLookupCounter(registry, "miss");
+    this.filterHits = createLookupCounter(registry, "hit");
+    this.filterFalsePositives = createLookupCounter(registry, "false-positive");
+    this.filterStaleMisses = createLookupCounter(registry, "stale-miss");
+    Gauge.builder(FILTER_MEMORY_GAUGE_NAME, this.filter, ReplayFilter::getMemoryBytes)
+        .description("Memory used by the replay filter")
+        .baseUnit("bytes")
+        .register(registry);
+    Gauge.builder(FILTER_FPP_GAUGE_NAME, this.filter, ReplayFilter::getEstimatedFalsePositiveRate)
+        .description("Estimated false positive rate of the replay filter")
+        .register(registry);
   }
 
   /**
-   * {@inheritDoc}
+   * Checks whether the ID exists in the cache, and if not, adds it.
    */
   @Override
   protected boolean existsInCache(final String s) {
-    this.removeExpired();
-    return this.getRedisSortedSet().contains(s);
+    this.addedByCheck.remove();
+    if (this.keyLayout.isReadLegacyKeys() && this.existsInLegacyCache(s)) {
+      return true;
+    }
+    final boolean useFilter = this.filter != null && !this.keyLayout.isReadLegacyKeys();
+    final boolean inFilter = useFilter && this.filter.mightContain(s);
+
+    // The Redis check is authoritative and is always made.
+    if (this.getBucket(s).trySet(ENTRY_VALUE, this.replayCacheExpiration.toMillis(), TimeUnit.MILLISECONDS)) {
+      if (useFilter) {
+        (inFilter ? this.filterFalsePositives : this.filterMisses).increment();
+      }
+      this.addToFilter(s);
+      this.addedByCheck.set(s);
+      return false;
+    }
+    if (useFilter) {
+      if (inFilter) {
+        this.filterHits.increment();
+      }
+      else {
+        log.debug("Message ID {} was not in the replay filter but found in the replay cache", s);
+        this.filterStaleMisses.increment();
+        this.filter.put(s);
+      }
+    }
+    return true;
   }
 
   /**
@@ -59,44 +203,61 @@ public class RedisReplayChecker extends AbstractMessageReplayChecker {
    */
   @Override
   protected void addToCache(final String s) {
-    this.removeExpired();
-    this.addEntry(s);
+    final String added = this.addedByCheck.get();
+    this.addedByCheck.remove();
+    if (!s.equals(added)) {
+      this.getBucket(s).set(ENTRY_VALUE, this.replayCacheExpiration.toMillis(), TimeUnit.MILLISECONDS);
+      this.addToFilter(s);
+    }
   }
 
   /**
-   * @param s id to add
+   * Adds an ID to the local filter and publishes it to the other nodes.
+   *
+   * @param s the ID
    */
-
-  private void addEntry(final String s) {
-    final SortedSet<String> redisSortedSet = this.getRedisSortedSet();
-    final RScoredSortedSet<String> expirationsSortedSet = this.getExpirationsSortedSet();
-    redisSortedSet.add(s);
-    expirationsSortedSet.add(Instant.now().plus(this.replayCacheExpiration).getEpochSecond(), s);
+  private void addToFilter(final String s) {
+    if (this.filter == null) {
+      return;
+    }
+    this.filter.put(s);
+    this.filterTopic.publishAsync(s);
   }
 
   /**
-   * Remove all entries that has expired
+   * Creates a counter for filter lookups.
+   *
+   * @param registry the meter registry
+   * @param result the lookup result
+   * @return a counter
    */
-  private void removeExpired() {
-    final SortedSet<String> redisSortedSet = this.getRedisSortedSet();
-    final RScoredSortedSet<String> expirationsSortedSet = this.getExpirationsSortedSet();
-    final Collection<String> expiredEntries =
-        expirationsSortedSet.valueRange(Instant.EPOCH.getEpochSecond(), true, Instant.now().getEpochSecond(), true);
-    expirationsSortedSet.removeAll(expiredEntries);
-    redisSortedSet.removeAll(expiredEntries);
+  private static Counter createLookupCounter(final MeterRegistry registry, final String result) {
+    return Counter.builder(FILTER_LOOKUP_COUNTER_NAME)
+        .description("Lookups in the replay filter")
+        .tag("result", result)
+        .register(registry);
   }
 
-  /*
-   * Method that returns the sorted set used for the replay checker
+  /**
+   * During migration, IDs may have been stored in the sorted sets used by earlier versions. Expired entries are not
+   * removed from these sets, but since the sets are no longer written they will soon become unused.
+   *
+   * @param s the ID
+   * @return {@code true} if the ID is found in the legacy sets
    */
-  private SortedSet<String> getRedisSortedSet() {
-    return this.client.getLexSortedSet("replaychecker");
+  private boolean existsInLegacyCache(final String s) {
+    return this.client.getLexSortedSet(this.keyLayout.getShardKey(REPLAY_SET_NAME, s)).contains(s)
+        || this.client.getLexSortedSet(REPLAY_SET_NAME).contains(s);
   }
 
-  /*
-   * Method that returns time to live for replaychecker
+  /**
+   * Gets the bucket for an ID.
+   *
+   * @param s the ID
+   * @return the bucket
    */
-  private RScoredSortedSet<String> getExpirationsSortedSet() {
-    return this.client.getScoredSortedSet("replaychecker_ttl");
+  private RBucket<String> getBucket(final String s) {
+    return this.client.getBucket("%s:%s".formatted(this.keyLayout.getShardKey(REPLAY_SET_NAME, s), s),
+        StringCodec.INSTANCE);
   }
 }
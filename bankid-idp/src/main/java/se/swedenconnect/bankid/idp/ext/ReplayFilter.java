@@ -0,0 +1,280 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.ext;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A time-partitioned Bloom filter used in front of a replay cache.
+ * <p>
+ * The filter consists of two generations, each covering one window of the replay cache expiration time. IDs are added
+ * to the current generation and looked up in both generations. When a window has passed, the previous generation is
+ * dropped and the current generation becomes the previous one. An ID is therefore kept in the filter for at least the
+ * window time.
+ * </p>
+ * <p>
+ * A negative answer from {@link #mightContain(String)} is definite, while a positive answer may be false.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class ReplayFilter {
+
+  /** The window time. */
+  private final long windowMillis;
+
+  /** The expected number of IDs per window. */
+  private final long expectedInsertions;
+
+  /** The wanted false positive probability. */
+  private final double falsePositiveProbability;
+
+  /** The clock. */
+  private final Clock clock;
+
+  /** The current generation. */
+  private volatile BloomFilter current;
+
+  /** The previous generation. */
+  private volatile BloomFilter previous;
+
+  /** The start of the window of the current generation. */
+  private volatile long windowStart;
+
+  /**
+   * Constructor.
+   *
+   * @param window the window time (the replay cache expiration time)
+   * @param expectedInsertions the expected number of IDs per window
+   * @param falsePositiveProbability the wanted false positive probability (0 < p < 1)
+   */
+  public ReplayFilter(final Duration window, final long expectedInsertions, final double falsePositiveProbability) {
+    this(window, expectedInsertions, falsePositiveProbability, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param window the window time (the replay cache expiration time)
+   * @param expectedInsertions the expected number of IDs per window
+   * @param falsePositiveProbability the wanted false positive probability (0 < p < 1)
+   * @param clock the clock
+   */
+  ReplayFilter(final Duration window, final long expectedInsertions, final double falsePositiveProbability,
+      final Clock clock) {
+    if (window == null || window.isNegative() || window.isZero()) {
+      throw new IllegalArgumentException("window must be positive");
+    }
+    if (expectedInsertions < 1) {
+      throw new IllegalArgumentException("expectedInsertions must be positive");
+    }
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException("falsePositiveProbability must be between 0 and 1");
+    }
+    this.windowMillis = window.toMillis();
+    this.expectedInsertions = expectedInsertions;
+    this.falsePositiveProbability = falsePositiveProbability;
+    this.clock = Objects.requireNonNull(clock, "clock must not be null");
+    this.current = this.createFilter();
+    this.previous = this.createFilter();
+    this.windowStart = this.clock.millis();
+  }
+
+  /**
+   * Tells whether the ID might have been added to the filter.
+   *
+   * @param id the ID
+   * @return {@code false} if the ID has definitely not been added within the window time, and {@code true} if it might
+   *         have been added
+   */
+  public boolean mightContain(final String id) {
+    this.rotateIfNeeded();
+    final long[] hashes = hash(id);
+    return this.current.mightContain(hashes) || this.previous.mightContain(hashes);
+  }
+
+  /**
+   * Adds an ID to the filter.
+   *
+   * @param id the ID
+   */
+  public void put(final String id) {
+    this.rotateIfNeeded();
+    this.current.put(hash(id));
+  }
+
+  /**
+   * Gets the number of bytes used by the filter.
+   *
+   * @return the memory size in bytes
+   */
+  public long getMemoryBytes() {
+    return this.current.getMemoryBytes() + this.previous.getMemoryBytes();
+  }
+
+  /**
+   * Gets the estimated false positive rate of a lookup, based on how many bits that are set in the two generations.
+   *
+   * @return the estimated false positive rate
+   */
+  public double getEstimatedFalsePositiveRate() {
+    final double current = this.current.getEstimatedFalsePositiveRate();
+    final double previous = this.previous.getEstimatedFalsePositiveRate();
+    return 1 - (1 - current) * (1 - previous);
+  }
+
+  /**
+   * Rotates the generations if the window of the current generation has passed.
+   */
+  private void rotateIfNeeded() {
+    final long now = this.clock.millis();
+    if (now - this.windowStart < this.windowMillis) {
+      return;
+    }
+    synchronized (this) {
+      if (now - this.windowStart >= 2 * this.windowMillis) {
+        this.previous = this.createFilter();
+        this.current = this.createFilter();
+        this.windowStart = now;
+      }
+      else if (now - this.windowStart >= this.windowMillis) {
+        this.previous = this.current;
+        this.current = this.createFilter();
+        this.windowStart += this.windowMillis;
+      }
+    }
+  }
+
+  /**
+   * Creates a Bloom filter sized for the expected number of insertions and false positive probability.
+   *
+   * @return a {@link BloomFilter}
+   */
+  private BloomFilter createFilter() {
+    final double ln2 = Math.log(2);
+    final long bits = Math.max(64,
+        (long) Math.ceil(-this.expectedInsertions * Math.log(this.falsePositiveProbability) / (ln2 * ln2)));
+    final int hashFunctions = Math.max(1, (int) Math.round((double) bits / this.expectedInsertions * ln2));
+    return new BloomFilter(bits, hashFunctions);
+  }
+
+  /**
+   * Calculates two independent 64-bit hashes for an ID (used for double hashing).
+   *
+   * @param id the ID
+   * @return two hashes
+   */
+  private static long[] hash(final String id) {
+    final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+    long h1 = 0xcbf29ce484222325L;
+    for (final byte b : bytes) {
+      h1 ^= b;
+      h1 *= 0x100000001b3L;
+    }
+    return new long[] { mix(h1), mix(h1 ^ 0x9e3779b97f4a7c15L) };
+  }
+
+  /**
+   * Mixes the bits of a hash (the finalizer of SplitMix64).
+   *
+   * @param value the value
+   * @return the mixed value
+   */
+  private static long mix(final long value) {
+    long z = value;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * A thread safe Bloom filter.
+   */
+  private static class BloomFilter {
+
+    /** The bits. */
+    private final AtomicLongArray words;
+
+    /** The number of bits. */
+    private final long bitCount;
+
+    /** The number of hash functions. */
+    private final int hashFunctions;
+
+    /** The number of bits that are set. */
+    private final AtomicLong setBits = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param bits the number of bits
+     * @param hashFunctions the number of hash functions
+     */
+    BloomFilter(final long bits, final int hashFunctions) {
+      this.words = new AtomicLongArray((int) ((bits + 63) / 64));
+      this.bitCount = this.words.length() * 64L;
+      this.hashFunctions = hashFunctions;
+    }
+
+    boolean mightContain(final long[] hashes) {
+      for (int i = 0; i < this.hashFunctions; i++) {
+        final long bit = this.bitIndex(hashes, i);
+        if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void put(final long[] hashes) {
+      for (int i = 0; i < this.hashFunctions; i++) {
+        final long bit = this.bitIndex(hashes, i);
+        final int index = (int) (bit >>> 6);
+        final long mask = 1L << bit;
+        long word;
+        do {
+          word = this.words.get(index);
+          if ((word & mask) != 0) {
+            break;
+          }
+        }
+        while (!this.words.compareAndSet(index, word, word | mask));
+        if ((word & mask) == 0) {
+          this.setBits.incrementAndGet();
+        }
+      }
+    }
+
+    long getMemoryBytes() {
+      return this.words.length() * 8L;
+    }
+
+    double getEstimatedFalsePositiveRate() {
+      return Math.pow((double) this.setBits.get() / this.bitCount, this.hashFunctions);
+    }
+
+    private long bitIndex(final long[] hashes, final int i) {
+      return Math.floorMod(hashes[0] + i * hashes[1], this.bitCount);
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.observation;
+
+import java.util.Objects;
+
+import io.micrometer.common.KeyValues;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.contextpropagation.ObservationThreadLocalAccessor;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.ContextView;
+
+/**
+ * Names of, and support for, the observations made when processing BankID requests. The observations are reported as
+ * spans if tracing is enabled, and as timers by the meter registry.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public final class BankIdObservations {
+
+  /** The processing of a poll request. */
+  public static final String POLL = "bankid.poll";
+
+  /** Acquiring the polling lock. */
+  public static final String POLL_LOCK = "bankid.poll.lock";
+
+  /** A call to the session data access object. */
+  public static final String SESSION = "bankid.session";
+
+  /** A call to the BankID server (including the circuit breaker). */
+  public static final String BANKID_CALL = "bankid.rp.call";
+
+  /** Resolving the status (message code) of an order from a collect response. */
+  public static final String STATUS = "bankid.poll.status";
+
+  /** Rendering the poll response, including the QR code. */
+  public static final String RENDER = "bankid.poll.render";
+
+  /** Invoking the listeners of a BankID event. */
+  public static final String EVENT = "bankid.event";
+
+  /**
+   * Wraps the supplied {@link Mono} so that an observation is started when the mono is subscribed to, and stopped when
+   * it terminates or is cancelled. The parent of the observation is the observation of the Reactor context, or if there
+   * is none, the observation that is current when this method is invoked (see {@link #getParent(ContextView,
+   * Observation)}). The observation is put in the Reactor context, so that observations made by the upstream (for
+   * example by a {@code WebClient}) become children of the observation.
+   *
+   * @param <T> the type of the mono
+   * @param mono the mono to observe
+   * @param name the observation name
+   * @param keyValues the low cardinality key values
+   * @param registry the observation registry
+   * @return the observed mono
+   */
+  public static <T> Mono<T> observe(final Mono<T> mono, final String name, final KeyValues keyValues,
+      final ObservationRegistry registry) {
+    Objects.requireNonNull(registry, "registry must not be null");
+    final Observation current = registry.getCurrentObservation();
+    return Mono.deferContextual(context -> {
+      final Observation observation = Observation.createNotStarted(name, registry)
+          .parentObservation(getParent(context, current))
+          .lowCardinalityKeyValues(keyValues)
+          .start();
+      return mono
+          .doOnError(observation::error)
+          .doFinally(signal -> {
+            if (signal == SignalType.CANCEL) {
+              observation.event(Observation.Event.of("cancel"));
+            }
+            observation.stop();
+          })
+          .contextWrite(context -> context.put(ObservationThreadLocalAccessor.KEY, observation));
+    });
+  }
+
+  /**
+   * Gets the parent for an observation made within a reactive chain. This is the observation put in the Reactor
+   * context by {@link #observe(Mono, String, KeyValues, ObservationRegistry)}, or if there is none, the supplied
+   * observation.
+   *
+   * @param context the Reactor context
+   * @param current the observation to use if the context does not hold an observation (may be {@code null})
+   * @return the parent observation, or {@code null}
+   */
+  public static Observation getParent(final ContextView context, final Observation current) {
+    return context.<Observation> getOrEmpty(ObservationThreadLocalAccessor.KEY).orElse(current);
+  }
+
+  // Hidden constructor
+  private BankIdObservations() {
+  }
+
+}
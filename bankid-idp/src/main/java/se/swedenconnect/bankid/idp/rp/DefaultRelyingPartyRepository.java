@@ -16,11 +16,18 @@
 package se.swedenconnect.bankid.idp.rp;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
  * Repository for relying parties.
+ * <p>
+ * The relying parties are indexed on their SAML entityID:s when the repository is created (or updated), so a lookup
+ * is a single hash lookup regardless of how many SP:s that are configured. A relying party that does not declare any
+ * entityID:s (only allowed in test mode) serves all SP:s and is held in a separate catch-all slot.
+ * </p>
  *
  * @author Martin Lindström
  * @author Felix Hellman
@@ -28,9 +35,9 @@ import java.util.Optional;
 public class DefaultRelyingPartyRepository implements RelyingPartyRepository {
 
   /**
-   * The configured relying parties.
+   * The index over the configured relying parties. Replaced as a whole on updates.
    */
-  private final List<RelyingPartyData> relyingParties;
+  private volatile Index index;
 
   /**
    * Constructor.
@@ -38,18 +45,54 @@ public class DefaultRelyingPartyRepository implements RelyingPartyRepository {
    * @param relyingParties the relying parties
    */
   public DefaultRelyingPartyRepository(final List<RelyingPartyData> relyingParties) {
-    this.relyingParties = Optional.ofNullable(relyingParties)
-        .map(Collections::unmodifiableList)
-        .orElseThrow(() -> new IllegalArgumentException("relyingParties must not be null"));
+    this.update(relyingParties);
   }
 
   /** {@inheritDoc} */
   @Override
   public RelyingPartyData getRelyingParty(final String entityId) {
-    return this.relyingParties.stream()
-        .filter(rp -> rp.matches(entityId))
-        .findFirst()
-        .orElse(null);
+    final Index current = this.index;
+    return Optional.ofNullable(current.relyingParties().get(entityId)).orElse(current.catchAll());
+  }
+
+  /**
+   * Replaces the configured relying parties. The new index is built before it is installed, so concurrent lookups
+   * see either the old or the new configuration, never a mix.
+   *
+   * @param relyingParties the relying parties
+   */
+  public void update(final List<RelyingPartyData> relyingParties) {
+    this.index = Optional.ofNullable(relyingParties)
+        .map(Index::of)
+        .orElseThrow(() -> new IllegalArgumentException("relyingParties must not be null"));
+  }
+
+  /**
+   * An immutable index from entityID to relying party.
+   *
+   * @param relyingParties the relying parties indexed on entityID
+   * @param catchAll the relying party serving all SP:s, or {@code null}
+   */
+  private record Index(Map<String, RelyingPartyData> relyingParties, RelyingPartyData catchAll) {
+
+    /**
+     * Builds an index giving the same result as testing {@link RelyingPartyData#matches(String)} on the relying
+     * parties in order, where the first match wins.
+     *
+     * @param relyingParties the relying parties
+     * @return the index
+     */
+    static Index of(final List<RelyingPartyData> relyingParties) {
+      final Map<String, RelyingPartyData> map = new HashMap<>();
+      for (final RelyingPartyData rp : relyingParties) {
+        if (rp.getEntityIds().isEmpty()) {
+          // Matches everything not claimed by an earlier relying party.
+          return new Index(Collections.unmodifiableMap(map), rp);
+        }
+        rp.getEntityIds().forEach(e -> map.putIfAbsent(e, rp));
+      }
+      return new Index(Collections.unmodifiableMap(map), null);
+    }
   }
 
 }
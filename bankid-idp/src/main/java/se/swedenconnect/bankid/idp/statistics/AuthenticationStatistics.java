@@ -0,0 +1,333 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.idp.authn.events.AbstractBankIdEvent;
+import se.swedenconnect.bankid.idp.authn.events.BankIdErrorEvent;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
+import se.swedenconnect.bankid.idp.authn.events.CollectResponseEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCancellationEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCompletionEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderResponseEvent;
+import se.swedenconnect.bankid.idp.authn.service.PollRequest;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
+import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.bankid.rpapi.types.ErrorCode;
+import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Maintains authentication statistics, per Relying Party, operation and device type, from the BankID events.
+ * <p>
+ * For each combination, the number of started orders, completions, cancellations and errors are counted, along with
+ * the hint codes received from the BankID server. A hint code is counted when it changes the progress of an order,
+ * not for every poll. The time from the start of the order to its completion is kept in a
+ * {@link SlidingWindowHistogram}.
+ * </p>
+ * <p>
+ * The counters are exposed as the Micrometer counters {@value #STARTS_METER_NAME}, {@value #COMPLETIONS_METER_NAME},
+ * {@value #CANCELS_METER_NAME}, {@value #ERRORS_METER_NAME} and {@value #HINTS_METER_NAME}, and percentiles of the
+ * completion time as the gauge {@value #COMPLETION_TIME_METER_NAME}. All statistics are also available through
+ * {@link #getStatistics()}.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Component
+public class AuthenticationStatistics {
+
+  /** The name of the counter for started orders. */
+  public static final String STARTS_METER_NAME = "bankid.statistics.starts";
+
+  /** The name of the counter for completed orders. */
+  public static final String COMPLETIONS_METER_NAME = "bankid.statistics.completions";
+
+  /** The name of the counter for cancelled orders. */
+  public static final String CANCELS_METER_NAME = "bankid.statistics.cancels";
+
+  /** The name of the counter for errors. */
+  public static final String ERRORS_METER_NAME = "bankid.statistics.errors";
+
+  /** The name of the counter for hint codes. */
+  public static final String HINTS_METER_NAME = "bankid.statistics.hints";
+
+  /** The name of the gauge for completion time percentiles. */
+  public static final String COMPLETION_TIME_METER_NAME = "bankid.statistics.completion.time";
+
+  /** The window of the completion time histograms. */
+  public static final Duration WINDOW = Duration.ofMinutes(15);
+
+  /** The device type for orders started using a QR code. */
+  public static final String DEVICE_QR = "qr";
+
+  /** The device type for orders started using autostart. */
+  public static final String DEVICE_AUTOSTART = "autostart";
+
+  /** The device type when unknown. */
+  public static final String DEVICE_UNKNOWN = "unknown";
+
+  /** The percentiles exposed as gauges for the completion time. */
+  private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+
+  /** The meter registry. */
+  private final MeterRegistry meterRegistry;
+
+  /** The statistics. */
+  private final Map<Key, Statistics> statistics = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param meterRegistry the meter registry
+   */
+  public AuthenticationStatistics(final MeterRegistry meterRegistry) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry must not be null");
+  }
+
+  /**
+   * Counts a started order.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleOrderResponse(final OrderResponseEvent event) {
+    final PollRequest request = event.getPollRequest();
+    this.get(event.getData(), request.getContext().getOperation(), request.getQr()).starts.increment();
+  }
+
+  /**
+   * Counts the hint code of a collect response, if it changes the progress of the order.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCollectResponse(final CollectResponseEvent event) {
+    final CollectResponse response = event.getCollectResponse();
+    if (response.getHintCode() == null) {
+      return;
+    }
+    final PollRequest request = event.getRequest();
+    final BankIdSessionData previous = Optional.ofNullable(request.getState())
+        .map(BankIdSessionState::getBankIdSessionData)
+        .orElse(null);
+    if (previous != null && previous.getOrderReference().equals(response.getOrderReference())
+        && previous.getStatus() == response.getProgressStatus()) {
+      return;
+    }
+    this.get(request.getRelyingPartyData(), request.getContext().getOperation(), request.getQr())
+        .getHint(getHintTag(response))
+        .increment();
+  }
+
+  /**
+   * Gets the tag value for the hint code of a collect response. The hint code is mapped to a known
+   * {@link ProgressStatus} or {@link ErrorCode}, so that an unexpected hint code from the BankID server does not create
+   * a new meter.
+   *
+   * @param response the collect response
+   * @return the tag value
+   */
+  private static String getHintTag(final CollectResponse response) {
+    final ErrorCode errorCode = response.getErrorCode();
+    if (errorCode != null) {
+      return errorCode.getValue();
+    }
+    return Optional.ofNullable(response.getProgressStatus()).orElse(ProgressStatus.UNKNOWN_HINTCODE).getValue();
+  }
+
+  /**
+   * Counts a completed order, and records its completion time.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCompletion(final OrderCompletionEvent event) {
+    final Statistics statistics = this.get(event);
+    statistics.completions.increment();
+    Optional.ofNullable(event.getSnapshot().getSessionData())
+        .map(BankIdSessionData::getStartTime)
+        .ifPresent(start -> statistics.completionTime.record(Duration.between(start, Instant.now())));
+  }
+
+  /**
+   * Counts a cancelled order.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCancel(final OrderCancellationEvent event) {
+    this.get(event).cancels.increment();
+  }
+
+  /**
+   * Counts an error.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleError(final BankIdErrorEvent event) {
+    this.get(event).errors.increment();
+  }
+
+  /**
+   * Gets the statistics for all Relying Parties, operations and device types that have been seen.
+   *
+   * @return a list of statistics entries
+   */
+  public List<StatisticsEntry> getStatistics() {
+    return this.statistics.entrySet().stream()
+        .sorted(Map.Entry.comparingByKey(Comparator.comparing(Key::rp)
+            .thenComparing(Key::operation)
+            .thenComparing(Key::device)))
+        .map(e -> e.getValue().toEntry(e.getKey()))
+        .toList();
+  }
+
+  private static Double toSeconds(final Duration duration) {
+    return duration != null ? duration.toMillis() / 1000.0 : null;
+  }
+
+  private Statistics get(final AbstractBankIdEvent event) {
+    final BankIdEventSnapshot snapshot = event.getSnapshot();
+    return this.get(event.getData(), snapshot.getOperation(),
+        Optional.ofNullable(snapshot.getSessionData()).map(BankIdSessionData::getShowQr).orElse(null));
+  }
+
+  private Statistics get(final RelyingPartyData data, final BankIdOperation operation, final Boolean qr) {
+    final Key key = new Key(
+        Optional.ofNullable(data).map(RelyingPartyData::getId).orElse("unknown"),
+        Optional.ofNullable(operation).map(BankIdOperation::getValue).orElse("unknown"),
+        qr == null ? DEVICE_UNKNOWN : qr ? DEVICE_QR : DEVICE_AUTOSTART);
+    return this.statistics.computeIfAbsent(key, k -> new Statistics(k, this.meterRegistry));
+  }
+
+  /**
+   * Statistics for one Relying Party, operation and device type.
+   *
+   * @param rp the Relying Party ID
+   * @param operation the operation
+   * @param device the device type ({@value AuthenticationStatistics#DEVICE_QR},
+   *          {@value AuthenticationStatistics#DEVICE_AUTOSTART} or {@value AuthenticationStatistics#DEVICE_UNKNOWN})
+   * @param starts the number of started orders
+   * @param completions the number of completed orders
+   * @param cancels the number of cancelled orders
+   * @param errors the number of errors
+   * @param hintCodes the number of times each hint code has been received
+   * @param completionTime the completion time within the window
+   */
+  public record StatisticsEntry(String rp, String operation, String device, long starts, long completions,
+      long cancels, long errors, Map<String, Long> hintCodes, CompletionTime completionTime) {
+  }
+
+  /**
+   * Percentiles of the completion time (in seconds) within the window.
+   *
+   * @param count the number of completions within the window
+   * @param p50 the median, or {@code null} if there are no completions
+   * @param p95 the 95th percentile, or {@code null} if there are no completions
+   * @param p99 the 99th percentile, or {@code null} if there are no completions
+   */
+  public record CompletionTime(long count, Double p50, Double p95, Double p99) {
+
+    static CompletionTime of(final SlidingWindowHistogram.Snapshot snapshot) {
+      return new CompletionTime(snapshot.getCount(), toSeconds(snapshot.getPercentile(0.5)),
+          toSeconds(snapshot.getPercentile(0.95)), toSeconds(snapshot.getPercentile(0.99)));
+    }
+  }
+
+  private record Key(String rp, String operation, String device) {
+  }
+
+  /**
+   * The counters for one key.
+   */
+  private static class Statistics {
+
+    private final LongAdder starts = new LongAdder();
+    private final LongAdder completions = new LongAdder();
+    private final LongAdder cancels = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Map<String, LongAdder> hints = new ConcurrentHashMap<>();
+    private final SlidingWindowHistogram completionTime = new SlidingWindowHistogram(WINDOW, 15);
+
+    private final Tags tags;
+    private final MeterRegistry meterRegistry;
+
+    Statistics(final Key key, final MeterRegistry meterRegistry) {
+      this.tags = Tags.of("rp", key.rp(), "operation", key.operation(), "device", key.device());
+      this.meterRegistry = meterRegistry;
+      this.register(STARTS_METER_NAME, "Started BankID orders", this.starts, this.tags);
+      this.register(COMPLETIONS_METER_NAME, "Completed BankID orders", this.completions, this.tags);
+      this.register(CANCELS_METER_NAME, "Cancelled BankID orders", this.cancels, this.tags);
+      this.register(ERRORS_METER_NAME, "BankID errors", this.errors, this.tags);
+      for (final double percentile : PERCENTILES) {
+        Gauge.builder(COMPLETION_TIME_METER_NAME, this.completionTime,
+            h -> Optional.ofNullable(toSeconds(h.snapshot().getPercentile(percentile))).orElse(0.0))
+            .description("Time from the start of a BankID order to its completion, within the last "
+                + WINDOW.toMinutes() + " minutes")
+            .baseUnit("seconds")
+            .tags(this.tags)
+            .tag("quantile", Double.toString(percentile))
+            .register(meterRegistry);
+      }
+    }
+
+    LongAdder getHint(final String hintCode) {
+      return this.hints.computeIfAbsent(hintCode, h -> {
+        final LongAdder counter = new LongAdder();
+        this.register(HINTS_METER_NAME, "Hint codes received from the BankID server", counter,
+            this.tags.and("hint", h));
+        return counter;
+      });
+    }
+
+    StatisticsEntry toEntry(final Key key) {
+      final Map<String, Long> hintCodes = new TreeMap<>();
+      this.hints.forEach((hint, counter) -> hintCodes.put(hint, counter.sum()));
+      return new StatisticsEntry(key.rp(), key.operation(), key.device(), this.starts.sum(), this.completions.sum(),
+          this.cancels.sum(), this.errors.sum(), hintCodes, CompletionTime.of(this.completionTime.snapshot()));
+    }
+
+    private void register(final String name, final String description, final LongAdder counter, final Tags tags) {
+      FunctionCounter.builder(name, counter, LongAdder::sum)
+          .description(description)
+          .tags(tags)
+          .register(this.meterRegistry);
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import java.util.List;
+import java.util.Objects;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint delivering the {@link AuthenticationStatistics}.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Component
+@Endpoint(id = "bankidstatistics")
+public class AuthenticationStatisticsEndpoint {
+
+  /** The statistics. */
+  private final AuthenticationStatistics statistics;
+
+  /**
+   * Constructor.
+   *
+   * @param statistics the statistics
+   */
+  public AuthenticationStatisticsEndpoint(final AuthenticationStatistics statistics) {
+    this.statistics = Objects.requireNonNull(statistics, "statistics must not be null");
+  }
+
+  /**
+   * Gets the statistics per Relying Party, operation and device type.
+   *
+   * @return a list of statistics entries
+   */
+  @ReadOperation
+  public List<AuthenticationStatistics.StatisticsEntry> statistics() {
+    return this.statistics.getStatistics();
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.idp.authn.events.AbstractBankIdEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCancellationEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCompletionEvent;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
+import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
+
+/**
+ * Records the duration of each phase of an operation, from the lifecycle times of the {@link BankIdSessionData}, when
+ * the operation is completed or cancelled.
+ * <p>
+ * The durations are recorded by the timer {@value #METER_NAME}, tagged with the phase, the outcome ("complete" or
+ * "cancel"), the Relying Party, the operation, the device type and the number of re-initiated orders. The phases are:
+ * </p>
+ * <ul>
+ * <li>{@code request} - from the SAML authentication request to the first poll (the issue instant is given by the SP,
+ * so this phase includes any clock skew).</li>
+ * <li>{@code order} - from the first poll until the BankID server responded to the latest order.</li>
+ * <li>{@code qr} - from the order until the first QR code was delivered. If the order has been re-initiated after the
+ * first QR code was delivered, this phase is not recorded, since the first QR code belongs to an earlier order.</li>
+ * <li>{@code user} - from the order until the user started to sign.</li>
+ * <li>{@code sign} - from when the user started to sign until the order was completed.</li>
+ * <li>{@code response} - from the completion of the order until the user was sent back to the SAML flow.</li>
+ * <li>{@code total} - from the first poll until the operation was completed or cancelled.</li>
+ * </ul>
+ * <p>
+ * The timers publish histograms with the buckets given by {@link #BUCKETS}, which are sized to the lifetime of a
+ * BankID operation. If tracing is active, the Prometheus registry adds exemplars to the histogram buckets.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Component
+public class LifecycleMetrics {
+
+  /** The name of the timer. */
+  public static final String METER_NAME = "bankid.lifecycle";
+
+  /** The histogram buckets. A BankID order is valid for a few minutes, and may be re-initiated. */
+  static final Duration[] BUCKETS = {
+      Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500), Duration.ofSeconds(1),
+      Duration.ofSeconds(2), Duration.ofSeconds(5), Duration.ofSeconds(10), Duration.ofSeconds(20),
+      Duration.ofSeconds(30), Duration.ofMinutes(1), Duration.ofMinutes(2), Duration.ofMinutes(3),
+      Duration.ofMinutes(5), Duration.ofMinutes(10) };
+
+  /** The highest re-init count that is tagged as is. Higher counts are tagged as this value followed by "+". */
+  private static final int MAX_REINIT_TAG = 3;
+
+  /** The meter registry. */
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * Constructor.
+   *
+   * @param meterRegistry the meter registry
+   */
+  public LifecycleMetrics(final MeterRegistry meterRegistry) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry must not be null");
+  }
+
+  /**
+   * Records the phases of a completed operation.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCompletion(final OrderCompletionEvent event) {
+    this.record(event, "complete");
+  }
+
+  /**
+   * Records the phases of a cancelled operation.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCancel(final OrderCancellationEvent event) {
+    this.record(event, "cancel");
+  }
+
+  private void record(final AbstractBankIdEvent event, final String outcome) {
+    final BankIdSessionData data = event.getSnapshot().getSessionData();
+    if (data == null) {
+      return;
+    }
+    final Tags tags = Tags.of(
+        "outcome", outcome,
+        "rp", Optional.ofNullable(event.getData()).map(RelyingPartyData::getId).orElse("unknown"),
+        "operation", Optional.ofNullable(data.getOperation()).map(BankIdOperation::getValue).orElse("unknown"),
+        "device", data.getShowQr() == null
+            ? AuthenticationStatistics.DEVICE_UNKNOWN
+            : data.getShowQr() ? AuthenticationStatistics.DEVICE_QR : AuthenticationStatistics.DEVICE_AUTOSTART,
+        "reinits", data.getReInitCount() > MAX_REINIT_TAG
+            ? MAX_REINIT_TAG + "+"
+            : Integer.toString(data.getReInitCount()));
+
+    phases(data, Instant.now()).forEach((phase, duration) -> Timer.builder(METER_NAME)
+        .description("The duration of each phase of a BankID operation")
+        .tags(tags)
+        .tag("phase", phase)
+        .serviceLevelObjectives(BUCKETS)
+        .register(this.meterRegistry)
+        .record(duration));
+  }
+
+  /**
+   * Calculates the duration of each phase of an operation. Phases whose start or end is not known are left out.
+   *
+   * @param data the session data
+   * @param now the time when the operation was completed or cancelled
+   * @return the phase durations, ordered by phase
+   */
+  static Map<String, Duration> phases(final BankIdSessionData data, final Instant now) {
+    final Map<String, Duration> phases = new LinkedHashMap<>();
+    addPhase(phases, "request", data.getAuthnRequestTime(), data.getFirstPollTime());
+    addPhase(phases, "order", data.getFirstPollTime(), data.getStartTime());
+    addPhase(phases, "qr", data.getStartTime(), data.getFirstQrTime());
+    addPhase(phases, "user", data.getStartTime(), data.getUserSignTime());
+    addPhase(phases, "sign", data.getUserSignTime(), data.getCompleteTime());
+    addPhase(phases, "response", data.getCompleteTime(), data.getCompleteTime() != null ? now : null);
+    addPhase(phases, "total", data.getFirstPollTime(), now);
+    return phases;
+  }
+
+  private static void addPhase(final Map<String, Duration> phases, final String phase, final Instant start,
+      final Instant end) {
+    // An end before the start means that the end belongs to an earlier order (see the qr phase) ...
+    if (start != null && end != null && !end.isBefore(start)) {
+      phases.put(phase, Duration.between(start, end));
+    }
+  }
+
+}
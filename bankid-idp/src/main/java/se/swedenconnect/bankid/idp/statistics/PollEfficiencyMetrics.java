@@ -0,0 +1,207 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.servlet.http.HttpSession;
+import se.swedenconnect.bankid.idp.authn.events.AbstractBankIdEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCancellationEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCompletionEvent;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
+import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
+
+/**
+ * Records how efficiently an operation was polled, when the operation is completed or cancelled.
+ * <p>
+ * The distribution summary {@value #METER_NAME} is tagged with the Relying Party, the outcome ("complete" or "cancel")
+ * and the type of count:
+ * </p>
+ * <ul>
+ * <li>{@code served} - the number of poll requests that were served, including those that were coalesced with a poll
+ * in progress.</li>
+ * <li>{@code state-change} - the number of poll requests that changed the state of the operation.</li>
+ * <li>{@code rejected} - the number of poll requests that were rejected (HTTP status 429) since a poll for the same
+ * session was in progress.</li>
+ * <li>{@code identical-qr} - the number of poll requests that rendered the same QR code frame as the previous
+ * poll.</li>
+ * </ul>
+ * <p>
+ * The number of served polls, state changes and identical QR frames are kept in the {@link BankIdSessionData}. The
+ * number of rejected and coalesced polls are counted by the node that handled them, since these polls never reach the
+ * session state. In a cluster without sticky sessions, these counts therefore only include the polls handled by the
+ * node that records the summary.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@Component
+public class PollEfficiencyMetrics {
+
+  /** The name of the distribution summary. */
+  public static final String METER_NAME = "bankid.order.polls";
+
+  /**
+   * The largest count that the histogram buckets are sized for. An operation polled once per second, including a few
+   * re-initiated orders, stays well below this. Larger counts are only counted in the +Inf bucket.
+   */
+  static final double MAX_EXPECTED_COUNT = 1_000;
+
+  /** The time after which the counts for a session that has not ended are discarded. */
+  private static final Duration MAX_SESSION_AGE = Duration.ofHours(1);
+
+  /** The meter registry. */
+  private final MeterRegistry meterRegistry;
+
+  /** The rejected and coalesced polls, per session ID. */
+  private final Map<String, SessionCounts> sessions = new ConcurrentHashMap<>();
+
+  /** The time when the session counts were last purged. */
+  private final AtomicLong lastPurge;
+
+  /**
+   * Constructor.
+   *
+   * @param meterRegistry the meter registry
+   */
+  public PollEfficiencyMetrics(final MeterRegistry meterRegistry) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry, "meterRegistry must not be null");
+    this.lastPurge = new AtomicLong(System.currentTimeMillis());
+  }
+
+  /**
+   * Records that a poll request was rejected since another poll for the same session was in progress.
+   *
+   * @param sessionId the session ID
+   */
+  public void rejected(final String sessionId) {
+    this.getCounts(sessionId).rejected.increment();
+  }
+
+  /**
+   * Records that a poll request was coalesced with a poll in progress for the same session.
+   *
+   * @param sessionId the session ID
+   */
+  public void coalesced(final String sessionId) {
+    this.getCounts(sessionId).coalesced.increment();
+  }
+
+  /**
+   * Records the poll counts of a completed operation.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCompletion(final OrderCompletionEvent event) {
+    this.record(event, "complete");
+  }
+
+  /**
+   * Records the poll counts of a cancelled operation.
+   *
+   * @param event the event
+   */
+  @EventListener
+  public void handleCancel(final OrderCancellationEvent event) {
+    this.record(event, "cancel");
+  }
+
+  private void record(final AbstractBankIdEvent event, final String outcome) {
+    final SessionCounts counts = Optional.ofNullable(event.getRequest())
+        .map(r -> r.getSession(false))
+        .map(HttpSession::getId)
+        .map(this.sessions::remove)
+        .orElse(null);
+    this.purge();
+
+    final BankIdSessionData data = event.getSnapshot().getSessionData();
+    if (data == null) {
+      return;
+    }
+    final Tags tags = Tags.of(
+        "rp", Optional.ofNullable(event.getData()).map(RelyingPartyData::getId).orElse("unknown"),
+        "outcome", outcome);
+    final long coalesced = counts != null ? counts.coalesced.sum() : 0;
+    final long rejected = counts != null ? counts.rejected.sum() : 0;
+
+    this.summary("served", tags).record(data.getPollCount() + coalesced);
+    this.summary("state-change", tags).record(data.getStateChangeCount());
+    this.summary("rejected", tags).record(rejected);
+    this.summary("identical-qr", tags).record(data.getIdenticalQrCount());
+  }
+
+  private DistributionSummary summary(final String type, final Tags tags) {
+    return DistributionSummary.builder(METER_NAME)
+        .description("The number of poll requests per BankID operation")
+        .tags(tags)
+        .tag("type", type)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(1.0)
+        .maximumExpectedValue(MAX_EXPECTED_COUNT)
+        .register(this.meterRegistry);
+  }
+
+  private SessionCounts getCounts(final String sessionId) {
+    this.purge();
+    final SessionCounts counts = this.sessions.computeIfAbsent(sessionId, id -> new SessionCounts());
+    counts.lastUpdate = System.currentTimeMillis();
+    return counts;
+  }
+
+  /**
+   * Discards the counts for sessions that have not been updated for {@link #MAX_SESSION_AGE}, i.e., sessions where
+   * the operation never ended. The purge is made at most once a minute.
+   */
+  private void purge() {
+    final long now = System.currentTimeMillis();
+    final long last = this.lastPurge.get();
+    if (now - last < Duration.ofMinutes(1).toMillis() || !this.lastPurge.compareAndSet(last, now)) {
+      return;
+    }
+    this.sessions.values().removeIf(c -> now - c.lastUpdate > MAX_SESSION_AGE.toMillis());
+  }
+
+  /**
+   * The rejected and coalesced polls for a session.
+   */
+  private static class SessionCounts {
+
+    /** The number of rejected polls. */
+    private final LongAdder rejected = new LongAdder();
+
+    /** The number of coalesced polls. */
+    private final LongAdder coalesced = new LongAdder();
+
+    /** The time of the last update. */
+    private volatile long lastUpdate;
+
+  }
+
+}
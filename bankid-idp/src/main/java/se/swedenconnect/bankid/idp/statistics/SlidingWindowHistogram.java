@@ -0,0 +1,201 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations that covers a sliding time window.
+ * <p>
+ * The window is divided into slots, each holding one counter per bucket. A recorded duration is counted in the bucket
+ * of the slot for the current time, and a snapshot sums the slots that are within the window. When a slot is reused
+ * for a new period it is cleared, so a few durations recorded concurrently with the switch may be lost.
+ * </p>
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class SlidingWindowHistogram {
+
+  /** The default bucket bounds (in milliseconds). */
+  public static final long[] DEFAULT_BOUNDS = {
+      1_000, 2_000, 3_000, 5_000, 7_500, 10_000, 15_000, 20_000, 30_000, 45_000, 60_000, 90_000, 120_000, 180_000,
+      300_000 };
+
+  /** The upper bounds of the buckets (in milliseconds). The last bucket has no upper bound. */
+  private final long[] bounds;
+
+  /** The time covered by one slot (in milliseconds). */
+  private final long slotMillis;
+
+  /** The slots. */
+  private final Slot[] slots;
+
+  /** The clock. */
+  private final Clock clock;
+
+  /**
+   * Constructor.
+   *
+   * @param window the window
+   * @param slotCount the number of slots that the window is divided into
+   */
+  public SlidingWindowHistogram(final Duration window, final int slotCount) {
+    this(window, slotCount, DEFAULT_BOUNDS, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param window the window
+   * @param slotCount the number of slots that the window is divided into
+   * @param bounds the upper bounds of the buckets in milliseconds (ascending)
+   * @param clock the clock
+   */
+  SlidingWindowHistogram(final Duration window, final int slotCount, final long[] bounds, final Clock clock) {
+    if (slotCount < 1) {
+      throw new IllegalArgumentException("slotCount must be greater than 0");
+    }
+    this.slotMillis = Objects.requireNonNull(window, "window must not be null").toMillis() / slotCount;
+    if (this.slotMillis < 1) {
+      throw new IllegalArgumentException("window is too short");
+    }
+    this.bounds = Arrays.copyOf(Objects.requireNonNull(bounds, "bounds must not be null"), bounds.length);
+    this.clock = Objects.requireNonNull(clock, "clock must not be null");
+    this.slots = new Slot[slotCount];
+    for (int i = 0; i < slotCount; i++) {
+      this.slots[i] = new Slot(this.bounds.length + 1);
+    }
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param duration the duration
+   */
+  public void record(final Duration duration) {
+    final long millis = duration.toMillis();
+    int bucket = Arrays.binarySearch(this.bounds, millis);
+    if (bucket < 0) {
+      bucket = -bucket - 1;
+    }
+    final long period = this.clock.millis() / this.slotMillis;
+    final Slot slot = this.slots[(int) (period % this.slots.length)];
+    final long current = slot.period.get();
+    if (current < period && slot.period.compareAndSet(current, period)) {
+      for (int i = 0; i < slot.counts.length(); i++) {
+        slot.counts.set(i, 0);
+      }
+    }
+    else if (current > period) {
+      return;
+    }
+    slot.counts.incrementAndGet(bucket);
+  }
+
+  /**
+   * Gets a snapshot of the durations recorded within the window.
+   *
+   * @return a {@link Snapshot}
+   */
+  public Snapshot snapshot() {
+    final long period = this.clock.millis() / this.slotMillis;
+    final long[] counts = new long[this.bounds.length + 1];
+    for (final Slot slot : this.slots) {
+      final long slotPeriod = slot.period.get();
+      if (slotPeriod > period - this.slots.length && slotPeriod <= period) {
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] += slot.counts.get(i);
+        }
+      }
+    }
+    return new Snapshot(this.bounds, counts);
+  }
+
+  /**
+   * A snapshot of the histogram.
+   */
+  public static class Snapshot {
+
+    /** The upper bounds of the buckets. */
+    private final long[] bounds;
+
+    /** The counts per bucket. */
+    private final long[] counts;
+
+    /** The total count. */
+    private final long count;
+
+    private Snapshot(final long[] bounds, final long[] counts) {
+      this.bounds = bounds;
+      this.counts = counts;
+      this.count = Arrays.stream(counts).sum();
+    }
+
+    /**
+     * Gets the number of recorded durations.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return this.count;
+    }
+
+    /**
+     * Gets the given percentile, as the upper bound of the bucket holding the percentile. Durations above the highest
+     * bound are reported as the highest bound.
+     *
+     * @param percentile the percentile (0 < percentile <= 1)
+     * @return the percentile, or {@code null} if no durations have been recorded
+     */
+    public Duration getPercentile(final double percentile) {
+      if (this.count == 0) {
+        return null;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(percentile * this.count));
+      long seen = 0;
+      for (int i = 0; i < this.counts.length; i++) {
+        seen += this.counts[i];
+        if (seen >= rank) {
+          return Duration.ofMillis(this.bounds[Math.min(i, this.bounds.length - 1)]);
+        }
+      }
+      return Duration.ofMillis(this.bounds[this.bounds.length - 1]);
+    }
+  }
+
+  /**
+   * The counts for one period.
+   */
+  private static class Slot {
+
+    /** The period that the counts are for. */
+    private final AtomicLong period = new AtomicLong(-1);
+
+    /** The counts per bucket. */
+    private final AtomicLongArray counts;
+
+    Slot(final int buckets) {
+      this.counts = new AtomicLongArray(buckets);
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.swedenconnect.bankid.idp.audit.RedisAuditEventIndex.IndexedEvent;
+
+/**
+ * Test cases for AuditArchive.
+ */
+public class AuditArchiveTest {
+
+  private final AuditEventMapper mapper = new AuditEventMapper(new ObjectMapper().findAndRegisterModules());
+
+  @Test
+  public void testPagingOverSegments(@TempDir final Path dir) throws Exception {
+    final AuditArchive archive = new AuditArchive(dir, this.mapper);
+    assertThat(archive.getHorizon()).isNull();
+
+    archive.write(this.events(0, 600));
+    archive.write(this.events(600, 1000));
+
+    final List<String> principals = new ArrayList<>();
+    String cursor = null;
+    do {
+      final AuditEventPage page = archive.find(AuditEventFilter.of(null, null, null), cursor, 300);
+      page.events().forEach(e -> principals.add(e.getPrincipal()));
+      cursor = page.cursor();
+    }
+    while (cursor != null);
+
+    assertThat(principals).hasSize(1000);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(principals.get(i)).isEqualTo("user-" + i);
+    }
+  }
+
+  @Test
+  public void testFilterAndReload(@TempDir final Path dir) throws Exception {
+    new AuditArchive(dir, this.mapper).write(this.events(0, 1000));
+
+    final AuditArchive archive = new AuditArchive(dir, this.mapper);
+    assertThat(archive.getHorizon()).startsWith(RedisAuditEventIndex.createIdPrefix(Instant.ofEpochMilli(999_000)));
+
+    final AuditEventPage page = archive.find(AuditEventFilter.of("user-700", null, null), null, 10);
+    assertThat(page.events()).extracting(AuditEvent::getPrincipal).containsExactly("user-700");
+
+    final AuditEventPage after = archive.find(AuditEventFilter.of(null, Instant.ofEpochMilli(995_000), null), null, 10);
+    assertThat(after.events()).extracting(AuditEvent::getPrincipal)
+        .containsExactly("user-995", "user-996", "user-997", "user-998", "user-999");
+  }
+
+  private List<IndexedEvent> events(final int from, final int to) {
+    final List<IndexedEvent> events = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      final Instant timestamp = Instant.ofEpochMilli(i * 1000L);
+      final AuditEvent event = new AuditEvent(timestamp, "user-" + i, "TEST_EVENT", Map.of("n", i));
+      events.add(new IndexedEvent("%s-%s".formatted(RedisAuditEventIndex.createIdPrefix(timestamp), UUID.randomUUID()),
+          this.mapper.write(event)));
+    }
+    return events;
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test cases for AuditEventPipeline.
+ */
+public class AuditEventPipelineTest {
+
+  private final AuditEventMapper mapper = new AuditEventMapper(new ObjectMapper().findAndRegisterModules());
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  private final List<String> written = new CopyOnWriteArrayList<>();
+
+  private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void testEventsAreWrittenInOrder() {
+    final AuditEventPipeline pipeline = this.createPipeline(AuditOverflowPolicy.BLOCK, 16, null, this::record);
+    for (int i = 0; i < 1000; i++) {
+      pipeline.add(event(i));
+    }
+    pipeline.close(Duration.ofSeconds(10));
+
+    assertThat(this.written).hasSize(1000);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(this.written.get(i)).isEqualTo("user-" + i);
+    }
+    assertThat(this.batchSizes).allMatch(size -> size <= 8);
+  }
+
+  @Test
+  public void testDrop() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AuditEventPipeline pipeline = this.createPipeline(AuditOverflowPolicy.DROP, 2, null,
+        this.blockingWriter(writing, release));
+
+    pipeline.add(event(0));
+    assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+    for (int i = 1; i <= 5; i++) {
+      pipeline.add(event(i));
+    }
+    release.countDown();
+    pipeline.close(Duration.ofSeconds(10));
+
+    assertThat(this.written).containsExactly("user-0", "user-1", "user-2");
+    assertThat(this.registry.counter(AuditEventPipeline.DROPPED_COUNTER_NAME).count()).isEqualTo(3);
+  }
+
+  @Test
+  public void testSpill(@TempDir final Path dir) throws Exception {
+    final Path spillFile = dir.resolve("audit-spill.log");
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AuditEventPipeline pipeline = this.createPipeline(AuditOverflowPolicy.SPILL, 2, spillFile,
+        this.blockingWriter(writing, release));
+
+    pipeline.add(event(0));
+    assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+    for (int i = 1; i <= 5; i++) {
+      pipeline.add(event(i));
+    }
+    assertThat(Files.readAllLines(spillFile)).hasSize(3);
+
+    release.countDown();
+    pipeline.close(Duration.ofSeconds(10));
+
+    assertThat(this.written).containsExactlyInAnyOrder("user-0", "user-1", "user-2", "user-3", "user-4", "user-5");
+    assertThat(this.registry.counter(AuditEventPipeline.SPILLED_COUNTER_NAME).count()).isEqualTo(3);
+    assertThat(Files.exists(spillFile)).isFalse();
+  }
+
+  @Test
+  public void testSpillFileFromPreviousRunIsWritten(@TempDir final Path dir) throws Exception {
+    final Path spillFile = dir.resolve("audit-spill.log");
+    Files.write(spillFile, List.of(this.mapper.write(event(1)), this.mapper.write(event(2))));
+
+    final AuditEventPipeline pipeline = this.createPipeline(AuditOverflowPolicy.SPILL, 16, spillFile, this::record);
+    pipeline.close(Duration.ofSeconds(10));
+
+    assertThat(this.written).containsExactly("user-1", "user-2");
+    assertThat(Files.exists(spillFile)).isFalse();
+  }
+
+  private AuditEventPipeline createPipeline(final AuditOverflowPolicy policy, final int capacity,
+      final Path spillFile, final Consumer<List<AuditEvent>> writer) {
+    return new AuditEventPipeline(capacity, 8, policy, spillFile, this.mapper, writer, this.registry);
+  }
+
+  private Consumer<List<AuditEvent>> blockingWriter(final CountDownLatch writing, final CountDownLatch release) {
+    return events -> {
+      writing.countDown();
+      try {
+        release.await();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.record(events);
+    };
+  }
+
+  private void record(final List<AuditEvent> events) {
+    this.batchSizes.add(events.size());
+    events.forEach(e -> this.written.add(e.getPrincipal()));
+  }
+
+  private static AuditEvent event(final int n) {
+    return new AuditEvent("user-" + n, "TEST_EVENT", Map.of("n", n));
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test cases for AuditJournal.
+ */
+public class AuditJournalTest {
+
+  @Test
+  public void testAppend(@TempDir final Path dir) throws Exception {
+    final Path logFile = dir.resolve("file-audit.log");
+    AuditJournal journal = new AuditJournal(logFile.toString());
+    journal.append("This is entry #1");
+    assertThat(Files.readAllLines(logFile)).containsExactly("This is entry #1");
+    journal.close();
+
+    // Again. Now with an existing file ...
+    journal = new AuditJournal(logFile.toString());
+    journal.setForce(true);
+    journal.appendAll(List.of("This is entry #2", "This is entry #3"));
+    assertThat(Files.readAllLines(logFile)).containsExactly("This is entry #1", "This is entry #2", "This is entry #3");
+    journal.close();
+
+    final AuditJournal closed = journal;
+    assertThatThrownBy(() -> closed.append("closed")).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  public void testConcurrentAppends(@TempDir final Path dir) throws Exception {
+    final Path logFile = dir.resolve("audit.log");
+    final AuditJournal journal = new AuditJournal(logFile.toString());
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    final List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int thread = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 200; i++) {
+          journal.append("entry-" + thread + "-" + i);
+        }
+        return null;
+      }));
+    }
+    for (final Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    journal.close();
+
+    final List<String> lines = Files.readAllLines(logFile);
+    assertThat(lines).hasSize(1600).doesNotHaveDuplicates();
+    for (int t = 0; t < 8; t++) {
+      final String prefix = "entry-" + t + "-";
+      assertThat(lines.stream().filter(l -> l.startsWith(prefix)).toList())
+          .isSortedAccordingTo((a, b) -> Integer.compare(
+              Integer.parseInt(a.substring(prefix.length())), Integer.parseInt(b.substring(prefix.length()))));
+    }
+  }
+
+  @Test
+  public void testCreateDirectories(@TempDir final Path dir) throws Exception {
+    final Path logFile = dir.resolve("audit/audit.log");
+    final AuditJournal journal = new AuditJournal(logFile.toString());
+    journal.append("This is entry #1");
+    journal.close();
+    assertThat(Files.readAllLines(logFile)).containsExactly("This is entry #1");
+  }
+
+  @Test
+  public void testRollover(@TempDir final Path dir) throws Exception {
+    final Path logFile = dir.resolve("file-audit.log");
+    AuditJournal journal = new AuditJournal(logFile.toString());
+    journal.append("This is entry #1");
+    journal.close();
+
+    Files.setLastModifiedTime(logFile, FileTime.from(Instant.parse("2021-12-24T23:30:30.00Z")));
+
+    journal = new AuditJournal(logFile.toString());
+    journal.append("This is an entry from today");
+    journal.close();
+
+    assertThat(Files.readAllLines(logFile)).containsExactly("This is an entry from today");
+    assertThat(Files.exists(dir.resolve("file-audit-20211224.log"))).isFalse();
+    try (final InputStream in = new GZIPInputStream(Files.newInputStream(dir.resolve("file-audit-20211224.log.gz")))) {
+      assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8).lines()).containsExactly("This is entry #1");
+    }
+  }
+
+  @Test
+  public void testLeftoverBackupIsCompressed(@TempDir final Path dir) throws Exception {
+    Files.write(dir.resolve("audit-20211224.log"), List.of("old entry"));
+    final AuditJournal journal = new AuditJournal(dir.resolve("audit.log").toString());
+    journal.close();
+
+    assertThat(Files.exists(dir.resolve("audit-20211224.log"))).isFalse();
+    assertThat(Files.exists(dir.resolve("audit-20211224.log.gz"))).isTrue();
+  }
+
+  @Test
+  public void testLogFileIsDirectory(@TempDir final Path dir) throws Exception {
+    assertThatThrownBy(() -> new AuditJournal(dir.toString()))
+        .isInstanceOf(IOException.class)
+        .hasMessage("Given logFile points to a directory and not a file");
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.slf4j.MDC;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.TraceContext;
+import io.micrometer.tracing.handler.TracingObservationHandler;
+import jakarta.servlet.http.HttpServletRequest;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import se.swedenconnect.bankid.idp.authn.DisplayText;
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.idp.authn.events.BankIdErrorEvent;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
+import se.swedenconnect.bankid.idp.observation.BankIdObservations;
+import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
+import se.swedenconnect.bankid.rpapi.service.BankIDClient;
+
+/**
+ * Test cases for BankIdAuditEventModule.
+ */
+public class BankIdAuditEventModuleTest {
+
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+  private BankIdErrorEvent event;
+
+  @BeforeEach
+  public void init() {
+    final BankIDClient client = Mockito.mock(BankIDClient.class);
+    Mockito.when(client.getIdentifier()).thenReturn("rp1");
+    final RelyingPartyData rp =
+        new RelyingPartyData(client, List.of("sp"), new DisplayText(), new DisplayText(), null, null);
+    this.event = new BankIdErrorEvent(Mockito.mock(HttpServletRequest.class), rp, "error", "description",
+        new BankIdEventSnapshot("sp", "id", BankIdOperation.AUTH, null, null));
+  }
+
+  @Test
+  public void testAuditEventCarriesTraceId() {
+    final ObservationRegistry registry = ObservationRegistry.create();
+    registry.observationConfig().observationHandler(new SpanHandler(TRACE_ID));
+    final BankIdAuditEventModule module = new BankIdAuditEventModule(registry);
+
+    // The listeners are invoked within an observation, on another thread than the one that processed the request,
+    // where the logging context holds no trace ID ...
+    //
+    final AuditEvent auditEvent = Mono.fromCallable(() -> {
+      assertThat(MDC.get("traceId")).isNull();
+      return Observation.createNotStarted(BankIdObservations.EVENT, registry)
+          .observe(() -> module.handleError(this.event).getAuditEvent());
+    })
+        .subscribeOn(Schedulers.boundedElastic())
+        .block();
+
+    assertThat(auditEvent.getData())
+        .containsEntry("trace-id", TRACE_ID)
+        .containsEntry("error-code", "error");
+  }
+
+  @Test
+  public void testNoTraceIdWithoutTracing() {
+    final BankIdAuditEventModule module = new BankIdAuditEventModule(ObservationRegistry.NOOP);
+    final AuditEvent auditEvent = module.handleError(this.event).getAuditEvent();
+    assertThat(auditEvent.getData()).doesNotContainKey("trace-id").containsEntry("rp", "rp1");
+  }
+
+  /**
+   * Assigns a span to each observation, as the tracing handler does.
+   */
+  private static class SpanHandler implements ObservationHandler<Observation.Context> {
+
+    private final Span span;
+
+    SpanHandler(final String traceId) {
+      final TraceContext context = Mockito.mock(TraceContext.class);
+      Mockito.when(context.traceId()).thenReturn(traceId);
+      this.span = Mockito.mock(Span.class);
+      Mockito.when(this.span.context()).thenReturn(context);
+    }
+
+    @Override
+    public void onStart(final Observation.Context context) {
+      final TracingObservationHandler.TracingContext tracingContext = context.computeIfAbsent(
+          TracingObservationHandler.TracingContext.class, c -> new TracingObservationHandler.TracingContext());
+      tracingContext.setSpan(this.span);
+    }
+
+    @Override
+    public boolean supportsContext(final Observation.Context context) {
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RBatch;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.swedenconnect.bankid.idp.audit.RedisAuditEventIndex.IndexedEvent;
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+import se.swedenconnect.bankid.idp.integration.TestContainerSetup;
+
+/**
+ * Test cases for RedisAuditEventIndex, run against the Redis test container.
+ */
+public class RedisAuditEventIndexTest {
+
+  private static final int SHARDS = 3;
+
+  private static final int EVENTS = 60;
+
+  private static RedissonClient client;
+
+  private final AuditEventMapper mapper = new AuditEventMapper(new ObjectMapper().findAndRegisterModules());
+
+  private RedisAuditEventIndex index;
+
+  private List<AuditEvent> events;
+
+  @BeforeAll
+  public static void init() {
+    client = TestContainerSetup.createRedissonClient();
+  }
+
+  @AfterAll
+  public static void shutdown() {
+    client.shutdown();
+  }
+
+  @BeforeEach
+  public void setup() {
+    client.getKeys().deleteByPattern("audit:*");
+    this.index = new RedisAuditEventIndex(client, new RedisKeyLayout(SHARDS, false), this.mapper);
+    this.events = new ArrayList<>();
+    final RBatch batch = client.createBatch();
+    for (int i = 0; i < EVENTS; i++) {
+      final AuditEvent event = new AuditEvent(Instant.ofEpochMilli(1_000_000L + i * 1000L), "user-" + i % 4,
+          i % 2 == 0 ? "TYPE_A" : "TYPE_B", Map.of(AuditEventFilter.RP_FIELD, "rp-" + i % 5, "n", i));
+      this.index.index(batch, i % SHARDS, event, this.mapper.write(event));
+      this.events.add(event);
+    }
+    batch.execute();
+  }
+
+  @Test
+  public void testPagingReturnsAllEventsInOrder() {
+    final List<AuditEvent> found = this.findAll(AuditEventFilter.of(null, null, null), 7);
+    assertThat(found).extracting(e -> e.getData().get("n"))
+        .containsExactlyElementsOf(this.events.stream().map(e -> e.getData().get("n")).toList());
+  }
+
+  @Test
+  public void testFiltering() {
+    final List<AuditEventFilter> filters = List.of(
+        AuditEventFilter.of("user-1", null, null),
+        AuditEventFilter.of(null, null, "TYPE_B"),
+        new AuditEventFilter(null, null, "rp-3", null),
+        new AuditEventFilter("user-2", "TYPE_A", "rp-0", null),
+        new AuditEventFilter(null, "TYPE_A", "rp-2", Instant.ofEpochMilli(1_030_000L)),
+        AuditEventFilter.of("user-9", null, null));
+
+    for (final AuditEventFilter filter : filters) {
+      final List<Object> expected = this.events.stream()
+          .filter(filter::matches)
+          .map(e -> e.getData().get("n"))
+          .toList();
+      for (final int pageSize : new int[] { 1, 4, 100 }) {
+        assertThat(this.findAll(filter, pageSize))
+            .describedAs("filter=%s, pageSize=%d", filter, pageSize)
+            .extracting(e -> e.getData().get("n"))
+            .containsExactlyElementsOf(expected);
+      }
+    }
+  }
+
+  @Test
+  public void testCursorBeforeAfter() {
+    // A cursor before the lower time bound is ignored ...
+    final AuditEventFilter filter = AuditEventFilter.of(null, Instant.ofEpochMilli(1_050_000L), null);
+    final AuditEventPage page = this.index.find(filter, RedisAuditEventIndex.createIdPrefix(Instant.EPOCH), 100);
+    assertThat(page.events()).hasSize(10);
+    assertThat(page.cursor()).isNull();
+  }
+
+  @Test
+  public void testOldestAndRemove() {
+    int count = 0;
+    for (int shard = 0; shard < SHARDS; shard++) {
+      count += this.index.count(shard);
+    }
+    assertThat(count).isEqualTo(EVENTS);
+
+    final List<String> oldest = this.index.findOldestIds(0, 2);
+    assertThat(oldest).hasSize(2).isSorted();
+    final List<IndexedEvent> removed = this.index.get(0, oldest);
+    assertThat(removed).extracting(e -> this.mapper.read(e.json()).getData().get("n")).containsExactly(0, 3);
+
+    final RBatch batch = client.createBatch();
+    this.index.remove(batch, 0, removed);
+    batch.execute();
+
+    assertThat(this.index.count(0)).isEqualTo(EVENTS / SHARDS - 2);
+    assertThat(this.findAll(AuditEventFilter.of("user-0", null, null), 100))
+        .extracting(e -> e.getData().get("n"))
+        .doesNotContain(0)
+        .first().isEqualTo(4);
+  }
+
+  private List<AuditEvent> findAll(final AuditEventFilter filter, final int pageSize) {
+    final List<AuditEvent> found = new ArrayList<>();
+    String cursor = null;
+    do {
+      final AuditEventPage page = this.index.find(filter, cursor, pageSize);
+      assertThat(page.events()).hasSizeLessThanOrEqualTo(pageSize);
+      found.addAll(page.events());
+      cursor = page.cursor();
+    }
+    while (cursor != null);
+    return found;
+  }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.swedenconnect.bankid.idp.config.session.RedisKeyLayout;
+import se.swedenconnect.bankid.idp.integration.TestContainerSetup;
+
+/**
+ * Test cases for RedisListAuditEventRepository, run against the Redis test container.
+ */
+public class RedisListAuditEventRepositoryTest {
+
+  private static final String TYPE = AbstractBankIdAuditEventRepository.DEFAULT_SUPPORTED_EVENTS.get(0);
+
+  private static RedissonClient client;
+
+  @TempDir
+  private Path archiveDirectory;
+
+  private RedisListAuditEventRepository repository;
+
+  @BeforeAll
+  public static void init() {
+    client = TestContainerSetup.createRedissonClient();
+  }
+
+  @AfterAll
+  public static void shutdown() {
+    client.shutdown();
+  }
+
+  @BeforeEach
+  public void setup() throws Exception {
+    client.getKeys().deleteByPattern("audit:*");
+    this.repository = new RedisListAuditEventRepository(client, new RedisKeyLayout(3, false), null,
+        new AuditEventMapper(new ObjectMapper().findAndRegisterModules()), null);
+
+    // Ten events that are old enough to be archived, followed by ten recent events ...
+    //
+    final Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+    for (int i = 0; i < 20; i++) {
+      final Instant timestamp = i < 10
+          ? now.minus(Duration.ofHours(2)).plusSeconds(i)
+          : now.minus(Duration.ofMinutes(10)).plusSeconds(i);
+      this.repository.add(new AuditEvent(timestamp, "user-" + i % 2, TYPE, Map.of("n", i)));
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    this.repository.destroy();
+  }
+
+  @Test
+  public void testPagingFromArchiveToRedis() throws Exception {
+    this.repository.startRetention(Duration.ofHours(1), 0, this.archiveDirectory, Duration.ofHours(1));
+    this.repository.applyRetention();
+
+    final List<Object> all = this.findAll(AuditEventFilter.of(null, null, null), 3);
+    assertThat(all).containsExactlyElementsOf(range(0, 20, 1));
+
+    final List<Object> filtered = this.findAll(AuditEventFilter.of("user-1", null, null), 3);
+    assertThat(filtered).containsExactlyElementsOf(range(1, 20, 2));
+
+    // The archived events are also streamed, and the capped find still returns the newest events ...
+    //
+    assertThat(this.repository.stream(AuditEventFilter.of(null, null, TYPE), 4)).hasSize(20);
+    this.repository.setMaxFindResults(5);
+    assertThat(this.repository.find(null, null, null)).extracting(e -> e.getData().get("n"))
+        .containsExactly(19, 18, 17, 16, 15);
+  }
+
+  @Test
+  public void testFindIsCapped() {
+    assertThat(this.repository.find(null, null, null)).hasSize(20);
+
+    this.repository.setMaxFindResults(3);
+    assertThat(this.repository.find("user-0", null, TYPE)).extracting(e -> e.getData().get("n"))
+        .containsExactly(18, 16, 14);
+    assertThat(this.repository.find(null, Instant.now(), null)).isEmpty();
+  }
+
+  private List<Object> findAll(final AuditEventFilter filter, final int pageSize) {
+    final List<Object> found = new ArrayList<>();
+    String cursor = null;
+    do {
+      final AuditEventPage page = this.repository.find(filter, cursor, pageSize);
+      assertThat(page.events()).hasSizeLessThanOrEqualTo(pageSize);
+      page.events().forEach(e -> found.add(e.getData().get("n")));
+      cursor = page.cursor();
+    }
+    while (cursor != null);
+    return found;
+  }
+
+  private static List<Object> range(final int from, final int to, final int step) {
+    final List<Object> values = new ArrayList<>();
+    for (int i = from; i < to; i += step) {
+      values.add(i);
+    }
+    return values;
+  }
+
+}
@@ -27,9 +27,15 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.mockito.Mockito;
 
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.TraceContext;
+import io.micrometer.tracing.Tracer;
 import jakarta.servlet.http.HttpServletRequest;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import se.swedenconnect.bankid.idp.authn.error.BankIdTraceableException;
 import se.swedenconnect.bankid.idp.authn.error.UserErrorFactory;
+import se.swedenconnect.bankid.idp.authn.error.UserErrorResponse;
 import se.swedenconnect.spring.saml.idp.error.UnrecoverableSaml2IdpError;
 import se.swedenconnect.spring.saml.idp.error.UnrecoverableSaml2IdpException;
 
@@ -99,6 +105,25 @@ class UserErrorFactoryTest {
     assertThat(redirectView, matchesPattern("redirect:/" + BASE_REGEX + expectedId));
   }
 
+  @Test
+  void showTrace_fromTracer() {
+    final TraceContext context = Mockito.mock(TraceContext.class);
+    Mockito.when(context.traceId()).thenReturn("4bf92f3577b34da6a3ce929d0e0e4736");
+    Mockito.when(context.spanId()).thenReturn("00f067aa0ba902b7");
+    final Span span = Mockito.mock(Span.class);
+    Mockito.when(span.context()).thenReturn(context);
+    final Tracer tracer = Mockito.mock(Tracer.class);
+    Mockito.when(tracer.currentSpan()).thenReturn(span);
+    final UserErrorFactory userErrorFactory =
+        new UserErrorFactory(UserErrorPropertiesFixture.SHOW_EMAIL_SHOW_TRACE, tracer);
+
+    // The error is handled on a thread where the logging context holds no trace ID ...
+    final UserErrorResponse response = Mono.fromCallable(() -> userErrorFactory.getUserError(new RuntimeException()))
+        .subscribeOn(Schedulers.boundedElastic())
+        .block();
+    Assertions.assertEquals("4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7", response.getTraceId());
+  }
+
   private static Stream<Arguments> unrecoverableSaml2IpdExceptions() {
     return Stream.of(
         Arguments.of(new UnrecoverableSaml2IdpException(UnrecoverableSaml2IdpError.ENDPOINT_CHECK_FAILURE, null)),
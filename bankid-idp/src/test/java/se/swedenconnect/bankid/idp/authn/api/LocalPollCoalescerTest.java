@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import se.swedenconnect.bankid.idp.authn.error.ApiControllerAdvice;
+import se.swedenconnect.bankid.idp.authn.error.ResourceBusyException;
+import se.swedenconnect.bankid.idp.concurrency.LockingFilter;
+
+/**
+ * Test cases for LocalPollCoalescer.
+ */
+public class LocalPollCoalescerTest {
+
+  private final LocalPollCoalescer coalescer = new LocalPollCoalescer();
+
+  private final AtomicInteger polls = new AtomicInteger();
+
+  @Test
+  public void testFollowerReceivesLeaderResult() {
+    final Sinks.One<ApiResponse> result = Sinks.one();
+    final Mono<ApiResponse> leader = this.coalescer.execute("session:true", this.poll(result.asMono()));
+    final Mono<ApiResponse> follower = this.coalescer.attach("session:true");
+
+    // A poll for the same key while the first one is in progress is also given the result of the first poll ...
+    final Mono<ApiResponse> second = this.coalescer.execute("session:true", this.poll(Mono.empty()));
+
+    final ApiResponse response = new ApiResponse(ApiResponse.Status.IN_PROGRESS, "qr", null, "rfa1");
+    StepVerifier.create(Mono.zip(leader, follower, second))
+        .then(() -> result.tryEmitValue(response))
+        .assertNext(t -> {
+          assertThat(t.getT1()).isSameAs(response);
+          assertThat(t.getT2()).isSameAs(response);
+          assertThat(t.getT3()).isSameAs(response);
+        })
+        .verifyComplete();
+    assertThat(this.polls).hasValue(1);
+
+    // The poll is no longer in progress ...
+    StepVerifier.create(this.coalescer.attach("session:true")).verifyComplete();
+  }
+
+  @Test
+  public void testRemovedOnError() {
+    final Sinks.One<ApiResponse> result = Sinks.one();
+    final Mono<ApiResponse> leader = this.coalescer.execute("session:true", this.poll(result.asMono()));
+    final Mono<ApiResponse> follower = this.coalescer.attach("session:true");
+
+    StepVerifier.create(leader)
+        .then(() -> result.tryEmitError(new IllegalStateException("failed")))
+        .verifyError(IllegalStateException.class);
+    StepVerifier.create(follower).verifyError(IllegalStateException.class);
+    StepVerifier.create(this.coalescer.attach("session:true")).verifyComplete();
+
+    // ... and the next poll is executed
+    StepVerifier.create(this.coalescer.execute("session:true", this.poll(Mono.just(new ApiResponse()))))
+        .expectNextCount(1)
+        .verifyComplete();
+    assertThat(this.polls).hasValue(2);
+  }
+
+  @Test
+  public void testRemovedOnCancel() {
+    final Sinks.One<ApiResponse> result = Sinks.one();
+    final Mono<ApiResponse> leader = this.coalescer.execute("session:true", this.poll(result.asMono()));
+    final Mono<ApiResponse> follower = this.coalescer.attach("session:true");
+
+    // A cancelled follower does not affect the poll ...
+    StepVerifier.create(follower).thenCancel().verify();
+    assertThat(this.coalescer.attach("session:true")).isSameAs(follower);
+
+    // ... but when the request that started the poll is cancelled, new requests do not attach to it
+    StepVerifier.create(leader).thenCancel().verify();
+    StepVerifier.create(this.coalescer.attach("session:true")).verifyComplete();
+
+    // A new poll is not removed when the cancelled poll completes ...
+    final Sinks.One<ApiResponse> next = Sinks.one();
+    final Mono<ApiResponse> newLeader = this.coalescer.execute("session:true", this.poll(next.asMono()));
+    StepVerifier.create(follower)
+        .then(() -> result.tryEmitValue(new ApiResponse()))
+        .expectNextCount(1)
+        .verifyComplete();
+    StepVerifier.create(Mono.zip(newLeader, this.coalescer.attach("session:true")))
+        .then(() -> next.tryEmitValue(new ApiResponse()))
+        .expectNextCount(1)
+        .verifyComplete();
+    StepVerifier.create(this.coalescer.attach("session:true")).verifyComplete();
+    assertThat(this.polls).hasValue(2);
+  }
+
+  @Test
+  public void testDifferentQrNotCoalesced() {
+    final Sinks.One<ApiResponse> result = Sinks.one();
+    final Mono<ApiResponse> withQr = this.coalescer.execute("session:true", this.poll(result.asMono()));
+    final Mono<ApiResponse> withoutQr =
+        this.coalescer.execute("session:false", this.poll(Mono.just(new ApiResponse())));
+
+    StepVerifier.create(withoutQr).expectNextCount(1).verifyComplete();
+    assertThat(this.polls).hasValue(2);
+
+    StepVerifier.create(withQr)
+        .then(() -> result.tryEmitValue(new ApiResponse()))
+        .expectNextCount(1)
+        .verifyComplete();
+  }
+
+  @Test
+  public void testEmptyCoalescedResultIsBusy() {
+    final BankIdApiController controller = new BankIdApiController(null, null, null, null, null, null, null, null,
+        this.coalescer);
+    final MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/poll");
+    final String sessionId = request.getSession().getId();
+    request.setAttribute(LockingFilter.COALESCE_ATTRIBUTE, Boolean.TRUE);
+
+    final Sinks.One<ApiResponse> result = Sinks.one();
+    final Mono<ApiResponse> leader = this.coalescer.execute(sessionId + ":true", this.poll(result.asMono()));
+
+    // A request for the same session, but with another value for qr, is not given the result of the poll in
+    // progress ...
+    StepVerifier.create(controller.poll(request, false)).verifyError(ResourceBusyException.class);
+
+    final ApiResponse response = new ApiResponse(ApiResponse.Status.IN_PROGRESS, "qr", null, "rfa1");
+    StepVerifier.create(Mono.zip(leader, controller.poll(request, true)))
+        .then(() -> result.tryEmitValue(response))
+        .assertNext(t -> assertThat(t.getT2()).isSameAs(response))
+        .verifyComplete();
+
+    // When the poll has completed, there is nothing to attach to ...
+    StepVerifier.create(controller.poll(request, true)).verifyError(ResourceBusyException.class);
+
+    final ResponseEntity<String> busy = new ApiControllerAdvice(null).handleResourceBusy();
+    assertThat(busy.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    assertThat(busy.getHeaders().getFirst("retry-after")).isEqualTo(Integer.toString(LockingFilter.BUSY_RETRY_AFTER));
+    assertThat(busy.getBody()).isEqualTo(LockingFilter.ERROR_RESOURCE_BUSY);
+  }
+
+  private Supplier<Mono<ApiResponse>> poll(final Mono<ApiResponse> result) {
+    return () -> {
+      this.polls.incrementAndGet();
+      return result;
+    };
+  }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.bankid.rpapi.types.ErrorCode;
+import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Benchmark comparing the status code table of {@link StatusCodeFactory} with evaluating the rules in order, as was
+ * done before the table was introduced. Not run as part of the build, run it using {@link #main(String[])}.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusCodeFactoryBenchmark {
+
+  /** The collect response to resolve, from the most common (an outstanding transaction) to the last rule. */
+  @Param({ "outstanding", "userSign", "failed", "blank" })
+  private String response;
+
+  private CollectResponse collectResponse;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.collectResponse = new CollectResponse();
+    switch (this.response) {
+    case "outstanding" -> {
+      this.collectResponse.setStatus(CollectResponse.Status.PENDING);
+      this.collectResponse.setHintCode(ProgressStatus.OUTSTANDING_TRANSACTION.getValue());
+    }
+    case "userSign" -> {
+      this.collectResponse.setStatus(CollectResponse.Status.PENDING);
+      this.collectResponse.setHintCode(ProgressStatus.USER_SIGN.getValue());
+    }
+    case "failed" -> {
+      this.collectResponse.setStatus(CollectResponse.Status.FAILED);
+      this.collectResponse.setHintCode(ErrorCode.USER_CANCEL.getValue());
+    }
+    default -> this.collectResponse.setStatus(CollectResponse.Status.COMPLETE);
+    }
+  }
+
+  @Benchmark
+  public String table() {
+    return StatusCodeFactory.statusCode(this.collectResponse, true, BankIdOperation.AUTH);
+  }
+
+  @Benchmark
+  public String rules() {
+    return StatusCodeFactoryTest.referenceStatusCode(this.collectResponse, true, BankIdOperation.AUTH);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(StatusCodeFactoryBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.api;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static se.swedenconnect.bankid.rpapi.types.CollectResponse.Status.FAILED;
+import static se.swedenconnect.bankid.rpapi.types.CollectResponse.Status.PENDING;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.bankid.rpapi.types.ErrorCode;
+import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Test cases for StatusCodeFactory.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class StatusCodeFactoryTest {
+
+  /** The rules as they were evaluated per poll before the table was introduced. */
+  private static final Map<String, Predicate<Input>> REFERENCE = new LinkedHashMap<>();
+
+  static {
+    REFERENCE.put("rfa1", c -> PENDING.equals(c.response().getStatus()) && ProgressStatus.NO_CLIENT.equals(c.response().getProgressStatus()) && !c.showQr());
+    REFERENCE.put("rfa3", c -> FAILED.equals(c.response().getStatus()) && ErrorCode.CANCELLED.equals(c.response().getErrorCode()));
+    REFERENCE.put("rfa4", c -> FAILED.equals(c.response().getStatus()) && ErrorCode.ALREADY_IN_PROGRESS.equals(c.response().getErrorCode()));
+    REFERENCE.put("rfa5", c -> FAILED.equals(c.response().getStatus()) && Objects.nonNull(c.response().getErrorCode()) && List.of(ErrorCode.REQUEST_TIMEOUT, ErrorCode.MAINTENANCE, ErrorCode.INTERNAL_ERROR).contains(c.response().getErrorCode()));
+    REFERENCE.put("rfa6", c -> FAILED.equals(c.response().getStatus()) && ErrorCode.USER_CANCEL.equals(c.response().getErrorCode()));
+    REFERENCE.put("rfa8", c -> FAILED.equals(c.response().getStatus()) && ErrorCode.EXPIRED_TRANSACTION.equals(c.response().getErrorCode()));
+    REFERENCE.put("rfa9-auth", c -> PENDING.equals(c.response().getStatus()) && ProgressStatus.USER_SIGN.equals(c.response().getProgressStatus()) && BankIdOperation.AUTH.equals(c.operation()));
+    REFERENCE.put("rfa9-sign", c -> PENDING.equals(c.response().getStatus()) && ProgressStatus.USER_SIGN.equals(c.response().getProgressStatus()) && BankIdOperation.SIGN.equals(c.operation()));
+    REFERENCE.put("rfa13", c -> PENDING.equals(c.response().getStatus()) && ProgressStatus.OUTSTANDING_TRANSACTION.equals(c.response().getProgressStatus()) && !c.showQr());
+    REFERENCE.put("rfa21-auth", c -> PENDING.equals(c.response().getStatus()) && Objects.equals(c.operation(), BankIdOperation.AUTH) && Objects.isNull(c.response().getHintCode()));
+    REFERENCE.put("rfa21-sign", c -> PENDING.equals(c.response().getStatus()) && Objects.equals(c.operation(), BankIdOperation.SIGN) && Objects.isNull(c.response().getHintCode()));
+    REFERENCE.put("rfa22", c -> FAILED.equals(c.response().getStatus()));
+    REFERENCE.put("rfa23", c -> PENDING.equals(c.response().getStatus()) && ProgressStatus.USER_MRTD.equals(c.response().getProgressStatus()));
+    REFERENCE.put("ext2", c -> PENDING.equals(c.response().getStatus()) && ProgressStatus.OUTSTANDING_TRANSACTION.equals(c.response().getProgressStatus()) && c.showQr());
+  }
+
+  @Test
+  void testEquivalentToReferenceRules() {
+    final List<String> hintCodes = new ArrayList<>();
+    hintCodes.add(null);
+    hintCodes.add("somethingNew");
+    for (final ProgressStatus p : ProgressStatus.values()) {
+      hintCodes.add(p.getValue());
+      hintCodes.add(p.getValue().toUpperCase());
+    }
+    for (final ErrorCode e : ErrorCode.values()) {
+      hintCodes.add(e.getValue());
+      hintCodes.add(e.getValue().toUpperCase());
+    }
+    final List<CollectResponse.Status> statuses = new ArrayList<>(List.of(CollectResponse.Status.values()));
+    statuses.add(null);
+    final List<BankIdOperation> operations = new ArrayList<>(List.of(BankIdOperation.values()));
+    operations.add(null);
+
+    int checked = 0;
+    for (final CollectResponse.Status status : statuses) {
+      for (final String hintCode : hintCodes) {
+        final CollectResponse response = new CollectResponse();
+        response.setStatus(status);
+        response.setHintCode(hintCode);
+        for (final boolean showQr : new boolean[] { false, true }) {
+          for (final BankIdOperation operation : operations) {
+            final String expected = referenceStatusCode(response, showQr, operation);
+            assertThat(StatusCodeFactory.statusCode(response, showQr, operation))
+                .describedAs("status=%s, hintCode=%s, showQr=%s, operation=%s", status, hintCode, showQr, operation)
+                .isEqualTo(expected);
+            checked++;
+          }
+        }
+      }
+    }
+    assertThat(checked).isEqualTo(statuses.size() * hintCodes.size() * 2 * operations.size());
+  }
+
+  @Test
+  void testNullShowQrIsTreatedAsFalse() {
+    final CollectResponse response = new CollectResponse();
+    response.setStatus(PENDING);
+    response.setHintCode(ProgressStatus.OUTSTANDING_TRANSACTION.getValue());
+    assertThat(StatusCodeFactory.statusCode(response, null, BankIdOperation.AUTH)).isEqualTo("bankid.msg.rfa13");
+  }
+
+  /**
+   * Gets the status code by evaluating the rules in order, as was done per poll before the table was introduced.
+   *
+   * @param response the collect response
+   * @param showQr whether the QR code is displayed
+   * @param operation the operation
+   * @return the status code
+   */
+  static String referenceStatusCode(final CollectResponse response, final boolean showQr,
+      final BankIdOperation operation) {
+    final Input input = new Input(response, showQr, operation);
+    return "bankid.msg." + REFERENCE.entrySet().stream()
+        .filter(e -> e.getValue().test(input))
+        .map(Map.Entry::getKey)
+        .findFirst()
+        .orElse("blank");
+  }
+
+  private record Input(CollectResponse response, boolean showQr, BankIdOperation operation) {
+  }
+
+}
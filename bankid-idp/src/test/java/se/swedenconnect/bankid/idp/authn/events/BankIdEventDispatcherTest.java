@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.events;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for BankIdEventDispatcher.
+ */
+public class BankIdEventDispatcherTest {
+
+  @Test
+  public void testDispatchesForOneKeyAreRunInOrder() {
+    final BankIdEventDispatcher dispatcher = new BankIdEventDispatcher(4, 100);
+    final Map<String, List<Integer>> dispatched = new ConcurrentHashMap<>();
+    final List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      final String key = "session-" + (i % 10);
+      final int n = i;
+      futures.add(dispatcher.dispatch(key,
+          () -> dispatched.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(n)));
+    }
+    CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    dispatcher.close(Duration.ofSeconds(10));
+
+    assertThat(dispatched).hasSize(10);
+    dispatched.values().forEach(list -> {
+      assertThat(list).hasSize(100);
+      assertThat(list).isSorted();
+    });
+  }
+
+  @Test
+  public void testBlockedKeyDoesNotStallOtherKeys() throws Exception {
+    final BankIdEventDispatcher dispatcher = new BankIdEventDispatcher(2, 100);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CompletableFuture<Void> blocked = dispatcher.dispatch("slow", () -> {
+      try {
+        release.await();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    final CompletableFuture<Void> queued = dispatcher.dispatch("slow", () -> {});
+
+    dispatcher.dispatch("fast", () -> {}).get(5, TimeUnit.SECONDS);
+    assertThat(queued).isNotDone();
+
+    release.countDown();
+    blocked.get(5, TimeUnit.SECONDS);
+    queued.get(5, TimeUnit.SECONDS);
+    dispatcher.close(Duration.ofSeconds(10));
+  }
+
+  @Test
+  public void testFailedDispatch() {
+    final BankIdEventDispatcher dispatcher = new BankIdEventDispatcher(1, 10);
+    final CompletableFuture<Void> failed = dispatcher.dispatch("key", () -> {
+      throw new IllegalStateException("listener failed");
+    });
+    final CompletableFuture<Void> next = dispatcher.dispatch("key", () -> {});
+
+    assertThat(failed).failsWithin(Duration.ofSeconds(5));
+    assertThat(next).succeedsWithin(Duration.ofSeconds(5));
+    dispatcher.close(Duration.ofSeconds(10));
+  }
+
+  @Test
+  public void testClosedDispatcherRunsOnCallingThread() {
+    final BankIdEventDispatcher dispatcher = new BankIdEventDispatcher(1, 10);
+    dispatcher.close(Duration.ofSeconds(10));
+
+    final Thread caller = Thread.currentThread();
+    final List<Thread> threads = new ArrayList<>();
+    final CompletableFuture<Void> result = dispatcher.dispatch("key", () -> threads.add(Thread.currentThread()));
+    assertThat(result).isDone();
+    assertThat(threads).containsExactly(caller);
+  }
+
+}
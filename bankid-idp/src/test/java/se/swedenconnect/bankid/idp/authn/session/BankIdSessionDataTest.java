@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import jakarta.servlet.http.HttpServletRequest;
+import se.swedenconnect.bankid.idp.authn.service.BankIdResponseFixture;
+import se.swedenconnect.bankid.idp.authn.service.PollRequest;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.bankid.rpapi.types.OrderResponse;
+
+/**
+ * Test cases for BankIdSessionData.
+ */
+public class BankIdSessionDataTest {
+
+  @Test
+  public void testPollCounts() {
+    final OrderResponse order = BankIdResponseFixture.createOrderResponse(1);
+    final BankIdSessionData initial = BankIdSessionData.of(this.createPollRequest(null), order);
+    assertThat(initial.getPollCount()).isZero();
+    assertThat(initial.getReInitCount()).isZero();
+
+    final CollectResponse outstanding = collect(order, "outstandingTransaction");
+    final Instant start = initial.getStartTime();
+    final BankIdSessionData first = BankIdSessionData.of(initial, outstanding, true, at(start.plusMillis(1_200)));
+    assertThat(first.getPollCount()).isEqualTo(1);
+    assertThat(first.getStateChangeCount()).isEqualTo(1);
+    assertThat(first.getLastQrFrame()).isEqualTo(1L);
+    assertThat(first.getFirstQrTime()).isEqualTo(start.plusMillis(1_200));
+    assertThat(first.getIdenticalQrCount()).isZero();
+
+    // A poll within the same second renders the same QR frame ...
+    final BankIdSessionData second = BankIdSessionData.of(first, outstanding, true, at(start.plusMillis(1_900)));
+    assertThat(second.getPollCount()).isEqualTo(2);
+    assertThat(second.getStateChangeCount()).isEqualTo(1);
+    assertThat(second.getLastQrFrame()).isEqualTo(1L);
+    assertThat(second.getFirstQrTime()).isEqualTo(first.getFirstQrTime());
+    assertThat(second.getIdenticalQrCount()).isEqualTo(1);
+
+    // ... while a poll in the next second does not
+    final BankIdSessionData next = BankIdSessionData.of(second, outstanding, true, at(start.plusMillis(2_100)));
+    assertThat(next.getLastQrFrame()).isEqualTo(2L);
+    assertThat(next.getIdenticalQrCount()).isEqualTo(1);
+
+    final BankIdSessionData third = BankIdSessionData.of(second, collect(order, "userSign"), true);
+    assertThat(third.getPollCount()).isEqualTo(3);
+    assertThat(third.getStateChangeCount()).isEqualTo(2);
+    assertThat(third.getUserSignTime()).isNotNull();
+    assertThat(third.getLastQrFrame()).isEqualTo(second.getLastQrFrame());
+
+    // A new order for the same operation keeps the counts ...
+    final BankIdSessionState state = new BankIdSessionState();
+    state.push(third);
+    final BankIdSessionData reInit =
+        BankIdSessionData.of(this.createPollRequest(state), BankIdResponseFixture.createOrderResponse(2));
+    assertThat(reInit.getPollCount()).isEqualTo(3);
+    assertThat(reInit.getStateChangeCount()).isEqualTo(2);
+    assertThat(reInit.getReInitCount()).isEqualTo(1);
+    assertThat(reInit.getFirstPollTime()).isEqualTo(initial.getFirstPollTime());
+    assertThat(reInit.getLastQrFrame()).isNull();
+  }
+
+  private static Clock at(final Instant instant) {
+    return Clock.fixed(instant, ZoneOffset.UTC);
+  }
+
+  private PollRequest createPollRequest(final BankIdSessionState state) {
+    return PollRequest.builder()
+        .request(Mockito.mock(HttpServletRequest.class))
+        .context(BankIdResponseFixture.createAuth())
+        .qr(true)
+        .state(state)
+        .build();
+  }
+
+  private static CollectResponse collect(final OrderResponse order, final String hintCode) {
+    final CollectResponse response = new CollectResponse();
+    response.setOrderReference(order.getOrderReference());
+    response.setStatus(CollectResponse.Status.PENDING);
+    response.setHintCode(hintCode);
+    return response;
+  }
+
+}
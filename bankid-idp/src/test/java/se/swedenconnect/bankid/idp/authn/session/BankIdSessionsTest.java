@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
+
+/**
+ * Test cases for BankIdSessions.
+ */
+public class BankIdSessionsTest {
+
+  @Test
+  public void testUpdateSessionWithoutGuard() {
+    final CountingSessionDao dao = new CountingSessionDao(0);
+    final BankIdSessions sessions = new BankIdSessions(dao, ObservationRegistry.NOOP);
+    final MockHttpServletRequest request = new MockHttpServletRequest();
+
+    // A state written before the guard was introduced ...
+    final BankIdSessionState legacy = new BankIdSessionState();
+    legacy.push(data("or-1", ProgressStatus.STARTED));
+    dao.write(BankIdSessionAttributeKeys.BANKID_STATE_ATTRIBUTE, legacy, request);
+
+    sessions.save(request, data("or-1", ProgressStatus.OUTSTANDING_TRANSACTION));
+    assertThat(dao.attempts.get()).isEqualTo(2);
+    assertThat(sessions.loadSessionData(request).getBankIdSessionData().getStatus())
+        .isEqualTo(ProgressStatus.OUTSTANDING_TRANSACTION);
+    assertThat(dao.read(BankIdSessionAttributeKeys.BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE, String.class, request))
+        .isEqualTo("or-1");
+
+    // ... is guarded after the first update
+    sessions.save(request, data("or-1", ProgressStatus.USER_SIGN));
+    assertThat(dao.attempts.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testRetryOnConcurrentModification() {
+    final CountingSessionDao dao = new CountingSessionDao(1);
+    final BankIdSessions sessions = new BankIdSessions(dao, ObservationRegistry.NOOP);
+    final MockHttpServletRequest request = new MockHttpServletRequest();
+    final BankIdSessionState initial = new BankIdSessionState();
+    initial.push(data("or-1", ProgressStatus.STARTED));
+    dao.write(BankIdSessionAttributeKeys.BANKID_STATE_ATTRIBUTE, initial, request);
+    dao.write(BankIdSessionAttributeKeys.BANKID_STATE_ORDER_REFERENCE_ATTRIBUTE, "or-1", request);
+
+    // The first attempt fails since another writer has started a new order, and the update is applied on top of it
+    sessions.save(request, data("or-2", ProgressStatus.STARTED));
+    assertThat(dao.attempts.get()).isEqualTo(2);
+    final BankIdSessionState state = sessions.loadSessionData(request);
+    assertThat(state.getBankIdSessionData().getOrderReference()).isEqualTo("or-2");
+    state.pop();
+    assertThat(state.getBankIdSessionData().getOrderReference()).isEqualTo("conflict-1");
+  }
+
+  @Test
+  public void testGivesUpAfterRepeatedModifications() {
+    final CountingSessionDao dao = new CountingSessionDao(Integer.MAX_VALUE);
+    final BankIdSessions sessions = new BankIdSessions(dao, ObservationRegistry.NOOP);
+    final MockHttpServletRequest request = new MockHttpServletRequest();
+
+    assertThatThrownBy(() -> sessions.save(request, data("or-1", ProgressStatus.STARTED)))
+        .isInstanceOf(IllegalStateException.class);
+    assertThat(dao.attempts.get()).isEqualTo(5);
+  }
+
+  private static BankIdSessionData data(final String orderReference, final ProgressStatus status) {
+    return BankIdSessionData.builder()
+        .orderReference(orderReference)
+        .status(status)
+        .build();
+  }
+
+  /**
+   * A session DAO that counts the compare and write attempts, and lets another writer start a new order before each of
+   * the given number of first attempts.
+   */
+  private static class CountingSessionDao extends ServletSessionDao {
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private final AtomicInteger conflicts;
+
+    CountingSessionDao(final int conflicts) {
+      this.conflicts = new AtomicInteger(conflicts);
+    }
+
+    @Override
+    public boolean compareAndWrite(final String guardKey, final Object expected, final Map<String, Object> values,
+        final Long fencingToken, final HttpServletRequest request) {
+      final int attempt = this.attempts.incrementAndGet();
+      if (this.conflicts.getAndDecrement() > 0) {
+        final String orderReference = "conflict-" + attempt;
+        final BankIdSessionState state = new BankIdSessionState();
+        state.push(data(orderReference, ProgressStatus.STARTED));
+        this.write(BankIdSessionAttributeKeys.BANKID_STATE_ATTRIBUTE, state, request);
+        this.write(guardKey, orderReference, request);
+      }
+      return super.compareAndWrite(guardKey, expected, values, fencingToken, request);
+    }
+  }
+
+}
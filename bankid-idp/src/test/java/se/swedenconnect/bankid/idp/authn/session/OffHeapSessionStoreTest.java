@@ -0,0 +1,175 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.authn.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test cases for OffHeapSessionStore.
+ */
+public class OffHeapSessionStoreTest {
+
+  private final MutableClock clock = new MutableClock(Instant.parse("2023-10-01T10:00:00Z"));
+
+  @Test
+  public void testPutGetAndRemove() {
+    final OffHeapSessionStore store = this.createStore(64 * 1024, null);
+
+    final byte[] large = "x".repeat(1000).getBytes(StandardCharsets.UTF_8);
+    store.put("s1", "a", bytes("value-a"), Duration.ofMinutes(5));
+    store.put("s1", "b", large, Duration.ofMinutes(5));
+
+    assertThat(store.get("s1", "a")).isEqualTo(bytes("value-a"));
+    assertThat(store.get("s1", "b")).isEqualTo(large);
+    assertThat(store.get("s1", "c")).isNull();
+    assertThat(store.get("s2", "a")).isNull();
+    assertThat(store.getUsedBytes()).isEqualTo(64 * 17);
+
+    store.put("s1", "a", bytes("value-a2"), Duration.ofMinutes(5));
+    assertThat(store.get("s1", "a")).isEqualTo(bytes("value-a2"));
+    assertThat(store.getUsedBytes()).isEqualTo(64 * 17);
+
+    store.remove("s1", "b");
+    assertThat(store.get("s1", "b")).isNull();
+    assertThat(store.getUsedBytes()).isEqualTo(64);
+
+    store.removeSession("s1");
+    assertThat(store.get("s1", "a")).isNull();
+    assertThat(store.getUsedBytes()).isZero();
+    assertThat(store.getSessionCount()).isZero();
+  }
+
+  @Test
+  public void testExpiry() {
+    final OffHeapSessionStore store = this.createStore(64 * 1024, null);
+
+    store.put("s1", "a", bytes("1"), Duration.ofSeconds(10));
+    store.put("s2", "a", bytes("2"), Duration.ofMinutes(20));
+
+    this.clock.advance(Duration.ofSeconds(11));
+    store.expire();
+    assertThat(store.getSessionCount()).isEqualTo(1);
+    assertThat(store.get("s2", "a")).isEqualTo(bytes("2"));
+
+    // Longer than one revolution of the wheel
+    this.clock.advance(Duration.ofMinutes(10));
+    store.expire();
+    assertThat(store.get("s2", "a")).isEqualTo(bytes("2"));
+
+    this.clock.advance(Duration.ofMinutes(10));
+    store.expire();
+    assertThat(store.getSessionCount()).isZero();
+    assertThat(store.getUsedBytes()).isZero();
+  }
+
+  @Test
+  public void testRefreshedSessionIsNotExpired() {
+    final OffHeapSessionStore store = this.createStore(64 * 1024, null);
+
+    store.put("s1", "a", bytes("1"), Duration.ofSeconds(10));
+    this.clock.advance(Duration.ofSeconds(8));
+    store.put("s1", "b", bytes("2"), Duration.ofSeconds(10));
+    this.clock.advance(Duration.ofSeconds(8));
+    store.expire();
+
+    assertThat(store.get("s1", "a")).isEqualTo(bytes("1"));
+  }
+
+  @Test
+  public void testMemoryCap() {
+    final OffHeapSessionStore store = this.createStore(1024, null);
+
+    store.put("s1", "a", new byte[1000], Duration.ofMinutes(5));
+    assertThatThrownBy(() -> store.put("s2", "a", new byte[100], Duration.ofMinutes(5)))
+        .isInstanceOf(IllegalStateException.class);
+    assertThat(store.get("s2", "a")).isNull();
+
+    store.removeSession("s1");
+    store.put("s2", "a", new byte[100], Duration.ofMinutes(5));
+    assertThat(store.get("s2", "a")).hasSize(100);
+  }
+
+  @Test
+  public void testSnapshot(@TempDir final Path dir) throws Exception {
+    final Path file = dir.resolve("sessions.dat");
+
+    final OffHeapSessionStore store = this.createStore(64 * 1024, file);
+    store.put("s1", "a", bytes("value-1"), Duration.ofMinutes(5));
+    store.put("s2", "a", bytes("value-2"), Duration.ofSeconds(30));
+    store.close();
+    assertThat(Files.exists(file)).isTrue();
+
+    this.clock.advance(Duration.ofMinutes(1));
+    final OffHeapSessionStore restored = this.createStore(64 * 1024, file);
+    assertThat(restored.get("s1", "a")).isEqualTo(bytes("value-1"));
+    assertThat(restored.get("s2", "a")).isNull();
+    assertThat(restored.getSessionCount()).isEqualTo(1);
+
+    this.clock.advance(Duration.ofMinutes(5));
+    restored.expire();
+    assertThat(restored.getSessionCount()).isZero();
+  }
+
+  private OffHeapSessionStore createStore(final long maxMemory, final Path snapshotFile) {
+    return new OffHeapSessionStore(maxMemory, 64, 1024, snapshotFile, null, this.clock, false);
+  }
+
+  private static byte[] bytes(final String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static class MutableClock extends Clock {
+
+    private Instant now;
+
+    MutableClock(final Instant now) {
+      this.now = now;
+    }
+
+    void advance(final Duration duration) {
+      this.now = this.now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return this.now;
+    }
+  }
+
+}
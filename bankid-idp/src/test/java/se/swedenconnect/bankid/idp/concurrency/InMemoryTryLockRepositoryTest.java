@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.concurrency;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for InMemoryTryLockRepository.
+ */
+public class InMemoryTryLockRepositoryTest {
+
+  @Test
+  public void testLockIsExclusive() throws Exception {
+    final InMemoryTryLockRepository repository = new InMemoryTryLockRepository();
+    final TryLock lock = repository.get("lock:a");
+    assertThat(lock.tryLock()).isTrue();
+
+    // Another thread may not acquire the lock, but the owner may
+    assertThat(CompletableFuture.supplyAsync(() -> repository.get("lock:a").tryLock()).get()).isFalse();
+    assertThat(repository.get("lock:a").tryLock()).isTrue();
+    assertThat(repository.get("lock:b").tryLock()).isTrue();
+
+    repository.get("lock:a").unlock();
+    assertThat(CompletableFuture.supplyAsync(() -> repository.get("lock:a").tryLock()).get()).isFalse();
+    lock.unlock();
+    repository.get("lock:b").unlock();
+    assertThat(repository.size()).isZero();
+
+    assertThat(CompletableFuture.supplyAsync(() -> repository.get("lock:a").tryLock()).get()).isTrue();
+  }
+
+  @Test
+  public void testUnlockNotHeld() {
+    final InMemoryTryLockRepository repository = new InMemoryTryLockRepository();
+    assertThatThrownBy(() -> repository.get("lock:a").unlock())
+        .isInstanceOf(IllegalMonitorStateException.class);
+  }
+
+  /**
+   * Soak test asserting that the lock table does not grow with the number of distinct sessions.
+   */
+  @Test
+  public void testLockTableDoesNotGrow() throws Exception {
+    final InMemoryTryLockRepository repository = new InMemoryTryLockRepository();
+    final int threads = 8;
+    final int sessionsPerThread = 125_000;
+    final AtomicInteger maxSize = new AtomicInteger();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(CompletableFuture.runAsync(() -> {
+          for (int i = 0; i < sessionsPerThread; i++) {
+            final TryLock lock = repository.get("lock:/api/poll:{%s}".formatted(UUID.randomUUID()));
+            assertThat(lock.tryLock()).isTrue();
+            maxSize.accumulateAndGet(repository.size(), Math::max);
+            lock.unlock();
+          }
+        }, executor));
+      }
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    assertThat(repository.size()).isZero();
+    assertThat(maxSize.get()).isLessThanOrEqualTo(threads);
+  }
+
+}
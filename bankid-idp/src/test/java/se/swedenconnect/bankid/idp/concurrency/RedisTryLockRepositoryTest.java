@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.concurrency;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.swedenconnect.bankid.idp.integration.TestContainerSetup;
+
+/**
+ * Test cases for RedisTryLockRepository.
+ */
+public class RedisTryLockRepositoryTest {
+
+  private static RedissonClient client;
+
+  @BeforeAll
+  public static void init() {
+    client = TestContainerSetup.createRedissonClient();
+  }
+
+  @AfterAll
+  public static void shutdown() {
+    client.shutdown();
+  }
+
+  @Test
+  public void testAcquireAndRelease() {
+    final RedisTryLockRepository repository = new RedisTryLockRepository(client, Duration.ofSeconds(2),
+        Duration.ofMinutes(30), new SimpleMeterRegistry());
+    final String key = "lock:/api/poll:{%s}".formatted(UUID.randomUUID());
+
+    final TryLock lock = repository.get(key);
+    assertThat(lock.getFencingToken()).isNull();
+    assertThat(lock.tryLock()).isTrue();
+    final Long first = lock.getFencingToken();
+    assertThat(first).isNotNull().isPositive();
+
+    // The lock is exclusive ...
+    final TryLock other = repository.get(key);
+    assertThat(other.tryLock()).isFalse();
+    assertThat(other.getFencingToken()).isNull();
+
+    lock.unlock();
+    assertThat(lock.getFencingToken()).isNull();
+
+    // ... and every new hold gets a higher fencing token
+    assertThat(other.tryLock()).isTrue();
+    assertThat(other.getFencingToken()).isGreaterThan(first);
+    other.unlock();
+  }
+
+  @Test
+  public void testFencingCounterExpires() {
+    final RedisTryLockRepository repository = new RedisTryLockRepository(client, Duration.ofSeconds(2),
+        Duration.ofMinutes(30), new SimpleMeterRegistry());
+    final String key = "lock:/api/poll:{%s}".formatted(UUID.randomUUID());
+
+    final TryLock lock = repository.get(key);
+    assertThat(lock.tryLock()).isTrue();
+    lock.unlock();
+
+    // The counter expires, but not before the fencing TTL (plus the lease time) has passed
+    final long ttl = client.getBucket(RedisTryLockRepository.getFenceKey(key), StringCodec.INSTANCE)
+        .remainTimeToLive();
+    assertThat(ttl).isGreaterThan(Duration.ofMinutes(30).toMillis())
+        .isLessThanOrEqualTo(Duration.ofMinutes(30).plusSeconds(2).toMillis());
+  }
+
+  @Test
+  public void testExpiredLease() throws Exception {
+    final RedisTryLockRepository repository = new RedisTryLockRepository(client, Duration.ofMillis(100),
+        Duration.ofMinutes(30), new SimpleMeterRegistry());
+    final String key = "lock:/api/poll:{%s}".formatted(UUID.randomUUID());
+
+    final TryLock lock = repository.get(key);
+    assertThat(lock.tryLock()).isTrue();
+    final Long first = lock.getFencingToken();
+    Thread.sleep(200);
+
+    // The lease has expired, so another holder gets the lock (with a higher token), and the release of the
+    // expired hold does not release the new hold
+    final TryLock other = repository.get(key);
+    assertThat(other.tryLock()).isTrue();
+    assertThat(other.getFencingToken()).isGreaterThan(first);
+    lock.unlock();
+    assertThat(repository.get(key).tryLock()).isFalse();
+    other.unlock();
+  }
+
+}
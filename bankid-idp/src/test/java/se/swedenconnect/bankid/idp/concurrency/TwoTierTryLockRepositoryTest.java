@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.concurrency;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RedissonClient;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.swedenconnect.bankid.idp.integration.TestContainerSetup;
+
+/**
+ * Test cases for TwoTierTryLockRepository. Each repository represents a node, with the in-memory repository as the
+ * local tier, and the nodes share the Redis test container.
+ */
+public class TwoTierTryLockRepositoryTest {
+
+  private static final Duration AFFINITY_LEASE = Duration.ofMillis(500);
+
+  private static final Duration MAX_HOLD_TIME = Duration.ofMillis(200);
+
+  private static RedissonClient client;
+
+  private String key;
+
+  @BeforeAll
+  public static void init() {
+    client = TestContainerSetup.createRedissonClient();
+  }
+
+  @AfterAll
+  public static void shutdown() {
+    client.shutdown();
+  }
+
+  @BeforeEach
+  public void createKey() {
+    this.key = "lock:/api/poll:{%s}".formatted(UUID.randomUUID());
+  }
+
+  @Test
+  public void testLocalLockHasFencingToken() {
+    final TwoTierTryLockRepository node = createNode();
+
+    final TryLock lock = node.get(this.key);
+    assertThat(lock.tryLock()).isTrue();
+    final Long token = lock.getFencingToken();
+    assertThat(token).isNotNull().isPositive();
+    lock.unlock();
+    assertThat(lock.getFencingToken()).isNull();
+
+    // The token is kept for as long as the lease is held
+    final TryLock next = node.get(this.key);
+    assertThat(next.tryLock()).isTrue();
+    assertThat(next.getFencingToken()).isEqualTo(token);
+    next.unlock();
+  }
+
+  @Test
+  public void testLeaseExpiry() throws Exception {
+    final TwoTierTryLockRepository nodeA = createNode();
+    final TwoTierTryLockRepository nodeB = createNode();
+
+    final TryLock lockA = nodeA.get(this.key);
+    assertThat(lockA.tryLock()).isTrue();
+    final Long tokenA = lockA.getFencingToken();
+    lockA.unlock();
+
+    // Once the lease of the first node has expired, the other node takes over the lease, with a higher token
+    Thread.sleep(AFFINITY_LEASE.plusMillis(100).toMillis());
+    final TryLock lockB = nodeB.get(this.key);
+    assertThat(lockB.tryLock()).isTrue();
+    assertThat(lockB.getFencingToken()).isGreaterThan(tokenA);
+    lockB.unlock();
+  }
+
+  @Test
+  public void testSwitchBetweenNodes() throws Exception {
+    final TwoTierTryLockRepository nodeA = createNode();
+    final TwoTierTryLockRepository nodeB = createNode();
+
+    final TryLock lockA = nodeA.get(this.key);
+    assertThat(lockA.tryLock()).isTrue();
+    final Long tokenA = lockA.getFencingToken();
+    lockA.unlock();
+
+    // The second node marks the key as shared, but must wait for the lease of the first node to expire ...
+    final TryLock lockB = nodeB.get(this.key);
+    assertThat(lockB.tryLock()).isFalse();
+    assertThat(lockB.getFencingToken()).isNull();
+
+    // ... after which both nodes use the distributed lock, with higher tokens than the lease
+    Thread.sleep(AFFINITY_LEASE.plusMillis(100).toMillis());
+    assertThat(lockB.tryLock()).isTrue();
+    final Long tokenB = lockB.getFencingToken();
+    assertThat(tokenB).isGreaterThan(tokenA);
+
+    final TryLock otherA = nodeA.get(this.key);
+    assertThat(otherA.tryLock()).isFalse();
+    lockB.unlock();
+
+    assertThat(otherA.tryLock()).isTrue();
+    assertThat(otherA.getFencingToken()).isGreaterThan(tokenB);
+    otherA.unlock();
+  }
+
+  private static TwoTierTryLockRepository createNode() {
+    final RedisTryLockRepository distributed =
+        new RedisTryLockRepository(client, MAX_HOLD_TIME, Duration.ofMinutes(30), new SimpleMeterRegistry());
+    return new TwoTierTryLockRepository(new InMemoryTryLockRepository(), distributed, client, AFFINITY_LEASE,
+        MAX_HOLD_TIME, Duration.ofMinutes(30));
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.ext;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for ReplayFilter.
+ */
+public class ReplayFilterTest {
+
+  private final MutableClock clock = new MutableClock(Instant.parse("2023-10-01T10:00:00Z"));
+
+  @Test
+  public void testNoFalseNegatives() {
+    final ReplayFilter filter = new ReplayFilter(Duration.ofMinutes(5), 10_000, 0.01, this.clock);
+    for (int i = 0; i < 10_000; i++) {
+      filter.put("_id-" + i);
+    }
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(filter.mightContain("_id-" + i)).isTrue();
+    }
+  }
+
+  @Test
+  public void testFalsePositiveRate() {
+    final ReplayFilter filter = new ReplayFilter(Duration.ofMinutes(5), 10_000, 0.01, this.clock);
+    for (int i = 0; i < 10_000; i++) {
+      filter.put("_id-" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 100_000; i++) {
+      if (filter.mightContain("_other-" + i)) {
+        falsePositives++;
+      }
+    }
+    assertThat(falsePositives / 100_000.0).isLessThan(0.02);
+    assertThat(filter.getEstimatedFalsePositiveRate()).isBetween(0.005, 0.02);
+    assertThat(filter.getMemoryBytes()).isGreaterThan(0);
+  }
+
+  @Test
+  public void testRotation() {
+    final ReplayFilter filter = new ReplayFilter(Duration.ofMinutes(5), 1_000, 0.01, this.clock);
+    filter.put("_id-1");
+
+    // Kept for at least one window
+    this.clock.advance(Duration.ofMinutes(4));
+    filter.put("_id-2");
+    this.clock.advance(Duration.ofMinutes(2));
+    assertThat(filter.mightContain("_id-1")).isTrue();
+    assertThat(filter.mightContain("_id-2")).isTrue();
+    filter.put("_id-3");
+
+    // Dropped when the generation it was added to is dropped
+    this.clock.advance(Duration.ofMinutes(5));
+    assertThat(filter.mightContain("_id-1")).isFalse();
+    assertThat(filter.mightContain("_id-2")).isFalse();
+    assertThat(filter.mightContain("_id-3")).isTrue();
+
+    this.clock.advance(Duration.ofMinutes(20));
+    assertThat(filter.mightContain("_id-3")).isFalse();
+    assertThat(filter.getEstimatedFalsePositiveRate()).isZero();
+  }
+
+  private static class MutableClock extends Clock {
+
+    private Instant now;
+
+    MutableClock(final Instant now) {
+      this.now = now;
+    }
+
+    void advance(final Duration duration) {
+      this.now = this.now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Instant instant() {
+      return this.now;
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone) {
+      return this;
+    }
+  }
+
+}
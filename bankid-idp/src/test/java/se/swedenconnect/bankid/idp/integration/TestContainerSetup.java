@@ -15,6 +15,9 @@
  */
 package se.swedenconnect.bankid.idp.integration;
 
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.testcontainers.containers.GenericContainer;
@@ -33,6 +36,19 @@ public class TestContainerSetup {
     redis.start();
   }
 
+  /**
+   * Creates a Redisson client for the Redis container, for tests that use Redis without an application context.
+   *
+   * @return a Redisson client (to be shut down by the caller)
+   */
+  public static RedissonClient createRedissonClient() {
+    final Config config = new Config();
+    config.useSingleServer()
+        .setAddress("redis://%s:%d".formatted(redis.getHost(), redis.getMappedPort(6379)))
+        .setPassword("supersecret");
+    return Redisson.create(config);
+  }
+
   @DynamicPropertySource
   static void registerContainerProperties(DynamicPropertyRegistry registry) {
     registry.add("spring.data.redis.ssl.enabled", () -> false);
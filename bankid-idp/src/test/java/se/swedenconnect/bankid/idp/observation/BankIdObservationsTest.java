@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.observation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.common.KeyValues;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Test cases for BankIdObservations.
+ */
+public class BankIdObservationsTest {
+
+  private final List<Observation.Context> stopped = new CopyOnWriteArrayList<>();
+
+  private final ObservationRegistry registry = ObservationRegistry.create();
+
+  public BankIdObservationsTest() {
+    this.registry.observationConfig().observationHandler(new ObservationHandler<>() {
+
+      @Override
+      public void onStop(final Observation.Context context) {
+        BankIdObservationsTest.this.stopped.add(context);
+      }
+
+      @Override
+      public boolean supportsContext(final Observation.Context context) {
+        return true;
+      }
+    });
+  }
+
+  @Test
+  public void testNestedObservationsOnOtherThread() {
+    final Mono<String> inner = BankIdObservations.observe(Mono.just("value"), "inner", KeyValues.empty(),
+        this.registry);
+    final Mono<String> outer = BankIdObservations.observe(
+        Mono.just("start").publishOn(Schedulers.boundedElastic()).flatMap(s -> inner),
+        "outer", KeyValues.of("key", "value"), this.registry);
+
+    assertThat(outer.block()).isEqualTo("value");
+
+    assertThat(this.stopped).extracting(Observation.Context::getName).containsExactly("inner", "outer");
+    assertThat(this.stopped.get(0).getParentObservation().getContextView().getName()).isEqualTo("outer");
+    assertThat(this.stopped.get(1).getLowCardinalityKeyValue("key").getValue()).isEqualTo("value");
+  }
+
+  @Test
+  public void testError() {
+    final Mono<String> mono = BankIdObservations.observe(Mono.error(new IllegalStateException("failure")), "failing",
+        KeyValues.empty(), this.registry);
+
+    assertThat(mono.onErrorResume(e -> Mono.empty()).block()).isNull();
+
+    assertThat(this.stopped).hasSize(1);
+    assertThat(this.stopped.get(0).getError()).isInstanceOf(IllegalStateException.class);
+  }
+
+}
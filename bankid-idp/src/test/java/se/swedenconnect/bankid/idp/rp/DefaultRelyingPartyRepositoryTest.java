@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.rp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import se.swedenconnect.bankid.idp.authn.DisplayText;
+import se.swedenconnect.bankid.rpapi.service.BankIDClient;
+
+/**
+ * Test cases for DefaultRelyingPartyRepository.
+ *
+ * @author Martin Lindström
+ * @author Felix Hellman
+ */
+public class DefaultRelyingPartyRepositoryTest {
+
+  @Test
+  void testLookup() {
+    final RelyingPartyData rp1 = rp("sp1", "sp2");
+    final RelyingPartyData rp2 = rp("sp2", "sp3");
+    final DefaultRelyingPartyRepository repository = new DefaultRelyingPartyRepository(List.of(rp1, rp2));
+
+    assertThat(repository.getRelyingParty("sp1")).isSameAs(rp1);
+    assertThat(repository.getRelyingParty("sp2")).isSameAs(rp1);
+    assertThat(repository.getRelyingParty("sp3")).isSameAs(rp2);
+    assertThat(repository.getRelyingParty("unknown")).isNull();
+    assertThat(repository.getRelyingParty(null)).isNull();
+  }
+
+  @Test
+  void testCatchAll() {
+    final RelyingPartyData rp = rp();
+    final DefaultRelyingPartyRepository repository = new DefaultRelyingPartyRepository(List.of(rp));
+
+    assertThat(repository.getRelyingParty("sp1")).isSameAs(rp);
+    assertThat(repository.getRelyingParty(null)).isSameAs(rp);
+  }
+
+  @Test
+  void testUpdate() {
+    final RelyingPartyData rp1 = rp("sp1");
+    final RelyingPartyData rp2 = rp("sp2");
+    final DefaultRelyingPartyRepository repository = new DefaultRelyingPartyRepository(List.of(rp1));
+    repository.update(List.of(rp2));
+
+    assertThat(repository.getRelyingParty("sp1")).isNull();
+    assertThat(repository.getRelyingParty("sp2")).isSameAs(rp2);
+  }
+
+  private static RelyingPartyData rp(final String... entityIds) {
+    return new RelyingPartyData(Mockito.mock(BankIDClient.class), List.of(entityIds), new DisplayText(),
+        new DisplayText(), null, null);
+  }
+
+}
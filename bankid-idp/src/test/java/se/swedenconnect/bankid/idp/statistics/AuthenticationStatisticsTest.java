@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import se.swedenconnect.bankid.idp.authn.DisplayText;
+import se.swedenconnect.bankid.idp.authn.context.BankIdOperation;
+import se.swedenconnect.bankid.idp.authn.events.BankIdErrorEvent;
+import se.swedenconnect.bankid.idp.authn.events.BankIdEventSnapshot;
+import se.swedenconnect.bankid.idp.authn.events.CollectResponseEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCancellationEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderCompletionEvent;
+import se.swedenconnect.bankid.idp.authn.events.OrderResponseEvent;
+import se.swedenconnect.bankid.idp.authn.service.BankIdResponseFixture;
+import se.swedenconnect.bankid.idp.authn.service.PollRequest;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionState;
+import se.swedenconnect.bankid.idp.rp.RelyingPartyData;
+import se.swedenconnect.bankid.rpapi.service.BankIDClient;
+import se.swedenconnect.bankid.rpapi.types.CollectResponse;
+import se.swedenconnect.bankid.rpapi.types.ErrorCode;
+import se.swedenconnect.bankid.rpapi.types.OrderResponse;
+import se.swedenconnect.bankid.rpapi.types.ProgressStatus;
+
+
+/**
+ * Test cases for AuthenticationStatistics.
+ */
+public class AuthenticationStatisticsTest {
+
+  private static final Tags QR_TAGS = Tags.of("rp", "rp1", "operation", "auth", "device", "qr");
+
+  private MeterRegistry meterRegistry;
+
+  private AuthenticationStatistics statistics;
+
+  private RelyingPartyData rp;
+
+  @BeforeEach
+  public void init() {
+    this.meterRegistry = new SimpleMeterRegistry();
+    this.statistics = new AuthenticationStatistics(this.meterRegistry);
+    final BankIDClient client = Mockito.mock(BankIDClient.class);
+    Mockito.when(client.getIdentifier()).thenReturn("rp1");
+    this.rp = new RelyingPartyData(client, List.of("sp"), new DisplayText(), new DisplayText(), null, null);
+  }
+
+  @Test
+  public void testOrderLifecycle() {
+    final OrderResponse order = BankIdResponseFixture.createOrderResponse(1);
+    this.statistics.handleOrderResponse(new OrderResponseEvent(
+        Mockito.mock(HttpServletRequest.class), this.rp, this.createPollRequest(null, true), order));
+    this.statistics.handleOrderResponse(new OrderResponseEvent(
+        Mockito.mock(HttpServletRequest.class), this.rp, this.createPollRequest(null, false), order));
+
+    final BankIdSessionData data = BankIdSessionData.builder()
+        .orderReference(order.getOrderReference())
+        .startTime(Instant.now().minusSeconds(5))
+        .showQr(true)
+        .build();
+    this.statistics.handleCompletion(new OrderCompletionEvent(
+        Mockito.mock(HttpServletRequest.class), this.rp, this.snapshot(data)));
+    this.statistics.handleCancel(new OrderCancellationEvent(
+        Mockito.mock(HttpServletRequest.class), this.rp, this.snapshot(data)));
+    this.statistics.handleError(new BankIdErrorEvent(
+        Mockito.mock(HttpServletRequest.class), this.rp, "error", "description", this.snapshot(data)));
+    this.statistics.handleError(new BankIdErrorEvent(
+        Mockito.mock(HttpServletRequest.class), this.rp, "error", "description", this.snapshot(null)));
+
+    assertThat(this.count(AuthenticationStatistics.STARTS_METER_NAME, QR_TAGS)).isEqualTo(1.0);
+    assertThat(this.count(AuthenticationStatistics.STARTS_METER_NAME,
+        Tags.of("rp", "rp1", "operation", "auth", "device", "autostart"))).isEqualTo(1.0);
+    assertThat(this.count(AuthenticationStatistics.COMPLETIONS_METER_NAME, QR_TAGS)).isEqualTo(1.0);
+    assertThat(this.count(AuthenticationStatistics.CANCELS_METER_NAME, QR_TAGS)).isEqualTo(1.0);
+    assertThat(this.count(AuthenticationStatistics.ERRORS_METER_NAME, QR_TAGS)).isEqualTo(1.0);
+    assertThat(this.count(AuthenticationStatistics.ERRORS_METER_NAME,
+        Tags.of("rp", "rp1", "operation", "auth", "device", "unknown"))).isEqualTo(1.0);
+    assertThat(this.meterRegistry.get(AuthenticationStatistics.COMPLETION_TIME_METER_NAME)
+        .tags(QR_TAGS).tag("quantile", "0.5").gauge().value()).isGreaterThanOrEqualTo(5.0);
+
+    final List<AuthenticationStatistics.StatisticsEntry> entries = this.statistics.getStatistics();
+    assertThat(entries).extracting(AuthenticationStatistics.StatisticsEntry::device)
+        .containsExactly("autostart", "qr", "unknown");
+    final AuthenticationStatistics.StatisticsEntry qr = entries.get(1);
+    assertThat(qr.starts()).isEqualTo(1);
+    assertThat(qr.completions()).isEqualTo(1);
+    assertThat(qr.cancels()).isEqualTo(1);
+    assertThat(qr.errors()).isEqualTo(1);
+    assertThat(qr.completionTime().count()).isEqualTo(1);
+  }
+
+  @Test
+  public void testHintCodesCountedOnProgressChange() {
+    final OrderResponse order = BankIdResponseFixture.createOrderResponse(1);
+
+    // The first collect response of an order is always counted ...
+    this.collect(null, order, "outstandingTransaction");
+
+    // ... but not when the progress status is unchanged
+    final BankIdSessionData outstanding = this.sessionData(order, ProgressStatus.OUTSTANDING_TRANSACTION);
+    this.collect(outstanding, order, "outstandingTransaction");
+    this.collect(outstanding, order, "outstandingTransaction");
+
+    // A changed progress status is counted
+    this.collect(outstanding, order, "userSign");
+    this.collect(this.sessionData(order, ProgressStatus.USER_SIGN), order, "userSign");
+
+    // The same status for a new order is counted
+    this.collect(outstanding, BankIdResponseFixture.createOrderResponse(2), "outstandingTransaction");
+
+    // Responses without a hint code are not counted
+    this.collect(outstanding, order, null);
+
+    assertThat(this.count(AuthenticationStatistics.HINTS_METER_NAME, QR_TAGS.and("hint", "outstandingTransaction")))
+        .isEqualTo(2.0);
+    assertThat(this.count(AuthenticationStatistics.HINTS_METER_NAME, QR_TAGS.and("hint", "userSign")))
+        .isEqualTo(1.0);
+    assertThat(this.statistics.getStatistics()).singleElement()
+        .extracting(AuthenticationStatistics.StatisticsEntry::hintCodes)
+        .isEqualTo(Map.of("outstandingTransaction", 2L, "userSign", 1L));
+  }
+
+  @Test
+  public void testUnknownHintCodesShareTag() {
+    this.collect(null, BankIdResponseFixture.createOrderResponse(1), "someNewHint");
+    this.collect(null, BankIdResponseFixture.createOrderResponse(2), "anotherNewHint");
+    this.collect(null, BankIdResponseFixture.createOrderResponse(3), "userCancel", CollectResponse.Status.FAILED);
+    this.collect(null, BankIdResponseFixture.createOrderResponse(4), "someNewError", CollectResponse.Status.FAILED);
+
+    assertThat(this.statistics.getStatistics()).singleElement()
+        .extracting(AuthenticationStatistics.StatisticsEntry::hintCodes)
+        .isEqualTo(Map.of(ProgressStatus.UNKNOWN_HINTCODE.getValue(), 2L, ErrorCode.USER_CANCEL.getValue(), 1L,
+            ErrorCode.UNKNOWN_ERROR.getValue(), 1L));
+    assertThat(this.meterRegistry.find(AuthenticationStatistics.HINTS_METER_NAME).functionCounters()).hasSize(3);
+  }
+
+  private void collect(final BankIdSessionData previous, final OrderResponse order, final String hintCode) {
+    this.collect(previous, order, hintCode, CollectResponse.Status.PENDING);
+  }
+
+  private void collect(final BankIdSessionData previous, final OrderResponse order, final String hintCode,
+      final CollectResponse.Status status) {
+    final BankIdSessionState state;
+    if (previous != null) {
+      state = new BankIdSessionState();
+      state.push(previous);
+    }
+    else {
+      state = null;
+    }
+    final CollectResponse response = new CollectResponse();
+    response.setOrderReference(order.getOrderReference());
+    response.setStatus(status);
+    response.setHintCode(hintCode);
+    this.statistics.handleCollectResponse(new CollectResponseEvent(this.createPollRequest(state, true), response));
+  }
+
+  private BankIdSessionData sessionData(final OrderResponse order, final ProgressStatus status) {
+    return BankIdSessionData.builder()
+        .orderReference(order.getOrderReference())
+        .status(status)
+        .showQr(true)
+        .build();
+  }
+
+  private BankIdEventSnapshot snapshot(final BankIdSessionData data) {
+    return new BankIdEventSnapshot("sp", "id", BankIdOperation.AUTH, data, null);
+  }
+
+  private PollRequest createPollRequest(final BankIdSessionState state, final boolean qr) {
+    return PollRequest.builder()
+        .request(Mockito.mock(HttpServletRequest.class))
+        .context(BankIdResponseFixture.createAuth())
+        .relyingPartyData(this.rp)
+        .qr(qr)
+        .state(state)
+        .build();
+  }
+
+  private double count(final String name, final Tags tags) {
+    return this.meterRegistry.get(name).tags(tags).functionCounter().count();
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.bankid.idp.authn.session.BankIdSessionData;
+
+/**
+ * Test cases for LifecycleMetrics.
+ */
+public class LifecycleMetricsTest {
+
+  private static final Instant T0 = Instant.parse("2023-10-01T12:00:00Z");
+
+  @Test
+  public void testPhases() {
+    final BankIdSessionData data = BankIdSessionData.builder()
+        .authnRequestTime(T0)
+        .firstPollTime(T0.plusSeconds(1))
+        .startTime(T0.plusSeconds(2))
+        .firstQrTime(T0.plusSeconds(2))
+        .userSignTime(T0.plusSeconds(12))
+        .completeTime(T0.plusSeconds(20))
+        .build();
+
+    final Map<String, Duration> phases = LifecycleMetrics.phases(data, T0.plusSeconds(21));
+    assertThat(phases).containsExactly(
+        Map.entry("request", Duration.ofSeconds(1)),
+        Map.entry("order", Duration.ofSeconds(1)),
+        Map.entry("qr", Duration.ZERO),
+        Map.entry("user", Duration.ofSeconds(10)),
+        Map.entry("sign", Duration.ofSeconds(8)),
+        Map.entry("response", Duration.ofSeconds(1)),
+        Map.entry("total", Duration.ofSeconds(20)));
+  }
+
+  @Test
+  public void testPhasesAfterReInit() {
+    // The first QR time is carried over from the first order while the start time belongs to the new order
+    final BankIdSessionData data = BankIdSessionData.builder()
+        .authnRequestTime(T0)
+        .firstPollTime(T0.plusSeconds(1))
+        .firstQrTime(T0.plusSeconds(2))
+        .startTime(T0.plusSeconds(40))
+        .userSignTime(T0.plusSeconds(50))
+        .completeTime(T0.plusSeconds(55))
+        .reInitCount(1)
+        .build();
+
+    final Map<String, Duration> phases = LifecycleMetrics.phases(data, T0.plusSeconds(55));
+    assertThat(phases).doesNotContainKey("qr");
+    assertThat(phases).containsEntry("order", Duration.ofSeconds(39));
+    assertThat(phases).containsEntry("user", Duration.ofSeconds(10));
+    assertThat(phases).containsEntry("sign", Duration.ofSeconds(5));
+    assertThat(phases).containsEntry("response", Duration.ZERO);
+    assertThat(phases).containsEntry("total", Duration.ofSeconds(54));
+  }
+
+  @Test
+  public void testPhasesOfUnfinishedOrder() {
+    final BankIdSessionData data = BankIdSessionData.builder()
+        .firstPollTime(T0)
+        .startTime(T0.plusSeconds(1))
+        .build();
+
+    final Map<String, Duration> phases = LifecycleMetrics.phases(data, T0.plusSeconds(30));
+    assertThat(phases).containsOnlyKeys("order", "total");
+    assertThat(phases).containsEntry("total", Duration.ofSeconds(30));
+  }
+
+  @Test
+  public void testBucketsCoverOrderLifetime() {
+    assertThat(LifecycleMetrics.BUCKETS).isSorted();
+    assertThat(LifecycleMetrics.BUCKETS[0]).isLessThanOrEqualTo(Duration.ofMillis(100));
+    assertThat(LifecycleMetrics.BUCKETS[LifecycleMetrics.BUCKETS.length - 1])
+        .isGreaterThanOrEqualTo(Duration.ofMinutes(3));
+  }
+
+}
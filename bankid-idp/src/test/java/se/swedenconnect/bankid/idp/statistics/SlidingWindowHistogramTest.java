@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.bankid.idp.statistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for SlidingWindowHistogram.
+ */
+public class SlidingWindowHistogramTest {
+
+  private static final long[] BOUNDS = { 1_000, 2_000, 5_000, 10_000 };
+
+  @Test
+  public void testPercentiles() {
+    final MutableClock clock = new MutableClock();
+    final SlidingWindowHistogram histogram =
+        new SlidingWindowHistogram(Duration.ofMinutes(10), 10, BOUNDS, clock);
+    assertThat(histogram.snapshot().getPercentile(0.5)).isNull();
+
+    for (int i = 0; i < 90; i++) {
+      histogram.record(Duration.ofMillis(1_500));
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(Duration.ofSeconds(8));
+    }
+    histogram.record(Duration.ofMinutes(5));
+
+    final SlidingWindowHistogram.Snapshot snapshot = histogram.snapshot();
+    assertThat(snapshot.getCount()).isEqualTo(101);
+    assertThat(snapshot.getPercentile(0.5)).isEqualTo(Duration.ofSeconds(2));
+    assertThat(snapshot.getPercentile(0.95)).isEqualTo(Duration.ofSeconds(10));
+    assertThat(snapshot.getPercentile(1)).isEqualTo(Duration.ofSeconds(10));
+  }
+
+  @Test
+  public void testWindowSlides() {
+    final MutableClock clock = new MutableClock();
+    final SlidingWindowHistogram histogram =
+        new SlidingWindowHistogram(Duration.ofMinutes(10), 10, BOUNDS, clock);
+
+    histogram.record(Duration.ofMillis(500));
+    clock.advance(Duration.ofMinutes(5));
+    histogram.record(Duration.ofMillis(500));
+    assertThat(histogram.snapshot().getCount()).isEqualTo(2);
+
+    clock.advance(Duration.ofMinutes(6));
+    assertThat(histogram.snapshot().getCount()).isEqualTo(1);
+
+    // The slot of the first record is reused ...
+    clock.advance(Duration.ofMinutes(9));
+    histogram.record(Duration.ofMillis(500));
+    assertThat(histogram.snapshot().getCount()).isEqualTo(1);
+  }
+
+  private static class MutableClock extends Clock {
+
+    private Instant now = Instant.parse("2023-11-01T10:00:00Z");
+
+    void advance(final Duration duration) {
+      this.now = this.now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneId.of("UTC");
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return this.now;
+    }
+  }
+
+}